@@ -0,0 +1,218 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import paxos.Command;
+import paxos.GroupMessage;
+import paxos.LogEntry;
+import paxos.MessageAccepted;
+import paxos.MessageCommit;
+import paxos.MessageHeartbeat;
+import paxos.MessageHeartbeatAck;
+import paxos.MessagePrepare;
+import paxos.MessagePromise;
+import paxos.MessagePropose;
+import paxos.PaxosMessage;
+import paxos.ProposalID;
+import transport.BufferPool;
+import transport.MessageCodec;
+
+/**
+ * First checks that random Paxos messages come out of a MessageCodec round trip unchanged, comparing the Java
+ * serialization of the original and the decoded message, then compares the size and the time of encoding and decoding
+ * typical messages with MessageCodec in a pooled buffer against Java serialization, as the RMI transport does it.
+ * Usage: java bench.CodecBenchmark [round trips to check] [iterations per message] [seed]
+ */
+public class CodecBenchmark {
+  private static final String[] OPERATIONS = {"PUT", "DELETE", Command.NOOP, Command.CONFIG};
+  private static final char[][] ALPHABETS = {
+      "abcdefghijklmnopqrstuvwxyz0123456789-_ ".toCharArray(),
+      "\u00e4\u00f6\u00fc\u00df\u00e9\u00f1\u00e7\u00f8\u00e5\u20ac".toCharArray(),
+      "\u65e5\u672c\u8a9e\u4e2d\u6587\ud55c\uad6d\uc5b4".toCharArray()};
+  private static final BufferPool pool = new BufferPool(16, 512, 4 << 10, 32 << 10);
+  // keeps the results alive so the JIT can not drop the work
+  private static long sink;
+
+  public static void main(String[] args) throws Exception {
+    int checks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+    Random random = new Random(args.length > 2 ? Long.parseLong(args[2]) : 1);
+    for (int i = 0; i < checks; i++) {
+      checkRoundTrip(randomMessage(random));
+    }
+    System.out.println("round trips checked=" + checks);
+
+    String value = "v".repeat(100);
+    List<Command> batch = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      batch.add(new Command("client-" + i, "PUT", "key" + i, value + i));
+    }
+    ProposalID ballot = new ProposalID(1);
+    run("heartbeat", new MessageHeartbeat(ballot, 12345, 67890), iterations);
+    run("accepted", new MessageAccepted(2, ballot, 67890, new Command("client-1", "PUT", "key", value)), iterations);
+    run("propose batch of 16", new MessagePropose(ballot, 67890, Command.batch(batch)), iterations);
+    System.out.println(pool.getStats() + " (" + sink + ")");
+  }
+
+  private static void checkRoundTrip(PaxosMessage message) throws IOException {
+    int size = MessageCodec.size(message);
+    ByteBuffer buffer = pool.acquire(size);
+    MessageCodec.encode(message, buffer);
+    if (buffer.position() != size) {
+      throw new IllegalStateException(message.getClass().getSimpleName() + " took " + buffer.position() + " bytes instead of " + size);
+    }
+    buffer.flip();
+    PaxosMessage decoded = MessageCodec.decode(buffer);
+    if (buffer.hasRemaining()) {
+      throw new IllegalStateException(message.getClass().getSimpleName() + " left " + buffer.remaining() + " bytes undecoded");
+    }
+    pool.release(buffer);
+    if (!Arrays.equals(serialize(message), serialize(decoded))) {
+      throw new IllegalStateException(message.getClass().getSimpleName() + " changed in a round trip");
+    }
+  }
+
+  private static void run(String name, PaxosMessage message, int iterations) throws Exception {
+    // warms up both
+    codec(message, iterations);
+    serialization(message, iterations / 10);
+    long start = System.nanoTime();
+    codec(message, iterations);
+    double codecNanos = (double) (System.nanoTime() - start) / iterations;
+    start = System.nanoTime();
+    serialization(message, iterations / 10);
+    double serializationNanos = (double) (System.nanoTime() - start) / (iterations / 10);
+    System.out.printf("message=%s codec bytes=%d ns/op=%.0f serialization bytes=%d ns/op=%.0f%n",
+        name, MessageCodec.size(message), codecNanos, serialize(message).length, serializationNanos);
+  }
+
+  private static void codec(PaxosMessage message, int iterations) {
+    for (int i = 0; i < iterations; i++) {
+      int size = MessageCodec.size(message);
+      ByteBuffer buffer = pool.acquire(size);
+      MessageCodec.encode(message, buffer);
+      buffer.flip();
+      sink += MessageCodec.decode(buffer).getSlot();
+      pool.release(buffer);
+    }
+  }
+
+  private static void serialization(PaxosMessage message, int iterations) throws Exception {
+    for (int i = 0; i < iterations; i++) {
+      byte[] bytes = serialize(message);
+      try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+        sink += ((PaxosMessage) in.readObject()).getSlot();
+      }
+    }
+  }
+
+  private static byte[] serialize(PaxosMessage message) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(message);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static PaxosMessage randomMessage(Random random) {
+    switch (random.nextInt(8)) {
+      case 0:
+        return random.nextBoolean() ? MessagePrepare.forLeadership(randomBallot(random), randomLong(random))
+            : new MessagePrepare(randomBallot(random), randomLong(random));
+      case 1: {
+        List<LogEntry> entries = new ArrayList<>();
+        int count = random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+          entries.add(new LogEntry(randomLong(random), randomBallot(random), randomCommand(random, true)));
+        }
+        return new MessagePromise(randomInt(random), randomBallot(random), randomLong(random), random.nextBoolean(), entries);
+      }
+      case 2:
+        return new MessagePropose(randomBallot(random), randomLong(random), randomCommand(random, true), randomSlots(random));
+      case 3:
+        return new MessageAccepted(randomInt(random), randomBallot(random), randomLong(random), randomCommand(random, true));
+      case 4:
+        return new MessageHeartbeat(randomBallot(random), randomLong(random), randomLong(random));
+      case 5:
+        return new MessageCommit(randomBallot(random), randomSlots(random));
+      case 6:
+        return new GroupMessage(randomInt(random), randomMessage(random));
+      default:
+        return new MessageHeartbeatAck(randomInt(random), randomBallot(random), randomLong(random), randomLong(random));
+    }
+  }
+
+  private static Command randomCommand(Random random, boolean mayBatch) {
+    if (mayBatch && random.nextInt(4) == 0) {
+      List<Command> commands = new ArrayList<>();
+      int count = random.nextInt(20);
+      for (int i = 0; i < count; i++) {
+        commands.add(randomCommand(random, false));
+      }
+      return Command.batch(randomString(random), commands);
+    }
+    String operation = OPERATIONS[random.nextInt(OPERATIONS.length)];
+    if (random.nextInt(3) == 0) {
+      return Command.session(randomString(random), operation, randomString(random), randomString(random),
+          "client-" + random.nextInt(), randomLong(random), randomLong(random));
+    }
+    return new Command(randomString(random), operation, randomString(random), randomString(random));
+  }
+
+  /**
+   * @return null, or a new string of up to 300 characters mixing one, two, three and four byte UTF-8 characters
+   */
+  private static String randomString(Random random) {
+    if (random.nextInt(10) == 0) {
+      return null;
+    }
+    StringBuilder value = new StringBuilder();
+    int length = random.nextInt(random.nextBoolean() ? 20 : 300);
+    for (int i = 0; i < length; i++) {
+      int alphabet = random.nextInt(ALPHABETS.length + 1);
+      if (alphabet == ALPHABETS.length) {
+        value.appendCodePoint(0x1F600 + random.nextInt(80));
+      } else {
+        value.append(ALPHABETS[alphabet][random.nextInt(ALPHABETS[alphabet].length)]);
+      }
+    }
+    return new String(value);
+  }
+
+  /**
+   * @return up to 40 ascending slots, mostly consecutive
+   */
+  private static long[] randomSlots(Random random) {
+    long[] slots = new long[random.nextInt(3) == 0 ? 0 : random.nextInt(40)];
+    long slot = randomLong(random) >>> 2;
+    for (int i = 0; i < slots.length; i++) {
+      slot += random.nextInt(4) == 0 ? random.nextInt(1000) : 1;
+      slots[i] = slot;
+    }
+    return slots;
+  }
+
+  private static ProposalID randomBallot(Random random) {
+    return ProposalID.of(randomLong(random), randomInt(random));
+  }
+
+  /**
+   * @return a value of any magnitude, so that every varint length occurs, now and then a negative one
+   */
+  private static long randomLong(Random random) {
+    return random.nextInt(20) == 0 ? random.nextLong() : random.nextLong() >>> 1 >>> random.nextInt(63);
+  }
+
+  private static int randomInt(Random random) {
+    return random.nextInt(20) == 0 ? random.nextInt() : random.nextInt(Integer.MAX_VALUE) >>> random.nextInt(31);
+  }
+}
@@ -0,0 +1,86 @@
+package bench;
+
+/**
+ * Counts latencies in log-linear buckets, like HdrHistogram with two significant digits: values below 128 have a
+ * bucket each, and above that every power of two is split into 64 buckets, so a percentile is off by less than 1.6%
+ * whatever the range. Recording is a few shifts and an increment, and the buckets take 30 KB whatever the count. A
+ * histogram is not thread-safe; each thread records into its own and they are added up at the end.
+ */
+public class LatencyHistogram {
+  private static final int LINEAR = 128;
+  private static final int SUB_BUCKETS = 64;
+  private final long[] counts = new long[LINEAR + (63 - 6) * SUB_BUCKETS];
+  private long totalCount;
+  private long max;
+  private double sum;
+
+  /**
+   * @param value a latency in any unit, at least 0
+   */
+  public void record(long value) {
+    long clamped = Math.max(0, value);
+    counts[index(clamped)]++;
+    totalCount++;
+    max = Math.max(max, clamped);
+    sum += clamped;
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    max = Math.max(max, other.max);
+    sum += other.sum;
+  }
+
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    return totalCount == 0 ? 0 : sum / totalCount;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the highest value in the bucket the percentile falls into, so no recorded value of that rank is larger;
+   * 0 if nothing was recorded
+   */
+  public long percentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(max, highestInBucket(i));
+      }
+    }
+    return max;
+  }
+
+  private static int index(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    // keeps the top 7 bits, so value >>> shift is between 64 and 127
+    int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+    return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  private static long highestInBucket(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+    long lowest = (long) ((index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
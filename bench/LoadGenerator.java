@@ -0,0 +1,247 @@
+package bench;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import client.PaxosClient;
+import common.ReadConsistency;
+import common.ServerConfig;
+import server.LocalCluster;
+
+/**
+ * Drives a cluster with a mix of GETs and PUTs and reports the throughput and latency percentiles of a measured
+ * interval after a warm-up. By default it starts all servers as a LocalCluster in this JVM, writing their logs to a
+ * file; cluster=host:port drives a running cluster instead. Every thread has a PaxosClient of its own.
+ * In closed-loop mode each thread sends its next request as soon as the last one is answered. In open-loop mode the
+ * requests are due at a fixed rate whatever the cluster does, and a request's latency counts from the moment it was
+ * due, not from when a free thread got to send it, so a stall is charged to every request it held up rather than
+ * only to the one in flight (the coordinated omission correction); the service time from the actual send is reported
+ * alongside for comparison.
+ * Usage: java bench.LoadGenerator [name=value ...] with mode=closed|open, threads, rate (requests/s, open loop),
+ * seconds, warmup (seconds), reads (fraction of GETs), keys, distribution=uniform|zipf, theta, valueBytes,
+ * consistency=LOCAL|LEASE|READ_INDEX, hedge (percentile, 100 is off), seed, cluster=local|host:port, port (registry
+ * port of the local cluster), log (server log file of the local cluster)
+ */
+public class LoadGenerator {
+  private final String mode;
+  private final int threads;
+  private final double rate;
+  private final long seconds;
+  private final long warmupSeconds;
+  private final double readFraction;
+  private final int keys;
+  private final String distribution;
+  private final double theta;
+  private final int valueBytes;
+  private final ReadConsistency consistency;
+  private final double hedgePercentile;
+  private final long seed;
+  private final ZipfianGenerator zipfian;
+  // by thread, so recording takes no lock
+  private final LatencyHistogram[] reads;
+  private final LatencyHistogram[] writes;
+  private final LatencyHistogram[] serviceTimes;
+  // when each thread's last measured request was answered, which in open-loop mode may be well after the interval
+  private final long[] lastDoneNanos;
+  private final AtomicLong errors = new AtomicLong();
+  // the next request due in open-loop mode
+  private final AtomicLong nextRequest = new AtomicLong();
+  private long startNanos;
+  private long measureFromNanos;
+  private long endNanos;
+
+  private LoadGenerator(Map<String, String> options) {
+    mode = options.getOrDefault("mode", "closed");
+    threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+    rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+    seconds = Long.parseLong(options.getOrDefault("seconds", "30"));
+    warmupSeconds = Long.parseLong(options.getOrDefault("warmup", "5"));
+    readFraction = Double.parseDouble(options.getOrDefault("reads", "0.9"));
+    keys = Integer.parseInt(options.getOrDefault("keys", "1000"));
+    distribution = options.getOrDefault("distribution", "uniform");
+    theta = Double.parseDouble(options.getOrDefault("theta", "0.99"));
+    valueBytes = Integer.parseInt(options.getOrDefault("valueBytes", "100"));
+    consistency = ReadConsistency.valueOf(options.getOrDefault("consistency", "LOCAL").toUpperCase());
+    hedgePercentile = Double.parseDouble(options.getOrDefault("hedge", "100"));
+    seed = Long.parseLong(options.getOrDefault("seed", "1"));
+    if (!"closed".equals(mode) && !"open".equals(mode)) {
+      throw new IllegalArgumentException("mode must be closed or open, not " + mode);
+    }
+    if (!"uniform".equals(distribution) && !"zipf".equals(distribution)) {
+      throw new IllegalArgumentException("distribution must be uniform or zipf, not " + distribution);
+    }
+    zipfian = "zipf".equals(distribution) ? new ZipfianGenerator(keys, theta) : null;
+    reads = histograms(threads);
+    writes = histograms(threads);
+    serviceTimes = histograms(threads);
+    lastDoneNanos = new long[threads];
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (separator < 0) {
+        throw new IllegalArgumentException("expected name=value, got " + arg);
+      }
+      options.put(arg.substring(0, separator), arg.substring(separator + 1));
+    }
+    LoadGenerator generator = new LoadGenerator(options);
+    String cluster = options.getOrDefault("cluster", "local");
+    PrintStream report = System.out;
+    LocalCluster localCluster = null;
+    String hostname;
+    int port;
+    if ("local".equals(cluster)) {
+      hostname = "localhost";
+      port = Integer.parseInt(options.getOrDefault("port", "1199"));
+      // the servers log every request, which would drown the report
+      PrintStream serverLog = new PrintStream(new FileOutputStream(options.getOrDefault("log", "loadgen-servers.log")), true);
+      System.setOut(serverLog);
+      System.setErr(serverLog);
+      localCluster = new LocalCluster(port, 30000);
+    } else {
+      int separator = cluster.lastIndexOf(':');
+      hostname = cluster.substring(0, separator);
+      port = Integer.parseInt(cluster.substring(separator + 1));
+    }
+    report.println(generator.describe() + " cluster=" + cluster);
+    generator.run(hostname, port);
+    generator.report(report);
+    if (localCluster != null) {
+      localCluster.close();
+    }
+    System.exit(0);
+  }
+
+  private String describe() {
+    return String.format("mode=%s threads=%d%s seconds=%d warmup=%d reads=%.2f keys=%d distribution=%s valueBytes=%d consistency=%s hedge=%s shards=%d",
+        mode, threads, "open".equals(mode) ? String.format(" rate=%.0f", rate) : "", seconds, warmupSeconds, readFraction, keys,
+        zipfian != null ? "zipf(" + theta + ")" : distribution, valueBytes, consistency, hedgePercentile >= 100 ? "off" : "p" + hedgePercentile,
+        ServerConfig.SHARDS);
+  }
+
+  private void run(String hostname, int port) throws InterruptedException {
+    Thread[] workers = new Thread[threads];
+    PaxosClient[] clients = new PaxosClient[threads];
+    for (int i = 0; i < threads; i++) {
+      clients[i] = new PaxosClient(hostname, port, "loadgen-" + UUID.randomUUID(), hedgePercentile);
+    }
+    startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+    measureFromNanos = startNanos + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    endNanos = measureFromNanos + TimeUnit.SECONDS.toNanos(seconds);
+    for (int i = 0; i < threads; i++) {
+      int worker = i;
+      workers[i] = new Thread(() -> runWorker(worker, clients[worker]), "loadgen-" + i);
+      workers[i].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    for (PaxosClient client : clients) {
+      client.close();
+    }
+  }
+
+  private void runWorker(int worker, PaxosClient client) {
+    Random random = new Random(seed * 1000003 + worker);
+    String value = randomValue(random);
+    long intervalNanos = (long) (1e9 / rate);
+    waitUntil(startNanos);
+    while (true) {
+      long dueNanos;
+      if ("open".equals(mode)) {
+        dueNanos = startNanos + nextRequest.getAndIncrement() * intervalNanos;
+        if (dueNanos >= endNanos) {
+          return;
+        }
+        waitUntil(dueNanos);
+      } else {
+        dueNanos = System.nanoTime();
+        if (dueNanos >= endNanos) {
+          return;
+        }
+      }
+      boolean read = random.nextDouble() < readFraction;
+      String key = "key" + (zipfian != null ? zipfian.next(random) : random.nextInt(keys));
+      long sentNanos = System.nanoTime();
+      String response = read ? client.get(key, consistency) : client.put(key, value);
+      long doneNanos = System.nanoTime();
+      if (dueNanos < measureFromNanos) {
+        continue;
+      }
+      if (response.startsWith("Failure") && !response.endsWith("not found")) {
+        errors.incrementAndGet();
+      }
+      (read ? reads : writes)[worker].record(TimeUnit.NANOSECONDS.toMicros(doneNanos - dueNanos));
+      serviceTimes[worker].record(TimeUnit.NANOSECONDS.toMicros(doneNanos - sentNanos));
+      lastDoneNanos[worker] = doneNanos;
+    }
+  }
+
+  private void report(PrintStream out) {
+    LatencyHistogram read = sum(reads);
+    LatencyHistogram write = sum(writes);
+    LatencyHistogram all = new LatencyHistogram();
+    all.add(read);
+    all.add(write);
+    long lastDone = endNanos;
+    for (long done : lastDoneNanos) {
+      lastDone = Math.max(lastDone, done);
+    }
+    // the requests of the interval over the time it took to answer them all
+    out.printf("ops=%d ops/s=%.1f errors=%d%n", all.getTotalCount(), all.getTotalCount() * 1e9 / (lastDone - measureFromNanos),
+        errors.get());
+    print(out, "read", read);
+    print(out, "write", write);
+    print(out, "all", all);
+    if ("open".equals(mode)) {
+      print(out, "service", sum(serviceTimes));
+    }
+  }
+
+  private static void print(PrintStream out, String name, LatencyHistogram histogram) {
+    out.printf("op=%s count=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms%n", name,
+        histogram.getTotalCount(), histogram.getMean() / 1e3, histogram.percentile(50) / 1e3,
+        histogram.percentile(90) / 1e3, histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3,
+        histogram.getMax() / 1e3);
+  }
+
+  private String randomValue(Random random) {
+    char[] value = new char[valueBytes];
+    for (int i = 0; i < valueBytes; i++) {
+      value[i] = (char) ('a' + random.nextInt(26));
+    }
+    return new String(value);
+  }
+
+  private static void waitUntil(long nanos) {
+    long remaining;
+    while ((remaining = nanos - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(remaining);
+    }
+  }
+
+  private static LatencyHistogram[] histograms(int count) {
+    LatencyHistogram[] histograms = new LatencyHistogram[count];
+    for (int i = 0; i < count; i++) {
+      histograms[i] = new LatencyHistogram();
+    }
+    return histograms;
+  }
+
+  private static LatencyHistogram sum(LatencyHistogram[] histograms) {
+    LatencyHistogram sum = new LatencyHistogram();
+    for (LatencyHistogram histogram : histograms) {
+      sum.add(histogram);
+    }
+    return sum;
+  }
+}
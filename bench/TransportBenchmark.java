@@ -0,0 +1,141 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Proxy;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.IPaxosNode;
+import paxos.Command;
+import paxos.MessageAccepted;
+import paxos.Messenger;
+import paxos.PaxosMessage;
+import paxos.ProposalID;
+import transport.MessageCodec;
+import transport.NioTransport;
+import transport.RmiTransport;
+import transport.Transport;
+
+/**
+ * Compares the RMI and the NIO transport on the loopback interface: one sender streams ACCEPTED messages to one
+ * receiver as fast as the transport takes them, one per call and in batches like a Messenger coalesces them, then
+ * sends them one at a time, waiting for each to arrive, to measure the one-way latency. Both receivers run in this
+ * JVM, so nothing leaves the machine.
+ * Usage: java bench.TransportBenchmark [messages] [value bytes] [registry port] [NIO base port] [batch size]
+ */
+public class TransportBenchmark {
+  private static final int RECEIVER_ID = 2;
+  private static final int LATENCY_SAMPLES = 2000;
+  private static final AtomicLong received = new AtomicLong();
+
+  public static void main(String[] args) throws Exception {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int valueBytes = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int registryPort = args.length > 2 ? Integer.parseInt(args[2]) : 1098;
+    int nioBasePort = args.length > 3 ? Integer.parseInt(args[3]) : 7200;
+    int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+    char[] value = new char[valueBytes];
+    Arrays.fill(value, 'v');
+    Command command = new Command("bench-1", "PUT", "key", new String(value));
+    MessageAccepted message = new MessageAccepted(1, new ProposalID(1), 1, command);
+    // distinct messages, Java serialization would write a repeated one only once
+    List<PaxosMessage> batch = new ArrayList<>();
+    for (int i = 0; i < batchSize; i++) {
+      batch.add(new MessageAccepted(1, new ProposalID(1), i, new Command("bench-" + i, "PUT", "key", new String(value))));
+    }
+
+    // an RMI receiver that only counts handlePaxosMessage calls
+    Registry registry = LocateRegistry.createRegistry(registryPort);
+    IPaxosNode receiver = (IPaxosNode) Proxy.newProxyInstance(IPaxosNode.class.getClassLoader(), new Class<?>[] {IPaxosNode.class},
+        (proxy, method, methodArgs) -> {
+          switch (method.getName()) {
+            case "handlePaxosMessage":
+              received.incrementAndGet();
+              return null;
+            case "handlePaxosMessages":
+              received.addAndGet(((List<?>) methodArgs[0]).size());
+              return null;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == methodArgs[0];
+            case "toString":
+              return "bench receiver";
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    registry.rebind("KeyValueService" + RECEIVER_ID, UnicastRemoteObject.exportObject(receiver, 0));
+    RmiTransport rmi = new RmiTransport(new Messenger("localhost", registryPort));
+    run("rmi", rmi, Collections.singletonList(message), serializedSize(message), messages);
+    run("rmi", rmi, batch, serializedSize(message), messages);
+
+    NioTransport nioReceiver = new NioTransport(RECEIVER_ID, "localhost", nioBasePort, m -> received.addAndGet(m.size()));
+    NioTransport nioSender = new NioTransport(1, "localhost", nioBasePort, m -> { });
+    run("nio", nioSender, Collections.singletonList(message), Integer.BYTES + MessageCodec.size(message), messages);
+    run("nio", nioSender, batch, Integer.BYTES + MessageCodec.size(message), messages);
+    nioSender.close();
+    nioReceiver.close();
+    UnicastRemoteObject.unexportObject(receiver, true);
+    UnicastRemoteObject.unexportObject(registry, true);
+  }
+
+  private static void run(String name, Transport transport, List<PaxosMessage> batch, int bytes, int messages)
+      throws Exception {
+    // connects and warms up
+    stream(transport, batch, Math.min(messages, 2000));
+    long start = System.nanoTime();
+    stream(transport, batch, messages);
+    long elapsedNanos = System.nanoTime() - start;
+    if (batch.size() > 1) {
+      System.out.printf("transport=%s messages=%d batch=%d msgs/s=%.0f%n", name, messages, batch.size(),
+          messages * 1e9 / elapsedNanos);
+      return;
+    }
+    long[] latencies = new long[LATENCY_SAMPLES];
+    for (int i = 0; i < LATENCY_SAMPLES; i++) {
+      long sendStart = System.nanoTime();
+      stream(transport, batch, 1);
+      latencies[i] = System.nanoTime() - sendStart;
+    }
+    Arrays.sort(latencies);
+    System.out.printf("transport=%s messages=%d bytes/message=%d msgs/s=%.0f avg latency=%.1fus p99 latency=%.1fus%n",
+        name, messages, bytes, messages * 1e9 / elapsedNanos, Arrays.stream(latencies).average().orElse(0) / 1e3,
+        latencies[LATENCY_SAMPLES * 99 / 100] / 1e3);
+  }
+
+  private static int serializedSize(PaxosMessage message) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(message);
+    }
+    return bytes.size();
+  }
+
+  /**
+   * Sends messages in batches as fast as the transport takes them and waits until all of them arrived.
+   */
+  private static void stream(Transport transport, List<PaxosMessage> batch, int count) throws Exception {
+    long target = received.get() + count;
+    for (int i = 0; i < count; i += batch.size()) {
+      // a sub list is not serializable
+      List<PaxosMessage> messages = count - i >= batch.size() ? batch : new ArrayList<>(batch.subList(0, count - i));
+      while (!transport.sendAll(RECEIVER_ID, messages)) {
+        // not connected yet or too much queued
+        Thread.sleep(1);
+      }
+    }
+    while (received.get() < target) {
+      // yields rather than spins, the receiving threads may share the core
+      Thread.yield();
+    }
+  }
+}
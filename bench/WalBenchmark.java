@@ -0,0 +1,64 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import paxos.Command;
+import paxos.LogEntry;
+import paxos.LogRecord;
+import paxos.ProposalID;
+import storage.WriteAheadLog;
+
+/**
+ * Measures how many fsyncs the write-ahead log needs per committed record when several threads append at once,
+ * each waiting for its record to be durable like an Acceptor does before it replies.
+ * Usage: java bench.WalBenchmark [threads] [records per thread] [directory]
+ */
+public class WalBenchmark {
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int recordsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    Path dir = Paths.get(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+    for (int threadCount : new int[] {1, threads}) {
+      run(dir, threadCount, recordsPerThread);
+    }
+  }
+
+  private static void run(Path dir, int threads, int recordsPerThread) throws IOException, InterruptedException {
+    Path file = Files.createTempFile(dir, "wal-bench", ".wal");
+    WriteAheadLog wal = new WriteAheadLog(file);
+    ProposalID ballot = new ProposalID(1);
+    AtomicLong slots = new AtomicLong();
+    AtomicLong latencyNanos = new AtomicLong();
+    List<Thread> workers = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      Thread worker = new Thread(() -> {
+        for (int i = 0; i < recordsPerThread; i++) {
+          long slot = slots.incrementAndGet();
+          Command command = new Command("bench-" + slot, "PUT", "key" + slot, "value" + slot);
+          long appendStart = System.nanoTime();
+          wal.append(LogRecord.accept(new LogEntry(slot, ballot, command))).join();
+          latencyNanos.addAndGet(System.nanoTime() - appendStart);
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long elapsedNanos = System.nanoTime() - start;
+    long records = (long) threads * recordsPerThread;
+    System.out.printf("threads=%d records=%d fsyncs=%d fsyncs/op=%.3f ops/s=%.0f avg latency=%.2fms%n",
+        threads, records, wal.getFsyncCount(), (double) wal.getFsyncCount() / records,
+        records * 1e9 / elapsedNanos, latencyNanos.get() / 1e6 / records);
+    wal.close();
+    Files.delete(file);
+  }
+}
@@ -0,0 +1,50 @@
+package bench;
+
+import java.util.Random;
+
+/**
+ * Draws ranks 0..n-1 from a Zipfian distribution, rank 0 the most popular, with the method of Gray et al., "Quickly
+ * Generating Billion-Record Synthetic Databases" (SIGMOD 1994), as YCSB does: the zeta constant is summed once when
+ * the generator is made, and every draw then takes constant time.
+ */
+public class ZipfianGenerator {
+  private final long items;
+  private final double theta;
+  private final double zetaN;
+  private final double alpha;
+  private final double eta;
+
+  /**
+   * @param theta the skew, between 0 and 1 exclusive; YCSB uses 0.99
+   */
+  public ZipfianGenerator(long items, double theta) {
+    if (items < 1 || theta <= 0 || theta >= 1) {
+      throw new IllegalArgumentException("need at least one item and a theta between 0 and 1, got " + items + " and " + theta);
+    }
+    this.items = items;
+    this.theta = theta;
+    this.zetaN = zeta(items, theta);
+    this.alpha = 1 / (1 - theta);
+    this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+  }
+
+  public long next(Random random) {
+    double u = random.nextDouble();
+    double uz = u * zetaN;
+    if (uz < 1) {
+      return 0;
+    }
+    if (uz < 1 + Math.pow(0.5, theta)) {
+      return Math.min(1, items - 1);
+    }
+    return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+  }
+
+  private static double zeta(long n, double theta) {
+    double sum = 0;
+    for (long i = 1; i <= n; i++) {
+      sum += 1 / Math.pow(i, theta);
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,240 @@
+package client;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.ClientRequest;
+import common.ClientResult;
+import common.IClientCallback;
+import common.IPaxosNode;
+import common.ReadConsistency;
+import common.ServerConfig;
+import common.ShardMap;
+
+/**
+ * A client of the asynchronous API. Every call returns a future at once and numbers its request; requests queued
+ * while the previous submit call is under way go out together in the next one, and the servers send the results back
+ * to this client's exported callback, so thousands of requests can be outstanding on one connection. Requests
+ * outstanding at the same time may be applied in any order; wait for a result before sending a request that depends
+ * on it. Writes are numbered in the client's session of their shard, so a write the servers see twice is applied at
+ * most once; as a session only remembers its last ServerConfig.SESSION_WINDOW seqs, a write waits in the client until
+ * it is within that many seqs of the oldest unanswered write of its shard.
+ */
+public class AsyncClient extends UnicastRemoteObject implements IClientCallback, AutoCloseable {
+    private static final long serialVersionUID = 1L;
+    // requests submitted in one call at most
+    private static final int MAX_BATCH = 256;
+    private final String clientId;
+    private final IPaxosNode server;
+    private final long timeoutMillis;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Window[] windows = new Window[ServerConfig.SHARDS];
+    private final ConcurrentHashMap<Long, CompletableFuture<ClientResult>> pending = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<ClientRequest> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+    private final ExecutorService sender = Executors.newSingleThreadExecutor();
+
+    /**
+     * The writes of one shard's session: the seq given out last, the seqs still unanswered and the writes waiting for
+     * the oldest of those to be answered.
+     */
+    private static class Window {
+        private long lastSeq;
+        private final TreeSet<Long> unanswered = new TreeSet<>();
+        private final ArrayDeque<ClientRequest> held = new ArrayDeque<>();
+
+        private boolean admits(ClientRequest write) {
+            return unanswered.isEmpty() || write.getSeq() - unanswered.first() < ServerConfig.SESSION_WINDOW;
+        }
+    }
+
+    /**
+     * Exports the callback and sends every request to the given server.
+     * @param timeoutMillis how long a request may stay without a result before its future fails with a TimeoutException
+     * @throws RemoteException if the callback could not be exported
+     */
+    public AsyncClient(String clientId, IPaxosNode server, long timeoutMillis) throws RemoteException {
+        super();
+        this.clientId = clientId;
+        this.server = server;
+        this.timeoutMillis = timeoutMillis;
+        for (int shard = 0; shard < windows.length; shard++) {
+            windows[shard] = new Window();
+        }
+    }
+
+    public CompletableFuture<ClientResult> get(String key) {
+        return get(key, ReadConsistency.LOCAL);
+    }
+
+    public CompletableFuture<ClientResult> get(String key, ReadConsistency consistency) {
+        return submit(ClientRequest.get(nextRequestId.incrementAndGet(), key, consistency));
+    }
+
+    public CompletableFuture<ClientResult> put(String key, String value) {
+        Window window = window(key);
+        synchronized (window) {
+            window.unanswered.add(++window.lastSeq);
+            return submit(ClientRequest.put(nextRequestId.incrementAndGet(), window.lastSeq, key, value));
+        }
+    }
+
+    public CompletableFuture<ClientResult> delete(String key) {
+        Window window = window(key);
+        synchronized (window) {
+            window.unanswered.add(++window.lastSeq);
+            return submit(ClientRequest.delete(nextRequestId.incrementAndGet(), window.lastSeq, key));
+        }
+    }
+
+    private Window window(String key) {
+        return windows[key == null ? 0 : ShardMap.shardOf(key)];
+    }
+
+    /**
+     * @return the number of requests waiting for their result
+     */
+    public int getOutstandingCount() {
+        return pending.size();
+    }
+
+    private CompletableFuture<ClientResult> submit(ClientRequest request) {
+        long requestId = request.getRequestId();
+        CompletableFuture<ClientResult> future = new CompletableFuture<>();
+        pending.put(requestId, future);
+        future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((result, ex) -> {
+            pending.remove(requestId);
+            if (request.getSeq() > 0) {
+                answered(request);
+            }
+        });
+        queue.offer(request);
+        wakeSender();
+        return future;
+    }
+
+    private void wakeSender() {
+        if (sending.compareAndSet(false, true)) {
+            try {
+                sender.execute(this::send);
+            } catch (RejectedExecutionException e) {
+                // closed
+                sending.set(false);
+            }
+        }
+    }
+
+    /**
+     * Takes an answered write out of its window and queues the writes waiting for it that are within the window now.
+     */
+    private void answered(ClientRequest write) {
+        Window window = window(write.getKey());
+        boolean released = false;
+        synchronized (window) {
+            window.unanswered.remove(write.getSeq());
+            while (!window.held.isEmpty() && window.admits(window.held.peek())) {
+                queue.offer(window.held.poll());
+                released = true;
+            }
+        }
+        if (released) {
+            wakeSender();
+        }
+    }
+
+    /**
+     * @return whether a request is to go out now, false if it was answered already or is a write to hold back
+     */
+    private boolean isReady(ClientRequest request) {
+        if (!pending.containsKey(request.getRequestId())) {
+            return false;
+        }
+        if (request.getSeq() == 0) {
+            return true;
+        }
+        Window window = window(request.getKey());
+        synchronized (window) {
+            if (window.admits(request)) {
+                return true;
+            }
+            window.held.offer(request);
+            return false;
+        }
+    }
+
+    private void send() {
+        try {
+            while (!queue.isEmpty()) {
+                List<ClientRequest> batch = new ArrayList<>();
+                ClientRequest request;
+                while (batch.size() < MAX_BATCH && (request = queue.poll()) != null) {
+                    if (isReady(request)) {
+                        batch.add(request);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                try {
+                    server.submit(clientId, batch, this);
+                } catch (RemoteException e) {
+                    ClientLogger.error("Failed to submit " + batch.size() + " requests: " + e.getMessage());
+                    for (ClientRequest failed : batch) {
+                        CompletableFuture<ClientResult> future = pending.remove(failed.getRequestId());
+                        if (future != null) {
+                            future.completeExceptionally(e);
+                        }
+                    }
+                }
+            }
+        } finally {
+            sending.set(false);
+            // a request may have been queued after the last poll but before the flag was cleared
+            if (!queue.isEmpty()) {
+                wakeSender();
+            }
+        }
+    }
+
+    @Override
+    public void onResults(List<ClientResult> results) {
+        for (ClientResult result : results) {
+            CompletableFuture<ClientResult> future = pending.remove(result.getRequestId());
+            if (future != null) {
+                future.complete(result);
+            }
+        }
+    }
+
+    /**
+     * Stops sending and unexports the callback; requests still outstanding fail.
+     */
+    @Override
+    public void close() {
+        sender.shutdown();
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // already unexported
+        }
+        RemoteException closed = new RemoteException("client closed");
+        for (CompletableFuture<ClientResult> future : pending.values()) {
+            future.completeExceptionally(closed);
+        }
+        pending.clear();
+    }
+}
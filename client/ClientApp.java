@@ -4,14 +4,10 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
-import java.util.UUID;
 
 import common.IPaxosNode;
+import common.ReadConsistency;
+import common.ReplicaStatus;
 import common.ServerConfig;
 
 /**
@@ -21,7 +17,6 @@ import common.ServerConfig;
  * and predefined operations
  */
 public class ClientApp {
-    private final static String clientId = UUID.randomUUID().toString();
     public static void main(String[] args) {
         if (args.length < 2) {
             System.out.println("Usage: java client.ClientApp <hostname> <port-number>");
@@ -30,9 +25,9 @@ public class ClientApp {
         String hostname = args[0];
         int port = Integer.parseInt(args[1]);
 
-        try {     
-            performAutomaticRequests(hostname, port);
-            interactiveMode(hostname, port);
+        try (PaxosClient client = new PaxosClient(hostname, port)) {
+            performAutomaticRequests(client);
+            interactiveMode(client);
             ClientLogger.log("Client exited.");
         } catch (Exception e) {
             ClientLogger.error("Error: " + e.getMessage());
@@ -40,47 +35,43 @@ public class ClientApp {
         }
     }
 
-    private static void performAutomaticRequests(String hostname, int port) throws Exception {
-        String serverName = ServerConfig.ALL_SERVERS[new Random().nextInt(ServerConfig.ALL_SERVERS.length)];
-        Registry registry = LocateRegistry.getRegistry(hostname, port);
-        IPaxosNode server = (IPaxosNode) registry.lookup(serverName);
-
-        ClientLogger.log(server.put(clientId ,"name", "HarryPotter"));
-        ClientLogger.log(server.put(clientId ,"age", "11"));
-        ClientLogger.log(server.put(clientId ,"friend", "Ron Wesley"));
-        ClientLogger.log(server.put(clientId ,"school", "Hogwarts"));
-        ClientLogger.log(server.put(clientId ,"description", "Harry had a thin face, knobbly knees, black hair and bright-green eyes. " +
+    private static void performAutomaticRequests(PaxosClient client) {
+        ClientLogger.log(client.put("name", "HarryPotter"));
+        ClientLogger.log(client.put("age", "11"));
+        ClientLogger.log(client.put("friend", "Ron Wesley"));
+        ClientLogger.log(client.put("school", "Hogwarts"));
+        ClientLogger.log(client.put("description", "Harry had a thin face, knobbly knees, black hair and bright-green eyes. " +
                 "He wore round glasses held together with a lot of Sellotape because of all the times Dudley had punched him on the nose. " +
                 "The only thing Harry liked about his own appearance was a very thin scar on his forehead which was shaped like a bolt of lightning. " +
                 "He had had it as long as he could remember and the first question he could ever remember asking his Aunt Petunia was how he had got it."));
-        ClientLogger.log(server.delete(clientId ,"school"));
-        ClientLogger.log(server.get(clientId ,"school"));
-        ClientLogger.log(server.delete(clientId ,"description"));
-        ClientLogger.log(server.put(clientId ,"description", "Harry is humble, brave, and loyal. Harry will do anything for his friends, " +
+        ClientLogger.log(client.delete("school"));
+        ClientLogger.log(client.get("school"));
+        ClientLogger.log(client.delete("description"));
+        ClientLogger.log(client.put("description", "Harry is humble, brave, and loyal. Harry will do anything for his friends, " +
                 "including risking his own life. He stands up for the weak (like Neville Longbottom) and is willing to take on the evil and powerful, " +
                 "from snobbish classmate Draco Malfoy all the way up to He Who Must Not Be Named. O.K., “Voldemort” – there, we said it!"));
-        ClientLogger.log(server.delete(clientId ,"uncle"));
-        ClientLogger.log(server.put(clientId ,"dad", "James"));
-        ClientLogger.log(server.delete(clientId ,"school"));
-        ClientLogger.log(server.delete(clientId ,"age 11"));
-        ClientLogger.log(server.put(clientId ,"age", "unknown"));
-        ClientLogger.log(server.get(clientId ,"name"));
-        ClientLogger.log(server.get(clientId ,"aunt"));
-        ClientLogger.log(server.get(clientId ,"friend"));
-        ClientLogger.log(server.put(clientId ,"friend", "Luna Lovegood"));
-        ClientLogger.log(server.get(clientId ,"friend"));
-        ClientLogger.log(server.put(clientId ,"friend", "Ron Wesley"));
-        ClientLogger.log(server.get(clientId ,"friend"));
-        ClientLogger.log(server.get(clientId ,"description"));
+        ClientLogger.log(client.delete("uncle"));
+        ClientLogger.log(client.put("dad", "James"));
+        ClientLogger.log(client.delete("school"));
+        ClientLogger.log(client.delete("age 11"));
+        ClientLogger.log(client.put("age", "unknown"));
+        ClientLogger.log(client.get("name"));
+        ClientLogger.log(client.get("aunt"));
+        ClientLogger.log(client.get("friend"));
+        ClientLogger.log(client.put("friend", "Luna Lovegood"));
+        ClientLogger.log(client.get("friend"));
+        ClientLogger.log(client.put("friend", "Ron Wesley"));
+        ClientLogger.log(client.get("friend"));
+        ClientLogger.log(client.get("description"));
 
     }
 
-    private static void interactiveMode(String hostname, int port) throws IOException {
+    private static void interactiveMode(PaxosClient client) throws IOException {
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
         System.out.println("Entering interactive mode. Type 'exit' to quit.");
 
         while (true) {
-            System.out.print("Enter your request (usage 'PUT key value', 'GET key', 'DELETE key', 'exit' to quit): ");
+            System.out.print("Enter your request (usage 'PUT key value', 'GET key [LOCAL|LEASE|READ_INDEX|STALE ms [entries]]', 'DELETE key', 'STATUS', 'ADD serverId', 'REMOVE serverId', 'exit' to quit): ");
             String userInput = reader.readLine();
             if ("exit".equalsIgnoreCase(userInput.trim()) || "quit".equalsIgnoreCase(userInput.trim())) {
                 break;
@@ -97,7 +88,7 @@ public class ClientApp {
             String value = parts.length > 2 ? parts[2] : null;
 
             // Attempt the operation with retries on different replicas
-            boolean success = attemptOperationWithRetries(action, key, value, hostname, port);
+            boolean success = attemptOperationWithRetries(client, action, key, value);
             if (!success) {
                 ClientLogger.error("Failed to execute " + action + " after multiple retries.");
             }
@@ -105,62 +96,89 @@ public class ClientApp {
         System.out.println("Exiting interactive mode.");
     }
 
-    private static boolean attemptOperationWithRetries(String action, String key, String value, String hostname, int port) {
-        List<String> triedServers = new ArrayList<>();
-        while (triedServers.size() < ServerConfig.ALL_SERVERS.length) {
-            String serverName = selectRandomServer(triedServers);
-            triedServers.add(serverName); // Mark this server as tried
+    private static boolean attemptOperationWithRetries(PaxosClient client, String action, String key, String value) {
+        switch (action) {
+            case "PUT":
+                if (key == null || value == null) {
+                    ClientLogger.error("Incomplete PUT request. Usage: 'PUT key value'");
+                    return true;
+                }
+                // the client retries the write on other replicas under the same seq until its outcome is known
+                return logResponse(client.put(key, value));
+            case "GET":
+                if (key == null) {
+                    ClientLogger.error("Incomplete GET request. Usage: 'GET key [LOCAL|LEASE|READ_INDEX|STALE ms [entries]]'");
+                    return true;
+                }
+                // the optional rest picks the read consistency, LOCAL by default
+                String[] options = value != null ? value.trim().split("\\s+") : new String[0];
+                try {
+                    if (options.length > 1 && "STALE".equalsIgnoreCase(options[0])) {
+                        long maxLagEntries = options.length > 2 ? Long.parseLong(options[2]) : Long.MAX_VALUE;
+                        return logResponse(client.get(key, Long.parseLong(options[1]), maxLagEntries));
+                    }
+                    ReadConsistency consistency = options.length > 0 ? ReadConsistency.valueOf(options[0].toUpperCase()) : ReadConsistency.LOCAL;
+                    return logResponse(client.get(key, consistency));
+                } catch (IllegalArgumentException e) {
+                    ClientLogger.error("Invalid GET options '" + value + "'. Usage: 'GET key [LOCAL|LEASE|READ_INDEX|STALE ms [entries]]'");
+                    return true;
+                }
+            case "DELETE":
+                if (key == null) {
+                    ClientLogger.error("Incomplete DELETE request. Usage: 'DELETE key'");
+                    return true;
+                }
+                return logResponse(client.delete(key));
+            case "STATUS":
+            case "ADD":
+            case "REMOVE":
+                return attemptAdminOperationWithRetries(client, action, key);
+            default:
+                ClientLogger.error("Unknown action. Available actions are PUT, GET, DELETE, STATUS, ADD, REMOVE.");
+                return true;
+        }
+    }
 
+    private static boolean attemptAdminOperationWithRetries(PaxosClient client, String action, String key) {
+        if (!"STATUS".equals(action) && key == null) {
+            ClientLogger.error("Incomplete " + action + " request. Usage: '" + action + " serverId'");
+            return true;
+        }
+        for (int attempt = 0; attempt < ServerConfig.ALL_SERVERS.length; attempt++) {
             try {
-                Registry registry = LocateRegistry.getRegistry(hostname, port);
-                IPaxosNode server = (IPaxosNode) registry.lookup(serverName);
-                switch (action) {
-                    case "PUT":
-                        if (key != null && value != null) {
-                            String putResponse = server.put(clientId ,key, value);
-                            ClientLogger.log(putResponse);
-                        } else {
-                            ClientLogger.error("Incomplete PUT request. Usage: 'PUT key value'");
-                        }
-                        break;
-                    case "GET":
-                        if (key != null) {
-                            String getResponse = server.get(clientId ,key);
-                            ClientLogger.log(getResponse);
-                        } else {
-                            ClientLogger.error("Incomplete GET request. Usage: 'GET key'");
+                IPaxosNode server = client.anyServer();
+                if ("STATUS".equals(action)) {
+                    // how far every replica has applied the log of every shard, as its leader sees it
+                    for (int shard = 0; shard < ServerConfig.SHARDS; shard++) {
+                        for (ReplicaStatus replica : server.getReplicaStatus(shard)) {
+                            ClientLogger.log((ServerConfig.SHARDS > 1 ? "shard " + shard + ": " : "") + replica);
                         }
-                        break;
-                    case "DELETE":
-                        if (key != null) {
-                            String deleteResponse = server.delete(clientId ,key);
-                            ClientLogger.log(deleteResponse);
-                        } else {
-                            ClientLogger.error("Incomplete DELETE request. Usage: 'DELETE key'");
-                        }
-                        break;
-                    default:
-                        ClientLogger.error("Unknown action. Available actions are PUT, GET, DELETE.");
+                    }
+                } else {
+                    // changes the members of every shard's group, one server at a time
+                    ClientLogger.log(server.changeMembership(client.getClientId(), action, Integer.parseInt(key)));
                 }
-                return true; // Success
+                return true;
             } catch (RemoteException re) {
-                ClientLogger.error("Remote exception with " + serverName + ": " + re.getMessage() + ". Retrying...");
-                // Continue to retry with another server
+                ClientLogger.error("Remote exception: " + re.getMessage() + ". Retrying...");
             } catch (Exception e) {
-                ClientLogger.error("Error processing request with " + serverName + ": " + e.getMessage());
-                return false; // Non-recoverable error
+                ClientLogger.error("Error processing " + action + ": " + e.getMessage());
+                return false;
             }
         }
-        return false; // Exhausted retries
+        return false;
     }
 
-    private static String selectRandomServer(List<String> triedServers) {
-        Random random = new Random();
-        String serverName;
-        do {
-            serverName = ServerConfig.ALL_SERVERS[random.nextInt(ServerConfig.ALL_SERVERS.length)];
-        } while (triedServers.contains(serverName));
-        return serverName;
+    /**
+     * @return false if the request reached no server or its outcome stayed unknown on every one
+     */
+    private static boolean logResponse(String response) {
+        if (response.startsWith("Failure") && (response.contains("reached no server") || response.contains(" failed on Server") || PaxosClient.isOutcomeUnknown(response))) {
+            ClientLogger.error(response);
+            return false;
+        }
+        ClientLogger.log(response);
+        return true;
     }
 
 }
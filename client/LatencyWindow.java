@@ -0,0 +1,58 @@
+package client;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the most recent requests, in a ring of fixed size, and percentiles over them. A percentile is
+ * recomputed by sorting a copy of the ring every refreshEvery samples and served from a cache in between, so asking
+ * for it on every request is cheap.
+ */
+public class LatencyWindow {
+    private final long[] samples;
+    private final int refreshEvery;
+    private int next;
+    private int count;
+    private int sinceRefresh;
+    private double cachedPercentile = -1;
+    private long cachedValue = -1;
+
+    /**
+     * @param size how many of the latest latencies are kept
+     * @param refreshEvery how many new samples make a cached percentile stale
+     */
+    public LatencyWindow(int size, int refreshEvery) {
+        this.samples = new long[size];
+        this.refreshEvery = refreshEvery;
+    }
+
+    public synchronized void record(long latencyNanos) {
+        samples[next] = latencyNanos;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        sinceRefresh++;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in nanoseconds that the given percentage of the kept samples do not exceed, -1 if there
+     * are none
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        if (percentile != cachedPercentile || sinceRefresh >= refreshEvery || cachedValue == -1) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+            cachedValue = sorted[Math.max(0, Math.min(count - 1, rank))];
+            cachedPercentile = percentile;
+            sinceRefresh = 0;
+        }
+        return cachedValue;
+    }
+}
@@ -0,0 +1,366 @@
+package client;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import common.IPaxosNode;
+import common.ReadConsistency;
+import common.ServerConfig;
+import common.ShardMap;
+
+/**
+ * A client of the cluster to keep for many requests. It looks the registry and every server up once and reuses their
+ * stubs, and with them RMI's connections, until a call to a server fails. Writes and linearizable reads go straight to
+ * the leader of the key's shard, which it learns from the leader hints of the servers it talks to; writes are numbered
+ * in a session, so retrying one on another server applies it at most once. A GET still unanswered after the latency
+ * the given percentile of recent GETs stayed under is hedged: a backup goes to a second replica and the first reply
+ * wins, which cuts the tail a slow replica would otherwise add. The servers of every shard are learned along with the
+ * leaders, so routing and retries follow membership changes. Its writes form one session, whose seqs have to reach
+ * the servers in order, so only one thread at a time may write through a PaxosClient.
+ */
+public class PaxosClient implements AutoCloseable {
+    // how many recent GET latencies the hedge delay is taken from
+    private static final int LATENCY_WINDOW = 1024;
+    // how many samples it takes to trust the percentile; until then the initial delay is used
+    private static final int MIN_SAMPLES = 32;
+    private static final long INITIAL_HEDGE_DELAY_MILLIS = 50;
+    private static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    private final String hostname;
+    private final int port;
+    private final String clientId;
+    private final double hedgePercentile;
+    private volatile Registry registry;
+    private final ConcurrentHashMap<Integer, IPaxosNode> stubs = new ConcurrentHashMap<>();
+    // the leader of every shard as last learned, -1 if unknown
+    private final AtomicIntegerArray leaders = new AtomicIntegerArray(ServerConfig.SHARDS);
+    // the servers of every shard as last learned, ServerConfig.ALL_SERVER_IDs until then
+    private final AtomicReferenceArray<int[]> members = new AtomicReferenceArray<>(ServerConfig.SHARDS);
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final LatencyWindow readLatencies = new LatencyWindow(LATENCY_WINDOW, LATENCY_WINDOW / 16);
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hedgedReads = new AtomicLong();
+    private final AtomicLong backupWins = new AtomicLong();
+    private final ExecutorService callExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "paxos-client-call");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PaxosClient(String hostname, int port) {
+        this(hostname, port, UUID.randomUUID().toString(), 95);
+    }
+
+    /**
+     * @param clientId the session of the client's writes; two clients must never share one
+     * @param hedgePercentile the percentile of recent GET latencies after which a GET is hedged, 100 or more to
+     * never hedge
+     */
+    public PaxosClient(String hostname, int port, String clientId, double hedgePercentile) {
+        this.hostname = hostname;
+        this.port = port;
+        this.clientId = clientId;
+        this.hedgePercentile = hedgePercentile;
+        for (int shard = 0; shard < ServerConfig.SHARDS; shard++) {
+            leaders.set(shard, -1);
+            members.set(shard, ServerConfig.ALL_SERVER_IDs);
+        }
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String put(String key, String value) {
+        return write("PUT", key, value);
+    }
+
+    public String delete(String key) {
+        return write("DELETE", key, null);
+    }
+
+    public String get(String key) {
+        return get(key, ReadConsistency.LOCAL);
+    }
+
+    public String get(String key, ReadConsistency consistency) {
+        boolean linearizable = consistency != ReadConsistency.LOCAL;
+        return read(key, linearizable, server -> server.get(clientId, key, consistency));
+    }
+
+    /**
+     * A GET any replica may answer if it is no further behind than the given bounds.
+     */
+    public String get(String key, long maxStalenessMillis, long maxLagEntries) {
+        return read(key, false, server -> server.get(clientId, key, maxStalenessMillis, maxLagEntries));
+    }
+
+    /**
+     * @return any reachable server, for calls the client does not route, e.g. STATUS or a membership change
+     */
+    public IPaxosNode anyServer() throws RemoteException {
+        // a membership change goes to every group, so once it is applied the groups have the same servers
+        int[] servers = members.get(0);
+        List<Integer> tried = new ArrayList<>();
+        RemoteException lastFailure = null;
+        while (tried.size() < servers.length) {
+            int serverId = randomServer(servers, tried);
+            tried.add(serverId);
+            try {
+                return stub(serverId);
+            } catch (RemoteException e) {
+                lastFailure = e;
+            } catch (NotBoundException e) {
+                lastFailure = new RemoteException("Server" + serverId + " is not registered", e);
+            }
+        }
+        throw lastFailure;
+    }
+
+    /**
+     * @return the number of GETs, how many of them were hedged and how many of those the backup answered first
+     */
+    public String getReadStats() {
+        long delayNanos = hedgeDelayNanos();
+        return "reads=" + reads.get() + " hedged=" + hedgedReads.get() + " backupWins=" + backupWins.get()
+                + " hedgeDelay=" + (delayNanos == Long.MAX_VALUE ? "off" : String.format("%.2fms", delayNanos / 1e6));
+    }
+
+    private String write(String operation, String key, String value) {
+        // every retry of the write carries the same seq
+        long seq = nextSeq.incrementAndGet();
+        int shard = ShardMap.shardOf(key);
+        int[] servers = members.get(shard);
+        List<Integer> tried = new ArrayList<>();
+        String response = "Failure: " + operation + " " + key + " reached no server";
+        while (tried.size() < servers.length) {
+            int serverId = leaderOrAny(shard, servers, tried);
+            tried.add(serverId);
+            try {
+                IPaxosNode server = stub(serverId);
+                response = "PUT".equals(operation) ? server.put(clientId, seq, key, value) : server.delete(clientId, seq, key);
+                if (leaders.get(shard) != serverId || isOutcomeUnknown(response)) {
+                    learnLeaders(serverId, server);
+                }
+                if (!isOutcomeUnknown(response)) {
+                    return response;
+                }
+            } catch (RemoteException | NotBoundException e) {
+                forget(serverId, shard);
+                response = "Failure: " + operation + " " + key + " failed on Server" + serverId + ": " + e.getMessage();
+            }
+        }
+        return response;
+    }
+
+    private String read(String key, boolean linearizable, ServerCall call) {
+        reads.incrementAndGet();
+        int shard = ShardMap.shardOf(key);
+        int[] servers = members.get(shard);
+        List<Integer> tried = new ArrayList<>();
+        String response = "Failure: GET " + key + " reached no server";
+        while (tried.size() < servers.length) {
+            // a follower forwards a linearizable read to the leader, so only the leader is worth asking first
+            int primary = linearizable ? leaderOrAny(shard, servers, tried) : randomServer(servers, tried);
+            tried.add(primary);
+            long startNanos = System.nanoTime();
+            CompletableFuture<String> first = callAsync(primary, shard, call);
+            first.thenRun(() -> readLatencies.record(System.nanoTime() - startNanos));
+            try {
+                long delayNanos = hedgeDelayNanos();
+                if (delayNanos == Long.MAX_VALUE || tried.size() >= servers.length) {
+                    return learnFromRead(primary, shard, first.get());
+                }
+                return learnFromRead(primary, shard, first.get(delayNanos, TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                return hedge(key, shard, servers, first, primary, tried, call);
+            } catch (ExecutionException e) {
+                // the primary failed before the hedge was due, so the next one is tried right away
+                response = "Failure: GET " + key + " failed on Server" + primary + ": " + e.getCause().getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "Failure: GET " + key + " interrupted";
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Sends the backup of a GET whose primary is late and returns the first reply, or the primary's failure if both
+     * fail.
+     */
+    private String hedge(String key, int shard, int[] servers, CompletableFuture<String> first, int primary, List<Integer> tried,
+                         ServerCall call) {
+        int backup = randomServer(servers, tried);
+        tried.add(backup);
+        hedgedReads.incrementAndGet();
+        CompletableFuture<String> second = callAsync(backup, shard, call);
+        CompletableFuture<Integer> winner = new CompletableFuture<>();
+        first.whenComplete((reply, failure) -> {
+            if (failure == null || second.isCompletedExceptionally()) {
+                winner.complete(primary);
+            }
+        });
+        second.whenComplete((reply, failure) -> {
+            if (failure == null || first.isCompletedExceptionally()) {
+                winner.complete(backup);
+            }
+        });
+        try {
+            int serverId = winner.get();
+            if (serverId == backup && !second.isCompletedExceptionally()) {
+                backupWins.incrementAndGet();
+                return learnFromRead(backup, shard, second.get());
+            }
+            return learnFromRead(primary, shard, first.get());
+        } catch (ExecutionException e) {
+            return "Failure: GET " + key + " failed on Server" + primary + " and Server" + backup + ": " + e.getCause().getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Failure: GET " + key + " interrupted";
+        }
+    }
+
+    private CompletableFuture<String> callAsync(int serverId, int shard, ServerCall call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.apply(stub(serverId));
+            } catch (RemoteException | NotBoundException e) {
+                forget(serverId, shard);
+                throw new CompletionException(e);
+            }
+        }, callExecutor);
+    }
+
+    /**
+     * A reply saying the server is not the leader, or knows none, means the leader hint for the shard is stale.
+     */
+    private String learnFromRead(int serverId, int shard, String response) {
+        if (response.startsWith("Failure") && (response.contains("not the leader") || response.contains("no leader")
+                || response.contains("failed to reach leader"))) {
+            leaders.compareAndSet(shard, serverId, -1);
+            IPaxosNode server = stubs.get(serverId);
+            if (server != null) {
+                learnLeaders(serverId, server);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Takes the leaders and servers the server knows as hints for every shard.
+     */
+    private void learnLeaders(int serverId, IPaxosNode server) {
+        try {
+            int[] hints = server.getLeaders();
+            for (int shard = 0; shard < Math.min(hints.length, ServerConfig.SHARDS); shard++) {
+                leaders.set(shard, hints[shard]);
+            }
+            int[][] servers = server.getMembers();
+            for (int shard = 0; shard < Math.min(servers.length, ServerConfig.SHARDS); shard++) {
+                if (servers[shard].length > 0) {
+                    members.set(shard, servers[shard]);
+                }
+            }
+        } catch (RemoteException e) {
+            stubs.remove(serverId, server);
+        }
+    }
+
+    /**
+     * @return the known leader of the shard unless it was tried, else the server that should lead it if it is one of
+     * the shard's servers, else any
+     */
+    private int leaderOrAny(int shard, int[] servers, List<Integer> tried) {
+        int leader = leaders.get(shard);
+        if (leader != -1 && !tried.contains(leader)) {
+            return leader;
+        }
+        int preferred = ShardMap.preferredLeader(shard);
+        if (leader == -1 && ServerConfig.SHARDS > 1 && !tried.contains(preferred)
+                && Arrays.stream(servers).anyMatch(id -> id == preferred)) {
+            return preferred;
+        }
+        return randomServer(servers, tried);
+    }
+
+    private int randomServer(int[] servers, List<Integer> tried) {
+        int serverId;
+        do {
+            serverId = servers[ThreadLocalRandom.current().nextInt(servers.length)];
+        } while (tried.contains(serverId) && tried.size() < servers.length);
+        return serverId;
+    }
+
+    /**
+     * @return how long a GET waits before it is hedged, Long.MAX_VALUE if it never is
+     */
+    private long hedgeDelayNanos() {
+        if (hedgePercentile >= 100) {
+            return Long.MAX_VALUE;
+        }
+        if (readLatencies.getCount() < MIN_SAMPLES) {
+            return TimeUnit.MILLISECONDS.toNanos(INITIAL_HEDGE_DELAY_MILLIS);
+        }
+        return Math.max(MIN_HEDGE_DELAY_NANOS, readLatencies.percentile(hedgePercentile));
+    }
+
+    private IPaxosNode stub(int serverId) throws RemoteException, NotBoundException {
+        IPaxosNode stub = stubs.get(serverId);
+        if (stub != null) {
+            return stub;
+        }
+        Registry current = registry;
+        if (current == null) {
+            current = LocateRegistry.getRegistry(hostname, port);
+            registry = current;
+        }
+        stub = (IPaxosNode) current.lookup("KeyValueService" + serverId);
+        IPaxosNode cached = stubs.putIfAbsent(serverId, stub);
+        return cached != null ? cached : stub;
+    }
+
+    /**
+     * Drops the stub of a server a call failed on, and the server as the shard's leader.
+     */
+    private void forget(int serverId, int shard) {
+        stubs.remove(serverId);
+        leaders.compareAndSet(shard, serverId, -1);
+    }
+
+    /**
+     * @return whether a write failed without the client knowing if it was applied, so it is safe and useful to retry
+     * it with the same seq on another server
+     */
+    static boolean isOutcomeUnknown(String response) {
+        return response.startsWith("Failure") && (response.endsWith(" timed out") || response.endsWith(" aborted")
+                || response.contains("try again later") || response.contains("failed to reach leader"));
+    }
+
+    @Override
+    public void close() {
+        callExecutor.shutdownNow();
+    }
+
+    private interface ServerCall {
+        String apply(IPaxosNode server) throws RemoteException;
+    }
+}
@@ -0,0 +1,90 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * One GET, PUT or DELETE submitted through the asynchronous API, IPaxosNode.submit. The client picks the request ID
+ * and gets it back in the ClientResult, so it can have many requests outstanding on one connection. A write carries
+ * the seq it has in the client's session, so a retry of it is applied at most once.
+ */
+public class ClientRequest implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private final long requestId;
+  private final String operation;
+  private final String key;
+  private final String value;
+  private final ReadConsistency consistency;
+  private final long seq;
+
+  private ClientRequest(long requestId, String operation, String key, String value, ReadConsistency consistency, long seq) {
+    this.requestId = requestId;
+    this.operation = operation;
+    this.key = key;
+    this.value = value;
+    this.consistency = consistency;
+    this.seq = seq;
+  }
+
+  public static ClientRequest get(long requestId, String key, ReadConsistency consistency) {
+    return new ClientRequest(requestId, "GET", key, null, consistency != null ? consistency : ReadConsistency.LOCAL, 0);
+  }
+
+  /**
+   * @param seq the write's seq in the client's session, above 0
+   */
+  public static ClientRequest put(long requestId, long seq, String key, String value) {
+    return new ClientRequest(requestId, "PUT", key, value, null, seq);
+  }
+
+  /**
+   * @param seq the write's seq in the client's session, above 0
+   */
+  public static ClientRequest delete(long requestId, long seq, String key) {
+    return new ClientRequest(requestId, "DELETE", key, null, null, seq);
+  }
+
+  public long getRequestId() {
+    return requestId;
+  }
+
+  /**
+   * @return GET, PUT or DELETE
+   */
+  public String getOperation() {
+    return operation;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  /**
+   * @return the consistency of a GET, null for writes
+   */
+  public ReadConsistency getConsistency() {
+    return consistency;
+  }
+
+  /**
+   * @return the seq of a write in the client's session, 0 for a GET
+   */
+  public long getSeq() {
+    return seq;
+  }
+
+  /**
+   * @return whether the request has to run on the leader, i.e. a write or a linearizable read
+   */
+  public boolean needsLeader() {
+    return !"GET".equals(operation) || consistency != ReadConsistency.LOCAL;
+  }
+
+  @Override
+  public String toString() {
+    return operation + " #" + requestId + " [key]" + key;
+  }
+}
@@ -0,0 +1,53 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * The outcome of a ClientRequest, delivered to the client's IClientCallback. It carries the same fields as the text
+ * the synchronous calls return, without the client having to parse them.
+ */
+public class ClientResult implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private final long requestId;
+  private final boolean success;
+  private final String operation;
+  private final String message;
+  private final String value;
+
+  /**
+   * @param value the value read by a successful GET, null otherwise
+   */
+  public ClientResult(long requestId, boolean success, String operation, String message, String value) {
+    this.requestId = requestId;
+    this.success = success;
+    this.operation = operation;
+    this.message = message;
+    this.value = value;
+  }
+
+  public long getRequestId() {
+    return requestId;
+  }
+
+  public boolean isSuccess() {
+    return success;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    String result = (success ? "Success" : "Failure") + ": " + operation + " #" + requestId + " - " + message;
+    return value != null ? result + " [value]" + value : result;
+  }
+}
@@ -0,0 +1,32 @@
+package common;
+
+import java.io.Serializable;
+import java.util.List;
+
+import paxos.LogEntry;
+
+/**
+ * Log entries handed to a server that is catching up. A server limiting how fast it hands them out returns fewer than
+ * asked for, or none together with how long to wait before asking again, rather than holding the call.
+ */
+public class DecidedEntries implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private final List<LogEntry> entries;
+  private final long retryAfterMillis;
+
+  public DecidedEntries(List<LogEntry> entries, long retryAfterMillis) {
+    this.entries = entries;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  public List<LogEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return how long to wait before asking again if no entries were handed out because of the limit, 0 otherwise
+   */
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
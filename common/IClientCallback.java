@@ -0,0 +1,13 @@
+package common;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Exported by a client of the asynchronous API to receive the results of its requests. Results come in batches, in
+ * no particular order, possibly from a different server than the one the requests were submitted to.
+ */
+public interface IClientCallback extends Remote {
+  void onResults(List<ClientResult> results) throws RemoteException;
+}
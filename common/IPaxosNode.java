@@ -2,13 +2,88 @@ package common;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 import paxos.PaxosMessage;
 /**
  * Defines the remote interface for Paxos nodes, outlining the methods that can be remotely invoked via RMI.
  */
 public interface IPaxosNode extends Remote {
   String get(String clientId, String key) throws RemoteException;
+  /**
+   * Reads a key with the given consistency; LOCAL behaves like get(clientId, key).
+   */
+  String get(String clientId, String key, ReadConsistency consistency) throws RemoteException;
+  /**
+   * Reads a key from this replica if it is at most maxStalenessMillis and maxLagEntries log slots behind the leader,
+   * after waiting briefly for it to catch up, and from the leader otherwise.
+   */
+  String get(String clientId, String key, long maxStalenessMillis, long maxLagEntries) throws RemoteException;
   String put(String clientId, String key, String value) throws RemoteException;
   String delete(String clientId, String key) throws RemoteException;
+  /**
+   * Writes as part of the client's session: seq numbers the client's writes from 1 on and stays the same when the
+   * write is retried, on this or another server. Each write is applied at most once, and a retry of a write already
+   * applied gets the reply of the original. A session expires after paxos.sessionTimeoutMillis without writes.
+   */
+  String put(String clientId, long seq, String key, String value) throws RemoteException;
+  String delete(String clientId, long seq, String key) throws RemoteException;
+  /**
+   * Submits requests without waiting for them: the call returns once they are queued, and every result goes to the
+   * callback when its request is done, under the request ID the client picked. Requests only the leader of their shard
+   * serves are handed to it, and it answers the callback itself.
+   */
+  void submit(String clientId, List<ClientRequest> requests, IClientCallback callback) throws RemoteException;
+  /**
+   * Runs asynchronous requests forwarded by a follower on the leader of a Paxos group; they are never forwarded again.
+   */
+  void forwardSubmit(int groupId, String clientId, List<ClientRequest> requests, IClientCallback callback) throws RemoteException;
   void handlePaxosMessage(PaxosMessage message) throws RemoteException;
+  /**
+   * Handles several Paxos messages a peer sent in one call, in their order.
+   */
+  void handlePaxosMessages(List<PaxosMessage> messages) throws RemoteException;
+  /**
+   * Runs a PUT or DELETE forwarded by a follower on the Multi-Paxos leader, with the session's seq or 0; it is never
+   * forwarded again.
+   */
+  String forwardWrite(String clientId, long seq, String operation, String key, String value) throws RemoteException;
+  /**
+   * Runs a linearizable GET forwarded by a follower on the Multi-Paxos leader; it is never forwarded again.
+   */
+  String forwardRead(String clientId, String key, ReadConsistency consistency) throws RemoteException;
+  /**
+   * Returns log entries the given Paxos group of this server applied, from fromSlot on, for a server that is catching
+   * up; empty if fromSlot is not applied here yet, null if the log only holds it in a snapshot any more. Once this
+   * server's catch-up limit is used up, fewer entries come back, or none with a retry-after.
+   */
+  DecidedEntries fetchDecided(int groupId, long fromSlot, int maxEntries) throws RemoteException;
+  /**
+   * Returns a chunk of a snapshot of the given Paxos group's store; snapshotIndex 0 asks for the newest snapshot, and
+   * null means the snapshot asked for was replaced and the transfer has to start over.
+   */
+  SnapshotChunk fetchSnapshotChunk(int groupId, long snapshotIndex, long offset) throws RemoteException;
+  /**
+   * Returns how far every replica has applied the log of the given Paxos group (the shard, see ShardMap), as seen by
+   * its leader; a follower asks the leader.
+   */
+  List<ReplicaStatus> getReplicaStatus(int groupId) throws RemoteException;
+  /**
+   * Returns the leader of every Paxos group as this server knows it, -1 for a group whose leader it does not know.
+   * Clients take it as a hint where to send writes and linearizable reads, sparing them the follower's forwarding hop.
+   */
+  int[] getLeaders() throws RemoteException;
+  /**
+   * Returns the servers of every Paxos group as this server knows them: the members of every configuration the group
+   * still uses. Clients route and retry among them, so they follow membership changes.
+   */
+  int[][] getMembers() throws RemoteException;
+  /**
+   * Adds (operation ADD) or removes (REMOVE) one server to or from every Paxos group, through a CONFIG entry in each
+   * group's log. A server being added must be running; it catches up with a snapshot while the others serve requests.
+   */
+  String changeMembership(String clientId, String operation, int serverId) throws RemoteException;
+  /**
+   * Runs a membership change forwarded by a follower on the leader of a Paxos group; it is never forwarded again.
+   */
+  String forwardMembershipChange(int groupId, String clientId, String operation, int serverId) throws RemoteException;
 }
@@ -0,0 +1,13 @@
+package common;
+
+/**
+ * The consistency a client asks for on GET.
+ */
+public enum ReadConsistency {
+  /** Reads the local replica, fast but possibly stale. */
+  LOCAL,
+  /** Linearizable: served by the leader from its own store while it holds a lease, read-index otherwise. */
+  LEASE,
+  /** Linearizable: the leader confirms it still leads with one heartbeat round and waits until the log is applied that far. */
+  READ_INDEX
+}
@@ -0,0 +1,51 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * How far one replica has applied the log, as seen by the leader from its heartbeat acknowledgements.
+ */
+public class ReplicaStatus implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private final int serverId;
+  private final long appliedIndex;
+  private final long lagEntries;
+  private final long millisSinceHeard;
+
+  /**
+   * @param serverId the replica
+   * @param appliedIndex its last applied slot, -1 if unknown
+   * @param lagEntries how many slots it is behind the leader, -1 if unknown
+   * @param millisSinceHeard how long ago it acknowledged a heartbeat, -1 if never
+   */
+  public ReplicaStatus(int serverId, long appliedIndex, long lagEntries, long millisSinceHeard) {
+    this.serverId = serverId;
+    this.appliedIndex = appliedIndex;
+    this.lagEntries = lagEntries;
+    this.millisSinceHeard = millisSinceHeard;
+  }
+
+  public int getServerId() {
+    return serverId;
+  }
+
+  public long getAppliedIndex() {
+    return appliedIndex;
+  }
+
+  public long getLagEntries() {
+    return lagEntries;
+  }
+
+  public long getMillisSinceHeard() {
+    return millisSinceHeard;
+  }
+
+  @Override
+  public String toString() {
+    if (appliedIndex < 0) {
+      return "server" + serverId + " unknown";
+    }
+    return "server" + serverId + " applied=" + appliedIndex + " lag=" + lagEntries + " heard=" + millisSinceHeard + "ms ago";
+  }
+}
@@ -5,4 +5,72 @@ package common;
 public class ServerConfig {
   public static final String[] ALL_SERVERS = {"KeyValueService1", "KeyValueService2", "KeyValueService3", "KeyValueService4", "KeyValueService5"};
   public static final int[] ALL_SERVER_IDs = {1, 2, 3, 4, 5};
+
+  // Multi-Paxos: a stable leader runs Phase 1 once and then proposes directly, switch off with -Dpaxos.multiPaxos=false
+  public static final boolean MULTI_PAXOS = Boolean.parseBoolean(System.getProperty("paxos.multiPaxos", "true"));
+  public static final long HEARTBEAT_INTERVAL_MILLIS = 500;
+  // followers start an election after this long (plus a random jitter of up to the same amount) without a heartbeat
+  public static final long ELECTION_TIMEOUT_MILLIS = 2000;
+  // a leader serves reads locally for this long after a quorum acknowledged a heartbeat, kept well below the
+  // election timeout so that clock rate differences between nodes can not make two leases overlap
+  public static final long LEADER_LEASE_MILLIS = ELECTION_TIMEOUT_MILLIS * 3 / 4;
+
+  // writes arriving within this window (or until the size cap is hit) are proposed as one batch, 0 turns batching off
+  public static final long BATCH_WINDOW_MILLIS = Long.getLong("paxos.batchWindowMillis", 2);
+  public static final int BATCH_MAX_SIZE = Integer.getInteger("paxos.batchMaxSize", 64);
+
+  // how many log slots a proposer may have proposed but not applied yet, new writes wait once it is reached
+  public static final int PIPELINE_WINDOW = Integer.getInteger("paxos.pipelineWindow", 32);
+  // a membership change decided in slot s governs the slots from s + MEMBERSHIP_DELAY on, and no leader has more slots
+  // in flight than this whatever its PIPELINE_WINDOW. The delay is written into the CONFIG entry, so every replica
+  // puts a change at the same slot; it is not a setting, as a leader with a larger one could outrun a change
+  public static final int MEMBERSHIP_DELAY = 32;
+
+  // every server keeps its write-ahead log in its own directory below this one
+  public static final String DATA_DIR = System.getProperty("paxos.dataDir", "data");
+  // size of one memory-mapped segment file of the learned log
+  public static final int SEGMENT_BYTES = Integer.getInteger("paxos.segmentBytes", 16 << 20);
+
+  // a snapshot of the store is taken every this many applied slots, after which the learned log before the previous
+  // snapshot is deleted
+  public static final long SNAPSHOT_INTERVAL = Long.getLong("paxos.snapshotInterval", 10000);
+  // the largest piece of a snapshot sent in one RMI call to a server that is catching up
+  public static final int SNAPSHOT_CHUNK_BYTES = Integer.getInteger("paxos.snapshotChunkBytes", 1 << 20);
+  // how many log entries per second a server hands out to servers catching up, 0 for no limit
+  public static final int CATCH_UP_ENTRIES_PER_SECOND = Integer.getInteger("paxos.catchUpEntriesPerSecond", 20000);
+
+  // how Paxos messages travel between servers: "nio" (persistent connections, binary frames) or "rmi"
+  public static final String TRANSPORT = System.getProperty("paxos.transport", "nio");
+  // with the NIO transport server i listens on this port plus i
+  public static final int NIO_BASE_PORT = Integer.getInteger("paxos.nioBasePort", 7100);
+  // messages for one peer queued within this many microseconds (or until the size cap is hit) travel in one RMI call
+  // or NIO frame, 0 sends whatever is queued without waiting
+  public static final long COALESCE_MICROS = Long.getLong("paxos.coalesceMicros", 20);
+  public static final int COALESCE_MAX_MESSAGES = Integer.getInteger("paxos.coalesceMaxMessages", 64);
+
+  // server i serves its metrics as plain text on http://localhost:<this port plus i>/metrics, and registers them with
+  // JMX as paxos:type=Server,id=i either way; a negative port turns the endpoint off
+  public static final int METRICS_BASE_PORT = Integer.getInteger("paxos.metricsBasePort", 7200);
+
+  // acceptors send ACCEPTED only to the proposer, which tells the others what was decided on its next PROPOSE or, if
+  // none follows within COMMIT_NOTICE_MILLIS, in a commit message; false sends ACCEPTED from every acceptor to everyone
+  public static final boolean ACCEPTED_TO_PROPOSER = Boolean.parseBoolean(System.getProperty("paxos.acceptedToProposer", "true"));
+  public static final long COMMIT_NOTICE_MILLIS = Long.getLong("paxos.commitNoticeMillis", 5);
+
+  // the keyspace is hashed into this many shards, each replicated by its own Paxos group with its own leader; every
+  // server runs all groups, which share its connections and send threads
+  public static final int SHARDS = Math.max(1, Integer.getInteger("paxos.shards", 1));
+
+  // a client session without writes for this long is dropped from the deduplication table, measured with the leader
+  // timestamps in the log; a retry arriving later is applied again
+  public static final long SESSION_TIMEOUT_MILLIS = Long.getLong("paxos.sessionTimeoutMillis", 60 * 60 * 1000);
+  // a session remembers which of its last this many seqs were applied, so writes outstanding together may be applied
+  // in any order; a client keeps its writes to a shard within this many seqs of its oldest unanswered one. Every
+  // replica has to decide the same about a write, so it is not a setting
+  public static final int SESSION_WINDOW = 1024;
+
+  // asynchronous requests of all groups run on this many threads; once this many more wait for one, further requests
+  // are answered right away with a failure telling the client to try again later
+  public static final int REQUEST_THREADS = Integer.getInteger("paxos.requestThreads", 8);
+  public static final int REQUEST_QUEUE = Integer.getInteger("paxos.requestQueue", 1024);
 }
@@ -0,0 +1,34 @@
+package common;
+
+/**
+ * Maps keys to shards and shards to the server that should lead them. A key belongs to the shard given by a mixed
+ * String.hashCode, which is the same in every JVM, so clients and servers agree on it without asking each other.
+ * Shard s prefers server ALL_SERVER_IDs[s % servers] as its leader, which spreads the leaders over the servers.
+ */
+public class ShardMap {
+  private ShardMap() {
+  }
+
+  /**
+   * @return the shard of a key, between 0 and ServerConfig.SHARDS - 1
+   */
+  public static int shardOf(String key) {
+    return shardOf(key, ServerConfig.SHARDS);
+  }
+
+  public static int shardOf(String key, int shards) {
+    if (shards == 1) {
+      return 0;
+    }
+    // spreads keys that differ only in their last characters, e.g. "k1", "k2", over all shards
+    int hash = key.hashCode() * 0x9E3779B9;
+    return Math.floorMod(hash ^ (hash >>> 16), shards);
+  }
+
+  /**
+   * @return the server that campaigns first for the leadership of a shard
+   */
+  public static int preferredLeader(int shard) {
+    return ServerConfig.ALL_SERVER_IDs[shard % ServerConfig.ALL_SERVER_IDs.length];
+  }
+}
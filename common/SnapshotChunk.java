@@ -0,0 +1,44 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * A piece of a snapshot file sent to a server that is catching up; a snapshot is sent in as many chunks as it takes.
+ */
+public class SnapshotChunk implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private final long snapshotIndex;
+  private final long offset;
+  private final long totalBytes;
+  private final byte[] data;
+
+  public SnapshotChunk(long snapshotIndex, long offset, long totalBytes, byte[] data) {
+    this.snapshotIndex = snapshotIndex;
+    this.offset = offset;
+    this.totalBytes = totalBytes;
+    this.data = data;
+  }
+
+  /**
+   * @return the last log slot the snapshot includes
+   */
+  public long getSnapshotIndex() {
+    return snapshotIndex;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public long getTotalBytes() {
+    return totalBytes;
+  }
+
+  public byte[] getData() {
+    return data;
+  }
+
+  public boolean isLast() {
+    return offset + data.length >= totalBytes;
+  }
+}
@@ -0,0 +1,75 @@
+package bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paxos.Acceptor;
+import paxos.Command;
+import paxos.MessagePrepare;
+import paxos.MessagePropose;
+import paxos.ProposalID;
+
+/**
+ * An Acceptor answering PREPARE and PROPOSE for a new slot per operation, through its message queue processed on the
+ * calling thread, without a write-ahead log.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AcceptorBenchmark {
+  private final ProposalID ballot = ProposalID.of(7, 1);
+  private final Command[] commands = new Command[1024];
+  private FakeMessenger messenger;
+  private Acceptor acceptor;
+  private long slot;
+
+  @Setup
+  public void setUp() {
+    Logs.discard();
+    String value = "v".repeat(100);
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = new Command("bench-" + i, "PUT", "key" + i, value);
+    }
+    messenger = new FakeMessenger();
+    acceptor = new Acceptor(2, messenger, null);
+    acceptor.start(Runnable::run);
+  }
+
+  @Benchmark
+  public long prepare() {
+    slot++;
+    acceptor.enqueueMessage(new MessagePrepare(ballot, slot));
+    forgetApplied();
+    return messenger.getSent();
+  }
+
+  @Benchmark
+  public long propose() {
+    slot++;
+    acceptor.enqueueMessage(new MessagePropose(ballot, slot, commands[(int) slot & 1023]));
+    forgetApplied();
+    return messenger.getSent();
+  }
+
+  /**
+   * Drops the old slots as the server does once they are applied, so memory stays bounded.
+   */
+  private void forgetApplied() {
+    if ((slot & 1023) == 0) {
+      acceptor.forgetUpTo(slot);
+    }
+  }
+}
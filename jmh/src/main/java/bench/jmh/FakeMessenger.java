@@ -0,0 +1,61 @@
+package bench.jmh;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import paxos.Messenger;
+import paxos.PaxosMessage;
+
+/**
+ * A Messenger that delivers nothing: every message counts as received by its server at once, so a benchmark of a
+ * Paxos role measures the role's own work and not the network, the queues or the send threads. It only keeps the
+ * last message sent, to keep it from being optimized away.
+ */
+class FakeMessenger extends Messenger {
+  private static final CompletableFuture<Boolean> DELIVERED = CompletableFuture.completedFuture(true);
+  private long sent;
+  private PaxosMessage last;
+
+  FakeMessenger() {
+    // never contacted, no message leaves the JVM
+    super("localhost", 0);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> broadcastMessage(PaxosMessage message) {
+    sent += getPeers().length;
+    last = message;
+    return DELIVERED;
+  }
+
+  @Override
+  public CompletableFuture<Boolean> sendAsync(int serverId, PaxosMessage message) {
+    sent++;
+    last = message;
+    return DELIVERED;
+  }
+
+  @Override
+  public boolean sendPaxosMessage(int serverId, PaxosMessage message) {
+    sent++;
+    last = message;
+    return true;
+  }
+
+  @Override
+  public boolean sendPaxosMessages(int serverId, List<PaxosMessage> messages) {
+    sent += messages.size();
+    if (!messages.isEmpty()) {
+      last = messages.get(messages.size() - 1);
+    }
+    return true;
+  }
+
+  public long getSent() {
+    return sent;
+  }
+
+  public PaxosMessage getLast() {
+    return last;
+  }
+}
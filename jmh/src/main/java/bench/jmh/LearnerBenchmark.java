@@ -0,0 +1,67 @@
+package bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.ServerConfig;
+import paxos.Command;
+import paxos.Learner;
+import paxos.Membership;
+import paxos.MessageAccepted;
+import paxos.ProposalID;
+import paxos.SessionTable;
+import server.KeyValueStore;
+
+/**
+ * A Learner counting ACCEPTED messages: every operation is one slot, accepted by a quorum of the five servers, the
+ * last vote deciding the slot and applying it to the store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LearnerBenchmark {
+  private final ProposalID ballot = ProposalID.of(7, 1);
+  private final Command[] commands = new Command[1024];
+  private final int quorum = ServerConfig.ALL_SERVER_IDs.length / 2 + 1;
+  private Learner learner;
+  private long slot;
+
+  @Setup
+  public void setUp() {
+    Logs.discard();
+    String value = "v".repeat(100);
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = new Command("bench-" + i, "PUT", "key" + i, value);
+    }
+    learner = newLearner();
+  }
+
+  static Learner newLearner() {
+    KeyValueStore store = new KeyValueStore();
+    return new Learner(1, store, null, new Membership(ServerConfig.ALL_SERVER_IDs, ServerConfig.MEMBERSHIP_DELAY),
+        new SessionTable(store, ServerConfig.SESSION_TIMEOUT_MILLIS));
+  }
+
+  @Benchmark
+  public long acceptedQuorum() {
+    slot++;
+    Command command = commands[(int) slot & 1023];
+    for (int voter = 0; voter < quorum; voter++) {
+      learner.handleAccepted(new MessageAccepted(ServerConfig.ALL_SERVER_IDs[voter], ballot, slot, command));
+    }
+    return learner.getAppliedIndex();
+  }
+}
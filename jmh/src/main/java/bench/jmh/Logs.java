@@ -0,0 +1,21 @@
+package bench.jmh;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * The servers log every message they handle to the console. The benchmarks still format those lines, as the servers
+ * do, but write them nowhere, so their cost counts and JMH's output stays readable. The forked JVM reports its results
+ * to JMH over a socket, not through the console.
+ */
+final class Logs {
+  private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+  private Logs() {
+  }
+
+  static void discard() {
+    System.setOut(DISCARD);
+    System.setErr(DISCARD);
+  }
+}
@@ -0,0 +1,79 @@
+package bench.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paxos.Command;
+import paxos.MessageAccepted;
+import paxos.MessagePropose;
+import paxos.PaxosMessage;
+import paxos.ProposalID;
+import transport.MessageCodec;
+
+/**
+ * Encoding Paxos messages into a frame and decoding them again, one at a time and as a batch of 16.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageCodecBenchmark {
+  private final ProposalID ballot = ProposalID.of(7, 1);
+  private final Command[] commands = new Command[1024];
+  private final List<PaxosMessage> batch = new ArrayList<>();
+  private final ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+  private long slot;
+
+  @Setup
+  public void setUp() {
+    String value = "v".repeat(100);
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = new Command("bench-" + i, "PUT", "key" + i, value);
+    }
+    for (int i = 0; i < 16; i++) {
+      batch.add(new MessageAccepted(2, ballot, i, commands[i]));
+    }
+  }
+
+  @Benchmark
+  public long accepted() {
+    slot++;
+    return roundTrip(new MessageAccepted(2, ballot, slot, commands[(int) slot & 1023]));
+  }
+
+  @Benchmark
+  public long propose() {
+    slot++;
+    return roundTrip(new MessagePropose(ballot, slot, commands[(int) slot & 1023], new long[] {slot - 2, slot - 1}));
+  }
+
+  @Benchmark
+  public int batch16() {
+    buffer.clear();
+    MessageCodec.encode(batch, buffer);
+    buffer.flip();
+    return MessageCodec.decodeAll(buffer).size();
+  }
+
+  private long roundTrip(PaxosMessage message) {
+    buffer.clear();
+    MessageCodec.encode(message, buffer);
+    buffer.flip();
+    return MessageCodec.decode(buffer).getSlot();
+  }
+}
@@ -0,0 +1,48 @@
+package bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import metrics.Histogram;
+import paxos.Command;
+import paxos.MessageAccepted;
+import paxos.MessageMetrics;
+import paxos.ProposalID;
+
+/**
+ * Recording a latency and counting a message, which the servers do for every request and message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+  private final Histogram histogram = new Histogram();
+  private final MessageMetrics messageMetrics = new MessageMetrics();
+  private final MessageAccepted accepted = new MessageAccepted(2, ProposalID.of(7, 1), 1, new Command("bench-1", "PUT", "key", "v"));
+  private long index;
+
+  @Benchmark
+  public long histogramRecord() {
+    histogram.record(++index * 7919 & 0xffffff);
+    return histogram.getTotalCount();
+  }
+
+  @Benchmark
+  public long messageCount() {
+    messageMetrics.recordSent((int) ++index & 7, accepted);
+    messageMetrics.recordReceived(accepted);
+    return index;
+  }
+}
@@ -0,0 +1,58 @@
+package bench.jmh;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paxos.ProposalID;
+
+/**
+ * Comparing ballots and looking them up in a hash map, as every role does for each message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProposalIDBenchmark {
+  private final ProposalID[] ids = new ProposalID[1024];
+  private final Map<ProposalID, Integer> votes = new HashMap<>();
+  private int index;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(1);
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = ProposalID.of(random.nextInt(4), 1 + random.nextInt(5));
+      votes.put(ids[i], ids[i].getServerId());
+    }
+  }
+
+  @Benchmark
+  public int compareTo() {
+    index++;
+    return ids[index & 1023].compareTo(ids[(index >>> 10) & 1023]);
+  }
+
+  /**
+   * The lookup the Learner does for every ACCEPTED, with a copy so equals has to compare the fields.
+   */
+  @Benchmark
+  public Integer hashLookup() {
+    ProposalID id = ids[++index & 1023];
+    return votes.get(ProposalID.of(id.getNumber(), id.getServerId()));
+  }
+}
@@ -0,0 +1,71 @@
+package bench.jmh;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.ServerConfig;
+import paxos.Command;
+import paxos.MessagePromise;
+import paxos.ProposalID;
+import paxos.Proposal;
+import paxos.Proposer;
+
+/**
+ * A Proposer counting promises: every operation is one slot, from PREPARE through the promises of a quorum to the
+ * PROPOSE they trigger and the slot's decision.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProposerBenchmark {
+  private final ProposalID ballot = ProposalID.of(7, 1);
+  private final Command command = new Command("bench-1", "PUT", "key", "v".repeat(100));
+  private final int quorum = ServerConfig.ALL_SERVER_IDs.length / 2 + 1;
+  // runs the proposal retries, which the decision cancels before they are due
+  private ScheduledExecutorService scheduler;
+  private FakeMessenger messenger;
+  private Proposer proposer;
+  private long slot;
+
+  @Setup
+  public void setUp() {
+    Logs.discard();
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    messenger = new FakeMessenger();
+    proposer = new Proposer(1, messenger, LearnerBenchmark.newLearner(), scheduler, System::currentTimeMillis);
+  }
+
+  @TearDown
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Benchmark
+  public long promiseQuorum() {
+    slot++;
+    proposer.prepare(new Proposal(ballot, slot, command));
+    for (int voter = 0; voter < quorum; voter++) {
+      proposer.propose(new MessagePromise(ServerConfig.ALL_SERVER_IDs[voter], ballot, slot, false, Collections.emptyList()));
+    }
+    proposer.onDecided(slot, command);
+    proposer.onApplied(slot);
+    return messenger.getSent();
+  }
+}
@@ -0,0 +1,95 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram any number of threads record into at once, with the log-linear buckets of HdrHistogram at two
+ * significant digits (as bench.LatencyHistogram): values below 128 have a bucket each, and above that every power of
+ * two is split into 64 buckets, so a percentile is off by less than 1.6% whatever the range. Recording is a few
+ * shifts and atomic increments into buckets allocated up front, so it never allocates. Reading walks a copy of the
+ * buckets, which may miss values recorded meanwhile. Counts add up from the start, like the servers' other counters.
+ */
+public class Histogram {
+  private static final int LINEAR = 128;
+  private static final int SUB_BUCKETS = 64;
+  private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (63 - 6) * SUB_BUCKETS);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param value a latency in any unit, negative values count as 0
+   */
+  public void record(long value) {
+    long clamped = Math.max(0, value);
+    counts.incrementAndGet(index(clamped));
+    totalCount.incrementAndGet();
+    sum.addAndGet(clamped);
+    long current;
+    while (clamped > (current = max.get()) && !max.compareAndSet(current, clamped)) {
+      // another thread raised the maximum meanwhile, compare with the new one
+    }
+  }
+
+  public long getTotalCount() {
+    return totalCount.get();
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @param percentiles each between 0 and 100
+   * @return for every percentile the highest value in the bucket it falls into, 0 if nothing was recorded
+   */
+  public long[] percentiles(double... percentiles) {
+    long[] snapshot = new long[counts.length()];
+    long total = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    long highest = max.get();
+    long[] values = new long[percentiles.length];
+    for (int p = 0; p < percentiles.length; p++) {
+      if (total == 0) {
+        continue;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * total));
+      long seen = 0;
+      values[p] = highest;
+      for (int i = 0; i < snapshot.length; i++) {
+        seen += snapshot[i];
+        if (seen >= rank) {
+          values[p] = Math.min(highest, highestInBucket(i));
+          break;
+        }
+      }
+    }
+    return values;
+  }
+
+  private static int index(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    // keeps the top 7 bits, so value >>> shift is between 64 and 127
+    int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+    return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  private static long highestInBucket(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+    long lowest = (long) ((index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
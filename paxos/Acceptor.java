@@ -1,32 +1,72 @@
 package paxos;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.LongFunction;
 
+import common.ServerConfig;
 import server.ServerLogger;
+import storage.WriteAheadLog;
 
 /**
  * Implements the Acceptor role in the Paxos protocol, responsible for 
  * responding to prepare and propose requests from Proposers, promising to accept values, and accepting proposals.
+ * Every slot of the replicated log is its own Paxos instance.
+ * Promises and accepted values are written to the write-ahead log and only answered once they are durable,
+ * so a restarted Acceptor never goes back on what it told a Proposer.
+ * Slots applied on this server are dropped from memory and answered from the learned log instead, and dropped from
+ * the write-ahead log when it is compacted.
+ * Queued messages are processed on an executor shared with the acceptors of the other groups.
  */
 
-public class Acceptor implements Runnable {
+public class Acceptor {
   private final int serverId;
   private final Messenger messenger;
-  private ConcurrentHashMap<String, ProposalID> highestPromised = new ConcurrentHashMap<>();
-  private ConcurrentHashMap<String, ProposalID> highestAccepted = new ConcurrentHashMap<>();
-  private ConcurrentHashMap<String, String> acceptedValues = new ConcurrentHashMap<>();
+  // null keeps the state in memory only
+  private final WriteAheadLog wal;
+  // held while appending to the write-ahead log, compacting it and restoring from it, so a compaction keeps every
+  // record appended before it and never sees the state half restored
+  private final Object walLock = new Object();
+  // per log slot: the highest ballot promised and the entry accepted
+  private ConcurrentSkipListMap<Long, ProposalID> slotPromised = new ConcurrentSkipListMap<>();
+  private ConcurrentSkipListMap<Long, LogEntry> acceptedEntries = new ConcurrentSkipListMap<>();
+  // highest ballot promised to a Multi-Paxos leader, covers every slot
+  private volatile ProposalID leaderPromised;
   private BlockingQueue<PaxosMessage> messageQueue = new LinkedBlockingQueue<>();
   private volatile boolean running = true;
-  private Random random = new Random();
+  // processes the queued messages, null until started
+  private volatile Executor executor;
+  // set while a task processes the queued messages, so at most one does at a time
+  private final AtomicBoolean draining = new AtomicBoolean();
+  // messages one task processes at most before making way for the acceptors of the other groups
+  private static final int DRAIN_BATCH = 256;
+  // tells whether promising leadership to a candidate could cut short the lease of the current leader
+  private volatile IntPredicate leaseGuard = candidateId -> false;
+  // every slot up to here is applied on this server, its chosen entry is read from the learned log
+  private volatile long prunedUpTo = 0;
+  private volatile LongFunction<LogEntry> learnedEntries = slot -> null;
+  // learns the entries accepted here for slots a Proposer reported decided
+  private volatile Consumer<LogEntry> commitListener = entry -> { };
+  // forces the learned log to disk, which holds the applied slots once they are dropped from the write-ahead log
+  private volatile Runnable learnedLogSync = () -> { };
+  private volatile PaxosMetrics metrics = PaxosMetrics.UNEXPORTED;
 
-  public Acceptor(int serverId, Messenger messenger) {
+  public Acceptor(int serverId, Messenger messenger, WriteAheadLog wal) {
     this.serverId = serverId;
     this.messenger = messenger;
+    this.wal = wal;
   }
 
   public int getServerId() {
@@ -37,49 +77,113 @@ public class Acceptor implements Runnable {
     return this.messenger;
   }
 
-  @Override
-  public void run() {
+  public void setMetrics(PaxosMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public void setLeaseGuard(IntPredicate leaseGuard) {
+    this.leaseGuard = leaseGuard;
+  }
+
+  public void setLearnedEntries(LongFunction<LogEntry> learnedEntries) {
+    this.learnedEntries = learnedEntries;
+  }
+
+  public void setCommitListener(Consumer<LogEntry> commitListener) {
+    this.commitListener = commitListener;
+  }
+
+  public void setLearnedLogSync(Runnable learnedLogSync) {
+    this.learnedLogSync = learnedLogSync;
+  }
+
+  /**
+   * Drops the promises and accepted values of slots applied on this server, which keeps memory bounded.
+   * The value chosen for such a slot can not change any more and is taken from the learned log when asked for.
+   * @param appliedIndex the last slot applied on this server
+   */
+  public void forgetUpTo(long appliedIndex) {
+    if (appliedIndex <= prunedUpTo) {
+      return;
+    }
+    prunedUpTo = appliedIndex;
+    acceptedEntries.headMap(appliedIndex, true).clear();
+    slotPromised.headMap(appliedIndex, true).clear();
+  }
+
+  /**
+   * Starts processing the queued messages, until stopped or failed.
+   * @param executor runs the processing, one task at a time
+   */
+  public void start(Executor executor) {
+    this.executor = executor;
+    scheduleDrain();
+  }
+
+  private void scheduleDrain() {
+    Executor executor = this.executor;
+    if (executor == null || !running || messageQueue.isEmpty() || !draining.compareAndSet(false, true)) {
+      return;
+    }
     try {
-      while (running && !Thread.currentThread().isInterrupted()) {
-        // Run for a random duration between 5 seconds to 15s before a possible failure
-        long workDuration = random.nextInt(10000) + 5000;
-        long start = System.currentTimeMillis();
-        while (System.currentTimeMillis() - start < workDuration && running) {
-          PaxosMessage message = messageQueue.poll(100, TimeUnit.MILLISECONDS);
-          if (message != null) {
-            processMessage(message);
-          }
-        }
-        // a random chance to fail, 5%
-        if (random.nextDouble() < 0.05) {
-          running = false;  // stop the thread to simulate failure
-          ServerLogger.warn("Acceptor " + this.serverId + " simulated failure.");
-        } else {
-          running = true;
-        }
+      executor.execute(this::drain);
+    } catch (RejectedExecutionException e) {
+      // the server is shutting down
+      draining.set(false);
+    }
+  }
+
+  private void drain() {
+    try {
+      PaxosMessage message;
+      for (int i = 0; i < DRAIN_BATCH && running && (message = messageQueue.poll()) != null; i++) {
+        processMessage(message);
       }
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      ServerLogger.warn("Acceptor" + serverId + " thread interrupted.");
-    } catch (RemoteException e) {
-      ServerLogger.error("RemoteException error for Acceptor" + serverId + ": " + e.getMessage());
-    } finally {
-      clearStates();
+    } catch (RemoteException | RuntimeException e) {
+      ServerLogger.error("Acceptor" + serverId + " failed to process a message: " + e.getMessage());
+      // the state in memory counts as lost, the ThreadManager restores it from the log
       running = false;
+    } finally {
+      draining.set(false);
     }
+    // messages left over or queued while the task finished
+    scheduleDrain();
+  }
+
+  /**
+   * Simulates a crash: no more messages are processed, and the state in memory counts as lost until it is restored.
+   */
+  public void fail() {
+    running = false;
+    ServerLogger.warn("Acceptor " + this.serverId + " simulated failure.");
+  }
+
+  /**
+   * @return whether messages are processed, false after a failure until the state is restored
+   */
+  public boolean isRunning() {
+    return running;
   }
 
   public void stop() {
     running = false;
-    Thread.currentThread().interrupt();
   }
 
   /**
-   * a method for message queue for current thread to process
+   * Queues a message for processing
    * @param message
    */
   public void enqueueMessage(PaxosMessage message) {
     messageQueue.offer(message);
+    metrics.recordQueueDepth(messageQueue.size());
+    scheduleDrain();
+  }
+
+  /**
+   * @return how many messages wait to be processed
+   */
+  public int getQueueDepth() {
+    return messageQueue.size();
   }
 
   private void processMessage(PaxosMessage message) throws RemoteException {
@@ -87,6 +191,8 @@ public class Acceptor implements Runnable {
       promise((MessagePrepare) message);
     } else if (message instanceof MessagePropose) {
       accept((MessagePropose) message);
+    } else if (message instanceof MessageCommit) {
+      learnCommitted(message.getProposalID(), ((MessageCommit) message).getSlots());
     }
   }
 
@@ -97,27 +203,67 @@ public class Acceptor implements Runnable {
    * @throws RemoteException
    */
   private void promise(MessagePrepare prepare) throws RemoteException {
-    String key = prepare.getKey();
     ProposalID proposalID = prepare.getProposalID();
-
-    ProposalID currentPromised = highestPromised.get(key);
+    ProposalID.witness(proposalID);
+    if (prepare.isLeaderPrepare()) {
+      promiseLeadership(proposalID, prepare.getSlot());
+      return;
+    }
+    long slot = prepare.getSlot();
+    if (slot <= prunedUpTo) {
+      // the slot is decided: promise, so the Proposer carries on the chosen value
+      LogEntry chosen = learnedEntries.apply(slot);
+      if (chosen != null) {
+        messenger.sendAsync(proposalID.getServerId(), new MessagePromise(serverId, proposalID, slot, false, Collections.singletonList(chosen)));
+      }
+      return;
+    }
+    ProposalID currentPromised = promisedFor(slot);
     if (currentPromised == null || proposalID.compareTo(currentPromised) > 0) {
       // New highest ID received, update and respond with a promise
-      highestPromised.put(key, proposalID);
-      // was a proposal already accepted?
-      if (highestAccepted.containsKey(key)) {
-        // There is an accepted proposal, send details with promise
-        ProposalID acceptedId = highestAccepted.get(key);
-        String value = acceptedValues.get(key);
-        MessagePromise promise = new MessagePromise(serverId, key, proposalID, acceptedId, value);
-        messenger.sendPaxosMessage(proposalID.getServerId(), promise);
-      } else {
-        // Now send promise back to the specific proposer
-        MessagePromise promise = new MessagePromise(serverId, key, proposalID);
-        messenger.sendPaxosMessage(proposalID.getServerId(), promise); 
+      slotPromised.put(slot, proposalID);
+      // was a proposal already accepted? then send details with promise
+      LogEntry accepted = acceptedEntries.get(slot);
+      List<LogEntry> entries = accepted != null ? Collections.singletonList(accepted) : Collections.emptyList();
+      MessagePromise promise = new MessagePromise(serverId, proposalID, slot, false, entries);
+      persist(LogRecord.promise(slot, proposalID), () -> messenger.sendAsync(proposalID.getServerId(), promise));
+    } else {
+      ServerLogger.log(prepare.getProposalID() + ": Acceptor" + this.serverId + " does not send PROMISE for slot " + slot + " to Proposer" + prepare.getProposalID().getServerId());
+    }
+  }
+
+  /**
+   * Promises a leader candidate to ignore any lower ballot for every slot from fromSlot on,
+   * reporting everything accepted in that range.
+   * @param ballot the candidate's ballot
+   * @param fromSlot the first slot covered by the promise
+   */
+  private void promiseLeadership(ProposalID ballot, long fromSlot) {
+    if (leaseGuard.test(ballot.getServerId())) {
+      ServerLogger.log(ballot + ": Acceptor" + this.serverId + " does not promise leadership to Proposer" + ballot.getServerId() + " while the current leader is alive");
+      return;
+    }
+    ProposalID highestSlotPromise = slotPromised.tailMap(fromSlot).values().stream().max(ProposalID::compareTo).orElse(null);
+    if ((leaderPromised == null || ballot.compareTo(leaderPromised) > 0)
+        && (highestSlotPromise == null || ballot.compareTo(highestSlotPromise) > 0)) {
+      List<LogEntry> entries = new ArrayList<>();
+      // a candidate behind this server also learns the values chosen for slots applied here
+      for (long slot = fromSlot; slot <= prunedUpTo; slot++) {
+        LogEntry chosen = learnedEntries.apply(slot);
+        if (chosen == null) {
+          // covered by a snapshot only: the candidate has to catch up before it can lead
+          ServerLogger.log(ballot + ": Acceptor" + this.serverId + " does not promise leadership to Proposer" + ballot.getServerId()
+              + ", slot " + slot + " is only kept in a snapshot");
+          return;
+        }
+        entries.add(chosen);
       }
+      entries.addAll(acceptedEntries.tailMap(Math.max(fromSlot, prunedUpTo + 1)).values());
+      leaderPromised = ballot;
+      MessagePromise promise = new MessagePromise(serverId, ballot, fromSlot, true, entries);
+      persist(LogRecord.leaderPromise(ballot), () -> messenger.sendAsync(ballot.getServerId(), promise));
     } else {
-      ServerLogger.log(prepare.getProposalID() + ": Acceptor" + this.serverId + " does not send PROMISE to Proposer" + prepare.getProposalID().getServerId());
+      ServerLogger.log(ballot + ": Acceptor" + this.serverId + " does not promise leadership to Proposer" + ballot.getServerId());
     }
   }
 
@@ -128,31 +274,174 @@ public class Acceptor implements Runnable {
    * @throws RemoteException
    */
   private void accept(MessagePropose propose) throws RemoteException {
-    if (highestPromised == null) {
+    long slot = propose.getSlot();
+    ProposalID proposalID = propose.getProposalID();
+    learnCommitted(proposalID, propose.getCommittedSlots());
+    if (slot <= prunedUpTo) {
+      // the slot is decided: tell the Learners what was chosen instead of accepting anything new
+      LogEntry chosen = learnedEntries.apply(slot);
+      if (chosen != null) {
+        sendAccepted(proposalID, new MessageAccepted(serverId, chosen.getBallot(), slot, chosen.getCommand()));
+      }
       return;
     }
-    String key = propose.getKey();
-    String value = propose.getValue();
-    String operation = propose.getOperation();
-    ProposalID proposalID = propose.getProposalID();
-    ProposalID currentPromised = highestPromised.get(key);
-    if (proposalID.equals(currentPromised)) {
-      highestAccepted.put(key, proposalID);
-      if (value != null) {
-        acceptedValues.put(key, value);
+    ProposalID currentPromised = promisedFor(slot);
+    // accept unless a higher ballot has been promised for this slot since
+    if (currentPromised == null || proposalID.compareTo(currentPromised) >= 0) {
+      if (!proposalID.equals(leaderPromised)) {
+        slotPromised.put(slot, proposalID);
       }
-      MessageAccepted accept = new MessageAccepted(serverId, proposalID, key, value, operation);
-      messenger.broadcastMessage(accept);
+      LogEntry entry = new LogEntry(slot, proposalID, propose.getCommand());
+      acceptedEntries.put(slot, entry);
+      MessageAccepted accept = new MessageAccepted(serverId, proposalID, slot, propose.getCommand());
+      persist(LogRecord.accept(entry), () -> sendAccepted(proposalID, accept));
     } else {
-      ServerLogger.log("ProposalId: " + propose.getProposalID() + ": Acceptor" + this.serverId + " does not send ACCEPT to Learners");
+      ServerLogger.log("ProposalId: " + propose.getProposalID() + ": Acceptor" + this.serverId + " does not send ACCEPT for slot " + slot + " to Learners");
     }
   }
 
-	public void clearStates() {
-		this.highestPromised = new ConcurrentHashMap<>();
-    this.highestAccepted = new ConcurrentHashMap<>();
-    this.acceptedValues = new ConcurrentHashMap<>();
-    this.messageQueue = new LinkedBlockingQueue<>();
+  /**
+   * Sends an ACCEPTED message to the Proposer of a ballot only, or to every Learner.
+   */
+  private void sendAccepted(ProposalID ballot, MessageAccepted accept) {
+    if (ServerConfig.ACCEPTED_TO_PROPOSER) {
+      messenger.sendAsync(ballot.getServerId(), accept);
+    } else {
+      messenger.broadcastMessage(accept);
+    }
+  }
+
+  /**
+   * Hands the Learner what this Acceptor accepted for slots a Proposer reported decided under a ballot. An entry
+   * accepted under that very ballot holds the chosen command; any other slot is left to catching up.
+   */
+  private void learnCommitted(ProposalID ballot, long[] slots) {
+    for (long slot : slots) {
+      LogEntry entry = acceptedEntries.get(slot);
+      if (entry != null && entry.getBallot().equals(ballot)) {
+        commitListener.accept(entry);
+      }
+    }
+  }
+
+  /**
+   * @return the highest ballot promised for a slot, either to a leader for all slots or for this slot alone
+   */
+  private ProposalID promisedFor(long slot) {
+    ProposalID slotPromise = slotPromised.get(slot);
+    ProposalID leaderPromise = leaderPromised;
+    if (slotPromise == null) {
+      return leaderPromise;
+    }
+    if (leaderPromise == null) {
+      return slotPromise;
+    }
+    return slotPromise.compareTo(leaderPromise) >= 0 ? slotPromise : leaderPromise;
+  }
+
+  /**
+   * Writes a record to the write-ahead log and sends the reply once it is durable. The state in memory is
+   * already updated, later records are made durable after this one, so replies never get ahead of the log.
+   */
+  private void persist(LogRecord record, Runnable reply) {
+    if (wal == null) {
+      reply.run();
+      return;
+    }
+    CompletableFuture<Void> durable;
+    synchronized (walLock) {
+      durable = wal.append(record);
+    }
+    durable.whenComplete((result, ex) -> {
+      if (ex != null) {
+        ServerLogger.error("Acceptor" + serverId + " could not persist " + record.getType() + " for slot " + record.getSlot() + ", not replying: " + ex.getMessage());
+      } else {
+        reply.run();
+      }
+    });
+  }
+
+  /**
+   * Rewrites the write-ahead log with only the leader promise and the promises and accepted values of the slots not
+   * applied here yet, so it stays about as large as the state in memory and a restart replays only that. Called once
+   * a snapshot covers the applied slots.
+   */
+  public void compactLog() {
+    if (wal == null) {
+      return;
+    }
+    List<LogRecord> live = new ArrayList<>();
+    CompletableFuture<Void> rewritten;
+    long compactedUpTo;
+    synchronized (walLock) {
+      // the leader promise first, restoring an accepted value compares its ballot with it
+      if (leaderPromised != null) {
+        live.add(LogRecord.leaderPromise(leaderPromised));
+      }
+      slotPromised.forEach((slot, ballot) -> live.add(LogRecord.promise(slot, ballot)));
+      for (LogEntry entry : acceptedEntries.values()) {
+        live.add(LogRecord.accept(entry));
+      }
+      compactedUpTo = prunedUpTo;
+      // the learned log is not forced on every append, the slots dropped here must be durable in it first
+      learnedLogSync.run();
+      rewritten = wal.rewrite(live);
+    }
+    rewritten.whenComplete((result, ex) -> {
+      if (ex != null) {
+        ServerLogger.error("Acceptor" + serverId + " could not compact the write-ahead log: " + ex.getMessage());
+      } else {
+        ServerLogger.log("Acceptor" + serverId + " compacted the write-ahead log to " + live.size() + " records above slot " + compactedUpTo);
+      }
+    });
+  }
+
+  /**
+   * Drops the state in memory, as a crash would, and rebuilds it from the write-ahead log.
+   */
+  public void restoreStates() {
+    synchronized (walLock) {
+      this.slotPromised = new ConcurrentSkipListMap<>();
+      this.acceptedEntries = new ConcurrentSkipListMap<>();
+      this.leaderPromised = null;
+      this.messageQueue = new LinkedBlockingQueue<>();
+      if (wal != null) {
+        try {
+          wal.replay(record -> restore((LogRecord) record));
+        } catch (IOException e) {
+          ServerLogger.error("Acceptor" + serverId + " failed to replay the write-ahead log: " + e.getMessage());
+        }
+        ServerLogger.log("Acceptor" + serverId + " restored " + slotPromised.size() + " slot promises, " + acceptedEntries.size()
+            + " accepted entries and leader promise " + leaderPromised);
+      }
+    }
     this.running = true;
-	}
+  }
+
+  private void restore(LogRecord record) {
+    ProposalID ballot = record.getBallot();
+    // ballots generated here after a restart must be higher than anything promised before
+    ProposalID.witness(ballot);
+    if (!LogRecord.LEADER_PROMISE.equals(record.getType()) && record.getSlot() <= prunedUpTo) {
+      return;
+    }
+    switch (record.getType()) {
+      case LogRecord.PROMISE:
+        slotPromised.merge(record.getSlot(), ballot, (current, candidate) -> candidate.compareTo(current) > 0 ? candidate : current);
+        break;
+      case LogRecord.LEADER_PROMISE:
+        if (leaderPromised == null || ballot.compareTo(leaderPromised) > 0) {
+          leaderPromised = ballot;
+        }
+        break;
+      case LogRecord.ACCEPT:
+        acceptedEntries.put(record.getSlot(), new LogEntry(record.getSlot(), ballot, record.getCommand()));
+        if (!ballot.equals(leaderPromised)) {
+          slotPromised.merge(record.getSlot(), ballot, (current, candidate) -> candidate.compareTo(current) > 0 ? candidate : current);
+        }
+        break;
+      default:
+        break;
+    }
+  }
 }
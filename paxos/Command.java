@@ -0,0 +1,138 @@
+package paxos;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A state machine command carried in one slot of the replicated log, e.g. a PUT or DELETE on the key-value store.
+ * The request id identifies the client request the command was created for, independent of the slot it ends up in.
+ */
+public class Command implements Serializable {
+  private static final long serialVersionUID = 1L;
+  public static final String NOOP = "NOOP";
+  public static final String BATCH = "BATCH";
+  // changes the members of the Paxos group, the value lists the new members, see Membership
+  public static final String CONFIG = "CONFIG";
+  private final String requestId;
+  private final String operation;
+  private final String key;
+  private final String value;
+  private List<Command> commands;
+  // the session of a client write applied at most once, see SessionTable; null clientId for other commands
+  private String clientId;
+  private long seq;
+  private long timestamp;
+
+  public Command(String requestId, String operation, String key, String value) {
+    this.requestId = requestId;
+    this.operation = operation;
+    this.key = key;
+    this.value = value;
+  }
+
+  /**
+   * A write of a client session, applied only if seq is above the last one applied for the client.
+   * @param timestamp the leader's clock when it created the command, which the log uses to expire idle sessions
+   */
+  public static Command session(String requestId, String operation, String key, String value, String clientId, long seq, long timestamp) {
+    Command command = new Command(requestId, operation, key, value);
+    command.clientId = clientId;
+    command.seq = seq;
+    command.timestamp = timestamp;
+    return command;
+  }
+
+  /**
+   * A command that changes nothing, used by a new leader to fill log slots no value was accepted for.
+   */
+  public static Command noop() {
+    return new Command(null, NOOP, null, null);
+  }
+
+  /**
+   * Wraps several client commands into one log entry, so they are decided and applied together.
+   * @param commands the commands in the order they are applied
+   */
+  public static Command batch(List<Command> commands) {
+    return batch("batch-" + UUID.randomUUID(), commands);
+  }
+
+  /**
+   * Rebuilds a batch read back from storage.
+   */
+  public static Command batch(String requestId, List<Command> commands) {
+    Command batch = new Command(requestId, BATCH, null, null);
+    batch.commands = Collections.unmodifiableList(commands);
+    return batch;
+  }
+
+  /**
+   * A command that replaces the members of the Paxos group with the given servers, from delay slots after the one it
+   * is decided in on.
+   */
+  public static Command config(String requestId, long delay, int[] members) {
+    return new Command(requestId, CONFIG, null, Membership.formatChange(delay, members));
+  }
+
+  public boolean isBatch() {
+    return BATCH.equals(operation);
+  }
+
+  /**
+   * @return the commands of a batch, or just this command if it is not a batch
+   */
+  public List<Command> getCommands() {
+    return isBatch() ? commands : Collections.singletonList(this);
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  /**
+   * @return the client of a session write, null if the command is not part of a session
+   */
+  public String getClientId() {
+    return clientId;
+  }
+
+  public long getSeq() {
+    return seq;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return whether both commands were created for the same client request
+   */
+  public boolean isSameRequest(Command other) {
+    return other != null && requestId != null && requestId.equals(other.requestId);
+  }
+
+  @Override
+  public String toString() {
+    return "Command{" +
+            "requestId='" + requestId + '\'' +
+            ", operation='" + operation + '\'' +
+            ", key='" + key + '\'' +
+            (clientId != null ? ", clientId='" + clientId + '\'' + ", seq=" + seq : "") +
+            (isBatch() ? ", size=" + commands.size() : "") +
+            '}';
+  }
+}
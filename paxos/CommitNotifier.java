@@ -0,0 +1,85 @@
+package paxos;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import common.ServerConfig;
+
+/**
+ * Tells the other servers which slots this server saw decided, when Acceptors send their ACCEPTED messages only to
+ * the Proposer. The slots a quorum accepted under one ballot are collected and handed to the next PROPOSE of that
+ * ballot; if none is sent within ServerConfig.COMMIT_NOTICE_MILLIS, they go out on their own in a MessageCommit.
+ */
+public class CommitNotifier {
+  private static final long[] NO_SLOTS = new long[0];
+  private final int serverId;
+  private final Messenger messenger;
+  private final ScheduledExecutorService scheduler;
+  // the ballot the collected slots were decided under
+  private ProposalID ballot;
+  private long[] slots = new long[16];
+  private int count;
+  private ScheduledFuture<?> timer;
+
+  public CommitNotifier(int serverId, Messenger messenger, ScheduledExecutorService scheduler) {
+    this.serverId = serverId;
+    this.messenger = messenger;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Records a slot a quorum of Acceptors accepted under a ballot, as counted by the local Learner.
+   */
+  public synchronized void onQuorum(long slot, ProposalID ballot) {
+    if (!ballot.equals(this.ballot)) {
+      flush();
+      this.ballot = ballot;
+    }
+    if (count == slots.length) {
+      slots = Arrays.copyOf(slots, count * 2);
+    }
+    slots[count++] = slot;
+    if (timer == null) {
+      timer = scheduler.schedule(this::flush, ServerConfig.COMMIT_NOTICE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Takes the slots collected for a ballot, to be sent along with a PROPOSE of the same ballot.
+   * @return the slots in ascending order, empty if there are none for this ballot
+   */
+  public synchronized long[] drain(ProposalID ballot) {
+    if (count == 0 || !ballot.equals(this.ballot)) {
+      return NO_SLOTS;
+    }
+    return take();
+  }
+
+  /**
+   * Sends the collected slots to every other server in a MessageCommit.
+   */
+  public synchronized void flush() {
+    if (count == 0) {
+      return;
+    }
+    MessageCommit commit = new MessageCommit(ballot, take());
+    for (int peerId : messenger.getPeers()) {
+      if (peerId != serverId) {
+        messenger.sendAsync(peerId, commit);
+      }
+    }
+  }
+
+  private long[] take() {
+    long[] taken = Arrays.copyOf(slots, count);
+    Arrays.sort(taken);
+    count = 0;
+    if (timer != null) {
+      timer.cancel(false);
+      timer = null;
+    }
+    return taken;
+  }
+}
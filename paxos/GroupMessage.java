@@ -0,0 +1,49 @@
+package paxos;
+
+import java.io.Serializable;
+
+/**
+ * Carries a message of one Paxos group other than group 0 between servers that run several groups, one per shard,
+ * over the same connections. Messages of group 0 travel without it, so a single group looks as before on the wire.
+ */
+public class GroupMessage implements PaxosMessage, Serializable {
+  private static final long serialVersionUID = 1L;
+  private int groupId;
+  private PaxosMessage message;
+
+  public GroupMessage(int groupId, PaxosMessage message) {
+    this.groupId = groupId;
+    this.message = message;
+  }
+
+  public int getGroupId() {
+    return this.groupId;
+  }
+
+  /**
+   * @return the message for the group
+   */
+  public PaxosMessage getMessage() {
+    return this.message;
+  }
+
+  @Override
+  public ProposalID getProposalID() {
+    return message.getProposalID();
+  }
+
+  @Override
+  public String getKey() {
+    return message.getKey();
+  }
+
+  @Override
+  public int getServerId() {
+    return message.getServerId();
+  }
+
+  @Override
+  public long getSlot() {
+    return message.getSlot();
+  }
+}
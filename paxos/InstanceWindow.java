@@ -0,0 +1,120 @@
+package paxos;
+
+/**
+ * A fixed-size ring holding the state of the log instances a Proposer has in flight, indexed by slot modulo its size.
+ * Slots are only handed out while they lie within size slots of the first slot not applied yet, so two instances in
+ * flight never share a cell, and proposers wait for the window to move on once it is full.
+ */
+class InstanceWindow<T> {
+  private final Object[] values;
+  private final long[] slots;
+  private final int size;
+  // the first slot not applied yet and the highest slot handed out so far
+  private long base = 1;
+  private long lastAssigned = 0;
+
+  InstanceWindow(int size) {
+    this.size = size;
+    this.values = new Object[size];
+    this.slots = new long[size];
+  }
+
+  /**
+   * Hands out the next slot, waiting until it fits into the window.
+   * @param minSlot the lowest slot acceptable, e.g. the first slot not known to be decided
+   * @param timeoutMillis how long to wait for the window to move on
+   * @return the slot, or -1 if the window stayed full
+   * @throws InterruptedException if interrupted while waiting
+   */
+  synchronized long acquire(long minSlot, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (true) {
+      long slot = Math.max(lastAssigned, minSlot - 1) + 1;
+      if (hasCapacity(slot)) {
+        lastAssigned = slot;
+        return slot;
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return -1;
+      }
+      wait(remaining);
+    }
+  }
+
+  /**
+   * @return the next slot if it fits into the window right now, -1 otherwise
+   */
+  synchronized long tryAcquire(long minSlot) {
+    long slot = Math.max(lastAssigned, minSlot - 1) + 1;
+    if (!hasCapacity(slot)) {
+      return -1;
+    }
+    lastAssigned = slot;
+    return slot;
+  }
+
+  /**
+   * Makes the next slot handed out follow the given slot, e.g. after a new leader recovered the log up to it.
+   */
+  synchronized void resetLastAssigned(long slot) {
+    lastAssigned = slot;
+  }
+
+  /**
+   * @return the highest slot handed out so far
+   */
+  synchronized long getLastAssigned() {
+    return lastAssigned;
+  }
+
+  synchronized boolean hasCapacity(long slot) {
+    return slot >= base && slot < base + size;
+  }
+
+  synchronized void put(long slot, T value) {
+    int index = index(slot);
+    slots[index] = slot;
+    values[index] = value;
+  }
+
+  @SuppressWarnings("unchecked")
+  synchronized T get(long slot) {
+    int index = index(slot);
+    return slots[index] == slot ? (T) values[index] : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  synchronized T remove(long slot) {
+    int index = index(slot);
+    if (slots[index] != slot) {
+      return null;
+    }
+    T value = (T) values[index];
+    slots[index] = 0;
+    values[index] = null;
+    return value;
+  }
+
+  /**
+   * Moves the window past every applied slot and wakes up proposers waiting for room.
+   * @param appliedIndex the last slot applied to the key-value store
+   */
+  synchronized void advance(long appliedIndex) {
+    if (appliedIndex + 1 > base) {
+      base = appliedIndex + 1;
+      notifyAll();
+    }
+  }
+
+  /**
+   * @return the number of slots handed out but not applied yet
+   */
+  synchronized long inFlight() {
+    return Math.max(0, lastAssigned - base + 1);
+  }
+
+  private int index(long slot) {
+    return (int) (slot % size);
+  }
+}
@@ -0,0 +1,350 @@
+package paxos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.ReplicaStatus;
+import common.ServerConfig;
+import common.ShardMap;
+import server.ServerLogger;
+
+/**
+ * Keeps track of the Multi-Paxos leader. The leader sends heartbeats to every node, and a node that has not heard
+ * a heartbeat for the election timeout asks its Proposer to campaign with a new, higher ballot. Only members of the
+ * group campaign, and a leader removed from the group steps down.
+ * Leadership always goes to the highest ballot, using the regular ProposalID ordering.
+ * Followers acknowledge every heartbeat; a round acknowledged by a quorum confirms the leadership at the time the
+ * round was sent and gives the leader a read lease, since a node that acknowledged it does not promise leadership
+ * to anyone else for an election timeout.
+ * With several shards, the preferred leader of a shard (see ShardMap) waits only half as long before campaigning, so
+ * the shards' leaders end up spread over the servers instead of on whichever server happens to time out first.
+ */
+public class LeaderElector {
+  private final int serverId;
+  private final Proposer proposer;
+  private final Messenger messenger;
+  private final Learner learner;
+  private final Random random = new Random();
+  // shared with the other groups
+  private final ScheduledExecutorService scheduler;
+  private volatile ScheduledFuture<?> ticks;
+  private volatile ProposalID leaderBallot;
+  private volatile int leaderId = -1;
+  private volatile long lastHeartbeatMillis = System.currentTimeMillis();
+  private volatile long electionTimeoutMillis;
+  private final boolean preferredLeader;
+  // rounds sent but not yet known to be acknowledged by a quorum are forgotten beyond this many
+  private static final int MAX_PENDING_ROUNDS = 1000;
+  private final AtomicLong lastRound = new AtomicLong();
+  private final ConcurrentSkipListMap<Long, Long> roundSentNanos = new ConcurrentSkipListMap<>();
+  // the highest round each node acknowledged for the current ballot
+  private final Map<Integer, Long> ackedRounds = new ConcurrentHashMap<>();
+  private final Object roundMonitor = new Object();
+  private long confirmedRound;
+  // confirmations of the leadership by the round they wait for; guarded by roundMonitor
+  private final ConcurrentSkipListMap<Long, CompletableFuture<Boolean>> roundWaiters = new ConcurrentSkipListMap<>();
+  // callers waiting for a leader to be known
+  private final Queue<CompletableFuture<Integer>> leaderWaiters = new ConcurrentLinkedQueue<>();
+  private volatile ProposalID leaseBallot;
+  private volatile long leaseExpiryNanos;
+  // each follower's applied index from its latest acknowledgement, and when that arrived
+  private final Map<Integer, Long> replicaApplied = new ConcurrentHashMap<>();
+  private final Map<Integer, Long> replicaHeardMillis = new ConcurrentHashMap<>();
+  // the leader reports replicas lagging by more than the pipeline window every this many heartbeats
+  private static final int LAG_REPORT_ROUNDS = 10;
+
+  public LeaderElector(int serverId, Proposer proposer, Messenger messenger, Learner learner, ScheduledExecutorService scheduler) {
+    this.serverId = serverId;
+    this.scheduler = scheduler;
+    this.proposer = proposer;
+    this.messenger = messenger;
+    this.learner = learner;
+    this.preferredLeader = ServerConfig.SHARDS > 1 && ShardMap.preferredLeader(messenger.getGroupId()) == serverId;
+    this.electionTimeoutMillis = nextElectionTimeout();
+  }
+
+  public void start() {
+    ticks = scheduler.scheduleAtFixedRate(this::tick, ServerConfig.HEARTBEAT_INTERVAL_MILLIS,
+        ServerConfig.HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void tick() {
+    try {
+      ProposalID ballot = proposer.getLeaderBallot();
+      Membership membership = learner.getMembership();
+      if (ballot != null && !membership.isMemberAt(serverId, learner.getAppliedIndex() + 1)) {
+        proposer.resign();
+        failConfirmations();
+      } else if (ballot != null) {
+        if (sendHeartbeat(ballot) % LAG_REPORT_ROUNDS == 0) {
+          reportLaggingReplicas();
+        }
+      } else if (membership.isMember(serverId) && System.currentTimeMillis() - lastHeartbeatMillis > electionTimeoutMillis) {
+        ServerLogger.warn("Server" + serverId + " has not heard from leader" + leaderId + ", starting an election");
+        leaderId = -1;
+        lastHeartbeatMillis = System.currentTimeMillis();
+        electionTimeoutMillis = nextElectionTimeout();
+        proposer.campaign();
+      }
+    } catch (Exception e) {
+      ServerLogger.error("LeaderElector" + serverId + " failed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Records a heartbeat, following its sender if its ballot is at least as high as the known leader's.
+   * @param heartbeat the heartbeat from a leader
+   */
+  public void handleHeartbeat(MessageHeartbeat heartbeat) {
+    ProposalID ballot = heartbeat.getProposalID();
+    ProposalID.witness(ballot);
+    if (leaderBallot != null && ballot.compareTo(leaderBallot) < 0) {
+      return;
+    }
+    if (leaderId != ballot.getServerId()) {
+      ServerLogger.log("Server" + serverId + " follows leader" + ballot.getServerId() + " with ballot " + ballot);
+    }
+    leaderBallot = ballot;
+    leaderId = ballot.getServerId();
+    lastHeartbeatMillis = System.currentTimeMillis();
+    learner.observeCommitIndex(heartbeat.getCommitIndex());
+    if (proposer.isLeader() && ballot.compareTo(proposer.getLeaderBallot()) > 0) {
+      proposer.stepDown(ballot);
+      failConfirmations();
+    }
+    notifyLeaderKnown();
+    if (ballot.getServerId() != serverId) {
+      messenger.sendAsync(ballot.getServerId(), new MessageHeartbeatAck(serverId, ballot, heartbeat.getRound(), learner.getAppliedIndex()));
+    }
+  }
+
+  /**
+   * Records a follower's acknowledgement of a heartbeat round. Once a quorum acknowledged a round, the leadership
+   * is confirmed as of the time it was sent, and the lease runs until LEADER_LEASE_MILLIS after that.
+   * @param ack the acknowledgement from a follower
+   */
+  public void handleHeartbeatAck(MessageHeartbeatAck ack) {
+    replicaApplied.merge(ack.getServerId(), ack.getAppliedIndex(), Math::max);
+    replicaHeardMillis.put(ack.getServerId(), System.currentTimeMillis());
+    ProposalID ballot = proposer.getLeaderBallot();
+    if (ballot == null || !ballot.equals(ack.getProposalID())) {
+      return;
+    }
+    ackedRounds.merge(ack.getServerId(), ack.getRound(), Math::max);
+    // only the acknowledgements of the members governing the next slot confirm the leadership
+    long nextSlot = learner.getAppliedIndex() + 1;
+    int quorum = learner.getMembership().quorumAt(nextSlot);
+    List<Long> rounds = new ArrayList<>();
+    for (int member : learner.getMembership().membersAt(nextSlot)) {
+      Long round = ackedRounds.get(member);
+      if (round != null) {
+        rounds.add(round);
+      }
+    }
+    if (rounds.size() < quorum) {
+      return;
+    }
+    rounds.sort(null);
+    long quorumRound = rounds.get(rounds.size() - quorum);
+    List<CompletableFuture<Boolean>> confirmed = new ArrayList<>();
+    synchronized (roundMonitor) {
+      if (quorumRound <= confirmedRound) {
+        return;
+      }
+      confirmedRound = quorumRound;
+      Long sentNanos = roundSentNanos.get(quorumRound);
+      if (sentNanos != null) {
+        leaseExpiryNanos = sentNanos + TimeUnit.MILLISECONDS.toNanos(ServerConfig.LEADER_LEASE_MILLIS);
+        leaseBallot = ballot;
+      }
+      roundSentNanos.headMap(quorumRound, true).clear();
+      Map<Long, CompletableFuture<Boolean>> reached = roundWaiters.headMap(quorumRound, true);
+      confirmed.addAll(reached.values());
+      reached.clear();
+    }
+    confirmed.forEach(waiter -> waiter.complete(true));
+  }
+
+  private long sendHeartbeat(ProposalID ballot) {
+    long round = lastRound.incrementAndGet();
+    roundSentNanos.put(round, System.nanoTime());
+    roundSentNanos.headMap(round - MAX_PENDING_ROUNDS).clear();
+    // the leader acknowledges its own heartbeat
+    ackedRounds.merge(serverId, round, Math::max);
+    messenger.broadcastMessage(new MessageHeartbeat(ballot, round, learner.getAppliedIndex()));
+    return round;
+  }
+
+  /**
+   * @return whether this node leads and a quorum acknowledged one of its heartbeats within the lease period
+   */
+  public boolean hasLease() {
+    ProposalID ballot = proposer.getLeaderBallot();
+    return ballot != null && ballot.equals(leaseBallot) && leaseExpiryNanos - System.nanoTime() > 0;
+  }
+
+  /**
+   * Confirms that this node still leads: the future completes once a quorum acknowledged a heartbeat sent after the
+   * call started. Concurrent callers share a round.
+   * @param timeoutMillis the maximum time to wait
+   * @return a future completed with true if a quorum acknowledged the round without a new leader taking over, with
+   *         false otherwise
+   */
+  public CompletableFuture<Boolean> confirmLeadership(long timeoutMillis) {
+    long startNanos = System.nanoTime();
+    ProposalID ballot = proposer.getLeaderBallot();
+    if (ballot == null) {
+      return CompletableFuture.completedFuture(false);
+    }
+    Map.Entry<Long, Long> latest = roundSentNanos.lastEntry();
+    long round = latest != null && latest.getValue() - startNanos >= 0 ? latest.getKey() : sendHeartbeat(ballot);
+    CompletableFuture<Boolean> waiter;
+    synchronized (roundMonitor) {
+      if (!ballot.equals(proposer.getLeaderBallot())) {
+        return CompletableFuture.completedFuture(false);
+      }
+      if (confirmedRound >= round) {
+        return CompletableFuture.completedFuture(true);
+      }
+      waiter = roundWaiters.computeIfAbsent(round, r -> new CompletableFuture<>());
+    }
+    // every caller gets its own copy, so one caller's timeout does not end the wait of the others
+    return waiter.copy().completeOnTimeout(false, timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Fails the confirmations waiting for a round, once this node no longer leads with the ballot they were sent with.
+   */
+  private void failConfirmations() {
+    List<CompletableFuture<Boolean>> failed;
+    synchronized (roundMonitor) {
+      failed = new ArrayList<>(roundWaiters.values());
+      roundWaiters.clear();
+    }
+    failed.forEach(waiter -> waiter.complete(false));
+  }
+
+  /**
+   * Tells whether a leadership promise to a candidate could break the lease of the leader this node follows,
+   * i.e. whether that leader has been heard from within the election timeout.
+   * @param candidateId the server campaigning for leadership
+   * @return true if the promise must be refused for now
+   */
+  public boolean isLeaseProtected(int candidateId) {
+    int leader = getLeaderId();
+    return leader != -1 && leader != candidateId
+        && System.currentTimeMillis() - lastHeartbeatMillis < ServerConfig.ELECTION_TIMEOUT_MILLIS;
+  }
+
+  /**
+   * Called once the local Proposer collected a quorum of leadership promises.
+   * @param ballot the ballot this node now leads with
+   */
+  public void onElected(ProposalID ballot) {
+    leaderBallot = ballot;
+    leaderId = serverId;
+    ackedRounds.clear();
+    failConfirmations();
+    synchronized (roundMonitor) {
+      // acknowledgements of earlier terms say nothing about this one
+      confirmedRound = lastRound.get();
+      roundSentNanos.clear();
+      leaseBallot = null;
+    }
+    notifyLeaderKnown();
+    sendHeartbeat(ballot);
+  }
+
+  /**
+   * @return how far every replica has applied the log, as of its latest acknowledgement to this node; only complete
+   *         on the leader
+   */
+  public List<ReplicaStatus> getReplicaStatus() {
+    long now = System.currentTimeMillis();
+    long leaderApplied = learner.getAppliedIndex();
+    List<ReplicaStatus> status = new ArrayList<>();
+    for (int id : learner.getMembership().targets()) {
+      if (id == serverId) {
+        status.add(new ReplicaStatus(id, leaderApplied, 0, 0));
+        continue;
+      }
+      Long applied = replicaApplied.get(id);
+      Long heard = replicaHeardMillis.get(id);
+      status.add(applied == null
+          ? new ReplicaStatus(id, -1, -1, -1)
+          : new ReplicaStatus(id, applied, Math.max(0, leaderApplied - applied), now - heard));
+    }
+    return status;
+  }
+
+  private void reportLaggingReplicas() {
+    for (ReplicaStatus replica : getReplicaStatus()) {
+      if (replica.getLagEntries() > ServerConfig.PIPELINE_WINDOW || replica.getMillisSinceHeard() > ServerConfig.ELECTION_TIMEOUT_MILLIS) {
+        ServerLogger.warn("Leader" + serverId + " sees a lagging replica: " + replica);
+      }
+    }
+  }
+
+  /**
+   * @return the id of the current leader, or -1 if none is known
+   */
+  public int getLeaderId() {
+    return proposer.isLeader() ? serverId : leaderId;
+  }
+
+  /**
+   * Waits until a leader is known.
+   * @param timeoutMillis the maximum time to wait
+   * @return the id of the leader, or -1 if none was elected in time
+   */
+  public int awaitLeader(long timeoutMillis) {
+    return awaitLeaderAsync(timeoutMillis).join();
+  }
+
+  /**
+   * @param timeoutMillis the maximum time to wait
+   * @return a future completed with the id of the leader once one is known, or with -1 if none was elected in time
+   */
+  public CompletableFuture<Integer> awaitLeaderAsync(long timeoutMillis) {
+    int leader = getLeaderId();
+    if (leader != -1) {
+      return CompletableFuture.completedFuture(leader);
+    }
+    CompletableFuture<Integer> waiter = new CompletableFuture<>();
+    leaderWaiters.add(waiter);
+    waiter.whenComplete((id, e) -> leaderWaiters.remove(waiter));
+    // a leader that became known while the waiter was added
+    notifyLeaderKnown();
+    return waiter.completeOnTimeout(-1, timeoutMillis, TimeUnit.MILLISECONDS).thenApply(id -> id != -1 ? id : getLeaderId());
+  }
+
+  private void notifyLeaderKnown() {
+    int leader = getLeaderId();
+    CompletableFuture<Integer> waiter;
+    while (leader != -1 && (waiter = leaderWaiters.poll()) != null) {
+      waiter.complete(leader);
+    }
+  }
+
+  private long nextElectionTimeout() {
+    long timeout = ServerConfig.ELECTION_TIMEOUT_MILLIS + random.nextInt((int) ServerConfig.ELECTION_TIMEOUT_MILLIS);
+    return preferredLeader ? timeout / 2 : timeout;
+  }
+
+  public void shutdown() {
+    if (ticks != null) {
+      ticks.cancel(false);
+    }
+  }
+}
@@ -1,88 +1,545 @@
 package paxos;
 
 
-import java.util.Collections;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
-import common.ServerConfig;
 import server.KeyValueStore;
 import server.ServerLogger;
+import server.StoreSnapshot;
+import storage.SegmentedLog;
 
 /**
- * Represents the Learner role in Paxos, responsible for learning the value chosen 
- * by the Paxos protocol once consensus is reached and applying it to the key-value store.
+ * Represents the Learner role in Paxos, responsible for learning the command chosen for each log slot
+ * once consensus is reached and applying the log to the key-value store strictly in slot order.
  * Or ignore the message without consensus.
+ * Applied entries are appended to the learned log, which rebuilds the store after a restart and
+ * answers for slots that are applied here.
  */
 public class Learner {
   private int serverId;
   private KeyValueStore store;
-  private Map<ProposalID, Integer> acceptedCounts = new ConcurrentHashMap<>();
-  private Set<ProposalID> finalizedProposals = Collections.newSetFromMap(new ConcurrentHashMap<ProposalID, Boolean>());
-  private ConcurrentHashMap<ProposalID, CompletableFuture<Boolean>> completionFutures = new ConcurrentHashMap<>();
-  private static final int QUORUM_SIZE = ServerConfig.ALL_SERVERS.length / 2 + 1;
+  // null keeps nothing of the applied log
+  private final SegmentedLog learnedLog;
+  // per undecided slot: the acceptors that accepted each ballot
+  private Map<Long, Map<ProposalID, Set<Integer>>> acceptedVotes = new ConcurrentHashMap<>();
+  // decided commands waiting for all earlier slots to be applied
+  private ConcurrentSkipListMap<Long, LogEntry> decidedCommands = new ConcurrentSkipListMap<>();
+  private ConcurrentHashMap<String, CompletableFuture<Boolean>> completionFutures = new ConcurrentHashMap<>();
+  // the members whose votes count, changed by the CONFIG entries applied here
+  private final Membership membership;
+  // the last write of every client session, which keeps retried writes from being applied twice
+  private final SessionTable sessions;
+  private volatile long appliedIndex = 0;
+  private volatile long highestDecidedSlot = 0;
+  private volatile BiConsumer<Long, Command> decisionListener;
+  private volatile BiConsumer<Long, ProposalID> quorumListener;
+  private volatile LongConsumer appliedListener;
+  // callers of awaitApplied by the slot they wait for
+  private final ConcurrentSkipListMap<Long, CompletableFuture<Boolean>> appliedWaiters = new ConcurrentSkipListMap<>();
+  // when the last command was applied, and the newest time this replica is known to have been up to date
+  private volatile long appliedAtMillis = System.currentTimeMillis();
+  private volatile long freshAsOfMillis = 0;
+  // the leader's applied index from the latest heartbeat, and the commit indexes heard of but not applied yet
+  // with the time they were heard of
+  private volatile long knownCommitIndex = 0;
+  private final ConcurrentSkipListMap<Long, Long> pendingCommitIndexes = new ConcurrentSkipListMap<>();
+  private static final int MAX_PENDING_COMMIT_INDEXES = 1000;
+  private volatile PaxosMetrics metrics = PaxosMetrics.UNEXPORTED;
+  // when the recently decided slots were decided, by slot modulo the size, to measure how long they wait to be applied
+  private static final int DECIDED_TIMES = 1024;
+  private final long[] decidedSlots = new long[DECIDED_TIMES];
+  private final long[] decidedNanos = new long[DECIDED_TIMES];
 
 
-  public Learner(int serverId, KeyValueStore store) {
+  public Learner(int serverId, KeyValueStore store, SegmentedLog learnedLog, Membership membership, SessionTable sessions) {
     this.serverId = serverId;
     this.store = store;
+    this.learnedLog = learnedLog;
+    this.membership = membership;
+    this.sessions = sessions;
+  }
+
+  public void setMetrics(PaxosMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public Membership getMembership() {
+    return membership;
+  }
+
+  public SessionTable getSessions() {
+    return sessions;
+  }
+
+  /**
+   * Rebuilds the key-value store by applying every command learned before a restart on top of a snapshot.
+   * @param snapshotIndex the slot of the snapshot already loaded into the store, 0 if there is none
+   */
+  public void recover(long snapshotIndex) {
+    long applied;
+    synchronized (this) {
+      appliedIndex = snapshotIndex;
+      membership.restore(store.get(Membership.STORE_KEY));
+      sessions.restore();
+      if (learnedLog != null && learnedLog.getFirstSlot() > appliedIndex + 1) {
+        ServerLogger.error("Learner" + this.serverId + " can not replay the learned log, it starts at slot " + learnedLog.getFirstSlot()
+            + " after the snapshot at slot " + snapshotIndex);
+      } else if (learnedLog != null && learnedLog.getLastSlot() < appliedIndex) {
+        // a snapshot installed from another server is newer than anything in the log
+        resetLearnedLog(appliedIndex + 1);
+      } else if (learnedLog != null) {
+        for (long slot = appliedIndex + 1; slot <= learnedLog.getLastSlot(); slot++) {
+          commit(slot, LogEntryCodec.decode(slot, learnedLog.read(slot)).getCommand());
+          appliedIndex = slot;
+        }
+      }
+      highestDecidedSlot = Math.max(highestDecidedSlot, appliedIndex);
+      applied = appliedIndex;
+    }
+    onApplied(applied);
+    ServerLogger.log("Learner" + this.serverId + " recovered the log up to slot " + applied + ", highest decided slot " + highestDecidedSlot);
   }
 
   /**
    * The method to handle accepted message from all acceptors and
-   * once consensus is reached and applying it to the key-value store.
+   * once consensus is reached for a slot, applying the log to the key-value store.
    * @param accepted
    */
   public void handleAccepted(MessageAccepted accepted) {
-    ServerLogger.log(accepted.getProposalID() + ": Learner" + this.serverId + " received ACCEPT message from server: " + accepted.getServerId());
-    if (finalizedProposals.contains(accepted.getProposalID())) {
+    long slot = accepted.getSlot();
+    ServerLogger.log(accepted.getProposalID() + ": Learner" + this.serverId + " received ACCEPT message for slot " + slot + " from server: " + accepted.getServerId());
+    if (slot <= appliedIndex || decidedCommands.containsKey(slot)) {
       return;
     }
+    // the configuration governing a slot this far ahead may not be applied here yet; catching up learns the slot
+    if (slot > appliedIndex + membership.getDelay() || !membership.isMemberAt(accepted.getServerId(), slot)) {
+      return;
+    }
+    int quorum = membership.quorumAt(slot);
+    boolean[] reachedQuorum = {false};
     // Atomic update and check within compute method to prevent concurrent issues
-    acceptedCounts.compute(accepted.getProposalID(), (proposalID, count) -> {
-        // Initialize the count if it is null
-      if (count == null) {
-        count = 0;
+    acceptedVotes.compute(slot, (s, votes) -> {
+      if (votes == null) {
+        votes = new ConcurrentHashMap<>();
       }
-      count++;
-
-      // Check if the count reaches the quorum and the proposal has not been finalized yet
-      if (count >= QUORUM_SIZE && !finalizedProposals.contains(proposalID)) {
-        ServerLogger.log(proposalID + ": Learner" + this.serverId + " has reached the majority of accept messages");
-        
-        commit(proposalID, accepted.getOperation(), accepted.getKey(), accepted.getAcceptedValue());
-        
-        // Add to finalized proposals to prevent reprocessing
-        finalizedProposals.add(proposalID);
-        
-        // Completing the future only if this server initiated the operation
-        if (proposalID.getServerId() == this.serverId) {
-          CompletableFuture<Boolean> future = completionFutures.get(proposalID);
-          if (future != null) {
-            future.complete(true); // Notify that the operation is successfully committed
-          }
-        }
+      Set<Integer> voters = votes.computeIfAbsent(accepted.getProposalID(), id -> ConcurrentHashMap.newKeySet());
+      voters.add(accepted.getServerId());
+      if (voters.size() >= quorum) {
+        reachedQuorum[0] = true;
+        return null; // the slot is decided, its votes are no longer needed
       }
-      return count; // Return the new count to update the map
+      return votes;
     });
+    if (reachedQuorum[0]) {
+      ServerLogger.log(accepted.getProposalID() + ": Learner" + this.serverId + " has reached the majority of accept messages for slot " + slot);
+      BiConsumer<Long, ProposalID> onQuorum = quorumListener;
+      if (onQuorum != null) {
+        onQuorum.accept(slot, accepted.getProposalID());
+      }
+      decide(slot, new LogEntry(slot, accepted.getProposalID(), accepted.getCommand()));
+    }
+  }
+
+  /**
+   * Learns an entry another server already applied, e.g. while catching up.
+   */
+  public void learn(LogEntry entry) {
+    if (entry.getSlot() > appliedIndex) {
+      decide(entry.getSlot(), entry);
+    }
   }
 
-  private void commit(ProposalID proposalID, String operation, String key, String value) {
-    switch (operation) {
+  private void decide(long slot, LogEntry entry) {
+    if (decidedCommands.putIfAbsent(slot, entry) != null) {
+      return;
+    }
+    Command command = entry.getCommand();
+    synchronized (this) {
+      highestDecidedSlot = Math.max(highestDecidedSlot, slot);
+      decidedSlots[(int) slot & (DECIDED_TIMES - 1)] = slot;
+      decidedNanos[(int) slot & (DECIDED_TIMES - 1)] = System.nanoTime();
+    }
+    BiConsumer<Long, Command> listener = decisionListener;
+    if (listener != null) {
+      listener.accept(slot, command);
+    }
+    long applied = applyDecided();
+    onApplied(applied);
+  }
+
+  /**
+   * Applies decided commands as long as the next slot of the log is decided, leaving gaps unapplied.
+   * @return the last applied slot
+   */
+  private synchronized long applyDecided() {
+    LogEntry next;
+    while ((next = decidedCommands.get(appliedIndex + 1)) != null) {
+      long slot = appliedIndex + 1;
+      commit(slot, next.getCommand());
+      appendLearned(next);
+      decidedCommands.remove(slot);
+      acceptedVotes.remove(slot);
+      appliedIndex = slot;
+      appliedAtMillis = System.currentTimeMillis();
+      if (decidedSlots[(int) slot & (DECIDED_TIMES - 1)] == slot) {
+        metrics.getApplyLatency().record(System.nanoTime() - decidedNanos[(int) slot & (DECIDED_TIMES - 1)]);
+      }
+      // Completing the futures only of requests this server received, each caller of a batch on its own
+      completeRequests(next.getCommand(), true);
+    }
+    // a slot decided again while it was being applied
+    decidedCommands.headMap(appliedIndex, true).clear();
+    membership.forgetBefore(appliedIndex + 1);
+    // commit indexes heard of up to here are reached, so the replica was up to date as of the latest of them
+    Map<Long, Long> reached = pendingCommitIndexes.headMap(appliedIndex, true);
+    for (long heardAt : reached.values()) {
+      freshAsOfMillis = Math.max(freshAsOfMillis, heardAt);
+    }
+    reached.clear();
+    notifyAll();
+    return appliedIndex;
+  }
+
+  private void appendLearned(LogEntry entry) {
+    if (learnedLog == null) {
+      return;
+    }
+    try {
+      // not forced to disk here, the acceptors already hold the value durably
+      learnedLog.append(entry.getSlot(), LogEntryCodec.size(entry), buffer -> LogEntryCodec.encode(entry, buffer));
+    } catch (IOException e) {
+      ServerLogger.error("Learner" + this.serverId + " failed to append slot " + entry.getSlot() + " to the learned log: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return the entry applied for a slot, read back from the learned log, or null if it is not applied or not kept
+   */
+  public LogEntry getLearnedEntry(long slot) {
+    if (learnedLog == null || slot > appliedIndex) {
+      return null;
+    }
+    ByteBuffer entry = learnedLog.read(slot);
+    return entry != null ? LogEntryCodec.decode(slot, entry) : null;
+  }
+
+  /**
+   * Reads applied entries back from the learned log for a server that is catching up.
+   * @param fromSlot the first slot wanted
+   * @param maxEntries the most entries returned
+   * @return the entries from fromSlot on, empty if fromSlot is not applied yet, or null if the log no longer holds
+   *         fromSlot and a snapshot has to be installed instead
+   */
+  public List<LogEntry> readLearned(long fromSlot, int maxEntries) {
+    List<LogEntry> entries = new ArrayList<>();
+    long last = Math.min(appliedIndex, fromSlot + maxEntries - 1);
+    for (long slot = fromSlot; slot <= last; slot++) {
+      ByteBuffer entry = learnedLog != null ? learnedLog.read(slot) : null;
+      if (entry == null) {
+        return entries.isEmpty() ? null : entries;
+      }
+      entries.add(LogEntryCodec.decode(slot, entry));
+    }
+    return entries;
+  }
+
+  /**
+   * Forces the learned log to disk, so the slots applied so far no longer depend on the write-ahead log.
+   */
+  public void syncLearnedLog() {
+    if (learnedLog != null) {
+      learnedLog.sync();
+    }
+  }
+
+  /**
+   * Deletes learned log entries before a slot that a snapshot covers.
+   */
+  public void truncateLearnedLog(long slot) {
+    if (learnedLog == null) {
+      return;
+    }
+    try {
+      learnedLog.truncateBefore(Math.min(slot, appliedIndex + 1));
+    } catch (IOException e) {
+      ServerLogger.error("Learner" + this.serverId + " failed to truncate the learned log: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Opens a snapshot of the store at the applied index. Nothing is applied while the snapshot is opened, so it holds
+   * exactly the slots up to its index.
+   */
+  public synchronized StoreSnapshot beginSnapshot() {
+    return store.beginSnapshot(appliedIndex);
+  }
+
+  /**
+   * Replaces the store with a snapshot taken at a later slot on another server and carries on from there.
+   * @param index the slot the snapshot was taken at
+   * @param loader loads the snapshot into the cleared store
+   */
+  public void installSnapshot(long index, Consumer<KeyValueStore> loader) {
+    long applied;
+    synchronized (this) {
+      if (index <= appliedIndex) {
+        return;
+      }
+      store.clear();
+      loader.accept(store);
+      membership.restore(store.get(Membership.STORE_KEY));
+      sessions.restore();
+      appliedIndex = index;
+      appliedAtMillis = System.currentTimeMillis();
+      highestDecidedSlot = Math.max(highestDecidedSlot, index);
+      decidedCommands.headMap(index, true).clear();
+      acceptedVotes.keySet().removeIf(slot -> slot <= index);
+      resetLearnedLog(index + 1);
+      applied = applyDecided();
+    }
+    onApplied(applied);
+  }
+
+  private void resetLearnedLog(long slot) {
+    if (learnedLog == null) {
+      return;
+    }
+    try {
+      learnedLog.reset(slot);
+    } catch (IOException e) {
+      ServerLogger.error("Learner" + this.serverId + " failed to reset the learned log: " + e.getMessage());
+    }
+  }
+
+  private void completeRequests(Command command, boolean result) {
+    for (Command request : command.getCommands()) {
+      if (request.getRequestId() != null) {
+        CompletableFuture<Boolean> future = completionFutures.remove(request.getRequestId());
+        if (future != null) {
+          future.complete(result); // Notify whether the operation has been committed
+        }
+      }
+    }
+  }
+
+  private void commit(long slot, Command command) {
+    if (command.getClientId() != null && !sessions.isNew(command)) {
+      ServerLogger.warn("Slot " + slot + ": Learner" + this.serverId + " skips the retried " + command.getOperation()
+          + " seq " + command.getSeq() + " of client " + command.getClientId());
+      return;
+    }
+    boolean success = true;
+    switch (command.getOperation()) {
+      case Command.BATCH:
+        // one log entry, so every replica applies the whole batch or nothing of it
+        ServerLogger.log("Slot " + slot + ": Learner" + this.serverId + " is committing a batch of " + command.getCommands().size() + " commands");
+        for (Command batched : command.getCommands()) {
+          commit(slot, batched);
+        }
+        break;
       case "PUT":
-        ServerLogger.log(proposalID + ": Learner" + this.serverId + " is committing PUT to keyValueStore");
-        store.put(key, value);
+        ServerLogger.log("Slot " + slot + ": Learner" + this.serverId + " is committing PUT to keyValueStore");
+        store.put(command.getKey(), command.getValue());
         break;
       case "DELETE":
-        ServerLogger.log(proposalID + ": Learner" + this.serverId + " is committing DELETE to keyValueStore");
-        store.delete(key);
+        ServerLogger.log("Slot " + slot + ": Learner" + this.serverId + " is committing DELETE to keyValueStore");
+        success = store.delete(command.getKey()) != null;
+        break;
+      case Command.CONFIG:
+        membership.change(slot, command.getValue());
+        ServerLogger.warn("Slot " + slot + ": Learner" + this.serverId + " changes the members to " + Membership.format(membership.latest())
+            + " from slot " + membership.latestFrom() + " on");
+        store.putMetadata(Membership.STORE_KEY, membership.encode());
         break;
+      default:
+        break;
+    }
+    if (command.getClientId() != null) {
+      sessions.record(command, success);
+    }
+  }
+
+  public void registerCompletionFuture(String requestId, CompletableFuture<Boolean> future) {
+    completionFutures.put(requestId, future);
+  }
+
+  public void unregisterCompletionFuture(String requestId) {
+    completionFutures.remove(requestId);
+  }
+
+  /**
+   * @return whether a caller on this server is waiting for the command, or any command of a batch, to be applied
+   */
+  public boolean isAwaiting(Command command) {
+    for (Command request : command.getCommands()) {
+      if (request.getRequestId() != null && completionFutures.containsKey(request.getRequestId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Completes the futures of a command that will not be applied, e.g. because its proposer lost leadership.
+   */
+  public void abortRequest(Command command) {
+    metrics.countAbortedRequest();
+    completeRequests(command, false);
+  }
+
+  /**
+   * Sets the callback invoked once for every slot when its command is decided.
+   */
+  public void setDecisionListener(BiConsumer<Long, Command> decisionListener) {
+    this.decisionListener = decisionListener;
+  }
+
+  /**
+   * Sets the callback invoked with the slot and the ballot when a quorum of ACCEPTED messages decided a slot here.
+   */
+  public void setQuorumListener(BiConsumer<Long, ProposalID> quorumListener) {
+    this.quorumListener = quorumListener;
+  }
+
+  /**
+   * Tells the applied listener and the callers waiting for a slot up to the applied index about it.
+   */
+  private void onApplied(long applied) {
+    LongConsumer listener = appliedListener;
+    if (listener != null) {
+      listener.accept(applied);
+    }
+    Map.Entry<Long, CompletableFuture<Boolean>> waiter;
+    while ((waiter = appliedWaiters.firstEntry()) != null && waiter.getKey() <= applied) {
+      appliedWaiters.remove(waiter.getKey(), waiter.getValue());
+      waiter.getValue().complete(true);
+    }
+  }
+
+  /**
+   * Sets the callback invoked with the applied index after decided commands were applied.
+   */
+  public void setAppliedListener(LongConsumer appliedListener) {
+    this.appliedListener = appliedListener;
+  }
+
+  public boolean isDecided(long slot) {
+    return slot <= appliedIndex || decidedCommands.containsKey(slot);
+  }
+
+  /**
+   * @return the last slot applied to the key-value store; every slot up to it is applied
+   */
+  public long getAppliedIndex() {
+    return appliedIndex;
+  }
+
+  /**
+   * Waits until the log is applied up to a slot.
+   * @param slot the slot to wait for
+   * @param timeoutMillis the maximum time to wait
+   * @return a future completed with whether the slot was applied in time
+   */
+  public CompletableFuture<Boolean> awaitApplied(long slot, long timeoutMillis) {
+    if (appliedIndex >= slot) {
+      return CompletableFuture.completedFuture(true);
+    }
+    CompletableFuture<Boolean> waiter = appliedWaiters.computeIfAbsent(slot, s -> new CompletableFuture<>());
+    // the slot may have been applied before the waiter was added
+    if (appliedIndex >= slot) {
+      appliedWaiters.remove(slot, waiter);
+      waiter.complete(true);
+    }
+    // every caller gets its own copy, so one caller's timeout does not end the wait of the others
+    return waiter.copy().completeOnTimeout(false, timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Records the leader's applied index from a heartbeat. The replica counts as up to date as of now once it
+   * applied the log that far.
+   * @param commitIndex the leader's applied index
+   */
+  public synchronized void observeCommitIndex(long commitIndex) {
+    long now = System.currentTimeMillis();
+    knownCommitIndex = Math.max(knownCommitIndex, commitIndex);
+    if (appliedIndex >= commitIndex) {
+      freshAsOfMillis = now;
+      notifyAll();
+    } else {
+      pendingCommitIndexes.put(commitIndex, now);
+      if (pendingCommitIndexes.size() > MAX_PENDING_COMMIT_INDEXES) {
+        pendingCommitIndexes.pollFirstEntry();
+      }
+    }
+  }
+
+  /**
+   * @return how long ago this replica was last known to have applied every acknowledged write, Long.MAX_VALUE if never
+   */
+  public long getStalenessMillis() {
+    long freshAsOf = freshAsOfMillis;
+    return freshAsOf == 0 ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - freshAsOf);
+  }
+
+  /**
+   * @return how many slots the applied index is behind the latest commit index heard from the leader
+   */
+  public long getLagEntries() {
+    return Math.max(0, knownCommitIndex - appliedIndex);
+  }
+
+  /**
+   * @return whether a later slot is decided while an earlier one is not, e.g. after missing ACCEPTED messages
+   */
+  public boolean hasGap() {
+    return getGapEntries() > 0;
+  }
+
+  /**
+   * @return how many slots between the applied index and the first decided slot after it are missing
+   */
+  public long getGapEntries() {
+    long applied = appliedIndex;
+    Long first = decidedCommands.ceilingKey(applied + 1);
+    return first != null ? first - applied - 1 : 0;
+  }
+
+  public long getAppliedAtMillis() {
+    return appliedAtMillis;
+  }
+
+  /**
+   * Waits until this replica is within both staleness bounds.
+   * @param maxStalenessMillis the maximum staleness in milliseconds
+   * @param maxLagEntries the maximum number of slots behind the leader
+   * @param timeoutMillis the maximum time to wait
+   * @return whether the replica got fresh enough in time
+   */
+  public synchronized boolean awaitFreshness(long maxStalenessMillis, long maxLagEntries, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (getStalenessMillis() > maxStalenessMillis || getLagEntries() > maxLagEntries) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
     }
+    return true;
   }
 
-  public void registerCompletionFuture(ProposalID proposalID, CompletableFuture<Boolean> future) {
-    completionFutures.put(proposalID, future);
+  public long getHighestDecidedSlot() {
+    return highestDecidedSlot;
   }
 }
@@ -0,0 +1,31 @@
+package paxos;
+
+import java.io.Serializable;
+
+/**
+ * A command accepted for a log slot under a ballot, as reported by an Acceptor in its promises.
+ */
+public class LogEntry implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private final long slot;
+  private final ProposalID ballot;
+  private final Command command;
+
+  public LogEntry(long slot, ProposalID ballot, Command command) {
+    this.slot = slot;
+    this.ballot = ballot;
+    this.command = command;
+  }
+
+  public long getSlot() {
+    return slot;
+  }
+
+  public ProposalID getBallot() {
+    return ballot;
+  }
+
+  public Command getCommand() {
+    return command;
+  }
+}
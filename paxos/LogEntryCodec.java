@@ -0,0 +1,184 @@
+package paxos;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact binary encoding of log entries (ballot and command, the slot is kept by the log itself), written directly
+ * into and read directly from the buffers of the log, without Java serialization.
+ * A command is its operation as one byte and its request id, key and value as length-prefixed UTF-8 (length -1 for null);
+ * a batch is followed by the number of its commands and the commands. The opcode of a session write has SESSION set
+ * and is followed by the client id, the sequence number and the timestamp.
+ */
+public class LogEntryCodec {
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final byte NOOP = 3;
+  private static final byte BATCH = 4;
+  private static final byte CONFIG = 5;
+  // set on the opcode of a command carrying a client session
+  public static final byte SESSION = 0x40;
+
+  private LogEntryCodec() {
+  }
+
+  /**
+   * @return the number of bytes encode writes for the entry
+   */
+  public static int size(LogEntry entry) {
+    return Long.BYTES + Integer.BYTES + size(entry.getCommand());
+  }
+
+  public static void encode(LogEntry entry, ByteBuffer buffer) {
+    buffer.putLong(entry.getBallot().getNumber());
+    buffer.putInt(entry.getBallot().getServerId());
+    encode(entry.getCommand(), buffer);
+  }
+
+  public static LogEntry decode(long slot, ByteBuffer buffer) {
+    ProposalID ballot = ProposalID.of(buffer.getLong(), buffer.getInt());
+    return new LogEntry(slot, ballot, decodeCommand(buffer));
+  }
+
+  private static int size(Command command) {
+    int size = 1 + size(command.getRequestId()) + size(command.getKey()) + size(command.getValue());
+    if (command.getClientId() != null) {
+      size += size(command.getClientId()) + 2 * Long.BYTES;
+    }
+    if (command.isBatch()) {
+      size += Integer.BYTES;
+      for (Command batched : command.getCommands()) {
+        size += size(batched);
+      }
+    }
+    return size;
+  }
+
+  private static void encode(Command command, ByteBuffer buffer) {
+    boolean session = command.getClientId() != null;
+    buffer.put(session ? (byte) (opcode(command.getOperation()) | SESSION) : opcode(command.getOperation()));
+    putString(command.getRequestId(), buffer);
+    putString(command.getKey(), buffer);
+    putString(command.getValue(), buffer);
+    if (session) {
+      putString(command.getClientId(), buffer);
+      buffer.putLong(command.getSeq());
+      buffer.putLong(command.getTimestamp());
+    }
+    if (command.isBatch()) {
+      buffer.putInt(command.getCommands().size());
+      for (Command batched : command.getCommands()) {
+        encode(batched, buffer);
+      }
+    }
+  }
+
+  private static Command decodeCommand(ByteBuffer buffer) {
+    byte opcode = buffer.get();
+    String requestId = getString(buffer);
+    String key = getString(buffer);
+    String value = getString(buffer);
+    if ((opcode & SESSION) != 0) {
+      return Command.session(requestId, operation((byte) (opcode & ~SESSION)), key, value, getString(buffer), buffer.getLong(), buffer.getLong());
+    }
+    if (opcode == BATCH) {
+      int count = buffer.getInt();
+      List<Command> commands = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        commands.add(decodeCommand(buffer));
+      }
+      return Command.batch(requestId, commands);
+    }
+    return new Command(requestId, operation(opcode), key, value);
+  }
+
+  /**
+   * @return the one byte standing for an operation in the binary encodings
+   */
+  public static byte opcode(String operation) {
+    switch (operation) {
+      case "PUT":
+        return PUT;
+      case "DELETE":
+        return DELETE;
+      case Command.NOOP:
+        return NOOP;
+      case Command.BATCH:
+        return BATCH;
+      case Command.CONFIG:
+        return CONFIG;
+      default:
+        throw new IllegalArgumentException("Unknown operation " + operation);
+    }
+  }
+
+  /**
+   * @return the operation an opcode stands for
+   */
+  public static String operation(byte opcode) {
+    switch (opcode) {
+      case PUT:
+        return "PUT";
+      case DELETE:
+        return "DELETE";
+      case NOOP:
+        return Command.NOOP;
+      case BATCH:
+        return Command.BATCH;
+      case CONFIG:
+        return Command.CONFIG;
+      default:
+        throw new IllegalArgumentException("Unknown command opcode " + opcode);
+    }
+  }
+
+  private static int size(String value) {
+    return Integer.BYTES + (value == null ? 0 : utf8Length(value));
+  }
+
+  /**
+   * @return the length of the UTF-8 encoding String.getBytes produces, without producing it
+   */
+  public static int utf8Length(String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        // an unpaired surrogate is written as '?'
+        length += 1;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  private static void putString(String value, ByteBuffer buffer) {
+    if (value == null) {
+      buffer.putInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    buffer.putInt(bytes.length);
+    buffer.put(bytes);
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,53 @@
+package paxos;
+
+import java.io.Serializable;
+
+/**
+ * A change to the durable state of an Acceptor, as written to the write-ahead log: a promise for a slot or
+ * for leadership, or a value it accepted.
+ */
+public class LogRecord implements Serializable {
+  private static final long serialVersionUID = 1L;
+  public static final String PROMISE = "PROMISE";
+  public static final String LEADER_PROMISE = "LEADER_PROMISE";
+  public static final String ACCEPT = "ACCEPT";
+  private final String type;
+  private final long slot;
+  private final ProposalID ballot;
+  private final Command command;
+
+  private LogRecord(String type, long slot, ProposalID ballot, Command command) {
+    this.type = type;
+    this.slot = slot;
+    this.ballot = ballot;
+    this.command = command;
+  }
+
+  public static LogRecord promise(long slot, ProposalID ballot) {
+    return new LogRecord(PROMISE, slot, ballot, null);
+  }
+
+  public static LogRecord leaderPromise(ProposalID ballot) {
+    return new LogRecord(LEADER_PROMISE, 0, ballot, null);
+  }
+
+  public static LogRecord accept(LogEntry entry) {
+    return new LogRecord(ACCEPT, entry.getSlot(), entry.getBallot(), entry.getCommand());
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public long getSlot() {
+    return slot;
+  }
+
+  public ProposalID getBallot() {
+    return ballot;
+  }
+
+  public Command getCommand() {
+    return command;
+  }
+}
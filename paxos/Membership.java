@@ -0,0 +1,199 @@
+package paxos;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The servers making up a Paxos group, changed by CONFIG entries in its log. A change decided in slot s governs the
+ * slots from s + delay on, with the delay written into the entry, so every replica puts it at the same slot whatever
+ * its own settings. The delay is at least any leader's pipeline window: a leader only proposes a slot once every slot
+ * more than a window before it is applied, so whoever proposes or counts votes for a slot has applied the change that
+ * governs it. Changes add or remove one server at a time, so any majority of the old configuration meets any majority
+ * of the new one. The configurations are kept in the store under STORE_KEY, so snapshots carry them along.
+ */
+public class Membership {
+  // not a key a client can be expected to use; the value is written by encode()
+  public static final String STORE_KEY = "\u0000membership";
+  private final long delay;
+  // the members by the first slot they govern
+  private final ConcurrentSkipListMap<Long, int[]> configs = new ConcurrentSkipListMap<>();
+
+  /**
+   * @param initial the members before any change, i.e. ServerConfig.ALL_SERVER_IDs
+   * @param delay how many slots after the slot it is decided in a change proposed here takes effect, see
+   *              ServerConfig.MEMBERSHIP_DELAY
+   */
+  public Membership(int[] initial, long delay) {
+    this.delay = delay;
+    configs.put(1L, sorted(initial));
+  }
+
+  public long getDelay() {
+    return delay;
+  }
+
+  /**
+   * @return the members whose votes decide a slot
+   */
+  public int[] membersAt(long slot) {
+    Map.Entry<Long, int[]> config = configs.floorEntry(slot);
+    return config != null ? config.getValue() : configs.firstEntry().getValue();
+  }
+
+  public int quorumAt(long slot) {
+    return membersAt(slot).length / 2 + 1;
+  }
+
+  public boolean isMemberAt(int serverId, long slot) {
+    return Arrays.binarySearch(membersAt(slot), serverId) >= 0;
+  }
+
+  /**
+   * @return whether a server is a member after the latest decided change
+   */
+  public boolean isMember(int serverId) {
+    return Arrays.binarySearch(latest(), serverId) >= 0;
+  }
+
+  /**
+   * @return the members after the latest decided change, which may not govern any slot yet
+   */
+  public int[] latest() {
+    return configs.lastEntry().getValue();
+  }
+
+  /**
+   * @return the first slot the latest decided change governs
+   */
+  public long latestFrom() {
+    return configs.lastKey();
+  }
+
+  /**
+   * @return whether a decided change does not govern the slot after the applied index yet
+   */
+  public boolean isChangePending(long appliedIndex) {
+    return configs.lastKey() > appliedIndex + 1;
+  }
+
+  /**
+   * @return every configuration governing a slot from the given one on, the first governing that slot itself
+   */
+  public int[][] configsFrom(long slot) {
+    Long first = configs.floorKey(slot);
+    return configs.tailMap(first != null ? first : configs.firstKey()).values().toArray(new int[0][]);
+  }
+
+  /**
+   * @return every server of a configuration still in use, the ones messages of the group have to reach
+   */
+  public int[] targets() {
+    TreeSet<Integer> targets = new TreeSet<>();
+    for (int[] members : configs.values()) {
+      for (int member : members) {
+        targets.add(member);
+      }
+    }
+    return targets.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /**
+   * Records a change decided in a slot, which governs the slots from the delay written into it on.
+   * @param change the value of the CONFIG entry, see formatChange
+   */
+  public synchronized void change(long slot, String change) {
+    int separator = change.indexOf(':');
+    configs.put(slot + Long.parseLong(change.substring(0, separator)), parse(change.substring(separator + 1)));
+  }
+
+  /**
+   * Forgets the configurations that govern no slot from the given one on.
+   */
+  public synchronized void forgetBefore(long slot) {
+    Long first = configs.floorKey(slot);
+    if (first != null) {
+      configs.headMap(first).clear();
+    }
+  }
+
+  /**
+   * @return the configurations as "slot=id,id,...;slot=id,..."
+   */
+  public synchronized String encode() {
+    StringBuilder encoded = new StringBuilder();
+    for (Map.Entry<Long, int[]> config : configs.entrySet()) {
+      if (encoded.length() > 0) {
+        encoded.append(';');
+      }
+      encoded.append(config.getKey()).append('=').append(format(config.getValue()));
+    }
+    return encoded.toString();
+  }
+
+  /**
+   * Replaces the configurations with ones read from the store, e.g. after a snapshot was loaded; null keeps them.
+   */
+  public synchronized void restore(String encoded) {
+    if (encoded == null) {
+      return;
+    }
+    configs.clear();
+    for (String config : encoded.split(";")) {
+      int separator = config.indexOf('=');
+      configs.put(Long.parseLong(config.substring(0, separator)), parse(config.substring(separator + 1)));
+    }
+  }
+
+  /**
+   * Checks a change against the latest configuration.
+   * @return why the change is not allowed, or null if it adds or removes exactly one server
+   */
+  public String validate(int[] members) {
+    int[] current = latest();
+    int[] proposed = sorted(members);
+    if (proposed.length == 0) {
+      return "a group needs at least one member";
+    }
+    int common = 0;
+    for (int member : proposed) {
+      if (member < 0) {
+        return "server ids can not be negative";
+      }
+      if (Arrays.binarySearch(current, member) >= 0) {
+        common++;
+      }
+    }
+    if (Math.abs(proposed.length - current.length) != 1 || common != Math.min(proposed.length, current.length)) {
+      return "only one server can be added or removed at a time, the members are " + format(current);
+    }
+    return null;
+  }
+
+  /**
+   * @return the value of a CONFIG entry as "delay:id,id,..."
+   */
+  public static String formatChange(long delay, int[] members) {
+    return delay + ":" + format(members);
+  }
+
+  public static String format(int[] members) {
+    StringBuilder formatted = new StringBuilder();
+    for (int member : members) {
+      if (formatted.length() > 0) {
+        formatted.append(',');
+      }
+      formatted.append(member);
+    }
+    return formatted.toString();
+  }
+
+  public static int[] parse(String members) {
+    return sorted(Arrays.stream(members.split(",")).mapToInt(Integer::parseInt).toArray());
+  }
+
+  private static int[] sorted(int[] members) {
+    return Arrays.stream(members).distinct().sorted().toArray();
+  }
+}
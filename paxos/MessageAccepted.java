@@ -7,17 +7,15 @@ import java.io.Serializable;
  */
 public class MessageAccepted implements PaxosMessage, Serializable {
   private int serverId;
-  private String key;
   private ProposalID proposalId;
-  private String acceptedValue;
-  private String operation;
+  private long slot;
+  private Command command;
 
-  public MessageAccepted(int serverId, ProposalID proposalID, String key, String value, String operation) {
+  public MessageAccepted(int serverId, ProposalID proposalID, long slot, Command command) {
     this.serverId = serverId;
-    this.key = key;
     this.proposalId = proposalID;
-    this.acceptedValue = value;
-    this.operation = operation;
+    this.slot = slot;
+    this.command = command;
   }
 
   @Override
@@ -27,15 +25,16 @@ public class MessageAccepted implements PaxosMessage, Serializable {
 
   @Override
   public String getKey() {
-    return this.key;
+    return command.getKey();
   }
 
-  public String getAcceptedValue() {
-    return this.acceptedValue;
+  @Override
+  public long getSlot() {
+    return this.slot;
   }
 
-  public String getOperation() {
-    return this.operation;
+  public Command getCommand() {
+    return this.command;
   }
 
   @Override
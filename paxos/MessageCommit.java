@@ -0,0 +1,47 @@
+package paxos;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a Proposer to the other servers when Acceptors send their ACCEPTED messages only to the Proposer: the slots
+ * a quorum accepted under a ballot, without their commands. A server applies such a slot from what its own Acceptor
+ * accepted under the same ballot, which is the chosen command; otherwise it catches up from its peers.
+ * Usually the slots ride along with the next PROPOSE, this message is only sent when none follows soon.
+ */
+public class MessageCommit implements PaxosMessage, Serializable {
+  private static final long serialVersionUID = 1L;
+  private ProposalID ballot;
+  private long[] slots;
+
+  public MessageCommit(ProposalID ballot, long[] slots) {
+    this.ballot = ballot;
+    this.slots = slots;
+  }
+
+  @Override
+  public ProposalID getProposalID() {
+    return this.ballot;
+  }
+
+  @Override
+  public String getKey() {
+    return null;
+  }
+
+  @Override
+  public long getSlot() {
+    return slots.length > 0 ? slots[slots.length - 1] : 0;
+  }
+
+  @Override
+  public int getServerId() {
+    return this.ballot.getServerId();
+  }
+
+  /**
+   * @return the decided slots in ascending order
+   */
+  public long[] getSlots() {
+    return this.slots;
+  }
+}
@@ -0,0 +1,52 @@
+package paxos;
+
+import java.io.Serializable;
+
+/**
+ * Represents the periodic message a Multi-Paxos leader sends to all nodes to announce that it is still alive.
+ * Heartbeats are numbered so the leader can tell which round a follower acknowledged, and carry the leader's
+ * applied index so followers can tell how far behind they are.
+ */
+public class MessageHeartbeat implements PaxosMessage, Serializable {
+  private static final long serialVersionUID = 1L;
+  private ProposalID ballot;
+  private long round;
+  private long commitIndex;
+
+  public MessageHeartbeat(ProposalID ballot, long round, long commitIndex) {
+    this.ballot = ballot;
+    this.round = round;
+    this.commitIndex = commitIndex;
+  }
+
+  @Override
+  public ProposalID getProposalID() {
+    return this.ballot;
+  }
+
+  @Override
+  public String getKey() {
+    return null;
+  }
+
+  @Override
+  public long getSlot() {
+    return 0;
+  }
+
+  @Override
+  public int getServerId() {
+    return this.ballot.getServerId();
+  }
+
+  public long getRound() {
+    return this.round;
+  }
+
+  /**
+   * @return the last slot the leader had applied when it sent the heartbeat; every acknowledged write is at or below it
+   */
+  public long getCommitIndex() {
+    return this.commitIndex;
+  }
+}
@@ -0,0 +1,50 @@
+package paxos;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a follower to the leader for every heartbeat it accepted. A quorum of acks for a round confirms that
+ * the leader still leads and extends its read lease; the follower's applied index tells the leader how far it lags.
+ */
+public class MessageHeartbeatAck implements PaxosMessage, Serializable {
+  private static final long serialVersionUID = 1L;
+  private int serverId;
+  private ProposalID ballot;
+  private long round;
+  private long appliedIndex;
+
+  public MessageHeartbeatAck(int serverId, ProposalID ballot, long round, long appliedIndex) {
+    this.serverId = serverId;
+    this.ballot = ballot;
+    this.round = round;
+    this.appliedIndex = appliedIndex;
+  }
+
+  @Override
+  public ProposalID getProposalID() {
+    return this.ballot;
+  }
+
+  @Override
+  public String getKey() {
+    return null;
+  }
+
+  @Override
+  public long getSlot() {
+    return 0;
+  }
+
+  @Override
+  public int getServerId() {
+    return this.serverId;
+  }
+
+  public long getRound() {
+    return this.round;
+  }
+
+  public long getAppliedIndex() {
+    return this.appliedIndex;
+  }
+}
@@ -0,0 +1,69 @@
+package paxos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the Paxos messages a server sent and received, by message type and by peer, for all its groups together.
+ * The counters are allocated up front, one per type and server id, so counting a message never allocates.
+ */
+public class MessageMetrics {
+  public static final String[] TYPES = {"PREPARE", "PROMISE", "PROPOSE", "ACCEPTED", "COMMIT", "HEARTBEAT", "HEARTBEAT_ACK", "OTHER"};
+  // servers with a higher id, which a membership change may add, share the counters of this one
+  public static final int MAX_SERVER_ID = 31;
+  private final AtomicLongArray sent = new AtomicLongArray(TYPES.length * (MAX_SERVER_ID + 1));
+  private final AtomicLongArray received = new AtomicLongArray(TYPES.length * (MAX_SERVER_ID + 1));
+
+  /**
+   * @param peerId the server the message went to
+   */
+  public void recordSent(int peerId, PaxosMessage message) {
+    sent.incrementAndGet(index(typeOf(message), peerId));
+  }
+
+  /**
+   * Counts a message under the server that sent it.
+   */
+  public void recordReceived(PaxosMessage message) {
+    received.incrementAndGet(index(typeOf(message), message.getServerId()));
+  }
+
+  /**
+   * @param type an index into TYPES
+   */
+  public long getSent(int type, int peerId) {
+    return sent.get(index(type, peerId));
+  }
+
+  public long getReceived(int type, int peerId) {
+    return received.get(index(type, peerId));
+  }
+
+  /**
+   * @return the index into TYPES of the message, or of the message a GroupMessage carries
+   */
+  public static int typeOf(PaxosMessage message) {
+    if (message instanceof GroupMessage) {
+      message = ((GroupMessage) message).getMessage();
+    }
+    if (message instanceof MessagePrepare) {
+      return 0;
+    } else if (message instanceof MessagePromise) {
+      return 1;
+    } else if (message instanceof MessagePropose) {
+      return 2;
+    } else if (message instanceof MessageAccepted) {
+      return 3;
+    } else if (message instanceof MessageCommit) {
+      return 4;
+    } else if (message instanceof MessageHeartbeat) {
+      return 5;
+    } else if (message instanceof MessageHeartbeatAck) {
+      return 6;
+    }
+    return 7;
+  }
+
+  private static int index(int type, int peerId) {
+    return type * (MAX_SERVER_ID + 1) + Math.max(0, Math.min(MAX_SERVER_ID, peerId));
+  }
+}
@@ -6,17 +6,39 @@ import java.io.Serializable;
  * Represents a message sent by a Proposer to Acceptors to prepare for a new proposal, carrying information such as the proposal number.
  */
 public class MessagePrepare implements PaxosMessage, Serializable {
-    private String key;
     private ProposalID proposalID;
+    private long slot;
+    private boolean leadership;
 
-    public MessagePrepare(ProposalID proposalID, String key) {
-        this.key = key;
+    public MessagePrepare(ProposalID proposalID, long slot) {
         this.proposalID = proposalID;
+        this.slot = slot;
+    }
+
+    /**
+     * Creates the Phase 1 message a Multi-Paxos leader candidate sends once for a whole range of slots instead of per slot.
+     * @param ballot the ballot the candidate wants to lead with
+     * @param fromSlot the first slot the candidate asks for, covering every slot after it as well
+     * @return a leadership prepare message
+     */
+    public static MessagePrepare forLeadership(ProposalID ballot, long fromSlot) {
+        MessagePrepare prepare = new MessagePrepare(ballot, fromSlot);
+        prepare.leadership = true;
+        return prepare;
+    }
+
+    public boolean isLeaderPrepare() {
+        return this.leadership;
     }
 
     @Override
     public String getKey() {
-        return this.key;
+        return null;
+    }
+
+    @Override
+    public long getSlot() {
+        return this.slot;
     }
 
     @Override
@@ -1,36 +1,45 @@
 package paxos;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
 /**
  * Defines the structure of a promise message that an Acceptor sends to a Proposer in response to a prepare request.
+ * It carries what the Acceptor has already accepted: the entry of the single prepared slot, or every entry from the
+ * first prepared slot on for a leadership promise.
  */
 public class MessagePromise implements PaxosMessage, Serializable {
   private int serverId;
-  private String key;
   private ProposalID proposalId;
-  private ProposalID previousAcceptedId;
-  private String previousAcceptedValue;
+  private long slot;
+  private boolean leadership;
+  private List<LogEntry> acceptedEntries;
 
-  public MessagePromise(int serverId, String key, ProposalID proposalId) {
+  public MessagePromise(int serverId, ProposalID proposalId, long slot, boolean leadership, List<LogEntry> acceptedEntries) {
     this.serverId = serverId;
-    this.key = key;
     this.proposalId = proposalId;
+    this.slot = slot;
+    this.leadership = leadership;
+    this.acceptedEntries = acceptedEntries;
   }
 
-  public MessagePromise(int serverId, String key, ProposalID proposalId, ProposalID previousAcceptedId, String previousAcceptedValue) {
-    this.serverId = serverId;
-    this.key = key;
-    this.proposalId = proposalId;
-    this.previousAcceptedId = previousAcceptedId;
-    this.previousAcceptedValue = previousAcceptedValue;
+  /**
+   * @return whether this promise answers a leadership prepare rather than a single slot
+   */
+  public boolean isLeaderPromise() {
+    return this.leadership;
+  }
+
+  public List<LogEntry> getAcceptedEntries() {
+    return acceptedEntries != null ? acceptedEntries : Collections.emptyList();
   }
 
   public ProposalID getPreviousAcceptedId() {
-    return previousAcceptedId;
+    return getAcceptedEntries().isEmpty() ? null : acceptedEntries.get(0).getBallot();
   }
 
-  public String getPreviousAcceptedValue() {
-    return previousAcceptedValue;
+  public Command getPreviousAcceptedValue() {
+    return getAcceptedEntries().isEmpty() ? null : acceptedEntries.get(0).getCommand();
   }
   
   @Override
@@ -40,7 +49,12 @@ public class MessagePromise implements PaxosMessage, Serializable {
 
   @Override
   public String getKey() {
-    return this.key;
+    return null;
+  }
+
+  @Override
+  public long getSlot() {
+    return this.slot;
   }
 
   @Override
@@ -48,4 +62,3 @@ public class MessagePromise implements PaxosMessage, Serializable {
     return proposalId;  
   }
 }
-
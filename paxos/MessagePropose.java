@@ -4,30 +4,45 @@ import java.io.Serializable;
 
 /**
  * Represents a message containing an actual proposal sent by a Proposer to Acceptors after receiving promises.
+ * It may carry the slots the Proposer saw decided under the same ballot since its previous PROPOSE, see MessageCommit.
  */
 public class MessagePropose implements PaxosMessage, Serializable {
-  private String key;
+  private static final long[] NO_SLOTS = new long[0];
   private ProposalID proposalId;
-  private String value;
-  private String operation;
+  private long slot;
+  private Command command;
+  private long[] committedSlots;
 
-  public MessagePropose(ProposalID proposalID, String key, String value, String operation) {
-    this.key = key;
+  public MessagePropose(ProposalID proposalID, long slot, Command command) {
+    this(proposalID, slot, command, NO_SLOTS);
+  }
+
+  public MessagePropose(ProposalID proposalID, long slot, Command command, long[] committedSlots) {
     this.proposalId = proposalID;
-    this.value = value;
-    this.operation = operation;
-}
+    this.slot = slot;
+    this.command = command;
+    this.committedSlots = committedSlots.length == 0 ? NO_SLOTS : committedSlots;
+  }
 
-  public String getValue() {
-    return value;
+  public Command getCommand() {
+    return command;
   }
+
+  /**
+   * @return the slots decided under this message's ballot, in ascending order
+   */
+  public long[] getCommittedSlots() {
+    return committedSlots;
+  }
+
   @Override
   public String getKey() {
-      return this.key;
+      return command.getKey();
   }
 
-  public String getOperation() {
-    return this.operation;
+  @Override
+  public long getSlot() {
+    return this.slot;
   }
 
   @Override
@@ -1,70 +1,382 @@
 package paxos;
 
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import common.IPaxosNode;
 import common.ServerConfig;
 import server.ServerLogger;
+import transport.NioTransport;
+import transport.RmiTransport;
+import transport.Transport;
 
 /**
  * Handles the sending and receiving of Paxos messages between nodes, acting as a communication layer in the Paxos protocol.
+ * Remote stubs of the peers are resolved lazily from the central registry and cached, so the registry is only
+ * contacted again when a peer has not been seen yet or its cached stub stopped working.
+ * Every peer has its own outbound queue drained on a shared executor, so callers never wait on the network; the
+ * messages queued for a peer within a few microseconds are sent together in one call or frame.
+ * Messages go over the transport chosen with paxos.transport: persistent NIO connections with binary frames, or
+ * one RMI call per message. RMI stays the fallback for peers the NIO transport has no connection to yet.
+ * A server running several Paxos groups has one Messenger per group, all sharing the queues, stubs and transport of
+ * the first; a group's messages are wrapped into a GroupMessage with its id on the way out.
+ * A peer that failed several times in a row is backed off: messages to it fail at once, without a send thread waiting
+ * on the network, until a heartbeat interval has passed and the next message tries it again.
  */
 
 public class Messenger {
+  // after this many consecutive failures a peer is unhealthy and backed off for BACKOFF_MILLIS; shorter than the
+  // election timeout, so a peer that comes back hears from the leader before it starts an election
+  private static final int UNHEALTHY_THRESHOLD = 3;
+  private static final long BACKOFF_MILLIS = ServerConfig.HEARTBEAT_INTERVAL_MILLIS;
+  private static final CompletableFuture<Boolean> NOT_SENT = CompletableFuture.completedFuture(false);
   private String centralRegistryHost;
   private int centralRegistryPort;
+  // the Paxos group this Messenger sends for, and the Messenger of group 0 that owns everything below
+  private final int groupId;
+  private final Messenger root;
+  // the members of this group, ServerConfig.ALL_SERVER_IDs until set
+  private volatile Membership membership;
+  private final ConcurrentHashMap<Integer, IPaxosNode> peerStubs;
+  private final ConcurrentHashMap<Integer, Integer> peerFailures;
+  // when each unhealthy peer is tried again
+  private final ConcurrentHashMap<Integer, Long> peerRetryAtMillis;
+  private final AtomicLong backedOffMessages;
+  private final AtomicLong stubHits;
+  private final AtomicLong stubMisses;
+  private final AtomicLong stubReResolves;
+  private final AtomicLong messagesSent;
+  private final AtomicLong sendCalls;
+  private final MessageMetrics messageMetrics;
+  private final ConcurrentHashMap<Integer, PeerChannel> peerChannels;
+  private final RmiTransport rmiTransport;
+  private volatile Transport transport;
+  // one long-lived pool shared by all outbound queues of this node
+  private final ExecutorService sendExecutor;
 
   public Messenger(String centralRegistryHost, int centralRegistryPort) {
     this.centralRegistryHost = centralRegistryHost;
     this.centralRegistryPort = centralRegistryPort;
+    this.groupId = 0;
+    this.root = this;
+    this.peerStubs = new ConcurrentHashMap<>();
+    this.peerFailures = new ConcurrentHashMap<>();
+    this.peerRetryAtMillis = new ConcurrentHashMap<>();
+    this.backedOffMessages = new AtomicLong();
+    this.stubHits = new AtomicLong();
+    this.stubMisses = new AtomicLong();
+    this.stubReResolves = new AtomicLong();
+    this.messagesSent = new AtomicLong();
+    this.sendCalls = new AtomicLong();
+    this.messageMetrics = new MessageMetrics();
+    this.peerChannels = new ConcurrentHashMap<>();
+    this.rmiTransport = new RmiTransport(this);
+    this.transport = rmiTransport;
+    this.sendExecutor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "messenger-send");
+      thread.setDaemon(true);
+      return thread;
+    });
   }
 
-  public void broadcastMessage(PaxosMessage message) {
-    ExecutorService executor = Executors.newFixedThreadPool(ServerConfig.ALL_SERVER_IDs.length);
-    for (int serverId : ServerConfig.ALL_SERVER_IDs) { 
-      executor.submit(() -> sendPaxosMessage(serverId, message));
+  private Messenger(Messenger root, int groupId) {
+    this.centralRegistryHost = root.centralRegistryHost;
+    this.centralRegistryPort = root.centralRegistryPort;
+    this.groupId = groupId;
+    this.root = root;
+    this.peerStubs = root.peerStubs;
+    this.peerFailures = root.peerFailures;
+    this.peerRetryAtMillis = root.peerRetryAtMillis;
+    this.backedOffMessages = root.backedOffMessages;
+    this.stubHits = root.stubHits;
+    this.stubMisses = root.stubMisses;
+    this.stubReResolves = root.stubReResolves;
+    this.messagesSent = root.messagesSent;
+    this.sendCalls = root.sendCalls;
+    this.messageMetrics = root.messageMetrics;
+    this.peerChannels = root.peerChannels;
+    this.rmiTransport = root.rmiTransport;
+    this.sendExecutor = root.sendExecutor;
+  }
+
+  /**
+   * @return a Messenger for another Paxos group of this server, sharing the connections and threads of this one
+   */
+  public Messenger forGroup(int groupId) {
+    return groupId == this.groupId ? this : new Messenger(root, groupId);
+  }
+
+  public int getGroupId() {
+    return groupId;
+  }
+
+  public void setMembership(Membership membership) {
+    this.membership = membership;
+  }
+
+  /**
+   * @return the servers this group's messages go to: the members of every configuration still in use
+   */
+  public int[] getPeers() {
+    Membership current = membership;
+    return current != null ? current.targets() : ServerConfig.ALL_SERVER_IDs;
+  }
+
+  /**
+   * Switches to the NIO transport if it is configured, once the node is ready to handle incoming messages.
+   * @param serverId the id of this server
+   * @param inbound receives the messages arriving over NIO
+   */
+  public void startTransport(int serverId, Consumer<List<PaxosMessage>> inbound) {
+    if (root != this) {
+      root.startTransport(serverId, inbound);
+      return;
+    }
+    if (!"nio".equalsIgnoreCase(ServerConfig.TRANSPORT)) {
+      return;
     }
-    executor.shutdown();
     try {
-      if (!executor.awaitTermination(20, TimeUnit.SECONDS)) {
-        executor.shutdownNow();
-      }
-    } catch (InterruptedException ie) {
-      executor.shutdownNow();
-      Thread.currentThread().interrupt();
+      transport = new NioTransport(serverId, centralRegistryHost, ServerConfig.NIO_BASE_PORT, inbound);
+      ServerLogger.log("Server" + serverId + " sends Paxos messages over NIO on port " + (ServerConfig.NIO_BASE_PORT + serverId));
+    } catch (IOException e) {
+      ServerLogger.warn("Server" + serverId + " could not start the NIO transport, using RMI: " + e.getMessage());
     }
   }
 
-  public void sendPaxosMessage(int serverId, PaxosMessage message) {
-    String serverName = "KeyValueService" + serverId;
+  /**
+   * Queues a message for every server of the group without waiting for any of them.
+   * @param message the message to broadcast
+   * @return a future completed with true once a majority of the servers received the message,
+   *         or with false as soon as a quorum can no longer be reached
+   */
+  public CompletableFuture<Boolean> broadcastMessage(PaxosMessage message) {
+    CompletableFuture<Boolean> quorumFuture = new CompletableFuture<>();
+    int[] peers = getPeers();
+    int total = peers.length;
+    int quorum = total / 2 + 1;
+    AtomicInteger delivered = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    for (int serverId : peers) {
+      sendAsync(serverId, message).thenAccept(success -> {
+        if (success) {
+          if (delivered.incrementAndGet() == quorum) {
+            quorumFuture.complete(true);
+          }
+        } else if (failed.incrementAndGet() == total - quorum + 1) {
+          quorumFuture.complete(false);
+        }
+      });
+    }
+    return quorumFuture;
+  }
+
+  /**
+   * Queues a message on the outbound queue of one server.
+   * @param serverId the id of the receiving server
+   * @param message the message to send
+   * @return a future completed with whether the server received the message, false right away while it is backed off
+   */
+  public CompletableFuture<Boolean> sendAsync(int serverId, PaxosMessage message) {
+    if (!isPeerHealthy(serverId)) {
+      backedOffMessages.incrementAndGet();
+      return NOT_SENT;
+    }
+    return peerChannels.computeIfAbsent(serverId, id -> new PeerChannel(id, root, sendExecutor)).enqueue(wrap(message));
+  }
+
+  /**
+   * Sends a message on the calling thread.
+   * @param serverId the id of the receiving server
+   * @param message the message to send
+   * @return whether the server received the message
+   */
+  public boolean sendPaxosMessage(int serverId, PaxosMessage message) {
+    return sendPaxosMessages(serverId, Collections.singletonList(message));
+  }
+
+  /**
+   * Sends several messages to one server in a single call or frame, on the calling thread.
+   * @param serverId the id of the receiving server
+   * @param messages the messages to send, handled by the server in this order
+   * @return whether the server received the messages
+   */
+  public boolean sendPaxosMessages(int serverId, List<PaxosMessage> messages) {
+    if (root != this) {
+      List<PaxosMessage> wrapped = new ArrayList<>(messages.size());
+      for (PaxosMessage message : messages) {
+        wrapped.add(wrap(message));
+      }
+      return root.sendPaxosMessages(serverId, wrapped);
+    }
+    if (!isPeerHealthy(serverId)) {
+      backedOffMessages.addAndGet(messages.size());
+      return false;
+    }
     try {
-      Registry registry = LocateRegistry.getRegistry(centralRegistryHost, centralRegistryPort);
-      IPaxosNode remoteNode = (IPaxosNode) registry.lookup(serverName);
-      if (message instanceof MessagePrepare) {
-        ServerLogger.log(message.getProposalID() + ": is sending PREPARE to Acceptor" + serverId);
-      } else if (message instanceof MessagePromise) {
-        ServerLogger.log( message.getProposalID() + ": is sending PROMISE message to Proposer by Acceptor" + message.getServerId());
-      } else if (message instanceof MessagePropose) {
-        ServerLogger.log( message.getProposalID() + ": is sending PROPOSE message to Acceptor" + serverId);
-      } else if (message instanceof MessageAccepted) {
-        ServerLogger.log(message.getProposalID() + ": is sending ACCEPT message to Learner" + serverId + " by Acceptor" + message.getServerId());
+      for (PaxosMessage message : messages) {
+        logSending(serverId, message);
+      }
+      Transport current = transport;
+      if (!current.sendAll(serverId, messages) && (current == rmiTransport || !rmiTransport.sendAll(serverId, messages))) {
+        throw new IOException("server" + serverId + " is not reachable");
       }
-      remoteNode.handlePaxosMessage(message);
+      messagesSent.addAndGet(messages.size());
+      sendCalls.incrementAndGet();
+      for (int i = 0; i < messages.size(); i++) {
+        messageMetrics.recordSent(serverId, messages.get(i));
+      }
+      peerFailures.remove(serverId);
+      peerRetryAtMillis.remove(serverId);
+      return true;
     } catch (Exception e) {
-      if (message instanceof MessagePrepare) {
-        ServerLogger.error(message.getProposalID() + ": Failed to send Paxos PREPARE message to Acceptor" + serverId + ": " + e.getMessage());
-      } else if (message instanceof MessagePromise) {
-        ServerLogger.error(message.getProposalID() + ": Failed to send Paxos PROMISE message to Proposer by Acceptor" + message.getServerId() + ": " + e.getMessage());
-      } else if (message instanceof MessagePropose) {
-        ServerLogger.error(message.getProposalID() + ": Failed to send Paxos PROPOSE message to Acceptor" + serverId + ": " + e.getMessage());
-      } else if (message instanceof MessageAccepted) {
-        ServerLogger.error(message.getProposalID() + ": Failed to send Paxos ACCEPT message to Learner" + serverId + " by Acceptor" + message.getServerId() + ": " + e.getMessage());
+      reResolvePeer(serverId);
+      if (peerFailures.merge(serverId, 1, Integer::sum) >= UNHEALTHY_THRESHOLD) {
+        peerRetryAtMillis.put(serverId, System.currentTimeMillis() + BACKOFF_MILLIS);
+      }
+      for (PaxosMessage message : messages) {
+        logFailure(serverId, message, e);
       }
-      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private PaxosMessage wrap(PaxosMessage message) {
+    return groupId == 0 ? message : new GroupMessage(groupId, message);
+  }
+
+  private static void logSending(int serverId, PaxosMessage message) {
+    if (message instanceof GroupMessage) {
+      message = ((GroupMessage) message).getMessage();
+    }
+    if (message instanceof MessagePrepare) {
+      ServerLogger.log(message.getProposalID() + " slot " + message.getSlot() + ": is sending PREPARE to Acceptor" + serverId);
+    } else if (message instanceof MessagePromise) {
+      ServerLogger.log( message.getProposalID() + " slot " + message.getSlot() + ": is sending PROMISE message to Proposer by Acceptor" + message.getServerId());
+    } else if (message instanceof MessagePropose) {
+      ServerLogger.log( message.getProposalID() + " slot " + message.getSlot() + ": is sending PROPOSE message to Acceptor" + serverId);
+    } else if (message instanceof MessageAccepted) {
+      ServerLogger.log(message.getProposalID() + " slot " + message.getSlot() + ": is sending ACCEPT message to Learner" + serverId + " by Acceptor" + message.getServerId());
     }
   }
+
+  private static void logFailure(int serverId, PaxosMessage message, Exception e) {
+    if (message instanceof GroupMessage) {
+      message = ((GroupMessage) message).getMessage();
+    }
+    if (message instanceof MessagePrepare) {
+      ServerLogger.error(message.getProposalID() + " slot " + message.getSlot() + ": Failed to send Paxos PREPARE message to Acceptor" + serverId + ": " + e.getMessage());
+    } else if (message instanceof MessagePromise) {
+      ServerLogger.error(message.getProposalID() + " slot " + message.getSlot() + ": Failed to send Paxos PROMISE message to Proposer by Acceptor" + message.getServerId() + ": " + e.getMessage());
+    } else if (message instanceof MessagePropose) {
+      ServerLogger.error(message.getProposalID() + " slot " + message.getSlot() + ": Failed to send Paxos PROPOSE message to Acceptor" + serverId + ": " + e.getMessage());
+    } else if (message instanceof MessageAccepted) {
+      ServerLogger.error(message.getProposalID() + " slot " + message.getSlot() + ": Failed to send Paxos ACCEPT message to Learner" + serverId + " by Acceptor" + message.getServerId() + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the cached remote stub of a peer, resolving it from the central registry on a cache miss.
+   * @param serverId the id of the peer
+   * @return the remote stub of the peer
+   * @throws RemoteException if the registry can not be reached
+   * @throws NotBoundException if the peer is not registered (yet)
+   */
+  public IPaxosNode getPeer(int serverId) throws RemoteException, NotBoundException {
+    IPaxosNode stub = peerStubs.get(serverId);
+    if (stub != null) {
+      stubHits.incrementAndGet();
+      return stub;
+    }
+    stubMisses.incrementAndGet();
+    Registry registry = LocateRegistry.getRegistry(centralRegistryHost, centralRegistryPort);
+    stub = (IPaxosNode) registry.lookup("KeyValueService" + serverId);
+    peerStubs.put(serverId, stub);
+    return stub;
+  }
+
+  /**
+   * Drops the cached stub of a peer after it stopped working, e.g. because the peer restarted.
+   * @param serverId the id of the peer
+   */
+  public void reResolvePeer(int serverId) {
+    invalidatePeer(serverId);
+    stubReResolves.incrementAndGet();
+  }
+
+  /**
+   * Drops the cached stub of a peer so the next message resolves it again.
+   * @param serverId the id of the peer
+   */
+  public void invalidatePeer(int serverId) {
+    peerStubs.remove(serverId);
+  }
+
+  /**
+   * @param serverId the id of the peer
+   * @return false while the peer is backed off after failing repeatedly; once the backoff has passed, the next
+   *         message tries it again
+   */
+  public boolean isPeerHealthy(int serverId) {
+    Long retryAt = peerRetryAtMillis.get(serverId);
+    return retryAt == null || System.currentTimeMillis() >= retryAt;
+  }
+
+  public void shutdown() {
+    if (root != this) {
+      return;
+    }
+    transport.close();
+    sendExecutor.shutdown();
+    try {
+      if (!sendExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+        sendExecutor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      sendExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public long getStubHits() {
+    return stubHits.get();
+  }
+
+  public long getStubMisses() {
+    return stubMisses.get();
+  }
+
+  public long getStubReResolves() {
+    return stubReResolves.get();
+  }
+
+  /**
+   * @return the counts of the messages this server sent and received, shared by all its groups
+   */
+  public MessageMetrics getMessageMetrics() {
+    return messageMetrics;
+  }
+
+  public String getTransportStats() {
+    return "messages sent=" + messagesSent + " in " + sendCalls + " calls or frames, backed off=" + backedOffMessages + ", "
+        + root.transport.getStats();
+  }
+
+  public String getStubCacheStats() {
+    return "stub cache hits=" + stubHits.get() + ", misses=" + stubMisses.get() + ", re-resolves=" + stubReResolves.get()
+        + ", failing peers=" + peerFailures;
+  }
 }
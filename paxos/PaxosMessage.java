@@ -7,4 +7,8 @@ public interface PaxosMessage {
   ProposalID getProposalID();
   String getKey();
   int getServerId();
+  /**
+   * @return the log slot the message is about, 0 for messages not bound to a slot
+   */
+  long getSlot();
 }
@@ -0,0 +1,102 @@
+package paxos;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import metrics.Histogram;
+
+/**
+ * The latencies and counters of one Paxos group on this server, recorded by its roles as they run and read by the
+ * server's metrics endpoints (see server.ServerMetrics). Latencies are in nanoseconds:
+ * promise quorum: from sending PREPARE, for a slot or for leadership, until a quorum promised;
+ * accept quorum: from sending PROPOSE until a quorum accepted it, measured on the proposer;
+ * apply: from deciding a slot until it is applied, which includes waiting for the slots before it;
+ * write and read requests: from a client request arriving at this server until its reply is ready.
+ * Nothing here allocates while recording.
+ */
+public class PaxosMetrics {
+  // collects what the roles of no server record, e.g. in the benchmarks and the simulator
+  public static final PaxosMetrics UNEXPORTED = new PaxosMetrics();
+  private final Histogram promiseQuorumLatency = new Histogram();
+  private final Histogram acceptQuorumLatency = new Histogram();
+  private final Histogram applyLatency = new Histogram();
+  private final Histogram writeRequestLatency = new Histogram();
+  private final Histogram readRequestLatency = new Histogram();
+  // proposals given up because their slot went to another command, which is proposed again for a later slot
+  private final AtomicLong abandonedProposals = new AtomicLong();
+  // PROPOSE sent again for a slot still undecided, and PREPARE sent again after the promises timed out
+  private final AtomicLong retries = new AtomicLong();
+  // client commands that were never proposed or lost their slot, e.g. because the leader stepped down
+  private final AtomicLong abortedRequests = new AtomicLong();
+  private final AtomicLong maxQueueDepth = new AtomicLong();
+  private volatile IntSupplier queueDepth = () -> 0;
+
+  public Histogram getPromiseQuorumLatency() {
+    return promiseQuorumLatency;
+  }
+
+  public Histogram getAcceptQuorumLatency() {
+    return acceptQuorumLatency;
+  }
+
+  public Histogram getApplyLatency() {
+    return applyLatency;
+  }
+
+  public Histogram getWriteRequestLatency() {
+    return writeRequestLatency;
+  }
+
+  public Histogram getReadRequestLatency() {
+    return readRequestLatency;
+  }
+
+  public void countAbandonedProposal() {
+    abandonedProposals.incrementAndGet();
+  }
+
+  public long getAbandonedProposals() {
+    return abandonedProposals.get();
+  }
+
+  public void countRetry() {
+    retries.incrementAndGet();
+  }
+
+  public long getRetries() {
+    return retries.get();
+  }
+
+  public void countAbortedRequest() {
+    abortedRequests.incrementAndGet();
+  }
+
+  public long getAbortedRequests() {
+    return abortedRequests.get();
+  }
+
+  /**
+   * Sets where the current depth of the Acceptor's message queue is read from.
+   */
+  public void setQueueDepth(IntSupplier queueDepth) {
+    this.queueDepth = queueDepth;
+  }
+
+  public int getQueueDepth() {
+    return queueDepth.getAsInt();
+  }
+
+  /**
+   * Called with the depth of the Acceptor's message queue every time a message is queued.
+   */
+  public void recordQueueDepth(long depth) {
+    long current;
+    while (depth > (current = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(current, depth)) {
+      // another thread raised the maximum meanwhile, compare with the new one
+    }
+  }
+
+  public long getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+}
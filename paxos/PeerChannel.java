@@ -0,0 +1,104 @@
+package paxos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import common.ServerConfig;
+
+/**
+ * The outbound queue of a single peer. Messages are delivered in the order they were queued by at most one
+ * drain task at a time on the shared send executor, so a slow or dead peer only delays its own queue.
+ * The drain task waits COALESCE_MICROS for more messages unless the queue already holds a full batch, then sends up to
+ * COALESCE_MAX_MESSAGES of them in one call, so a busy peer gets few large sends instead of many tiny ones.
+ */
+class PeerChannel {
+  // messages queued beyond this bound are failed right away instead of piling up for a dead peer
+  private static final int MAX_QUEUED_MESSAGES = 10000;
+  private static final long COALESCE_NANOS = TimeUnit.MICROSECONDS.toNanos(ServerConfig.COALESCE_MICROS);
+  private static final int MAX_BATCH = Math.max(1, ServerConfig.COALESCE_MAX_MESSAGES);
+  private final int serverId;
+  private final Messenger messenger;
+  private final Executor executor;
+  private final ConcurrentLinkedQueue<Outbound> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicBoolean draining = new AtomicBoolean(false);
+
+  PeerChannel(int serverId, Messenger messenger, Executor executor) {
+    this.serverId = serverId;
+    this.messenger = messenger;
+    this.executor = executor;
+  }
+
+  /**
+   * Queues a message for this peer.
+   * @param message the message to deliver
+   * @return a future completed with whether the peer received the message
+   */
+  CompletableFuture<Boolean> enqueue(PaxosMessage message) {
+    if (queued.incrementAndGet() > MAX_QUEUED_MESSAGES) {
+      queued.decrementAndGet();
+      return CompletableFuture.completedFuture(false);
+    }
+    Outbound outbound = new Outbound(message);
+    queue.offer(outbound);
+    scheduleDrain();
+    return outbound.future;
+  }
+
+  int getQueuedCount() {
+    return queued.get();
+  }
+
+  private void scheduleDrain() {
+    if (draining.compareAndSet(false, true)) {
+      executor.execute(this::drain);
+    }
+  }
+
+  private void drain() {
+    try {
+      List<Outbound> batch = new ArrayList<>();
+      List<PaxosMessage> messages = new ArrayList<>();
+      while (!queue.isEmpty()) {
+        if (COALESCE_NANOS > 0 && queued.get() < MAX_BATCH) {
+          LockSupport.parkNanos(COALESCE_NANOS);
+        }
+        Outbound outbound;
+        while (batch.size() < MAX_BATCH && (outbound = queue.poll()) != null) {
+          queued.decrementAndGet();
+          batch.add(outbound);
+          messages.add(outbound.message);
+        }
+        boolean sent = messenger.sendPaxosMessages(serverId, messages);
+        for (Outbound sentOutbound : batch) {
+          sentOutbound.future.complete(sent);
+        }
+        batch.clear();
+        // the transport may still hold on to the list, e.g. when delivering to this server itself
+        messages = new ArrayList<>();
+      }
+    } finally {
+      draining.set(false);
+      // a message may have been queued after the last poll but before the flag was cleared
+      if (!queue.isEmpty()) {
+        scheduleDrain();
+      }
+    }
+  }
+
+  private static class Outbound {
+    private final PaxosMessage message;
+    private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+    private Outbound(PaxosMessage message) {
+      this.message = message;
+    }
+  }
+}
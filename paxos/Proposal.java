@@ -1,45 +1,50 @@
 package paxos;
 
 /**
- * Encapsulates a proposal in the Paxos protocol, which includes a unique identifier and the proposed value.
+ * Encapsulates a proposal in the Paxos protocol: the command a Proposer tries to get chosen for one log slot,
+ * together with the ballot it is trying with.
  */
 public class Proposal {
   private final ProposalID proposalID;
-  private final String key;
-  private final String value;
-  private final String operation;
+  private final long slot;
+  private final Command command;
 
-  public Proposal(ProposalID proposalID, String key, String value, String operation) {
+  public Proposal(ProposalID proposalID, long slot, Command command) {
     this.proposalID = proposalID;
-    this.key = key;
-    this.value = value;
-    this.operation = operation;
+    this.slot = slot;
+    this.command = command;
   }
 
   public ProposalID getProposalID() {
     return proposalID;
   }
 
+  public long getSlot() {
+    return slot;
+  }
+
+  public Command getCommand() {
+    return command;
+  }
+
   public String getKey() {
-    return key;
+    return command.getKey();
   }
 
   public String getValue() {
-    return value;
+    return command.getValue();
   }
 
   public String getOperation() {
-    return operation;
+    return command.getOperation();
   }
 
   @Override
   public String toString() {
     return "Proposal{" +
             "proposalID=" + proposalID +
-            ", key='" + key + '\'' +
-            ", value='" + value + '\'' +
-            ", operation='" + operation + '\'' +
+            ", slot=" + slot +
+            ", command=" + command +
             '}';
   }
 }
-
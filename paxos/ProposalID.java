@@ -1,25 +1,53 @@
 package paxos;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a unique identifier for a proposal in the Paxos protocol, which may include a sequence number and the identifier of the Proposer node.
+ * Ids are ordered by their number, and by the Proposer's id when the numbers are equal: the number only carries the
+ * last digit of the id, so servers 0 and 10 can generate the same number.
  */
 public class ProposalID implements Serializable, Comparable<ProposalID> {
   private static final long serialVersionUID = 1L;
   private final long number;
-  private int serverId;
+  private final int serverId;
 
   public ProposalID(int serverId) {
     this.serverId = serverId;
     this.number = generateUniqueNumber(serverId);
-}
+  }
 
-private long generateUniqueNumber(int serverId) {
-    // Assuming this generates a unique number based on server ID and timestamp
-    long timestamp = System.currentTimeMillis();
-    return timestamp * 10 + serverId; // Example implementation
-}
+  private ProposalID(long number, int serverId) {
+    this.number = number;
+    this.serverId = serverId;
+  }
+
+  /**
+   * Rebuilds a proposal id that was written to storage.
+   */
+  public static ProposalID of(long number, int serverId) {
+    return new ProposalID(number, serverId);
+  }
+
+  private static final AtomicLong lastTimestamp = new AtomicLong();
+
+  private long generateUniqueNumber(int serverId) {
+    // Timestamp based, but never repeats or goes backwards within this process so that a
+    // ballot generated later always wins over one generated (or witnessed) earlier
+    long now = System.currentTimeMillis();
+    long timestamp = lastTimestamp.updateAndGet(last -> Math.max(last + 1, now));
+    return timestamp * 10 + serverId;
+  }
+
+  /**
+   * Records a proposal id seen from another server, so the next id generated here is higher.
+   * @param other the proposal id received
+   */
+  public static void witness(ProposalID other) {
+    long otherTimestamp = other.number / 10;
+    lastTimestamp.updateAndGet(last -> Math.max(last, otherTimestamp));
+  }
 
   public long getNumber() {
     return this.number;
@@ -31,7 +59,8 @@ private long generateUniqueNumber(int serverId) {
   
   @Override
   public int compareTo(ProposalID other) {
-    return Long.compare(this.number, other.number);
+    int byNumber = Long.compare(this.number, other.number);
+    return byNumber != 0 ? byNumber : Integer.compare(this.serverId, other.serverId);
   }
 
   @Override
@@ -39,12 +68,12 @@ private long generateUniqueNumber(int serverId) {
       if (this == obj) return true;
       if (obj == null || getClass() != obj.getClass()) return false;
       ProposalID that = (ProposalID) obj;
-      return number == that.number;
+      return number == that.number && serverId == that.serverId;
     }
 
   @Override
   public int hashCode() {
-    return Long.hashCode(number);
+    return 31 * Long.hashCode(number) + serverId;
   }
 
   @Override
@@ -1,32 +1,145 @@
 package paxos;
 
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 import common.ServerConfig;
 import server.ServerLogger;
 
 /**
  * Implements the Proposer role in the Paxos protocol, responsible for initiating the proposal of values and driving the consensus process.
+ * Every command is proposed for a slot of the replicated log, and is moved to a later slot if another command
+ * is chosen for the slot it was proposed for. Up to ServerConfig.PIPELINE_WINDOW slots, and never more than
+ * ServerConfig.MEMBERSHIP_DELAY, are in flight at once; their state is kept in a fixed-size ring that is reused as the log gets applied.
+ * Promises count towards a majority of the group's members (see Membership); a leadership campaign needs a majority
+ * of every configuration governing a slot it covers, and the leader campaigns again once a change is applied.
  */
 public class Proposer{
   private Messenger messenger;
   private int serverId;
-  private static final int QUORUM_SIZE = ServerConfig.ALL_SERVERS.length / 2 + 1;
-  private final Map<ProposalID, Integer> promiseCounts = new ConcurrentHashMap<>();
-  private Map<ProposalID, MessagePromise> receivedPromises = new ConcurrentHashMap<>();
-  private Set<ProposalID> abandonedProposals = ConcurrentHashMap.newKeySet();  // Track abandoned proposals
-  private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-  private final Map<ProposalID, ScheduledFuture<?>> timeoutTasks = new ConcurrentHashMap<>();
-
-  public Proposer(int serverId, Messenger messenger) {
+  private Learner learner;
+  private static final long PROMISE_TIMEOUT_SECONDS = 5;
+  // how long a proposal may stay undecided before it is sent again
+  private static final long RETRY_MILLIS = 3000;
+  // how long a new command waits for room in a full window before it is rejected
+  private static final long SUBMIT_TIMEOUT_MILLIS = 10000;
+  // runs the retries, timeouts and commit notices, and tells the time; the simulator passes its virtual clock
+  private final ScheduledExecutorService scheduler;
+  private final LongSupplier clock;
+  private final InstanceWindow<Instance> window = new InstanceWindow<>(
+      Math.min(ServerConfig.PIPELINE_WINDOW, ServerConfig.MEMBERSHIP_DELAY));
+  // commands moved to a later slot and recovered slots, both proposed as soon as the window has room
+  private final Queue<Command> deferredCommands = new ConcurrentLinkedQueue<>();
+  private final ConcurrentSkipListMap<Long, Command> recoveryBacklog = new ConcurrentSkipListMap<>();
+  // Multi-Paxos leadership: the ballot being campaigned for and the ballot won, null while not leading
+  private volatile ProposalID campaignBallot;
+  private volatile long campaignStartedMillis;
+  private volatile long campaignStartedNanos;
+  private volatile long campaignFromSlot;
+  private volatile ProposalID leaderBallot;
+  // the last slot recovered when this node became leader; it may hold writes acknowledged by earlier leaders
+  private volatile long recoveredUpTo;
+  // the acceptors that promised the current campaign's ballot, and the configuration it was started in
+  private final Set<Integer> leaderPromisers = ConcurrentHashMap.newKeySet();
+  private volatile int[] campaignConfig;
+  // the highest-ballot entry per slot reported in the promises of the current campaign
+  private final Map<Long, LogEntry> recoveredEntries = new ConcurrentHashMap<>();
+  private final CommitNotifier commitNotifier;
+  private volatile PaxosMetrics metrics = PaxosMetrics.UNEXPORTED;
+
+  /**
+   * What this Proposer knows about one slot it proposed for.
+   */
+  private static class Instance {
+    private final Proposal proposal;
+    private boolean preparing;
+    private int promiseCount;
+    private MessagePromise highestPromise;
+    private volatile ScheduledFuture<?> timer;
+    // when its PREPARE or PROPOSE was sent
+    private final long startedNanos = System.nanoTime();
+
+    private Instance(Proposal proposal, boolean preparing) {
+      this.proposal = proposal;
+      this.preparing = preparing;
+    }
+  }
+
+  public Proposer(int serverId, Messenger messenger, Learner learner) {
+    this(serverId, messenger, learner, Executors.newScheduledThreadPool(1), System::currentTimeMillis);
+  }
+
+  public Proposer(int serverId, Messenger messenger, Learner learner, ScheduledExecutorService scheduler, LongSupplier clock) {
     this.serverId = serverId;
+    this.scheduler = scheduler;
+    this.clock = clock;
     this.messenger = messenger;
+    this.learner = learner;
+    this.commitNotifier = new CommitNotifier(serverId, messenger, scheduler);
+  }
+
+  public void setMetrics(PaxosMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Called by the Learner when a quorum of ACCEPTED messages decided a slot here. With ACCEPTED sent only to the
+   * Proposer, the other servers learn of it with the next PROPOSE or a commit message.
+   */
+  public void onQuorum(long slot, ProposalID ballot) {
+    Instance instance = window.get(slot);
+    if (instance != null && !instance.preparing && ballot.equals(instance.proposal.getProposalID())) {
+      metrics.getAcceptQuorumLatency().record(System.nanoTime() - instance.startedNanos);
+    }
+    if (ServerConfig.ACCEPTED_TO_PROPOSER) {
+      commitNotifier.onQuorum(slot, ballot);
+    }
+  }
+
+  /**
+   * Starts consensus on a command for the next free slot: straight to Phase 2 when leading in
+   * Multi-Paxos mode, full two-phase otherwise. Blocks while the window of in-flight slots is full.
+   * @param command the command to append to the log
+   * @return false if the command could not be proposed because this node is not the leader or the window stayed full
+   */
+  public boolean submit(Command command) {
+    if (ServerConfig.MULTI_PAXOS && leaderBallot == null) {
+      return false;
+    }
+    long slot;
+    try {
+      slot = window.acquire(learner.getHighestDecidedSlot() + 1, SUBMIT_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    if (slot < 0) {
+      ServerLogger.warn("Proposer" + this.serverId + " has " + window.inFlight() + " slots in flight, rejecting " + command);
+      return false;
+    }
+    return start(slot, command);
+  }
+
+  private boolean start(long slot, Command command) {
+    if (!ServerConfig.MULTI_PAXOS) {
+      prepare(new Proposal(new ProposalID(serverId), slot, command));
+      return true;
+    }
+    ProposalID ballot = leaderBallot;
+    if (ballot == null) {
+      return false;
+    }
+    sendPropose(new Proposal(ballot, slot, command));
+    return true;
   }
 
   /**
@@ -34,88 +147,325 @@ public class Proposer{
    * @param proposal
    */
   public void prepare(Proposal proposal) {
-    MessagePrepare prepare = new MessagePrepare(proposal.getProposalID(), proposal.getKey());
-    ServerLogger.log(prepare.getProposalID() + "Proposer" + this.serverId + " is starting PAXOS: preparing");
-    messenger.broadcastMessage(prepare);
+    MessagePrepare prepare = new MessagePrepare(proposal.getProposalID(), proposal.getSlot());
+    Instance instance = new Instance(proposal, true);
+    replace(instance);
+    scheduleTimeout(instance);
+    ServerLogger.log(prepare.getProposalID() + "Proposer" + this.serverId + " is starting PAXOS for slot " + proposal.getSlot() + ": preparing");
+    messenger.broadcastMessage(prepare).thenAccept(reached -> {
+      if (!reached) {
+        ServerLogger.warn(prepare.getProposalID() + ": PREPARE could not be delivered to a quorum, retrying after the timeout");
+      }
+    });
   }
 
   /**
    * The method to handle the promises from acceptors, and once get consensus, then start propose
    * @param promise the promise acceptor sends back
-   * @param proposal the original proposal
    */
-  public void propose(MessagePromise promise, Proposal proposal) {
-    // Early exit if the proposal ID has been abandoned
-    if (abandonedProposals.contains(promise.getProposalID())) {
-      ServerLogger.log("Ignoring promise for abandoned ProposalId: " + promise.getProposalID());
+  public void propose(MessagePromise promise) {
+    ProposalID proposalID = promise.getProposalID();
+    Instance instance = window.get(promise.getSlot());
+    if (instance == null || !proposalID.equals(instance.proposal.getProposalID())) {
+      ServerLogger.log("Ignoring promise for abandoned ProposalId: " + proposalID);
       return;
     }
-    Integer count = promiseCounts.compute(promise.getProposalID(), (key, val) -> {
-      if (val == null) {
-        scheduleTimeout(key);
-        val = 0;
+    MessagePromise highest;
+    synchronized (instance) {
+      if (!instance.preparing) {
+        ServerLogger.log("Promises quorum already reached for ProposalId: " + proposalID);
+        return;
       }
-      return val + 1;
-    });
+      // keep the promise that reports the highest previously accepted ballot
+      if (instance.highestPromise == null || promise.getPreviousAcceptedId() != null && (instance.highestPromise.getPreviousAcceptedId() == null
+          || promise.getPreviousAcceptedId().compareTo(instance.highestPromise.getPreviousAcceptedId()) > 0)) {
+        instance.highestPromise = promise;
+      }
+      if (!learner.getMembership().isMemberAt(promise.getServerId(), promise.getSlot())) {
+        return;
+      }
+      if (++instance.promiseCount < learner.getMembership().quorumAt(promise.getSlot())) {
+        return;
+      }
+      instance.preparing = false;
+      highest = instance.highestPromise;
+    }
+    metrics.getPromiseQuorumLatency().record(System.nanoTime() - instance.startedNanos);
+    cancelTimer(instance);
+    Proposal proposal = instance.proposal;
+    ServerLogger.log(proposalID + "Proposer" + this.serverId + " is starting PAXOS for slot " + proposal.getSlot() + ": proposing");
+    Command accepted = highest.getPreviousAcceptedValue();
+    if (accepted != null && !accepted.isSameRequest(proposal.getCommand())) {
+      // the slot may already have a chosen value: carry it on and move our command to a later slot
+      metrics.countAbandonedProposal();
+      sendPropose(new Proposal(proposalID, proposal.getSlot(), accepted));
+      resubmit(proposal.getCommand());
+    } else {
+      sendPropose(proposal);
+    }
+  }
+
+  private void sendPropose(Proposal proposal) {
+    Instance instance = new Instance(proposal, false);
+    replace(instance);
+    ProposalID ballot = proposal.getProposalID();
+    messenger.broadcastMessage(new MessagePropose(ballot, proposal.getSlot(), proposal.getCommand(), commitNotifier.drain(ballot)));
+    scheduleRetry(instance);
+  }
+
+  private void replace(Instance instance) {
+    Instance previous = window.get(instance.proposal.getSlot());
+    if (previous != null) {
+      cancelTimer(previous);
+    }
+    window.put(instance.proposal.getSlot(), instance);
+  }
+
+  /**
+   * Sends a proposal again if its slot is still undecided after a while. A former leader leaves it to
+   * the new leader, which recovers every slot it may have been accepted for.
+   */
+  private void scheduleRetry(Instance instance) {
+    instance.timer = scheduler.schedule(() -> {
+      Proposal proposal = instance.proposal;
+      long slot = proposal.getSlot();
+      if (window.get(slot) != instance || learner.isDecided(slot)) {
+        return;
+      }
+      if (!ServerConfig.MULTI_PAXOS) {
+        metrics.countRetry();
+        prepare(new Proposal(new ProposalID(serverId), slot, proposal.getCommand()));
+      } else if (proposal.getProposalID().equals(leaderBallot)) {
+        ServerLogger.log(proposal.getProposalID() + "Proposer" + this.serverId + " retries PROPOSE for slot " + slot);
+        metrics.countRetry();
+        sendPropose(proposal);
+        // a quorum may have promised a higher ballot to a candidate that lost, which only a new ballot gets past
+        if (clock.getAsLong() - campaignStartedMillis >= RETRY_MILLIS) {
+          campaign();
+        }
+      }
+    }, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+  }
 
-    // Early exit if a quorum has already been reached and decision made
-    if (count > QUORUM_SIZE) {
-      ServerLogger.log("Promises quorum already reached for ProposalId: " + promise.getProposalID());
+  /**
+   * Called by the Learner once a slot is decided. If another command won a slot we proposed for,
+   * our command is proposed again for a later slot.
+   * @param slot the decided slot
+   * @param command the command chosen for it
+   */
+  public void onDecided(long slot, Command command) {
+    Instance instance = window.remove(slot);
+    if (instance == null) {
       return;
     }
+    cancelTimer(instance);
+    Command proposed = instance.proposal.getCommand();
+    if (proposed.isSameRequest(command) || !learner.isAwaiting(proposed)) {
+      return;
+    }
+    ServerLogger.log("Slot " + slot + " was decided for another command, Proposer" + this.serverId + " proposes " + proposed + " again");
+    metrics.countAbandonedProposal();
+    resubmit(proposed);
+  }
 
-    if (!receivedPromises.containsKey(promise.getProposalID())) {
-      receivedPromises.put(promise.getProposalID(), promise);
-      } else {
-        ProposalID maxId = receivedPromises.get(promise.getProposalID()).getPreviousAcceptedId();
-        if (promise.getPreviousAcceptedId() != null && promise.getPreviousAcceptedId().compareTo(maxId) > 0) {
-          receivedPromises.put(promise.getProposalID(), promise);
+  /**
+   * Called by the Learner after it applied the log up to a slot, which frees that part of the window.
+   * @param appliedIndex the last applied slot
+   */
+  public void onApplied(long appliedIndex) {
+    window.advance(appliedIndex);
+    drainBacklog();
+    // the campaign that won covered the slots governed by the new members with a majority of the old ones only
+    if (leaderBallot != null && campaignConfig != learner.getMembership().latest()) {
+      ServerLogger.log("Proposer" + this.serverId + " campaigns again after the members changed to "
+          + Membership.format(learner.getMembership().latest()));
+      campaign();
+    }
+  }
+
+  /**
+   * Queues a command for a later slot. It must not wait for room in the window, since it is
+   * called from the threads that make the window move on.
+   */
+  private void resubmit(Command command) {
+    deferredCommands.offer(command);
+    drainBacklog();
+  }
+
+  /**
+   * Proposes recovered slots and then queued commands for as long as the window has room.
+   */
+  private synchronized void drainBacklog() {
+    Map.Entry<Long, Command> recovered;
+    while ((recovered = recoveryBacklog.firstEntry()) != null && window.hasCapacity(recovered.getKey())) {
+      recoveryBacklog.remove(recovered.getKey());
+      ProposalID ballot = leaderBallot;
+      if (ballot == null) {
+        // the next leader recovers these slots itself
+        recoveryBacklog.clear();
+        break;
+      }
+      if (!learner.isDecided(recovered.getKey())) {
+        sendPropose(new Proposal(ballot, recovered.getKey(), recovered.getValue()));
+      }
+    }
+    Command command;
+    while ((command = deferredCommands.peek()) != null) {
+      if (ServerConfig.MULTI_PAXOS && leaderBallot == null) {
+        learner.abortRequest(deferredCommands.poll());
+        continue;
+      }
+      long slot = window.tryAcquire(learner.getHighestDecidedSlot() + 1);
+      if (slot < 0) {
+        break;
+      }
+      deferredCommands.poll();
+      if (!start(slot, command)) {
+        learner.abortRequest(command);
       }
     }
+  }
+
+  /**
+   * Starts a Multi-Paxos election: Phase 1 with a new ballot covering every slot not applied here yet.
+   */
+  public synchronized void campaign() {
+    ProposalID ballot = new ProposalID(serverId);
+    leaderPromisers.clear();
+    recoveredEntries.clear();
+    campaignFromSlot = learner.getAppliedIndex() + 1;
+    campaignConfig = learner.getMembership().latest();
+    campaignBallot = ballot;
+    campaignStartedMillis = clock.getAsLong();
+    campaignStartedNanos = System.nanoTime();
+    ServerLogger.log(ballot + ": Proposer" + this.serverId + " is campaigning for leadership from slot " + campaignFromSlot);
+    messenger.broadcastMessage(MessagePrepare.forLeadership(ballot, campaignFromSlot));
+  }
 
-    if (count == QUORUM_SIZE) {
-      cancelTimeout(promise.getProposalID());
-      ServerLogger.log(promise.getProposalID() + "Proposer" + this.serverId + " is starting PAXOS: proposing");
-      if (receivedPromises.get(promise.getProposalID()) != null && receivedPromises.get(promise.getProposalID()).getPreviousAcceptedId() != null) {
-        String acceptedValue = receivedPromises.get(promise.getProposalID()).getPreviousAcceptedValue();
-        MessagePropose accept = new MessagePropose(promise.getProposalID(), proposal.getKey(), acceptedValue, proposal.getOperation());
-        messenger.broadcastMessage(accept);
+  /**
+   * Counts a promise for the current campaign. Once a quorum promised, every slot that may have a
+   * chosen value is proposed again under the new ballot and the gaps between them are filled with no-ops.
+   * Slots beyond the window are proposed as the window moves on.
+   * @param promise a leadership promise from an acceptor
+   * @return true if this promise completed the quorum and this node is now the leader
+   */
+  public synchronized boolean handleLeaderPromise(MessagePromise promise) {
+    ProposalID ballot = promise.getProposalID();
+    if (!ballot.equals(campaignBallot) || ballot.equals(leaderBallot)) {
+      return false;
+    }
+    for (LogEntry entry : promise.getAcceptedEntries()) {
+      recoveredEntries.merge(entry.getSlot(), entry,
+          (current, candidate) -> candidate.getBallot().compareTo(current.getBallot()) > 0 ? candidate : current);
+    }
+    leaderPromisers.add(promise.getServerId());
+    for (int[] members : learner.getMembership().configsFrom(campaignFromSlot)) {
+      int promised = 0;
+      for (int member : members) {
+        if (leaderPromisers.contains(member)) {
+          promised++;
+        }
+      }
+      if (promised < members.length / 2 + 1) {
+        return false;
+      }
+    }
+    // a leader campaigning again, e.g. after the members changed, may have proposed slots under its previous ballot
+    long lastSlot = Math.max(campaignFromSlot - 1, Math.max(learner.getHighestDecidedSlot(), window.getLastAssigned()));
+    for (long slot : recoveredEntries.keySet()) {
+      lastSlot = Math.max(lastSlot, slot);
+    }
+    window.resetLastAssigned(lastSlot);
+    recoveredUpTo = lastSlot;
+    leaderBallot = ballot;
+    metrics.getPromiseQuorumLatency().record(System.nanoTime() - campaignStartedNanos);
+    ServerLogger.log(ballot + ": Proposer" + this.serverId + " has been elected leader, recovering slots " + campaignFromSlot + " to " + lastSlot);
+    recoveryBacklog.clear();
+    for (long slot = campaignFromSlot; slot <= lastSlot; slot++) {
+      if (learner.isDecided(slot)) {
+        continue;
+      }
+      LogEntry entry = recoveredEntries.get(slot);
+      Instance own = window.get(slot);
+      if (entry != null) {
+        recoveryBacklog.put(slot, entry.getCommand());
+      } else if (own != null && learner.isAwaiting(own.proposal.getCommand())) {
+        // no promising acceptor accepted anything for it, so the command proposed here before is as good as a no-op
+        recoveryBacklog.put(slot, own.proposal.getCommand());
       } else {
-        MessagePropose accept = new MessagePropose(proposal.getProposalID(), proposal.getKey(), proposal.getValue(), proposal.getOperation());
-        messenger.broadcastMessage(accept);
+        recoveryBacklog.put(slot, Command.noop());
       }
     }
+    recoveredEntries.clear();
+    drainBacklog();
+    return true;
   }
 
   /**
-   * A time out method for collecting promises from acceptors.
-   * @param proposalID
+   * Gives up leadership after another node showed a higher ballot.
+   * @param higherBallot the ballot that superseded ours
    */
-  private void scheduleTimeout(ProposalID proposalID) {
-    ScheduledFuture<?> timeoutTask = scheduler.schedule(() -> {
-      if (promiseCounts.getOrDefault(proposalID, 0) < QUORUM_SIZE) {
-        ServerLogger.log("Timeout without reaching quorum for ProposalId: " + proposalID);
-        abandonedProposals.add(proposalID);
-      }
-    }, 30, TimeUnit.SECONDS);
-    timeoutTasks.put(proposalID, timeoutTask);
+  public void stepDown(ProposalID higherBallot) {
+    ServerLogger.warn("Proposer" + this.serverId + " steps down as leader, superseded by " + higherBallot);
+    leaderBallot = null;
   }
 
-  private void cancelTimeout(ProposalID proposalID) {
-    ScheduledFuture<?> timeoutTask = timeoutTasks.remove(proposalID);
-    if (timeoutTask != null) {
-      timeoutTask.cancel(false);
-    }
+  /**
+   * Gives up leadership after this node was removed from the group.
+   */
+  public void resign() {
+    ServerLogger.warn("Proposer" + this.serverId + " steps down as leader, it is no longer a member");
+    leaderBallot = null;
   }
-  public void shutdownScheduler() {
-    scheduler.shutdown();
-    try {
-      if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-          scheduler.shutdownNow();
+
+  public boolean isLeader() {
+    return leaderBallot != null;
+  }
+
+  public ProposalID getLeaderBallot() {
+    return leaderBallot;
+  }
+
+  /**
+   * @return the last slot recovered in the election this node won
+   */
+  public long getRecoveredUpTo() {
+    return recoveredUpTo;
+  }
+
+  /**
+   * @return the number of slots handed out but not applied yet
+   */
+  public long getInFlightCount() {
+    return window.inFlight();
+  }
+
+  /**
+   * A time out method for collecting promises from acceptors. A proposal that times out is
+   * prepared again with a new ballot unless its slot got decided meanwhile.
+   * @param instance the slot waiting for promises
+   */
+  private void scheduleTimeout(Instance instance) {
+    instance.timer = scheduler.schedule(() -> {
+      Proposal proposal = instance.proposal;
+      synchronized (instance) {
+        if (!instance.preparing || window.get(proposal.getSlot()) != instance) {
+          return;
+        }
+        instance.preparing = false;
       }
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+      ServerLogger.log("Timeout without reaching quorum for ProposalId: " + proposal.getProposalID());
+      if (!learner.isDecided(proposal.getSlot())) {
+        metrics.countRetry();
+        prepare(new Proposal(new ProposalID(serverId), proposal.getSlot(), proposal.getCommand()));
+      }
+    }, PROMISE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  private void cancelTimer(Instance instance) {
+    ScheduledFuture<?> timer = instance.timer;
+    if (timer != null) {
+      timer.cancel(false);
     }
   }
 }
-
@@ -0,0 +1,123 @@
+package paxos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import server.ServerLogger;
+
+/**
+ * Sits in front of the Proposer and coalesces client commands arriving close together into one batched command,
+ * so a burst of writes costs a single Paxos instance. A batch is proposed once the first command in it has waited
+ * for the batch window, or as soon as it reaches the size cap.
+ * A full batch is proposed on the thread that filled it; one whose window ended is handed to an executor, since
+ * proposing waits while the pipeline is full and the timer thread is shared with the other groups.
+ */
+public class RequestBatcher {
+  private final int serverId;
+  private final Proposer proposer;
+  private final Learner learner;
+  private final long windowMillis;
+  private final int maxSize;
+  private final ScheduledExecutorService scheduler;
+  private final Executor executor;
+  private List<Command> pending = new ArrayList<>();
+  private ScheduledFuture<?> flushTask;
+
+  public RequestBatcher(int serverId, Proposer proposer, Learner learner, long windowMillis, int maxSize,
+                        ScheduledExecutorService scheduler, Executor executor) {
+    this.serverId = serverId;
+    this.scheduler = scheduler;
+    this.executor = executor;
+    this.proposer = proposer;
+    this.learner = learner;
+    this.windowMillis = windowMillis;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Adds a command to the current batch. The caller learns the outcome through its completion future in the Learner.
+   * @param command the client command
+   */
+  public void submit(Command command) {
+    if (windowMillis <= 0 || maxSize <= 1) {
+      propose(command);
+      return;
+    }
+    List<Command> full = null;
+    synchronized (this) {
+      pending.add(command);
+      if (pending.size() >= maxSize) {
+        full = drain();
+      } else if (pending.size() == 1) {
+        flushTask = scheduler.schedule(this::flushLater, windowMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full != null) {
+      propose(full);
+    }
+  }
+
+  private void flush() {
+    List<Command> batch;
+    synchronized (this) {
+      batch = drain();
+    }
+    if (!batch.isEmpty()) {
+      propose(batch);
+    }
+  }
+
+  private void flushLater() {
+    try {
+      executor.execute(this::flush);
+    } catch (RejectedExecutionException e) {
+      List<Command> batch;
+      synchronized (this) {
+        batch = drain();
+      }
+      ServerLogger.warn("Server" + serverId + " is busy, aborting a batch of " + batch.size() + " commands");
+      batch.forEach(learner::abortRequest);
+    }
+  }
+
+  private List<Command> drain() {
+    if (flushTask != null) {
+      flushTask.cancel(false);
+      flushTask = null;
+    }
+    List<Command> batch = pending;
+    pending = new ArrayList<>();
+    return batch;
+  }
+
+  private void propose(List<Command> batch) {
+    if (batch.size() == 1) {
+      propose(batch.get(0));
+      return;
+    }
+    ServerLogger.log("Server" + serverId + " proposes a batch of " + batch.size() + " commands");
+    propose(Command.batch(batch));
+  }
+
+  private void propose(Command command) {
+    if (!proposer.submit(command)) {
+      learner.abortRequest(command);
+    }
+  }
+
+  /**
+   * Aborts the commands still waiting for their batch, as the server's timers are already stopped.
+   */
+  public void shutdown() {
+    List<Command> batch;
+    synchronized (this) {
+      batch = drain();
+    }
+    batch.forEach(learner::abortRequest);
+  }
+}
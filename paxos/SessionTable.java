@@ -0,0 +1,204 @@
+package paxos;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.ServerConfig;
+import server.KeyValueStore;
+
+/**
+ * The replicated deduplication table of client sessions: for every client, the highest sequence number applied and
+ * which of the ServerConfig.SESSION_WINDOW seqs up to it were applied and changed the store, so their replies can be
+ * given again. Only the Learner changes it, while applying the log, so every replica holds the same table after the
+ * same slot. A write whose seq was applied already is a retry and is not applied again; neither is one too far below
+ * the highest to tell, so writes a client has outstanding together may be applied in any order as long as it keeps
+ * them within the window.
+ * Sessions expire after timeoutMillis without a write, measured with the leader timestamps in the log rather than the
+ * local clock, so all replicas expire the same sessions at the same slot; a retry arriving later starts a new session
+ * and is applied again. Each session is kept in the store under STORE_PREFIX followed by the client id, so snapshots
+ * carry the table along.
+ */
+public class SessionTable {
+  // not a key a client can be expected to use, like Membership.STORE_KEY
+  public static final String STORE_PREFIX = "\u0000session:";
+  private final KeyValueStore store;
+  private final long timeoutMillis;
+  // ordered by the last write, the session idle longest first
+  private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<>();
+  // the highest leader timestamp applied so far
+  private long clock;
+
+  /**
+   * The writes applied for a client among its last ServerConfig.SESSION_WINDOW seqs.
+   */
+  public static class Session {
+    // the highest seq applied
+    private final long seq;
+    private final long lastActive;
+    // bit seq % SESSION_WINDOW stands for a seq in the window: whether its write was applied, and whether it changed
+    // the store
+    private final BitSet applied;
+    private final BitSet succeeded;
+
+    private Session(long seq, long lastActive, BitSet applied, BitSet succeeded) {
+      this.seq = seq;
+      this.lastActive = lastActive;
+      this.applied = applied;
+      this.succeeded = succeeded;
+    }
+
+    public long getSeq() {
+      return seq;
+    }
+
+    /**
+     * @return whether the write was applied, false if not (yet) or too long before the highest to be known
+     */
+    public boolean isApplied(long seq) {
+      return seq <= this.seq && isKnown(seq) && applied.get(bit(seq));
+    }
+
+    /**
+     * @return whether the write changed the store, false for a DELETE of a missing key
+     */
+    public boolean isSuccess(long seq) {
+      return isApplied(seq) && succeeded.get(bit(seq));
+    }
+
+    /**
+     * @return whether the seq is recent enough for the session to know if its write was applied
+     */
+    public boolean isKnown(long seq) {
+      return seq > this.seq - ServerConfig.SESSION_WINDOW;
+    }
+
+    private static int bit(long seq) {
+      return (int) (seq % ServerConfig.SESSION_WINDOW);
+    }
+
+    private Session record(long seq, long lastActive, boolean success) {
+      BitSet applied = (BitSet) this.applied.clone();
+      BitSet succeeded = (BitSet) this.succeeded.clone();
+      // the seqs the window moves over have not been applied yet
+      for (long next = this.seq + 1; next < seq && next <= this.seq + ServerConfig.SESSION_WINDOW; next++) {
+        applied.clear(bit(next));
+        succeeded.clear(bit(next));
+      }
+      applied.set(bit(seq));
+      succeeded.set(bit(seq), success);
+      return new Session(Math.max(this.seq, seq), lastActive, applied, succeeded);
+    }
+
+    private static Session first(long seq, long lastActive, boolean success) {
+      BitSet applied = new BitSet(ServerConfig.SESSION_WINDOW);
+      BitSet succeeded = new BitSet(ServerConfig.SESSION_WINDOW);
+      applied.set(bit(seq));
+      succeeded.set(bit(seq), success);
+      return new Session(seq, lastActive, applied, succeeded);
+    }
+
+    private String encode() {
+      return seq + ";" + lastActive + ";" + encode(applied) + ";" + encode(succeeded);
+    }
+
+    private static String encode(BitSet bits) {
+      StringBuilder encoded = new StringBuilder();
+      for (long word : bits.toLongArray()) {
+        encoded.append(encoded.length() == 0 ? "" : ",").append(word);
+      }
+      return encoded.toString();
+    }
+
+    private static Session decode(String encoded) {
+      String[] fields = encoded.split(";", 4);
+      return new Session(Long.parseLong(fields[0]), Long.parseLong(fields[1]), decodeBits(fields[2]), decodeBits(fields[3]));
+    }
+
+    private static BitSet decodeBits(String encoded) {
+      if (encoded.isEmpty()) {
+        return new BitSet(ServerConfig.SESSION_WINDOW);
+      }
+      String[] words = encoded.split(",");
+      long[] bits = new long[words.length];
+      for (int i = 0; i < words.length; i++) {
+        bits[i] = Long.parseLong(words[i]);
+      }
+      return BitSet.valueOf(bits);
+    }
+  }
+
+  public SessionTable(KeyValueStore store, long timeoutMillis) {
+    this.store = store;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * @return the writes applied for a client, null if it has no session (any more)
+   */
+  public synchronized Session get(String clientId) {
+    return sessions.get(clientId);
+  }
+
+  public synchronized int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Called by the Learner before it applies a write of a session, in log order. Expires the sessions idle for too
+   * long at the command's timestamp first.
+   * @return whether the write is to be applied, false for a retry of a write already applied or for one too long
+   *         before the highest applied to tell
+   */
+  public synchronized boolean isNew(Command command) {
+    clock = Math.max(clock, command.getTimestamp());
+    expire();
+    Session session = sessions.get(command.getClientId());
+    return session == null || (session.isKnown(command.getSeq()) && !session.isApplied(command.getSeq()));
+  }
+
+  /**
+   * Records a write the Learner applied in its session.
+   * @param success whether it changed the store
+   */
+  public synchronized void record(Command command, boolean success) {
+    String clientId = command.getClientId();
+    Session session = sessions.remove(clientId);
+    session = session == null
+        ? Session.first(command.getSeq(), clock, success)
+        : session.record(command.getSeq(), clock, success);
+    sessions.put(clientId, session);
+    store.putMetadata(STORE_PREFIX + clientId, session.encode());
+  }
+
+  private void expire() {
+    Iterator<Map.Entry<String, Session>> idlest = sessions.entrySet().iterator();
+    while (idlest.hasNext()) {
+      Map.Entry<String, Session> session = idlest.next();
+      if (session.getValue().lastActive >= clock - timeoutMillis) {
+        break;
+      }
+      idlest.remove();
+      store.deleteMetadata(STORE_PREFIX + session.getKey());
+    }
+  }
+
+  /**
+   * Rebuilds the table from the store, e.g. after a snapshot was loaded.
+   */
+  public synchronized void restore() {
+    List<Map.Entry<String, Session>> restored = new ArrayList<>();
+    store.forEachWithPrefix(STORE_PREFIX, (key, value) ->
+        restored.add(Map.entry(key.substring(STORE_PREFIX.length()), Session.decode(value))));
+    restored.sort((a, b) -> Long.compare(a.getValue().lastActive, b.getValue().lastActive));
+    sessions.clear();
+    clock = 0;
+    for (Map.Entry<String, Session> session : restored) {
+      sessions.put(session.getKey(), session.getValue());
+      clock = Math.max(clock, session.getValue().lastActive);
+    }
+  }
+}
@@ -1,52 +1,86 @@
 package paxos;
 
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import server.ServerLogger;
 
 /**
- * Manages the lifecycle of threads, particularly for the Acceptor role, by monitoring and restarting threads that simulate failure
+ * Manages the lifecycle of the Acceptor, which simulates failures: after working for a random time it fails with a
+ * small chance, and is restored from its write-ahead log and restarted after a recovery delay. It runs on timers and
+ * executors shared with the other groups.
  */
-public class ThreadManager implements Runnable {
-  private Thread acceptorThread;
-  private Acceptor acceptor;
-  private volatile boolean running = true;
-
+public class ThreadManager {
+  // the acceptor works between 5 and 15 seconds before it may fail, with a chance of 5%
+  private static final int MIN_WORK_MILLIS = 5000;
+  private static final int MAX_WORK_MILLIS = 15000;
+  private static final double FAILURE_CHANCE = 0.05;
+  // Deliberate delay to simulate recovery time
+  private static final long RECOVERY_MILLIS = 5000;
+  // how often the acceptor is checked on
+  private static final long CHECK_MILLIS = 100;
+  private final Acceptor acceptor;
+  private final Executor executor;
+  private final ScheduledExecutorService scheduler;
+  private final Random random = new Random();
+  private volatile long workUntilMillis;
+  // when a failed acceptor is restarted, 0 while it runs
+  private volatile long restartAtMillis;
+  private ScheduledFuture<?> check;
 
-
-  public ThreadManager(Acceptor acceptor) {
-    this.acceptorThread = new Thread(acceptor);
+  /**
+   * @param executor processes the acceptor's messages and restores its state
+   * @param scheduler checks on the acceptor
+   */
+  public ThreadManager(Acceptor acceptor, Executor executor, ScheduledExecutorService scheduler) {
     this.acceptor = acceptor;
-    this.acceptorThread.start();
+    this.executor = executor;
+    this.scheduler = scheduler;
   }
 
-  @Override
-  public void run() {
-    while (running) {
-      if (acceptorThread != null && !acceptorThread.isAlive()) {
-        try {
-          // Deliberate delay to simulate recovery time
-          Thread.sleep(5000);
-        } catch (InterruptedException e) {
-          running = false;
-          Thread.currentThread().interrupt();
-          return;
+  public void start() {
+    workUntilMillis = System.currentTimeMillis() + nextWorkMillis();
+    acceptor.start(executor);
+    check = scheduler.scheduleWithFixedDelay(this::check, CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void check() {
+    long now = System.currentTimeMillis();
+    if (acceptor.isRunning()) {
+      if (now >= workUntilMillis) {
+        if (random.nextDouble() < FAILURE_CHANCE) {
+          acceptor.fail();
         }
-        // Restart the Acceptor by creating a new instance and new thread
-        restartAcceptor();
-        ServerLogger.warn("Acceptor" + this.acceptor.getServerId() + " thread restarted after failure.");
+        workUntilMillis = now + nextWorkMillis();
       }
+    } else if (restartAtMillis == 0) {
+      restartAtMillis = now + RECOVERY_MILLIS;
+    } else if (now >= restartAtMillis) {
+      // replaying the log reads files, so it does not hold up the timers
+      restartAtMillis = Long.MAX_VALUE;
+      executor.execute(this::restartAcceptor);
     }
   }
 
   private void restartAcceptor() {
-    acceptor.clearStates();
-    acceptorThread = new Thread(acceptor);
-    acceptorThread.start();
+    acceptor.restoreStates();
+    acceptor.start(executor);
+    workUntilMillis = System.currentTimeMillis() + nextWorkMillis();
+    restartAtMillis = 0;
+    ServerLogger.warn("Acceptor" + this.acceptor.getServerId() + " restarted after failure.");
+  }
+
+  private long nextWorkMillis() {
+    return MIN_WORK_MILLIS + random.nextInt(MAX_WORK_MILLIS - MIN_WORK_MILLIS);
   }
 
   public void stop() {
-    running = false;
-    if (acceptorThread != null && acceptorThread.isAlive()) {
-      acceptorThread.interrupt();
+    if (check != null) {
+      check.cancel(false);
     }
+    acceptor.stop();
   }
 }
@@ -28,7 +28,7 @@ sleep 2
 for i in {1..5}
 do
   echo "Starting server instance $i..."
-  java -cp . server.ServerApp $CENTRAL_REGISTRY_HOST $RMI_PORT "$i" &
+  java $JAVA_OPTS -cp . server.ServerApp $CENTRAL_REGISTRY_HOST $RMI_PORT "$i" &
   SERVER_PIDS+=($!)
 done
 
@@ -0,0 +1,71 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import common.ServerConfig;
+
+/**
+ * The threads shared by every PaxosGroup of a server, created once by the PaxosNode, so the number of threads does
+ * not grow with the number of shards. All of them are daemon threads.
+ */
+public class GroupExecutors {
+  // timers: proposal retries, commit notices, heartbeats, batch windows, lag checks and simulated acceptor failures;
+  // a task on it never blocks, work that may is handed to one of the executors below
+  private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, daemon("paxos-timer"));
+  // processes the messages queued for the acceptors, each acceptor on at most one thread at a time
+  private final ExecutorService acceptors = Executors.newFixedThreadPool(
+      Math.max(1, Math.min(ServerConfig.SHARDS, Runtime.getRuntime().availableProcessors())), daemon("paxos-acceptor"));
+  // snapshots and catching up, which take long and call other servers
+  private final ExecutorService background = Executors.newFixedThreadPool(2, daemon("paxos-background"));
+  // asynchronous requests and the batches proposed once their window ends; once the queue is full, work is refused
+  private final ExecutorService requests = new ThreadPoolExecutor(ServerConfig.REQUEST_THREADS, ServerConfig.REQUEST_THREADS,
+      0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(ServerConfig.REQUEST_QUEUE), daemon("paxos-request"));
+
+  private static ThreadFactory daemon(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  public ScheduledExecutorService getScheduler() {
+    return scheduler;
+  }
+
+  public ExecutorService getAcceptors() {
+    return acceptors;
+  }
+
+  public ExecutorService getBackground() {
+    return background;
+  }
+
+  public ExecutorService getRequests() {
+    return requests;
+  }
+
+  /**
+   * Stops taking work, drops the pending timers and waits for the acceptors to finish, before the groups close their
+   * logs.
+   */
+  public void shutdown() {
+    requests.shutdown();
+    scheduler.shutdownNow();
+    acceptors.shutdown();
+    background.shutdownNow();
+    try {
+      if (!acceptors.awaitTermination(5, TimeUnit.SECONDS)) {
+        acceptors.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -1,9 +1,12 @@
 package server;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
 public class KeyValueStore {
   private final ConcurrentHashMap<String, String> store = new ConcurrentHashMap<>();
+  // while a snapshot is being written, every write first saves the value it replaces into it
+  private volatile StoreSnapshot activeSnapshot;
   
   /**
    * Inserts or updates a key-value pair into the store.
@@ -15,7 +18,7 @@ public class KeyValueStore {
    */
   public String put(String key, String value){
     ServerLogger.log(new Response(true, "PUT", "[key]" + key + " added/updated").toString());
-    return store.put(key, value);
+    return write(key, value);
   }
 
   /**
@@ -41,11 +44,108 @@ public class KeyValueStore {
    */
   public String delete(String key) {
     
-    String value = store.remove(key);
+    String value = write(key, null);
     Response res = (value != null)
       ? new Response(true, "DELETE", "[key]" + key + " deleted")
       : new Response(false, "DELETE", "[key]" + key +" not found");
     ServerLogger.log(res.toString());
     return value;
   }
+
+  /**
+   * Writes state the servers keep in the store next to the clients' keys, e.g. the members of the group, without
+   * logging it as a client write. It is part of snapshots like any other key.
+   */
+  public void putMetadata(String key, String value) {
+    write(key, value);
+  }
+
+  public void deleteMetadata(String key) {
+    write(key, null);
+  }
+
+  /**
+   * Visits every key starting with the prefix, e.g. the reserved keys of state kept with putMetadata.
+   */
+  public void forEachWithPrefix(String prefix, BiConsumer<String, String> action) {
+    store.forEach((key, value) -> {
+      if (key.startsWith(prefix)) {
+        action.accept(key, value);
+      }
+    });
+  }
+
+  private String write(String key, String value) {
+    StoreSnapshot snapshot = activeSnapshot;
+    if (snapshot == null) {
+      return value != null ? store.put(key, value) : store.remove(key);
+    }
+    String[] previous = new String[1];
+    // the old value is saved under the same lock the snapshot reads the key with
+    store.compute(key, (k, old) -> {
+      snapshot.savePreImage(k, old);
+      previous[0] = old;
+      return value;
+    });
+    return previous[0];
+  }
+
+  /**
+   * Starts a point-in-time snapshot of the store without stopping writes. Writes after this call copy the value they
+   * replace into the snapshot, so it only holds the keys changed while it is open. The caller must make sure no
+   * write runs concurrently with this call and must close the snapshot when done.
+   * @param index the last log slot applied to the store
+   * @return the snapshot
+   */
+  public synchronized StoreSnapshot beginSnapshot(long index) {
+    if (activeSnapshot != null) {
+      throw new IllegalStateException("A snapshot of the store is already open at slot " + activeSnapshot.getIndex());
+    }
+    StoreSnapshot snapshot = new StoreSnapshot(this, index);
+    activeSnapshot = snapshot;
+    return snapshot;
+  }
+
+  synchronized void endSnapshot(StoreSnapshot snapshot) {
+    if (activeSnapshot == snapshot) {
+      activeSnapshot = null;
+    }
+  }
+
+  /**
+   * Visits every key with its value at the time the snapshot began.
+   */
+  void forEachAt(StoreSnapshot snapshot, BiConsumer<String, String> action) {
+    String[] value = new String[1];
+    for (String key : store.keySet()) {
+      value[0] = null;
+      store.computeIfPresent(key, (k, current) -> {
+        value[0] = snapshot.valueAt(k, current);
+        return current;
+      });
+      if (value[0] != null) {
+        action.accept(key, value[0]);
+      }
+    }
+    // keys changed since are visited with their old value, possibly a second time with the same value
+    snapshot.forEachPreImage(action);
+  }
+
+  /**
+   * Drops every key, e.g. before a snapshot from another server is loaded.
+   */
+  public void clear() {
+    store.clear();
+  }
+
+  /**
+   * Loads a key of a snapshot without logging it.
+   */
+  public void restore(String key, String value) {
+    store.put(key, value);
+  }
+
+  public int size() {
+    return store.size();
+  }
 }
@@ -0,0 +1,72 @@
+package server;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.IPaxosNode;
+import common.ServerConfig;
+
+/**
+ * Runs every server of ServerConfig.ALL_SERVER_IDs as a PaxosNode in this JVM, with an RMI registry of its own on the
+ * given port, for benchmarks and experiments. The nodes still talk to each other and to clients over the loopback
+ * interface, through the configured transport, exactly as separate server processes would.
+ */
+public class LocalCluster implements AutoCloseable {
+  private final Registry registry;
+  private final List<PaxosNode> nodes = new ArrayList<>();
+
+  /**
+   * Creates the registry, starts and registers the nodes, and returns once every shard has a leader or the timeout
+   * passed.
+   */
+  public LocalCluster(int registryPort, long leaderTimeoutMillis) throws RemoteException, InterruptedException {
+    registry = LocateRegistry.createRegistry(registryPort);
+    for (int serverId : ServerConfig.ALL_SERVER_IDs) {
+      PaxosNode node = new PaxosNode("localhost", registryPort, serverId);
+      registry.rebind("KeyValueService" + serverId, node);
+      nodes.add(node);
+    }
+    long deadline = System.currentTimeMillis() + leaderTimeoutMillis;
+    while (!hasLeaders() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+    ServerLogger.log("Local cluster of " + nodes.size() + " servers is up on registry port " + registryPort
+        + (hasLeaders() ? "" : ", but not every shard has a leader yet"));
+  }
+
+  public boolean hasLeaders() throws RemoteException {
+    int[] leaders = nodes.get(0).getLeaders();
+    for (int leader : leaders) {
+      if (leader == -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public List<IPaxosNode> getNodes() {
+    return new ArrayList<>(nodes);
+  }
+
+  @Override
+  public void close() {
+    for (PaxosNode node : nodes) {
+      node.shutdown();
+      try {
+        UnicastRemoteObject.unexportObject(node, true);
+      } catch (NoSuchObjectException e) {
+        // already unexported
+      }
+    }
+    try {
+      UnicastRemoteObject.unexportObject(registry, true);
+    } catch (NoSuchObjectException e) {
+      // already unexported
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a server's metrics as plain text on http://localhost:<port>/metrics, in the Prometheus text format. It
+ * listens on the loopback interface only, and renders the metrics on its own thread when asked for them.
+ */
+public class MetricsEndpoint {
+  private final HttpServer httpServer;
+
+  public MetricsEndpoint(int port, ServerMetrics metrics) throws IOException {
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    httpServer.createContext("/metrics", exchange -> respond(exchange, metrics));
+    httpServer.start();
+  }
+
+  private static void respond(HttpExchange exchange, ServerMetrics metrics) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  public int getPort() {
+    return httpServer.getAddress().getPort();
+  }
+
+  public void close() {
+    httpServer.stop(0);
+  }
+}
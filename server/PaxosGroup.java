@@ -0,0 +1,732 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.IntStream;
+
+import common.ClientRequest;
+import common.DecidedEntries;
+import common.IClientCallback;
+import common.ReadConsistency;
+import common.ReplicaStatus;
+import common.ServerConfig;
+import common.SnapshotChunk;
+import metrics.Histogram;
+import paxos.*;
+import storage.SegmentedLog;
+import storage.WriteAheadLog;
+
+/**
+ * One Paxos group on this server: the Proposer, Acceptor and Learner replicating one shard of the keyspace, with its
+ * own leader, logs, snapshots and store. Group 0 keeps its files directly in the server's data directory, group g in
+ * its subdirectory shard<g>. The PaxosNode routes every request and message to the group it belongs to.
+ */
+public class PaxosGroup {
+  private final int serverId;
+  private final int groupId;
+  // how this group's replica is called in the logs
+  private final String name;
+  private Proposer proposer;
+  private Acceptor acceptor;
+  private Learner learner;
+  private Messenger messenger;
+  private KeyValueStore keyValueStore = new KeyValueStore();
+  private static final int TIMEOUT_WAITING_LEARNER = 60;
+  private ThreadManager threadManager;
+  private LeaderElector leaderElector;
+  private RequestBatcher batcher;
+  private WriteAheadLog wal;
+  private SegmentedLog learnedLog;
+  private SnapshotManager snapshots;
+  private StateTransfer stateTransfer;
+  private final PaxosMetrics metrics = new PaxosMetrics();
+  // runs asynchronous requests off the RMI threads, shared with the other groups; results go out through the server's
+  // ResultSender. Waiting for a leader, a read index or a commit does not hold a thread, and once the queue is full
+  // requests are refused
+  private final ExecutorService requestExecutor;
+  private final ResultSender resultSender;
+  // shared by every server and every group catching up from this server
+  private final RateLimiter catchUpLimiter;
+  // how long a follower waits for an election before giving up on forwarding a write
+  private static final long LEADER_WAIT_MILLIS = 3 * ServerConfig.ELECTION_TIMEOUT_MILLIS;
+  // how long a linearizable read waits for the leadership to be confirmed and for the log to be applied
+  private static final long READ_TIMEOUT_MILLIS = ServerConfig.ELECTION_TIMEOUT_MILLIS;
+  // how long a bounded-staleness read waits for this replica to catch up before it is sent to the leader
+  private static final long CATCH_UP_WAIT_MILLIS = 2 * ServerConfig.HEARTBEAT_INTERVAL_MILLIS;
+
+  /**
+   * Recovers the group's state from its files; it takes part in the protocol once started.
+   * @param messenger the Messenger of this group
+   * @param executors the threads of the server, shared by its groups
+   * @throws RemoteException if the logs or the snapshot can not be read
+   */
+  public PaxosGroup(int serverId, Messenger messenger, RateLimiter catchUpLimiter, ResultSender resultSender,
+                    GroupExecutors executors) throws RemoteException {
+    this.serverId = serverId;
+    this.requestExecutor = executors.getRequests();
+    this.resultSender = resultSender;
+    this.groupId = messenger.getGroupId();
+    this.name = groupId == 0 ? "Server" + serverId : "Server" + serverId + "/shard" + groupId;
+    this.messenger = messenger;
+    this.catchUpLimiter = catchUpLimiter;
+    Path dir = Paths.get(ServerConfig.DATA_DIR, "server" + serverId);
+    if (groupId != 0) {
+      dir = dir.resolve("shard" + groupId);
+    }
+    try {
+      this.wal = new WriteAheadLog(dir.resolve("paxos.wal"));
+      this.learnedLog = new SegmentedLog(dir.resolve("log"), ServerConfig.SEGMENT_BYTES);
+    } catch (IOException e) {
+      throw new RemoteException(name + " could not open its logs", e);
+    }
+    this.learner = new Learner(serverId, keyValueStore, learnedLog, new Membership(ServerConfig.ALL_SERVER_IDs, ServerConfig.MEMBERSHIP_DELAY),
+        new SessionTable(keyValueStore, ServerConfig.SESSION_TIMEOUT_MILLIS));
+    messenger.setMembership(learner.getMembership());
+    this.proposer = new Proposer(serverId, messenger, learner, executors.getScheduler(), System::currentTimeMillis);
+    this.acceptor = new Acceptor(serverId, messenger, wal);
+    proposer.setMetrics(metrics);
+    acceptor.setMetrics(metrics);
+    learner.setMetrics(metrics);
+    metrics.setQueueDepth(acceptor::getQueueDepth);
+    learner.setDecisionListener(proposer::onDecided);
+    learner.setQuorumListener(proposer::onQuorum);
+    acceptor.setLearnedEntries(learner::getLearnedEntry);
+    acceptor.setCommitListener(learner::learn);
+    acceptor.setLearnedLogSync(learner::syncLearnedLog);
+    // rebuild the store from the newest snapshot and the log after it, then the promises and accepted values of the
+    // slots not applied yet
+    long snapshotIndex;
+    try {
+      this.snapshots = new SnapshotManager(serverId, dir.resolve("snapshots"), learner,
+          ServerConfig.SNAPSHOT_INTERVAL, ServerConfig.SNAPSHOT_CHUNK_BYTES, executors.getBackground());
+      snapshotIndex = snapshots.loadLatest(keyValueStore);
+    } catch (IOException e) {
+      throw new RemoteException(name + " could not load its snapshot", e);
+    }
+    learner.setAppliedListener(appliedIndex -> {
+      proposer.onApplied(appliedIndex);
+      acceptor.forgetUpTo(appliedIndex);
+      snapshots.onApplied(appliedIndex);
+    });
+    learner.recover(snapshotIndex);
+    acceptor.restoreStates();
+    snapshots.setPruneListener(acceptor::compactLog);
+    this.batcher = new RequestBatcher(serverId, proposer, learner, ServerConfig.BATCH_WINDOW_MILLIS, ServerConfig.BATCH_MAX_SIZE,
+        executors.getScheduler(), requestExecutor);
+    this.threadManager = new ThreadManager(acceptor, executors.getAcceptors(), executors.getScheduler());
+    threadManager.start();
+    this.leaderElector = new LeaderElector(serverId, proposer, messenger, learner, executors.getScheduler());
+    acceptor.setLeaseGuard(leaderElector::isLeaseProtected);
+    this.stateTransfer = new StateTransfer(serverId, messenger, learner, snapshots, leaderElector::getLeaderId,
+        executors.getScheduler(), executors.getBackground());
+  }
+
+  /**
+   * Starts catching up and, with Multi-Paxos, following or electing a leader; called once messages can arrive.
+   */
+  public void start() {
+    stateTransfer.start();
+    if (ServerConfig.MULTI_PAXOS) {
+      leaderElector.start();
+    }
+  }
+
+  public int getGroupId() {
+    return groupId;
+  }
+
+  public PaxosMetrics getMetrics() {
+    return metrics;
+  }
+
+  public void handlePaxosMessage(PaxosMessage message) {
+    if (message instanceof MessagePrepare || message instanceof MessagePropose || message instanceof MessageCommit) {
+      acceptor.enqueueMessage(message);
+    } else if (message instanceof MessagePromise) {
+      MessagePromise promise = (MessagePromise) message;
+      if (promise.isLeaderPromise()) {
+        if (proposer.handleLeaderPromise(promise)) {
+          ServerLogger.log(name + " leads its group with ballot " + promise.getProposalID());
+          leaderElector.onElected(promise.getProposalID());
+        }
+      } else {
+        proposer.propose(promise);
+      }
+    } else if (message instanceof MessageAccepted) {
+      learner.handleAccepted((MessageAccepted) message);
+    } else if (message instanceof MessageHeartbeat) {
+      leaderElector.handleHeartbeat((MessageHeartbeat) message);
+    } else if (message instanceof MessageHeartbeatAck) {
+      leaderElector.handleHeartbeatAck((MessageHeartbeatAck) message);
+    }
+  }
+
+  public String get(String clientId, String key, ReadConsistency consistency) {
+    ServerLogger.log(name + " received " + consistency + " GET request for key: " + key + " from Client ID: " + clientId);
+    if (key == null || key.trim().isEmpty() || isReserved(key)) {
+      Response res = new Response(false, "GET", "Key must not be null or empty.");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    if (consistency == null || consistency == ReadConsistency.LOCAL) {
+      return readLocal(key).toString();
+    }
+    if (!ServerConfig.MULTI_PAXOS) {
+      Response res = new Response(false, "GET", "[key]" + key + " " + consistency + " reads require Multi-Paxos");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    if (!proposer.isLeader()) {
+      return forwardReadToLeader(clientId, key, consistency);
+    }
+    return readLinearizable(key, consistency).toString();
+  }
+
+  public String get(String clientId, String key, long maxStalenessMillis, long maxLagEntries) {
+    ServerLogger.log(name + " received GET request for key: " + key + " at most " + maxStalenessMillis
+        + "ms / " + maxLagEntries + " entries stale from Client ID: " + clientId);
+    if (key == null || key.trim().isEmpty() || isReserved(key)) {
+      Response res = new Response(false, "GET", "Key must not be null or empty.");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    if (!ServerConfig.MULTI_PAXOS) {
+      Response res = new Response(false, "GET", "[key]" + key + " bounded-staleness reads require Multi-Paxos");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    try {
+      if (learner.awaitFreshness(maxStalenessMillis, maxLagEntries, CATCH_UP_WAIT_MILLIS)) {
+        return readLocal(key).toString();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new Response(false, "GET", "[key]" + key + " interrupted").toString();
+    }
+    ServerLogger.warn(name + " is " + learner.getStalenessMillis() + "ms / " + learner.getLagEntries()
+        + " entries behind, sending GET request for key: " + key + " to the leader");
+    if (proposer.isLeader()) {
+      return readLinearizable(key, ReadConsistency.LEASE).toString();
+    }
+    return forwardReadToLeader(clientId, key, ReadConsistency.LEASE);
+  }
+
+  public String forwardRead(String clientId, String key, ReadConsistency consistency) {
+    ServerLogger.log(name + " received forwarded " + consistency + " GET request for key: " + key + " from Client ID: " + clientId);
+    if (key == null || isReserved(key)) {
+      Response res = new Response(false, "GET", "Key must not be null or empty.");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    if (!proposer.isLeader()) {
+      Response res = new Response(false, "GET", name + " is not the leader");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    return readLinearizable(key, consistency).toString();
+  }
+
+  /**
+   * Hands out no more entries than the catch-up limit allows right now, and none with a retry-after once it is used
+   * up, so the call never waits for the limit.
+   */
+  public DecidedEntries fetchDecided(long fromSlot, int maxEntries) {
+    int available = (int) Math.max(0, Math.min(maxEntries, learner.getAppliedIndex() - fromSlot + 1));
+    int permitted = catchUpLimiter.tryAcquire(available);
+    if (permitted == 0 && available > 0) {
+      long retryAfterMillis = TimeUnit.NANOSECONDS.toMillis(catchUpLimiter.nanosUntilAvailable(available)) + 1;
+      ServerLogger.log(name + " is at its catch-up limit, a server catching up from slot " + fromSlot + " asks again in "
+          + retryAfterMillis + "ms");
+      return new DecidedEntries(Collections.emptyList(), retryAfterMillis);
+    }
+    List<LogEntry> entries = learner.readLearned(fromSlot, permitted);
+    ServerLogger.log(name + " sends " + (entries != null ? entries.size() + " log entries" : "no log entries, a snapshot is needed,")
+        + " from slot " + fromSlot + " to a server catching up");
+    return entries != null ? new DecidedEntries(entries, 0) : null;
+  }
+
+  public SnapshotChunk fetchSnapshotChunk(long snapshotIndex, long offset) throws RemoteException {
+    try {
+      return snapshots.readChunk(snapshotIndex, offset);
+    } catch (IOException e) {
+      throw new RemoteException(name + " could not read its snapshot", e);
+    }
+  }
+
+  /**
+   * @return the leader of the group as this server knows it, -1 if it knows none
+   */
+  public int getLeaderId() {
+    return leaderElector.getLeaderId();
+  }
+
+  /**
+   * @return the servers of every configuration still in use, see Membership.targets; once this server is removed it
+   *         hears of no more changes, so it names the members it was removed by
+   */
+  public int[] getMembers() {
+    Membership membership = learner.getMembership();
+    return membership.isMember(serverId) ? membership.targets() : membership.latest();
+  }
+
+  public List<ReplicaStatus> getReplicaStatus() {
+    int leaderId = leaderElector.getLeaderId();
+    if (leaderId == -1 || leaderId == serverId) {
+      return leaderElector.getReplicaStatus();
+    }
+    try {
+      return messenger.getPeer(leaderId).getReplicaStatus(groupId);
+    } catch (Exception e) {
+      messenger.invalidatePeer(leaderId);
+      ServerLogger.error(name + " failed to reach leader" + leaderId + " for the replica status: " + e.getMessage());
+      return leaderElector.getReplicaStatus();
+    }
+  }
+
+  private String forwardReadToLeader(String clientId, String key, ReadConsistency consistency) {
+    int leaderId = leaderElector.awaitLeader(LEADER_WAIT_MILLIS);
+    if (leaderId == serverId) {
+      return readLinearizable(key, consistency).toString();
+    }
+    if (leaderId == -1) {
+      Response res = new Response(false, "GET", "[key]" + key + " no leader elected, try again later");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    try {
+      ServerLogger.log(name + " forwards " + consistency + " GET request for key: " + key + " to leader" + leaderId);
+      return messenger.getPeer(leaderId).forwardRead(clientId, key, consistency);
+    } catch (Exception e) {
+      messenger.invalidatePeer(leaderId);
+      Response res = new Response(false, "GET", "[key]" + key + " failed to reach leader" + leaderId + ": " + e.getMessage());
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+  }
+
+  /**
+   * Serves a linearizable read on the leader without adding a log entry. The read index is the highest slot that
+   * may hold an acknowledged write; the leader serves the read once it applied the log that far, and once it knows
+   * it still leads, either from a valid lease or from a quorum acknowledging a heartbeat sent after the read came in.
+   */
+  private Response readLinearizable(String key, ReadConsistency consistency) {
+    String failure = awaitReadIndex(consistency == ReadConsistency.LEASE);
+    if (failure != null) {
+      Response res = new Response(false, "GET", "[key]" + key + " " + failure);
+      ServerLogger.error(res.toString());
+      return res;
+    }
+    return readLocal(key);
+  }
+
+  /**
+   * Waits until reads that came in before the call may be served from this leader's store.
+   * @param leaseAllowed whether a valid lease is enough, i.e. all reads waiting are LEASE reads
+   * @return why they may not be served, or null once they may
+   */
+  private String awaitReadIndex(boolean leaseAllowed) {
+    return readIndex(leaseAllowed).join();
+  }
+
+  /**
+   * @param leaseAllowed whether a valid lease is enough, i.e. all reads waiting are LEASE reads
+   * @return a future completed once reads that came in before the call may be served from this leader's store, with
+   *         null if they may and with the reason if they may not
+   */
+  private CompletableFuture<String> readIndex(boolean leaseAllowed) {
+    long readIndex = Math.max(learner.getHighestDecidedSlot(), proposer.getRecoveredUpTo());
+    CompletableFuture<Boolean> leadership = leaseAllowed && leaderElector.hasLease()
+        ? CompletableFuture.completedFuture(true)
+        : leaderElector.confirmLeadership(READ_TIMEOUT_MILLIS);
+    return leadership.thenCompose(confirmed -> !confirmed
+        ? CompletableFuture.completedFuture("could not confirm leadership, try again later")
+        : learner.awaitApplied(readIndex, READ_TIMEOUT_MILLIS)
+            .thenApply(applied -> applied ? null : "timed out waiting for slot " + readIndex + " to be applied"));
+  }
+
+  private Response readLocal(String key) {
+    String value = keyValueStore.get(key);
+    Response res = (value != null)
+      ? new Response(true, "GET", "Key found: [key]" + key, value)
+      : new Response(false, "GET", "[key]" + key +" not found");
+    ServerLogger.log(res.toString());
+    return res;
+  }
+
+  /**
+   * @param seq the client's sequence number of the write, applied at most once if above 0; 0 writes outside a session
+   */
+  public String put(String clientId, long seq, String key, String value) {
+    ServerLogger.log(name + " received PUT request for key: " + key + " from Client ID: " + clientId + (seq > 0 ? " seq " + seq : ""));
+    if (key == null || key.trim().isEmpty() || value == null || isReserved(key)) {
+      Response res = new Response(false, "PUT", "Key and value must not be null or empty.");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    return submitWrite(clientId, seq, "PUT", key, value);
+  }
+
+  public String delete(String clientId, long seq, String key) {
+    ServerLogger.log(name + " received DELETE request for key: " + key + " from Client ID: " + clientId + (seq > 0 ? " seq " + seq : ""));
+    if (key == null || key.trim().isEmpty() || isReserved(key)) {
+      Response res = new Response(false, "DELETE", "Key must not be null or empty.");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    return submitWrite(clientId, seq, "DELETE", key, null);
+  }
+
+  /**
+   * @return whether a key is one the servers keep their own state under, see KeyValueStore.putMetadata
+   */
+  private static boolean isReserved(String key) {
+    return key.startsWith(SessionTable.STORE_PREFIX) || key.equals(Membership.STORE_KEY);
+  }
+
+  private String submitWrite(String clientId, long seq, String operation, String key, String value) {
+    // a retry of a write this replica already applied is answered right away, without running Paxos again
+    Response applied = seq > 0 ? sessionReply(clientId, seq, operation, key) : null;
+    if (applied != null) {
+      ServerLogger.log(name + " answers the retried " + operation + " seq " + seq + " of Client ID: " + clientId + " from its session");
+      return applied.toString();
+    }
+    if (ServerConfig.MULTI_PAXOS && !proposer.isLeader()) {
+      return forwardToLeader(clientId, seq, operation, key, value);
+    }
+    return executeWrite(clientId, seq, operation, key, value);
+  }
+
+  public String forwardWrite(String clientId, long seq, String operation, String key, String value) {
+    ServerLogger.log(name + " received forwarded " + operation + " request for key: " + key + " from Client ID: " + clientId);
+    if (key == null || isReserved(key)) {
+      Response res = new Response(false, operation, "Key must not be null or empty.");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    if (!proposer.isLeader()) {
+      Response res = new Response(false, operation, name + " is not the leader");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    return executeWrite(clientId, seq, operation, key, value);
+  }
+
+  /**
+   * Hands a write to the Multi-Paxos leader, waiting for an election first if no leader is known.
+   */
+  private String forwardToLeader(String clientId, long seq, String operation, String key, String value) {
+    int leaderId = leaderElector.awaitLeader(LEADER_WAIT_MILLIS);
+    if (leaderId == serverId) {
+      return executeWrite(clientId, seq, operation, key, value);
+    }
+    if (leaderId == -1) {
+      Response res = new Response(false, operation, "[key]" + key + " no leader elected, try again later");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    try {
+      ServerLogger.log(name + " forwards " + operation + " request for key: " + key + " to leader" + leaderId);
+      return messenger.getPeer(leaderId).forwardWrite(clientId, seq, operation, key, value);
+    } catch (Exception e) {
+      messenger.invalidatePeer(leaderId);
+      Response res = new Response(false, operation, "[key]" + key + " failed to reach leader" + leaderId + ": " + e.getMessage());
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+  }
+
+  /**
+   * @return a unique id for a client request received by this server
+   */
+  private String newRequestId() {
+    return serverId + "-" + UUID.randomUUID();
+  }
+
+  private String executeWrite(String clientId, long seq, String operation, String key, String value) {
+    return write(clientId, seq, operation, key, value).join().toString();
+  }
+
+  /**
+   * Proposes a PUT or DELETE through the batcher, on the leader. A write of a session is checked against the
+   * session table again when it is applied, so a retry racing with the original is still applied only once.
+   * @param seq the client's sequence number, 0 outside a session
+   * @return a future completed with the response once the write is applied, aborted or timed out
+   */
+  private CompletableFuture<Response> write(String clientId, long seq, String operation, String key, String value) {
+    boolean session = seq > 0;
+    Response applied = session ? sessionReply(clientId, seq, operation, key) : null;
+    if (applied != null) {
+      return CompletableFuture.completedFuture(applied);
+    }
+    // a DELETE of a session goes through the log either way, so its outcome is recorded for retries
+    if (!session && "DELETE".equals(operation) && keyValueStore.get(key) == null) {
+      Response res = new Response(false, "DELETE", "[key]" + key +" not found");
+      ServerLogger.error(res.toString());
+      return CompletableFuture.completedFuture(res);
+    }
+
+    Command command = session
+        ? Command.session(newRequestId(), operation, key, value, clientId, seq, System.currentTimeMillis())
+        : new Command(newRequestId(), operation, key, value);
+
+    CompletableFuture<Boolean> completionFuture = new CompletableFuture<>();
+    learner.registerCompletionFuture(command.getRequestId(), completionFuture);
+    completionFuture.orTimeout(TIMEOUT_WAITING_LEARNER, TimeUnit.SECONDS);
+
+    batcher.submit(command);
+
+    return completionFuture.handle((result, ex) -> {
+      learner.unregisterCompletionFuture(command.getRequestId());
+      if (ex != null) {
+        if (ex instanceof TimeoutException) {
+          return new Response(false, operation, "[key]" + key + " timed out");
+        } else {
+          return new Response(false, operation, "[key]" + key + " error during operation: " + ex.getMessage());
+        }
+      }
+      if (!result) {
+        return new Response(false, operation, "[key]" + key + " aborted");
+      }
+      Response reply = session ? sessionReply(clientId, seq, operation, key) : null;
+      return reply != null ? reply : writeReply(operation, key, true);
+    });
+  }
+
+  /**
+   * @return the reply to a write of a session that was applied here already or is too old to be applied any more, null
+   *         if neither (yet)
+   */
+  private Response sessionReply(String clientId, long seq, String operation, String key) {
+    SessionTable.Session session = learner.getSessions().get(clientId);
+    if (session == null || seq > session.getSeq()) {
+      return null;
+    }
+    if (!session.isKnown(seq)) {
+      // only the last seqs of a session are remembered, so whether this one was applied is not known any more; it
+      // will not be applied from now on
+      return new Response(false, operation, "[key]" + key + " seq " + seq + " superseded by seq " + session.getSeq() + ", outcome unknown");
+    }
+    return session.isApplied(seq) ? writeReply(operation, key, session.isSuccess(seq)) : null;
+  }
+
+  private static Response writeReply(String operation, String key, boolean success) {
+    if (!success) {
+      return new Response(false, operation, "[key]" + key + " not found");
+    }
+    return new Response(true, operation, "[key]" + key + ("DELETE".equals(operation) ? " deleted" : " added/updated"));
+  }
+
+  /**
+   * Runs requests of the asynchronous API on the request executor, so the calling thread returns at once, and sends
+   * every result to the callback when it is ready. Requests only the leader serves go to the leader, which then
+   * answers the callback itself.
+   * @param forwarded whether a follower handed the requests over, so they must not be forwarded again
+   */
+  public void submit(String clientId, List<ClientRequest> requests, IClientCallback callback, boolean forwarded) {
+    long receivedNanos = System.nanoTime();
+    execute(requests, callback, receivedNanos, () -> runRequests(clientId, requests, callback, forwarded, receivedNanos));
+  }
+
+  /**
+   * Runs a task for asynchronous requests on the request executor, or fails the requests right away if it is full.
+   */
+  private void execute(List<ClientRequest> requests, IClientCallback callback, long receivedNanos, Runnable task) {
+    try {
+      requestExecutor.execute(task);
+    } catch (RejectedExecutionException e) {
+      ServerLogger.warn(name + " is busy, refusing " + requests.size() + " asynchronous requests");
+      for (ClientRequest request : requests) {
+        reply(callback, request, new Response(false, request.getOperation(), "[key]" + request.getKey() + " server busy, try again later"), receivedNanos);
+      }
+    }
+  }
+
+  private void runRequests(String clientId, List<ClientRequest> requests, IClientCallback callback, boolean forwarded, long receivedNanos) {
+    ServerLogger.log(name + " received " + requests.size() + (forwarded ? " forwarded" : "") + " asynchronous requests from Client ID: " + clientId);
+    List<ClientRequest> forLeader = new ArrayList<>();
+    List<ClientRequest> reads = new ArrayList<>();
+    for (ClientRequest request : requests) {
+      String key = request.getKey();
+      if (key == null || key.trim().isEmpty() || ("PUT".equals(request.getOperation()) && request.getValue() == null) || isReserved(key)) {
+        Response res = new Response(false, request.getOperation(), "Key and value must not be null or empty.");
+        ServerLogger.error(res.toString());
+        reply(callback, request, res, receivedNanos);
+      } else if (!request.needsLeader()) {
+        reply(callback, request, readLocal(key), receivedNanos);
+      } else if (!ServerConfig.MULTI_PAXOS && "GET".equals(request.getOperation())) {
+        Response res = new Response(false, "GET", "[key]" + key + " " + request.getConsistency() + " reads require Multi-Paxos");
+        ServerLogger.error(res.toString());
+        reply(callback, request, res, receivedNanos);
+      } else if (ServerConfig.MULTI_PAXOS && !proposer.isLeader()) {
+        forLeader.add(request);
+      } else if ("GET".equals(request.getOperation())) {
+        reads.add(request);
+      } else {
+        write(clientId, request.getSeq(), request.getOperation(), key, request.getValue())
+            .thenAccept(res -> reply(callback, request, res, receivedNanos));
+      }
+    }
+    if (!reads.isEmpty()) {
+      // one read index for all of them, so the leadership is confirmed once per batch
+      readIndex(reads.stream().allMatch(read -> read.getConsistency() == ReadConsistency.LEASE)).thenAccept(failure -> {
+        for (ClientRequest read : reads) {
+          Response res = failure == null ? readLocal(read.getKey()) : new Response(false, "GET", "[key]" + read.getKey() + " " + failure);
+          reply(callback, read, res, receivedNanos);
+        }
+      });
+    }
+    if (!forLeader.isEmpty() && forwarded) {
+      forwardRequests(clientId, forLeader, callback, true, receivedNanos, -1);
+    } else if (!forLeader.isEmpty()) {
+      // forwarding calls the leader, so it goes back to the request executor once the leader is known
+      leaderElector.awaitLeaderAsync(LEADER_WAIT_MILLIS).thenAccept(leaderId -> execute(forLeader, callback, receivedNanos,
+          () -> forwardRequests(clientId, forLeader, callback, false, receivedNanos, leaderId)));
+    }
+  }
+
+  private void forwardRequests(String clientId, List<ClientRequest> requests, IClientCallback callback, boolean forwarded, long receivedNanos, int leaderId) {
+    if (leaderId == serverId) {
+      runRequests(clientId, requests, callback, true, receivedNanos);
+      return;
+    }
+    String failure;
+    if (leaderId == -1) {
+      failure = forwarded ? name + " is not the leader" : "no leader elected, try again later";
+    } else {
+      try {
+        ServerLogger.log(name + " forwards " + requests.size() + " asynchronous requests to leader" + leaderId);
+        messenger.getPeer(leaderId).forwardSubmit(groupId, clientId, requests, callback);
+        return;
+      } catch (Exception e) {
+        messenger.invalidatePeer(leaderId);
+        failure = "failed to reach leader" + leaderId + ": " + e.getMessage();
+      }
+    }
+    ServerLogger.error(name + " fails " + requests.size() + " asynchronous requests: " + failure);
+    for (ClientRequest request : requests) {
+      Response res = new Response(false, request.getOperation(), "[key]" + request.getKey() + " " + failure);
+      reply(callback, request, res, receivedNanos);
+    }
+  }
+
+  /**
+   * Sends the result of an asynchronous request and records how long it took from arriving here.
+   */
+  private void reply(IClientCallback callback, ClientRequest request, Response res, long receivedNanos) {
+    Histogram latency = "GET".equals(request.getOperation()) ? metrics.getReadRequestLatency() : metrics.getWriteRequestLatency();
+    latency.record(System.nanoTime() - receivedNanos);
+    resultSender.send(callback, res.toResult(request.getRequestId()));
+  }
+
+  /**
+   * Adds or removes one server through a CONFIG entry, on the leader; a follower hands the change to the leader.
+   * @param operation ADD or REMOVE
+   * @param forwarded whether a follower handed the change over, so it must not be forwarded again
+   */
+  public String changeMembership(String clientId, String operation, int memberId, boolean forwarded) {
+    ServerLogger.log(name + " received " + operation + " request for server" + memberId + " from Client ID: " + clientId);
+    if (!"ADD".equals(operation) && !"REMOVE".equals(operation)) {
+      Response res = new Response(false, operation, "Membership changes are ADD or REMOVE.");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    if (!ServerConfig.MULTI_PAXOS) {
+      Response res = new Response(false, operation, "Membership changes require Multi-Paxos");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    if (proposer.isLeader()) {
+      return executeMembershipChange(operation, memberId);
+    }
+    int leaderId = forwarded ? -1 : leaderElector.awaitLeader(LEADER_WAIT_MILLIS);
+    if (leaderId == serverId) {
+      return executeMembershipChange(operation, memberId);
+    }
+    if (leaderId == -1) {
+      Response res = new Response(false, operation, forwarded ? name + " is not the leader" : "no leader elected, try again later");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    try {
+      ServerLogger.log(name + " forwards " + operation + " request for server" + memberId + " to leader" + leaderId);
+      return messenger.getPeer(leaderId).forwardMembershipChange(groupId, clientId, operation, memberId);
+    } catch (Exception e) {
+      messenger.invalidatePeer(leaderId);
+      Response res = new Response(false, operation, "failed to reach leader" + leaderId + ": " + e.getMessage());
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+  }
+
+  /**
+   * Proposes the new members and waits until they are applied. Only one change runs at a time, and the next one is
+   * refused until the previous one governs the log.
+   */
+  private synchronized String executeMembershipChange(String operation, int memberId) {
+    Membership membership = learner.getMembership();
+    if (membership.isChangePending(learner.getAppliedIndex())) {
+      Response res = new Response(false, operation, name + " is still switching to the members " + Membership.format(membership.latest()) + ", try again later");
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    int[] latest = membership.latest();
+    int[] members = "ADD".equals(operation)
+        ? IntStream.concat(Arrays.stream(latest), IntStream.of(memberId)).toArray()
+        : Arrays.stream(latest).filter(id -> id != memberId).toArray();
+    String invalid = membership.validate(members);
+    if (invalid != null) {
+      Response res = new Response(false, operation, "server" + memberId + ": " + invalid);
+      ServerLogger.error(res.toString());
+      return res.toString();
+    }
+    Command command = Command.config(newRequestId(), membership.getDelay(), members);
+
+    CompletableFuture<Boolean> completionFuture = new CompletableFuture<>();
+    learner.registerCompletionFuture(command.getRequestId(), completionFuture);
+    completionFuture.orTimeout(TIMEOUT_WAITING_LEARNER, TimeUnit.SECONDS);
+
+    batcher.submit(command);
+
+    return completionFuture.handle((result, ex) -> {
+      learner.unregisterCompletionFuture(command.getRequestId());
+      if (ex != null) {
+        return new Response(false, operation, "server" + memberId + " timed out").toString();
+      }
+      return result ? new Response(true, operation, name + " members are " + Membership.format(members) + " from slot "
+                          + membership.latestFrom() + " on").toString() :
+                      new Response(false, operation, "server" + memberId + " aborted").toString();
+    }).join();
+  }
+
+  /**
+   * Stops the group and closes its logs; the PaxosNode shuts the shared threads down first.
+   */
+  public void shutdown() {
+    batcher.shutdown();
+    leaderElector.shutdown();
+    stateTransfer.shutdown();
+    if (threadManager != null) {
+      threadManager.stop();
+    }
+    ServerLogger.log(name + " " + wal.getStats());
+    ServerLogger.log(name + " state transfer " + stateTransfer.getStats());
+    learnedLog.close();
+    try {
+      wal.close();
+    } catch (IOException e) {
+      ServerLogger.error(name + " failed to close the write-ahead log: " + e.getMessage());
+    }
+  }
+}
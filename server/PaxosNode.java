@@ -1,29 +1,48 @@
 package server;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import javax.management.JMException;
+
+import common.ClientRequest;
+import common.DecidedEntries;
+import common.IClientCallback;
 import common.IPaxosNode;
-import paxos.*;
+import common.ReadConsistency;
+import common.ReplicaStatus;
+import common.ServerConfig;
+import common.ShardMap;
+import common.SnapshotChunk;
+import metrics.Histogram;
+import paxos.GroupMessage;
+import paxos.Messenger;
+import paxos.PaxosMessage;
 
 /**
- * Represents a server node in the Paxos cluster. It contains instances of Proposer, Acceptor, and Learner, 
- * and is responsible for handling RMI calls and delegating Paxos protocol operations.
+ * Represents a server node in the Paxos cluster. It runs one PaxosGroup, with its Proposer, Acceptor and Learner, for
+ * every shard of the keyspace, and is responsible for handling RMI calls and routing each request and Paxos message
+ * to the group of its shard. The groups share the node's Messenger, and with it its connections and send threads, and
+ * the node's timers and worker threads.
  */
 public class PaxosNode extends UnicastRemoteObject implements IPaxosNode{
-  private Proposer proposer;
-  private Acceptor acceptor;
-  private Learner learner;
   private Messenger messenger;
-  private KeyValueStore keyValueStore = new KeyValueStore();
   private int serverId;
-  private static final int TIMEOUT_WAITING_LEARNER = 60;
-  private ConcurrentHashMap<ProposalID, Proposal> activeProposals = new ConcurrentHashMap<>();
-  private ThreadManager threadManager;
+  private final PaxosGroup[] groups = new PaxosGroup[ServerConfig.SHARDS];
+  // shared by every server catching up from this one
+  private final RateLimiter catchUpLimiter = new RateLimiter(ServerConfig.CATCH_UP_ENTRIES_PER_SECOND);
+  // delivers the results of asynchronous requests of every group
+  private final ResultSender resultSender;
+  // the timers and worker threads of every group
+  private final GroupExecutors executors = new GroupExecutors();
+  private ServerMetrics metrics;
+  // null when paxos.metricsBasePort is negative or its port was taken
+  private MetricsEndpoint metricsEndpoint;
 
   /**
      * Constructs a PaxosNode with specific configuration.
@@ -37,126 +56,242 @@ public class PaxosNode extends UnicastRemoteObject implements IPaxosNode{
     super();
     this.serverId = serverId;
     this.messenger = new Messenger(centralRegistryHost, centralRegistryPort);
-    this.proposer = new Proposer(serverId, messenger);
-    this.acceptor = new Acceptor(serverId, messenger);
-    this.learner = new Learner(serverId, keyValueStore);
-    this.threadManager = new ThreadManager(acceptor);
-    new Thread(threadManager).start();
+    this.resultSender = new ResultSender(serverId);
+    for (int groupId = 0; groupId < groups.length; groupId++) {
+      groups[groupId] = new PaxosGroup(serverId, messenger.forGroup(groupId), catchUpLimiter, resultSender, executors);
+    }
+    messenger.startTransport(serverId, this::deliver);
+    for (PaxosGroup group : groups) {
+      group.start();
+    }
+    startMetrics();
+  }
+
+  private void startMetrics() {
+    try {
+      metrics = new ServerMetrics(serverId, groups, messenger.getMessageMetrics());
+      metrics.register();
+    } catch (JMException e) {
+      ServerLogger.warn("Server" + serverId + " could not register its metrics with JMX: " + e.getMessage());
+    }
+    if (metrics == null || ServerConfig.METRICS_BASE_PORT < 0) {
+      return;
+    }
+    int port = ServerConfig.METRICS_BASE_PORT + serverId;
+    try {
+      metricsEndpoint = new MetricsEndpoint(port, metrics);
+      ServerLogger.log("Server" + serverId + " serves its metrics on http://localhost:" + port + "/metrics");
+    } catch (IOException e) {
+      ServerLogger.warn("Server" + serverId + " could not serve its metrics on port " + port + ": " + e.getMessage());
+    }
   }
 
   @Override
   public void handlePaxosMessage(PaxosMessage message) throws RemoteException {
-    if (message instanceof MessagePrepare || message instanceof MessagePropose) {
-      acceptor.enqueueMessage(message);
-    } else if (message instanceof MessagePromise) {
-      proposer.propose((MessagePromise) message, activeProposals.get(message.getProposalID()));
-    } else if (message instanceof MessageAccepted) {
-      learner.handleAccepted((MessageAccepted) message);
+    messenger.getMessageMetrics().recordReceived(message);
+    if (!(message instanceof GroupMessage)) {
+      groups[0].handlePaxosMessage(message);
+      return;
+    }
+    GroupMessage groupMessage = (GroupMessage) message;
+    int groupId = groupMessage.getGroupId();
+    if (groupId < 0 || groupId >= groups.length) {
+      ServerLogger.error("Server" + serverId + " runs no Paxos group " + groupId + ", check that all servers use the same paxos.shards");
+      return;
+    }
+    groups[groupId].handlePaxosMessage(groupMessage.getMessage());
+  }
+
+  @Override
+  public void handlePaxosMessages(List<PaxosMessage> messages) throws RemoteException {
+    for (PaxosMessage message : messages) {
+      handlePaxosMessage(message);
+    }
+  }
+
+  private void deliver(List<PaxosMessage> messages) {
+    try {
+      handlePaxosMessages(messages);
+    } catch (RemoteException e) {
+      ServerLogger.error("Server" + serverId + " failed to handle a message: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return the group of the key's shard, group 0 for a missing key, which the group then rejects
+   */
+  private PaxosGroup groupFor(String key) {
+    return key == null ? groups[0] : groups[ShardMap.shardOf(key, groups.length)];
+  }
+
+  private PaxosGroup group(int groupId) throws RemoteException {
+    if (groupId < 0 || groupId >= groups.length) {
+      throw new RemoteException("Server" + serverId + " runs no Paxos group " + groupId);
     }
+    return groups[groupId];
   }
 
   @Override
   public String get(String clientId, String key) throws RemoteException {
-    ServerLogger.log("Server" + serverId + " received GET request for key: " + key + " from Client ID: " + clientId);
-    if (key == null || key.trim().isEmpty()) {
-      Response res = new Response(false, "GET", "Key must not be null or empty.");
-      ServerLogger.error(res.toString());
-      return res.toString();
+    return get(clientId, key, ReadConsistency.LOCAL);
+  }
+
+  @Override
+  public String get(String clientId, String key, ReadConsistency consistency) throws RemoteException {
+    PaxosGroup group = groupFor(key);
+    long receivedNanos = System.nanoTime();
+    try {
+      return group.get(clientId, key, consistency);
+    } finally {
+      record(group.getMetrics().getReadRequestLatency(), receivedNanos);
     }
+  }
 
-    String value = keyValueStore.get(key);
-    Response res = (value != null)
-      ? new Response(true, "GET", "Key found: [key]" + key, value)
-      : new Response(false, "GET", "[key]" + key +" not found");
-    ServerLogger.log(res.toString());
-    return res.toString(); 
+  @Override
+  public String get(String clientId, String key, long maxStalenessMillis, long maxLagEntries) throws RemoteException {
+    PaxosGroup group = groupFor(key);
+    long receivedNanos = System.nanoTime();
+    try {
+      return group.get(clientId, key, maxStalenessMillis, maxLagEntries);
+    } finally {
+      record(group.getMetrics().getReadRequestLatency(), receivedNanos);
+    }
   }
 
   @Override
-  public String put(String clientId, String key, String value) throws RemoteException {
-    ServerLogger.log("Server" + serverId + " received PUT request for key: " + key + " from Client ID: " + clientId);
-    if (key == null || key.trim().isEmpty() || value == null) {
-      Response res = new Response(false, "PUT", "Key and value must not be null or empty.");
-      ServerLogger.error(res.toString());
-      return res.toString();
-    }
-  
-    ProposalID proposalID = new ProposalID(serverId);
-    Proposal proposal = new Proposal(proposalID, key, value, "PUT");
-    
-    CompletableFuture<Boolean> completionFuture = new CompletableFuture<>();
-    learner.registerCompletionFuture(proposal.getProposalID(), completionFuture);
-    completionFuture.orTimeout(TIMEOUT_WAITING_LEARNER, TimeUnit.SECONDS);
-
-    activeProposals.put(proposalID, proposal);
-    proposer.prepare(proposal);
-
-    return completionFuture.handle((result, ex) -> {
-      activeProposals.remove(proposalID);
-      if (ex != null) {
-        if (ex instanceof TimeoutException) {
-          return new Response(false, "PUT", "[key]" + key + " timed out").toString();
-        } else {
-          return new Response(false, "PUT", "Error during operation: " + ex.getCause()).toString();
-        }
+  public String forwardRead(String clientId, String key, ReadConsistency consistency) throws RemoteException {
+    return groupFor(key).forwardRead(clientId, key, consistency);
+  }
+
+  @Override
+  public DecidedEntries fetchDecided(int groupId, long fromSlot, int maxEntries) throws RemoteException {
+    return group(groupId).fetchDecided(fromSlot, maxEntries);
+  }
+
+  @Override
+  public SnapshotChunk fetchSnapshotChunk(int groupId, long snapshotIndex, long offset) throws RemoteException {
+    return group(groupId).fetchSnapshotChunk(snapshotIndex, offset);
+  }
+
+  @Override
+  public List<ReplicaStatus> getReplicaStatus(int groupId) throws RemoteException {
+    return group(groupId).getReplicaStatus();
+  }
+
+  @Override
+  public int[] getLeaders() throws RemoteException {
+    int[] leaders = new int[groups.length];
+    for (int groupId = 0; groupId < groups.length; groupId++) {
+      leaders[groupId] = groups[groupId].getLeaderId();
+    }
+    return leaders;
+  }
+
+  @Override
+  public int[][] getMembers() throws RemoteException {
+    int[][] members = new int[groups.length][];
+    for (int groupId = 0; groupId < groups.length; groupId++) {
+      members[groupId] = groups[groupId].getMembers();
+    }
+    return members;
+  }
+
+  @Override
+  public String changeMembership(String clientId, String operation, int memberId) throws RemoteException {
+    StringBuilder responses = new StringBuilder();
+    for (PaxosGroup group : groups) {
+      if (responses.length() > 0) {
+        responses.append(System.lineSeparator());
       }
-      return result ? new Response(true, "PUT", "[key]" + key + " added/updated").toString() :
-                      new Response(false, "PUT", "[key]" + key + " aborted").toString();
-    }).join();
+      responses.append(group.changeMembership(clientId, operation, memberId, false));
+    }
+    return responses.toString();
+  }
+
+  @Override
+  public String forwardMembershipChange(int groupId, String clientId, String operation, int memberId) throws RemoteException {
+    return group(groupId).changeMembership(clientId, operation, memberId, true);
+  }
+
+  @Override
+  public void submit(String clientId, List<ClientRequest> requests, IClientCallback callback) throws RemoteException {
+    if (groups.length == 1) {
+      groups[0].submit(clientId, requests, callback, false);
+      return;
+    }
+    Map<PaxosGroup, List<ClientRequest>> byGroup = new HashMap<>();
+    for (ClientRequest request : requests) {
+      byGroup.computeIfAbsent(groupFor(request.getKey()), group -> new ArrayList<>()).add(request);
+    }
+    for (Map.Entry<PaxosGroup, List<ClientRequest>> groupRequests : byGroup.entrySet()) {
+      groupRequests.getKey().submit(clientId, groupRequests.getValue(), callback, false);
+    }
+  }
+
+  @Override
+  public void forwardSubmit(int groupId, String clientId, List<ClientRequest> requests, IClientCallback callback) throws RemoteException {
+    group(groupId).submit(clientId, requests, callback, true);
+  }
+
+  @Override
+  public String put(String clientId, String key, String value) throws RemoteException {
+    return put(clientId, 0, key, value);
   }
 
+  @Override
+  public String put(String clientId, long seq, String key, String value) throws RemoteException {
+    PaxosGroup group = groupFor(key);
+    long receivedNanos = System.nanoTime();
+    try {
+      return group.put(clientId, seq, key, value);
+    } finally {
+      record(group.getMetrics().getWriteRequestLatency(), receivedNanos);
+    }
+  }
+
+  @Override
+  public String forwardWrite(String clientId, long seq, String operation, String key, String value) throws RemoteException {
+    return groupFor(key).forwardWrite(clientId, seq, operation, key, value);
+  }
 
   @Override
   public String delete(String clientId, String key) throws RemoteException {
-    ServerLogger.log("Server" + serverId + " received DELETE request for key: " + key + " from Client ID: " + clientId);
-    if (key == null || key.trim().isEmpty()) {
-      Response res = new Response(false, "DELETE", "Key must not be null or empty.");
-      ServerLogger.error(res.toString());
-      return res.toString();
-    }
-    if (keyValueStore.get(key) == null) {
-      Response res = new Response(false, "DELETE", "[key]" + key +" not found");
-      ServerLogger.error(res.toString());
-      return res.toString();
-    }
-    
-    ProposalID proposalID = new ProposalID(serverId);
-    Proposal proposal = new Proposal(proposalID, key, null, "DELETE");
-    
-    CompletableFuture<Boolean> completionFuture = new CompletableFuture<>();
-    learner.registerCompletionFuture(proposal.getProposalID(), completionFuture);
-    // Register the future with a timeout
-    completionFuture.orTimeout(TIMEOUT_WAITING_LEARNER, TimeUnit.SECONDS);
-    
-    activeProposals.put(proposalID, proposal);
-    proposer.prepare(proposal);
-
-    return completionFuture.thenApply(result -> {
-      if (activeProposals.contains(proposalID)) {
-        activeProposals.remove(proposalID);
-      }
-      if (result) {
-        return new Response(true, "DELETE", "[key]" + key + " added/updated").toString();
-      } else {
-        return new Response(false, "DELETE", "[key]" + key + " aborted").toString();
-      }
-    }).exceptionally(ex -> {
-      if (activeProposals.contains(proposalID)) {
-        activeProposals.remove(proposalID);
-      }
-      if (ex instanceof TimeoutException) {
-        return new Response(false, "DELETE", "[key]" + key + " timed out").toString();
-      } else {
-        return new Response(false, "DELETE", "[key]" + key + " error during operation: " + ex.getMessage()).toString();
-      }
-    }).join(); 
+    return delete(clientId, 0, key);
+  }
+
+  @Override
+  public String delete(String clientId, long seq, String key) throws RemoteException {
+    PaxosGroup group = groupFor(key);
+    long receivedNanos = System.nanoTime();
+    try {
+      return group.delete(clientId, seq, key);
+    } finally {
+      record(group.getMetrics().getWriteRequestLatency(), receivedNanos);
+    }
+  }
+
+  /**
+   * Records the latency of a blocking client request, the asynchronous ones are recorded by their group.
+   */
+  private static void record(Histogram latency, long receivedNanos) {
+    latency.record(System.nanoTime() - receivedNanos);
   }
 
   public void shutdown() {
     ServerLogger.log("Initiating shutdown of PaxosNode...");
-    proposer.shutdownScheduler();
-    if (threadManager != null) {
-      threadManager.stop();
+    if (metricsEndpoint != null) {
+      metricsEndpoint.close();
+    }
+    if (metrics != null) {
+      metrics.unregister();
+    }
+    executors.shutdown();
+    for (PaxosGroup group : groups) {
+      group.shutdown();
     }
+    resultSender.shutdown();
+    ServerLogger.log("Server" + serverId + " messenger " + messenger.getStubCacheStats());
+    ServerLogger.log("Server" + serverId + " transport " + messenger.getTransportStats());
+    messenger.shutdown();
   }
 }
@@ -0,0 +1,57 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket: permits accrue at a fixed rate up to one second's worth, and a caller taking more than are
+ * available gets only what is available, so the rate holds across all callers together without anyone waiting.
+ */
+public class RateLimiter {
+  private final double permitsPerNano;
+  private final double maxPermits;
+  private double available;
+  private long lastNanos = System.nanoTime();
+
+  /**
+   * @param permitsPerSecond the sustained rate, 0 or less for no limit
+   */
+  public RateLimiter(double permitsPerSecond) {
+    this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.maxPermits = permitsPerSecond;
+    this.available = maxPermits;
+  }
+
+  /**
+   * Takes as many of the permits as are available now, without waiting.
+   * @param permits how many permits to take at most
+   * @return how many were taken, from 0 up to permits
+   */
+  public synchronized int tryAcquire(int permits) {
+    if (permitsPerNano <= 0) {
+      return permits;
+    }
+    refill();
+    int taken = (int) Math.max(0, Math.min(permits, Math.floor(available)));
+    available -= taken;
+    return taken;
+  }
+
+  /**
+   * @param permits how many permits a caller wants to take
+   * @return how long until that many are available, or one second's worth if it wants more, 0 if they are now
+   */
+  public synchronized long nanosUntilAvailable(int permits) {
+    if (permitsPerNano <= 0) {
+      return 0;
+    }
+    refill();
+    double missing = Math.min(permits, maxPermits) - available;
+    return missing <= 0 ? 0 : (long) Math.ceil(missing / permitsPerNano);
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    available = Math.min(maxPermits, available + (now - lastNanos) * permitsPerNano);
+    lastNanos = now;
+  }
+}
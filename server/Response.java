@@ -1,4 +1,6 @@
 package server;
+
+import common.ClientResult;
 /* CS6650 Ruohan Dang */
 /**
  * A class to defines the structure for responses sent back to clients or other nodes in the system, 
@@ -43,6 +45,13 @@ public class Response {
         return data;
     }
 
+    /**
+     * @return the response as the typed result of an asynchronous request
+     */
+    public ClientResult toResult(long requestId) {
+        return new ClientResult(requestId, success, operation, message, data);
+    }
+
     // toString method to easily convert the response to a String format for transmission
     @Override
     public String toString() {
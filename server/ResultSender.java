@@ -0,0 +1,82 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import common.ClientResult;
+import common.IClientCallback;
+
+/**
+ * Delivers the results of asynchronous requests to the clients' callbacks. Every callback has its own outbox, drained
+ * by at most one task at a time, which sends whatever results piled up meanwhile in one call, so a slow or dead
+ * client only delays its own results.
+ */
+public class ResultSender {
+  // results sent to a callback in one call at most
+  private static final int MAX_BATCH = 256;
+  private final int serverId;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final ConcurrentHashMap<IClientCallback, Outbox> outboxes = new ConcurrentHashMap<>();
+
+  public ResultSender(int serverId) {
+    this.serverId = serverId;
+  }
+
+  public void send(IClientCallback callback, ClientResult result) {
+    Outbox outbox = outboxes.computeIfAbsent(callback, Outbox::new);
+    outbox.queue.offer(result);
+    outbox.scheduleDrain();
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  private class Outbox {
+    private final IClientCallback callback;
+    private final ConcurrentLinkedQueue<ClientResult> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    private Outbox(IClientCallback callback) {
+      this.callback = callback;
+    }
+
+    private void scheduleDrain() {
+      if (draining.compareAndSet(false, true)) {
+        executor.execute(this::drain);
+      }
+    }
+
+    private void drain() {
+      try {
+        while (!queue.isEmpty()) {
+          List<ClientResult> batch = new ArrayList<>();
+          ClientResult result;
+          while (batch.size() < MAX_BATCH && (result = queue.poll()) != null) {
+            batch.add(result);
+          }
+          try {
+            callback.onResults(batch);
+          } catch (Exception e) {
+            // the client is gone; it learns nothing more about these requests and retries them if it comes back
+            ServerLogger.error("Server" + serverId + " failed to deliver " + batch.size() + " results to a client: " + e.getMessage());
+            queue.clear();
+          }
+        }
+      } finally {
+        draining.set(false);
+        if (!queue.isEmpty()) {
+          scheduleDrain();
+        } else {
+          // a result offered after the removal still gets delivered, by the outbox it was offered to
+          outboxes.remove(callback, this);
+        }
+      }
+    }
+  }
+}
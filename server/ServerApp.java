@@ -23,9 +23,9 @@ public class ServerApp {
     try {
       PaxosNode paxosServer = new PaxosNode(centralRegistryHost, portNumber, serverId);
 
-      // sharing one central registry host
+      // sharing one central registry host; a server restarting after a crash replaces its stale stub
       Registry registry = LocateRegistry.getRegistry(centralRegistryHost, portNumber);
-      registry.bind(serverName, paxosServer);
+      registry.rebind(serverName, paxosServer);
       ServerLogger.log("Server instance identified by Server'" + serverId + "' has been successfully registered with the RMI registry on " + centralRegistryHost + ":" + portNumber);
       addShutdownHook(paxosServer, serverName);
     } catch (Exception e) {
@@ -0,0 +1,247 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import metrics.Histogram;
+import paxos.MessageMetrics;
+import paxos.PaxosMetrics;
+
+/**
+ * The metrics of one server: the phase and request latencies and the counters of every Paxos group (see
+ * PaxosMetrics), and the messages sent and received per type and peer. They are read only when asked for, in the
+ * Prometheus text format for the plain-text endpoint (see MetricsEndpoint), or as the read-only attributes of the
+ * MBean paxos:type=Server,id=<server id>, one per line of the text format, named like it without the value.
+ * Latencies are reported in microseconds.
+ */
+public class ServerMetrics implements DynamicMBean {
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+  private final int serverId;
+  private final PaxosGroup[] groups;
+  private final MessageMetrics messages;
+  private final ObjectName objectName;
+
+  /**
+   * Collects the metrics into the text format, the attribute map, or both.
+   */
+  private static class Collector {
+    private final StringBuilder text;
+    private final Map<String, Object> values;
+
+    private Collector(StringBuilder text, Map<String, Object> values) {
+      this.text = text;
+      this.values = values;
+    }
+
+    private void family(String name, String type, String help) {
+      if (text != null) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+      }
+    }
+
+    private void sample(String name, String labels, long value) {
+      String key = name + "{" + labels + "}";
+      if (text != null) {
+        text.append(key).append(' ').append(value).append('\n');
+      }
+      if (values != null) {
+        values.put(key, value);
+      }
+    }
+  }
+
+  public ServerMetrics(int serverId, PaxosGroup[] groups, MessageMetrics messages) throws JMException {
+    this.serverId = serverId;
+    this.groups = groups;
+    this.messages = messages;
+    this.objectName = new ObjectName("paxos:type=Server,id=" + serverId);
+  }
+
+  /**
+   * Registers the MBean, replacing the one of a server with the same id that ran in this JVM before.
+   */
+  public void register() throws JMException {
+    MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+    if (mbeans.isRegistered(objectName)) {
+      mbeans.unregisterMBean(objectName);
+    }
+    mbeans.registerMBean(this, objectName);
+  }
+
+  public void unregister() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      ServerLogger.warn("Server" + serverId + " could not unregister its metrics: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return every metric in the Prometheus text format
+   */
+  public String render() {
+    StringBuilder text = new StringBuilder();
+    collect(new Collector(text, null));
+    return text.toString();
+  }
+
+  private Map<String, Object> values() {
+    Map<String, Object> values = new LinkedHashMap<>();
+    collect(new Collector(null, values));
+    return values;
+  }
+
+  private void collect(Collector out) {
+    latencies(out, "paxos_promise_quorum_latency_micros", "from sending PREPARE, for a slot or for leadership, until a quorum promised",
+        PaxosMetrics::getPromiseQuorumLatency);
+    latencies(out, "paxos_accept_quorum_latency_micros", "from sending PROPOSE until a quorum accepted it",
+        PaxosMetrics::getAcceptQuorumLatency);
+    latencies(out, "paxos_apply_latency_micros", "from deciding a slot until it is applied",
+        PaxosMetrics::getApplyLatency);
+    out.family("paxos_request_latency_micros", "summary", "from a client request arriving at this server until its reply is ready");
+    for (PaxosGroup group : groups) {
+      summary(out, "paxos_request_latency_micros", labels(group) + ",kind=\"write\"", group.getMetrics().getWriteRequestLatency());
+      summary(out, "paxos_request_latency_micros", labels(group) + ",kind=\"read\"", group.getMetrics().getReadRequestLatency());
+    }
+    out.family("paxos_request_latency_max_micros", "gauge", "the slowest client request so far");
+    for (PaxosGroup group : groups) {
+      out.sample("paxos_request_latency_max_micros", labels(group) + ",kind=\"write\"", micros(group.getMetrics().getWriteRequestLatency().getMax()));
+      out.sample("paxos_request_latency_max_micros", labels(group) + ",kind=\"read\"", micros(group.getMetrics().getReadRequestLatency().getMax()));
+    }
+    out.family("paxos_abandoned_proposals_total", "counter", "proposals given up because their slot went to another command");
+    for (PaxosGroup group : groups) {
+      out.sample("paxos_abandoned_proposals_total", labels(group), group.getMetrics().getAbandonedProposals());
+    }
+    out.family("paxos_retries_total", "counter", "PROPOSE sent again for an undecided slot, and PREPARE sent again after a timeout");
+    for (PaxosGroup group : groups) {
+      out.sample("paxos_retries_total", labels(group), group.getMetrics().getRetries());
+    }
+    out.family("paxos_aborted_requests_total", "counter", "client commands that were not proposed or lost their slot");
+    for (PaxosGroup group : groups) {
+      out.sample("paxos_aborted_requests_total", labels(group), group.getMetrics().getAbortedRequests());
+    }
+    out.family("paxos_acceptor_queue_depth", "gauge", "messages waiting for the acceptor thread");
+    for (PaxosGroup group : groups) {
+      out.sample("paxos_acceptor_queue_depth", labels(group), group.getMetrics().getQueueDepth());
+    }
+    out.family("paxos_acceptor_queue_depth_max", "gauge", "the most messages that waited for the acceptor thread at once");
+    for (PaxosGroup group : groups) {
+      out.sample("paxos_acceptor_queue_depth_max", labels(group), group.getMetrics().getMaxQueueDepth());
+    }
+    out.family("paxos_messages_sent_total", "counter", "Paxos messages sent, by type and receiving server");
+    for (int type = 0; type < MessageMetrics.TYPES.length; type++) {
+      for (int peerId = 0; peerId <= MessageMetrics.MAX_SERVER_ID; peerId++) {
+        long sent = messages.getSent(type, peerId);
+        if (sent > 0) {
+          out.sample("paxos_messages_sent_total", messageLabels(type, peerId), sent);
+        }
+      }
+    }
+    out.family("paxos_messages_received_total", "counter", "Paxos messages received, by type and sending server");
+    for (int type = 0; type < MessageMetrics.TYPES.length; type++) {
+      for (int peerId = 0; peerId <= MessageMetrics.MAX_SERVER_ID; peerId++) {
+        long received = messages.getReceived(type, peerId);
+        if (received > 0) {
+          out.sample("paxos_messages_received_total", messageLabels(type, peerId), received);
+        }
+      }
+    }
+  }
+
+  /**
+   * One phase's latency of every group: a summary, and the maximum as a gauge of its own.
+   */
+  private void latencies(Collector out, String name, String help, Function<PaxosMetrics, Histogram> histogram) {
+    out.family(name, "summary", help);
+    for (PaxosGroup group : groups) {
+      summary(out, name, labels(group), histogram.apply(group.getMetrics()));
+    }
+    String maxName = name.replace("_micros", "_max_micros");
+    out.family(maxName, "gauge", "the slowest so far, " + help);
+    for (PaxosGroup group : groups) {
+      out.sample(maxName, labels(group), micros(histogram.apply(group.getMetrics()).getMax()));
+    }
+  }
+
+  private static void summary(Collector out, String name, String labels, Histogram histogram) {
+    long[] values = histogram.percentiles(PERCENTILES);
+    for (int i = 0; i < QUANTILES.length; i++) {
+      out.sample(name, labels + ",quantile=\"" + QUANTILES[i] + "\"", micros(values[i]));
+    }
+    out.sample(name + "_sum", labels, micros(histogram.getSum()));
+    out.sample(name + "_count", labels, histogram.getTotalCount());
+  }
+
+  private String labels(PaxosGroup group) {
+    return "server=\"" + serverId + "\",group=\"" + group.getGroupId() + "\"";
+  }
+
+  private String messageLabels(int type, int peerId) {
+    return "server=\"" + serverId + "\",type=\"" + MessageMetrics.TYPES[type] + "\",peer=\"" + peerId + "\"";
+  }
+
+  private static long micros(long nanos) {
+    return nanos / 1000;
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Object value = values().get(attribute);
+    if (value == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    return value;
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    Map<String, Object> values = values();
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      if (values.containsKey(attribute)) {
+        list.add(new Attribute(attribute, values.get(attribute)));
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("the metrics are read-only");
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) {
+    throw new UnsupportedOperationException("the metrics have no operations");
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    Map<String, Object> values = values();
+    MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+    int i = 0;
+    for (String name : values.keySet()) {
+      attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+    }
+    return new MBeanInfo(getClass().getName(), "Paxos metrics of server" + serverId, attributes, null, null, null);
+  }
+}
@@ -0,0 +1,334 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import common.SnapshotChunk;
+import paxos.Learner;
+
+/**
+ * Takes snapshots of the KeyValueStore in the background every so many applied slots, writes them to files, and
+ * serves them in chunks to servers that are catching up. A snapshot file holds the slot it was taken at, then every
+ * key and value, then a CRC32 of everything before it; it is written and read as a stream, so neither taking nor
+ * installing a snapshot holds more than one entry in memory on top of the store itself. The two newest snapshots are
+ * kept, and the learned log is truncated up to the older one, so a peer a little behind replays log entries instead
+ * of loading a whole snapshot; the write-ahead log is compacted at the same time.
+ */
+public class SnapshotManager {
+  private static final String SUFFIX = ".snap";
+  private static final String TRANSFER_SUFFIX = ".transfer";
+  private static final int END_OF_ENTRIES = -1;
+  private final int serverId;
+  private final Path dir;
+  private final Learner learner;
+  private final long interval;
+  private final int chunkBytes;
+  // takes the snapshots, shared with the other groups
+  private final Executor snapshotter;
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private volatile long latestIndex = 0;
+  // called after the learned log was truncated, to compact the other logs the snapshots make redundant
+  private volatile Runnable pruneListener = () -> { };
+
+  /**
+   * @param serverId the id of this server
+   * @param dir the directory of the snapshot files
+   * @param learner the Learner applying the log to the store
+   * @param interval how many slots are applied between two snapshots
+   * @param chunkBytes the largest chunk sent to another server at once
+   * @param snapshotter takes the snapshots in the background
+   * @throws IOException if the directory can not be created
+   */
+  public SnapshotManager(int serverId, Path dir, Learner learner, long interval, int chunkBytes, Executor snapshotter) throws IOException {
+    this.serverId = serverId;
+    this.snapshotter = snapshotter;
+    this.dir = dir;
+    this.learner = learner;
+    this.interval = interval;
+    this.chunkBytes = chunkBytes;
+    Files.createDirectories(dir);
+    List<Long> indexes = snapshotIndexes();
+    latestIndex = indexes.isEmpty() ? 0 : indexes.get(indexes.size() - 1);
+  }
+
+  /**
+   * Loads the newest intact snapshot into an empty store, before the learned log is replayed on top of it.
+   * @return the slot the snapshot was taken at, 0 if there is none
+   */
+  public long loadLatest(KeyValueStore store) throws IOException {
+    List<Long> indexes = snapshotIndexes();
+    for (int i = indexes.size() - 1; i >= 0; i--) {
+      Path file = fileOf(indexes.get(i));
+      if (!verify(file)) {
+        ServerLogger.warn("Server" + serverId + " skips the damaged snapshot " + file);
+        continue;
+      }
+      store.clear();
+      read(file, store::restore);
+      latestIndex = indexes.get(i);
+      ServerLogger.log("Server" + serverId + " loaded " + store.size() + " keys from the snapshot at slot " + latestIndex);
+      return latestIndex;
+    }
+    return 0;
+  }
+
+  /**
+   * Takes a snapshot in the background once enough slots were applied since the last one.
+   * @param appliedIndex the last applied slot
+   */
+  public void onApplied(long appliedIndex) {
+    if (appliedIndex - latestIndex < interval || !scheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      snapshotter.execute(() -> {
+        try {
+          takeSnapshot();
+        } catch (IOException | RuntimeException e) {
+          ServerLogger.error("Server" + serverId + " failed to take a snapshot: " + e.getMessage());
+        } finally {
+          scheduled.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the server is shutting down
+      scheduled.set(false);
+    }
+  }
+
+  /**
+   * Writes a snapshot of the store at the current applied index while writes go on, then drops older snapshots and
+   * the log entries only they needed.
+   * @return the slot of the newest snapshot
+   */
+  public synchronized long takeSnapshot() throws IOException {
+    Path tmp = dir.resolve("snapshot" + TRANSFER_SUFFIX + ".tmp");
+    long start = System.currentTimeMillis();
+    long index;
+    int copied;
+    try (StoreSnapshot snapshot = learner.beginSnapshot()) {
+      index = snapshot.getIndex();
+      if (index <= latestIndex) {
+        return latestIndex;
+      }
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        write(index, snapshot::forEach, Channels.newOutputStream(channel));
+        // the learned log is truncated on the strength of this file
+        channel.force(true);
+      }
+      copied = snapshot.getCopiedKeys();
+    }
+    Files.move(tmp, fileOf(index), StandardCopyOption.ATOMIC_MOVE);
+    latestIndex = index;
+    ServerLogger.log("Server" + serverId + " took a snapshot at slot " + index + " in " + (System.currentTimeMillis() - start)
+        + "ms, copying " + copied + " keys written meanwhile");
+    prune();
+    return index;
+  }
+
+  /**
+   * Reads a chunk of a snapshot file for a server that is catching up, taking a first snapshot if there is none.
+   * @param snapshotIndex the slot of the snapshot being sent, 0 for the newest one
+   * @param offset where the chunk starts in the file
+   * @return the chunk, or null if the snapshot was replaced meanwhile and the transfer has to start over
+   */
+  public SnapshotChunk readChunk(long snapshotIndex, long offset) throws IOException {
+    if (snapshotIndex == 0) {
+      snapshotIndex = latestIndex != 0 ? latestIndex : takeSnapshot();
+    }
+    try (FileChannel channel = FileChannel.open(fileOf(snapshotIndex), StandardOpenOption.READ)) {
+      long size = channel.size();
+      ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(chunkBytes, size - offset)));
+      while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+        // until the chunk is full
+      }
+      return new SnapshotChunk(snapshotIndex, offset, size, buffer.array());
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return a file to write a snapshot received from another server into
+   */
+  public Path newTransferFile() throws IOException {
+    Path file = dir.resolve("snapshot" + TRANSFER_SUFFIX);
+    Files.deleteIfExists(file);
+    return file;
+  }
+
+  /**
+   * Checks a snapshot received from another server, keeps it as this server's newest snapshot and loads it into the
+   * store in place of everything applied so far.
+   * @param file the received snapshot file
+   * @return the slot the snapshot was taken at
+   */
+  public synchronized long install(Path file) throws IOException {
+    if (!verify(file)) {
+      throw new IOException("The received snapshot " + file + " is damaged");
+    }
+    long index;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      channel.force(true);
+      ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+      channel.read(header, 0);
+      index = header.getLong(0);
+    }
+    Path target = fileOf(index);
+    Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    latestIndex = Math.max(latestIndex, index);
+    learner.installSnapshot(index, store -> {
+      try {
+        read(target, store::restore);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    ServerLogger.log("Server" + serverId + " installed the snapshot at slot " + index);
+    prune();
+    return index;
+  }
+
+  public void setPruneListener(Runnable pruneListener) {
+    this.pruneListener = pruneListener;
+  }
+
+  public long getLatestIndex() {
+    return latestIndex;
+  }
+
+  /**
+   * Keeps the two newest snapshots and truncates the learned log up to the older one.
+   */
+  private void prune() throws IOException {
+    List<Long> indexes = snapshotIndexes();
+    if (indexes.size() < 2) {
+      return;
+    }
+    for (int i = 0; i < indexes.size() - 2; i++) {
+      Files.deleteIfExists(fileOf(indexes.get(i)));
+    }
+    learner.truncateLearnedLog(indexes.get(indexes.size() - 2) + 1);
+    pruneListener.run();
+  }
+
+  private List<Long> snapshotIndexes() throws IOException {
+    List<Long> indexes = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        indexes.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+      }
+    }
+    indexes.sort(null);
+    return indexes;
+  }
+
+  private Path fileOf(long index) {
+    return dir.resolve(String.format("%020d", index) + SUFFIX);
+  }
+
+  private static void write(long index, Consumer<BiConsumer<String, String>> entries, OutputStream target) throws IOException {
+    CRC32 crc = new CRC32();
+    DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(target, 1 << 16), crc));
+    out.writeLong(index);
+    try {
+      entries.accept((key, value) -> {
+        try {
+          writeString(out, key);
+          writeString(out, value);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    out.writeInt(END_OF_ENTRIES);
+    out.flush();
+    // the checksum itself is not part of what it covers
+    new DataOutputStream(target).writeInt((int) crc.getValue());
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Streams the entries of a snapshot file.
+   * @return the slot the snapshot was taken at
+   */
+  private static long read(Path file, BiConsumer<String, String> action) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+      long index = in.readLong();
+      int length;
+      while ((length = in.readInt()) != END_OF_ENTRIES) {
+        String key = readString(in, length);
+        action.accept(key, readString(in, in.readInt()));
+      }
+      return index;
+    }
+  }
+
+  private static String readString(DataInputStream in, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return whether a snapshot file is complete and its checksum matches
+   */
+  private static boolean verify(Path file) throws IOException {
+    CRC32 crc = new CRC32();
+    try (InputStream raw = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+      DataInputStream in = new DataInputStream(new CheckedInputStream(raw, crc));
+      in.readLong();
+      int length;
+      while ((length = in.readInt()) != END_OF_ENTRIES) {
+        if (length < 0) {
+          return false;
+        }
+        in.skipNBytes(length);
+        int valueLength = in.readInt();
+        if (valueLength < 0) {
+          return false;
+        }
+        in.skipNBytes(valueLength);
+      }
+      int expected = (int) crc.getValue();
+      return new DataInputStream(raw).readInt() == expected && raw.read() == -1;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+}
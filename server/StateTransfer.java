@@ -0,0 +1,224 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import common.DecidedEntries;
+import common.IPaxosNode;
+import common.ServerConfig;
+import common.SnapshotChunk;
+import paxos.Learner;
+import paxos.LogEntry;
+import paxos.Messenger;
+
+/**
+ * Brings a replica that restarted or fell behind up to date. It fetches the applied log from another server in
+ * batches, and if that server no longer holds the next slot in its log, streams its snapshot chunk by chunk into a
+ * file, installs it and replays only the log after it. A check every heartbeat interval starts catching up once the
+ * applied index stood still for a while although a later slot is decided here (a gap left by missed ACCEPTED
+ * messages) or heartbeats report slots not applied here. Followers are asked first and the leader last, and every
+ * server limits how many entries per second it hands out, so catching up does not swamp the leader.
+ */
+public class StateTransfer {
+  // how many log entries one fetch returns at most
+  private static final int FETCH_BATCH = 512;
+  // how long the applied index may stand still behind the leader before catching up
+  private static final long STALL_MILLIS = 2 * ServerConfig.HEARTBEAT_INTERVAL_MILLIS;
+  // how often a transfer is started over because the snapshot was replaced while it was sent
+  private static final int MAX_SNAPSHOT_ATTEMPTS = 3;
+  private final int serverId;
+  private final Messenger messenger;
+  private final Learner learner;
+  private final SnapshotManager snapshots;
+  private final IntSupplier leaderId;
+  // runs the checks, and the executor catching up, both shared with the other groups
+  private final ScheduledExecutorService scheduler;
+  private final Executor executor;
+  private volatile ScheduledFuture<?> checks;
+  private final AtomicBoolean running = new AtomicBoolean();
+  // set from handing a catch-up to the executor until it is done
+  private final AtomicBoolean catchingUp = new AtomicBoolean();
+  private final AtomicLong catchUps = new AtomicLong();
+  private final AtomicLong gapsDetected = new AtomicLong();
+  private final AtomicLong fetchedEntries = new AtomicLong();
+  private final AtomicLong installedSnapshots = new AtomicLong();
+  private final AtomicLong throttled = new AtomicLong();
+
+  public StateTransfer(int serverId, Messenger messenger, Learner learner, SnapshotManager snapshots, IntSupplier leaderId,
+                       ScheduledExecutorService scheduler, Executor executor) {
+    this.serverId = serverId;
+    this.scheduler = scheduler;
+    this.executor = executor;
+    this.messenger = messenger;
+    this.learner = learner;
+    this.snapshots = snapshots;
+    this.leaderId = leaderId;
+  }
+
+  public void start() {
+    checks = scheduler.scheduleWithFixedDelay(this::checkLag, ServerConfig.HEARTBEAT_INTERVAL_MILLIS,
+        ServerConfig.HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return counters of the catching up done so far, for the logs
+   */
+  public String getStats() {
+    return "catch-ups=" + catchUps + " gaps=" + gapsDetected + " fetchedEntries=" + fetchedEntries
+        + " installedSnapshots=" + installedSnapshots + " throttled=" + throttled + " lag=" + learner.getLagEntries() + " gap=" + learner.getGapEntries();
+  }
+
+  public void shutdown() {
+    if (checks != null) {
+      checks.cancel(false);
+    }
+  }
+
+  private void checkLag() {
+    boolean gap = learner.hasGap();
+    if (!gap && learner.getLagEntries() == 0 || System.currentTimeMillis() - learner.getAppliedAtMillis() < STALL_MILLIS
+        || !catchingUp.compareAndSet(false, true)) {
+      return;
+    }
+    if (gap) {
+      gapsDetected.incrementAndGet();
+      ServerLogger.warn("Server" + serverId + " is missing " + learner.getGapEntries() + " decided slots after slot "
+          + learner.getAppliedIndex() + ", catching up");
+    } else {
+      ServerLogger.warn("Server" + serverId + " is " + learner.getLagEntries() + " entries behind the leader, catching up");
+    }
+    // fetching calls other servers, which must not hold up the shared timers
+    try {
+      executor.execute(() -> {
+        try {
+          catchUp();
+        } finally {
+          catchingUp.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      catchingUp.set(false);
+    }
+  }
+
+  /**
+   * Catches up from the other servers in turn, followers in random order before the leader, until nothing is missing.
+   */
+  public void catchUp() {
+    List<Integer> peers = new ArrayList<>();
+    int leader = leaderId.getAsInt();
+    for (int id : messenger.getPeers()) {
+      if (id != serverId && id != leader) {
+        peers.add(id);
+      }
+    }
+    Collections.shuffle(peers);
+    if (leader != -1 && leader != serverId) {
+      peers.add(leader);
+    }
+    catchUps.incrementAndGet();
+    for (int peerId : peers) {
+      catchUpFrom(peerId);
+      if (!learner.hasGap() && learner.getLagEntries() == 0) {
+        break;
+      }
+    }
+    ServerLogger.log("Server" + serverId + " state transfer " + getStats());
+  }
+
+  /**
+   * Applies everything another server applied beyond this one, installing its snapshot first if needed.
+   * @param peerId the server to catch up from
+   * @return whether this server caught up with what the peer had applied
+   */
+  public boolean catchUpFrom(int peerId) {
+    if (!running.compareAndSet(false, true)) {
+      return false;
+    }
+    long start = learner.getAppliedIndex();
+    try {
+      IPaxosNode peer = messenger.getPeer(peerId);
+      int snapshotAttempts = 0;
+      while (true) {
+        DecidedEntries batch = peer.fetchDecided(messenger.getGroupId(), learner.getAppliedIndex() + 1, FETCH_BATCH);
+        if (batch == null) {
+          if (++snapshotAttempts > MAX_SNAPSHOT_ATTEMPTS) {
+            ServerLogger.error("Server" + serverId + " gave up installing a snapshot from server" + peerId);
+            return false;
+          }
+          installSnapshotFrom(peer, peerId);
+          continue;
+        }
+        List<LogEntry> entries = batch.getEntries();
+        if (entries.isEmpty() && batch.getRetryAfterMillis() > 0) {
+          // the peer is at its catch-up limit; this runs on a worker thread, so waiting here holds up no one
+          throttled.incrementAndGet();
+          Thread.sleep(batch.getRetryAfterMillis());
+          continue;
+        }
+        if (entries.isEmpty()) {
+          break;
+        }
+        for (LogEntry entry : entries) {
+          learner.learn(entry);
+        }
+        fetchedEntries.addAndGet(entries.size());
+      }
+      if (learner.getAppliedIndex() > start) {
+        ServerLogger.log("Server" + serverId + " caught up from server" + peerId + ", slots " + (start + 1) + " to " + learner.getAppliedIndex());
+      }
+      return true;
+    } catch (Exception e) {
+      messenger.invalidatePeer(peerId);
+      ServerLogger.error("Server" + serverId + " failed to catch up from server" + peerId + ": " + e.getMessage());
+      return false;
+    } finally {
+      running.set(false);
+    }
+  }
+
+  /**
+   * Streams the peer's newest snapshot into a file, one chunk in memory at a time, and installs it.
+   */
+  private void installSnapshotFrom(IPaxosNode peer, int peerId) throws IOException {
+    Path file = snapshots.newTransferFile();
+    long snapshotIndex = 0;
+    long offset = 0;
+    int chunks = 0;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      SnapshotChunk chunk;
+      do {
+        chunk = peer.fetchSnapshotChunk(messenger.getGroupId(), snapshotIndex, offset);
+        if (chunk == null) {
+          ServerLogger.warn("Server" + serverId + " lost the snapshot at slot " + snapshotIndex + " of server" + peerId + " while receiving it");
+          return;
+        }
+        snapshotIndex = chunk.getSnapshotIndex();
+        ByteBuffer data = ByteBuffer.wrap(chunk.getData());
+        while (data.hasRemaining()) {
+          channel.write(data, offset + data.position());
+        }
+        offset += chunk.getData().length;
+        chunks++;
+      } while (!chunk.isLast());
+    }
+    ServerLogger.log("Server" + serverId + " received the snapshot at slot " + snapshotIndex + " from server" + peerId
+        + " in " + chunks + " chunks, " + offset + " bytes");
+    snapshots.install(file);
+    installedSnapshots.incrementAndGet();
+  }
+}
@@ -0,0 +1,68 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * A point-in-time view of the KeyValueStore as of a log slot, kept by copy-on-write: the store saves the value a
+ * write replaces into the open snapshot before changing it, and the snapshot reads every other key from the store.
+ */
+public class StoreSnapshot implements AutoCloseable {
+  // stands for a key that did not exist when the snapshot began
+  private static final Object ABSENT = new Object();
+  private final KeyValueStore store;
+  private final long index;
+  private final ConcurrentHashMap<String, Object> preImages = new ConcurrentHashMap<>();
+
+  StoreSnapshot(KeyValueStore store, long index) {
+    this.store = store;
+    this.index = index;
+  }
+
+  void savePreImage(String key, String value) {
+    preImages.putIfAbsent(key, value != null ? value : ABSENT);
+  }
+
+  String valueAt(String key, String current) {
+    Object preImage = preImages.get(key);
+    if (preImage == null) {
+      return current;
+    }
+    return preImage == ABSENT ? null : (String) preImage;
+  }
+
+  void forEachPreImage(BiConsumer<String, String> action) {
+    preImages.forEach((key, value) -> {
+      if (value != ABSENT) {
+        action.accept(key, (String) value);
+      }
+    });
+  }
+
+  /**
+   * Visits every key with its value as of the snapshot. A key changed while visiting may be visited twice, always
+   * with the same value.
+   */
+  public void forEach(BiConsumer<String, String> action) {
+    store.forEachAt(this, action);
+  }
+
+  /**
+   * @return the last log slot the snapshot includes
+   */
+  public long getIndex() {
+    return index;
+  }
+
+  /**
+   * @return how many keys were copied because they changed while the snapshot was open
+   */
+  public int getCopiedKeys() {
+    return preImages.size();
+  }
+
+  @Override
+  public void close() {
+    store.endSnapshot(this);
+  }
+}
@@ -0,0 +1,47 @@
+package sim;
+
+/**
+ * The faults a simulated scenario injects while its clients run.
+ */
+public enum FaultMix {
+  /** A reliable network with short delays and no failures. */
+  NONE(false, false, false, false),
+  /** Every message between servers is lost with a probability of up to 20%. */
+  DROPS(true, false, false, false),
+  /** Messages take up to 200 ms, so they often arrive out of order. */
+  DELAYS(false, true, false, false),
+  /** From time to time one or two servers, often the leader, are cut off from the others for a few seconds. */
+  PARTITIONS(false, false, true, false),
+  /** From time to time one or two servers, often the leader, crash and restart a few seconds later. */
+  CRASHES(false, false, false, true),
+  /** All of the above at once. */
+  ALL(true, true, true, true);
+
+  private final boolean drops;
+  private final boolean delays;
+  private final boolean partitions;
+  private final boolean crashes;
+
+  FaultMix(boolean drops, boolean delays, boolean partitions, boolean crashes) {
+    this.drops = drops;
+    this.delays = delays;
+    this.partitions = partitions;
+    this.crashes = crashes;
+  }
+
+  public boolean hasDrops() {
+    return drops;
+  }
+
+  public boolean hasDelays() {
+    return delays;
+  }
+
+  public boolean hasPartitions() {
+    return partitions;
+  }
+
+  public boolean hasCrashes() {
+    return crashes;
+  }
+}
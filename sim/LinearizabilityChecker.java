@@ -0,0 +1,107 @@
+package sim;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Checks that a history of PUTs and GETs is linearizable, key by key since every key is a register of its own: there
+ * has to be an order of the operations that respects their real-time order, in which every GET returns the value of
+ * the last PUT before it, or null if there is none. Follows Wing and Gong's search as refined by Lowe: an operation
+ * is linearized next only if it was invoked before every pending operation completed, and the search backtracks,
+ * skipping the states it has already been in. A PUT whose outcome is unknown may or may not have taken effect, at any
+ * time after it was invoked; a GET whose outcome is unknown says nothing and is left out.
+ */
+public class LinearizabilityChecker {
+
+  /**
+   * A search state: the operations linearized so far and the register's value after them.
+   */
+  private static class State {
+    private final BitSet linearized;
+    private final String value;
+
+    private State(BitSet linearized, String value) {
+      this.linearized = linearized;
+      this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof State)) {
+        return false;
+      }
+      State other = (State) obj;
+      return linearized.equals(other.linearized) && Objects.equals(value, other.value);
+    }
+
+    @Override
+    public int hashCode() {
+      return linearized.hashCode() * 31 + Objects.hashCode(value);
+    }
+  }
+
+  /**
+   * @return a description of the first key whose operations can not be linearized, or null if the history is linearizable
+   */
+  public static String check(List<Operation> history) {
+    Map<String, List<Operation>> byKey = new HashMap<>();
+    for (Operation operation : history) {
+      if (operation.isWrite() || operation.isCompleted()) {
+        byKey.computeIfAbsent(operation.getKey(), key -> new ArrayList<>()).add(operation);
+      }
+    }
+    for (Map.Entry<String, List<Operation>> key : byKey.entrySet()) {
+      List<Operation> operations = key.getValue();
+      operations.sort(Comparator.comparingLong(Operation::getInvokedMillis));
+      int required = 0;
+      for (Operation operation : operations) {
+        if (operation.isCompleted()) {
+          required++;
+        }
+      }
+      if (!search(operations, new BitSet(operations.size()), null, required, new HashSet<>())) {
+        StringBuilder description = new StringBuilder("key " + key.getKey() + " is not linearizable:");
+        for (Operation operation : operations) {
+          description.append("\n  ").append(operation);
+        }
+        return description.toString();
+      }
+    }
+    return null;
+  }
+
+  private static boolean search(List<Operation> operations, BitSet linearized, String value, int required, Set<State> visited) {
+    if (required == 0) {
+      return true;
+    }
+    long firstCompleted = Operation.UNKNOWN;
+    for (int i = linearized.nextClearBit(0); i < operations.size(); i = linearized.nextClearBit(i + 1)) {
+      firstCompleted = Math.min(firstCompleted, operations.get(i).getCompletedMillis());
+    }
+    for (int i = linearized.nextClearBit(0); i < operations.size(); i = linearized.nextClearBit(i + 1)) {
+      Operation operation = operations.get(i);
+      // sorted by invocation, so no later operation can go first either
+      if (operation.getInvokedMillis() > firstCompleted) {
+        break;
+      }
+      if (!operation.isWrite() && !Objects.equals(value, operation.getValue())) {
+        continue;
+      }
+      String next = operation.isWrite() ? operation.getValue() : value;
+      linearized.set(i);
+      if (visited.add(new State((BitSet) linearized.clone(), next))
+          && search(operations, linearized, next, operation.isCompleted() ? required - 1 : required, visited)) {
+        return true;
+      }
+      linearized.clear(i);
+    }
+    return false;
+  }
+}
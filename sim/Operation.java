@@ -0,0 +1,67 @@
+package sim;
+
+/**
+ * One client operation of a simulated scenario's history, with its virtual invocation and response times.
+ */
+public class Operation {
+  // the response time of an operation whose outcome the client never learned
+  public static final long UNKNOWN = Long.MAX_VALUE;
+  private final int clientId;
+  private final boolean write;
+  private final String key;
+  private final long invokedMillis;
+  private String value;
+  private long completedMillis = UNKNOWN;
+
+  public Operation(int clientId, boolean write, String key, String value, long invokedMillis) {
+    this.clientId = clientId;
+    this.write = write;
+    this.key = key;
+    this.value = value;
+    this.invokedMillis = invokedMillis;
+  }
+
+  public int getClientId() {
+    return clientId;
+  }
+
+  public boolean isWrite() {
+    return write;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the value written, or the value read, null for a key not present
+   */
+  public String getValue() {
+    return value;
+  }
+
+  public long getInvokedMillis() {
+    return invokedMillis;
+  }
+
+  public long getCompletedMillis() {
+    return completedMillis;
+  }
+
+  public boolean isCompleted() {
+    return completedMillis != UNKNOWN;
+  }
+
+  public void complete(long completedMillis, String readValue) {
+    this.completedMillis = completedMillis;
+    if (!write) {
+      this.value = readValue;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "client" + clientId + " " + (write ? "PUT " : "GET ") + key + "=" + value + " [" + invokedMillis + ", "
+        + (isCompleted() ? String.valueOf(completedMillis) : "?") + "]";
+  }
+}
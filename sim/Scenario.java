@@ -0,0 +1,231 @@
+package sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+
+import common.ServerConfig;
+import paxos.Command;
+
+/**
+ * One randomized run of a simulated five-server cluster, fully determined by its seed and fault mix. Clients write
+ * and read a few keys while the faults of the mix are injected; then the network is healed, the crashed servers
+ * restart and the clients go on for a while, and the cluster is left to settle. The run passes if no server threw,
+ * the servers never decided different commands for a slot, they all end up with the same log and store, the
+ * clients got through again once the faults stopped, and the clients' history is linearizable.
+ */
+public class Scenario {
+  private static final int CLIENTS = 3;
+  private static final int KEYS = 3;
+  private static final long FAULTS_FROM_MILLIS = 2000;
+  private static final long FAULTS_UNTIL_MILLIS = 10000;
+  // how often a crash or partition is injected; it is undone before the next one
+  private static final long FAULT_INTERVAL_MILLIS = 4000;
+  private static final long CLIENTS_UNTIL_MILLIS = 14000;
+  private static final long SETTLED_MILLIS = 20000;
+  private final long seed;
+  private final FaultMix mix;
+  private final Random random;
+  private final SimScheduler scheduler = new SimScheduler();
+  private final SimNetwork network;
+  private final Map<Integer, SimNode> nodes = new TreeMap<>();
+  private final List<SimClient> clients = new ArrayList<>();
+  private final List<Long> faultMillis = new ArrayList<>();
+
+  /**
+   * What a run found.
+   */
+  public static class Result {
+    private final String failure;
+    private final List<Operation> history;
+    private final List<Long> recoveryMillis;
+    private final long messages;
+    private final long fingerprint;
+
+    private Result(String failure, List<Operation> history, List<Long> recoveryMillis, long messages, long fingerprint) {
+      this.failure = failure;
+      this.history = history;
+      this.recoveryMillis = recoveryMillis;
+      this.messages = messages;
+      this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return why the run failed, null if it passed
+     */
+    public String getFailure() {
+      return failure;
+    }
+
+    public List<Operation> getHistory() {
+      return history;
+    }
+
+    /**
+     * @return for every fault injected, the time until an operation invoked after it succeeded
+     */
+    public List<Long> getRecoveryMillis() {
+      return recoveryMillis;
+    }
+
+    public long getMessages() {
+      return messages;
+    }
+
+    /**
+     * @return a hash of the decided log and the message count, equal for every run of the same scenario
+     */
+    public long getFingerprint() {
+      return fingerprint;
+    }
+  }
+
+  public Scenario(long seed, FaultMix mix) {
+    this.seed = seed;
+    this.mix = mix;
+    this.random = new Random(seed);
+    this.network = new SimNetwork(scheduler, random);
+  }
+
+  public Result run() {
+    for (int serverId : ServerConfig.ALL_SERVER_IDs) {
+      nodes.put(serverId, new SimNode(serverId, scheduler, network, random));
+    }
+    if (mix.hasDrops()) {
+      network.setDropRate(0.05 + random.nextDouble() * 0.15);
+    }
+    network.setDelay(1, mix.hasDelays() ? 200 : 5);
+    for (int i = 0; i < CLIENTS; i++) {
+      SimClient client = new SimClient(i + 1, scheduler, nodes, random, KEYS, CLIENTS_UNTIL_MILLIS);
+      clients.add(client);
+      client.start();
+    }
+    if (mix.hasPartitions() || mix.hasCrashes()) {
+      for (long at = FAULTS_FROM_MILLIS; at < FAULTS_UNTIL_MILLIS; at += FAULT_INTERVAL_MILLIS) {
+        scheduler.schedule(at, this::injectFault);
+      }
+    }
+    scheduler.schedule(FAULTS_UNTIL_MILLIS, () -> {
+      network.setDropRate(0);
+      network.setDelay(1, 5);
+      network.heal();
+      for (SimNode node : nodes.values()) {
+        if (!node.isUp()) {
+          node.restart();
+        }
+      }
+    });
+    scheduler.runUntil(SETTLED_MILLIS);
+    List<Operation> history = new ArrayList<>();
+    for (SimClient client : clients) {
+      history.addAll(client.getHistory());
+    }
+    String failure = check(history);
+    return new Result(failure != null ? "seed=" + seed + " mix=" + mix + ": " + failure : null, history,
+        recoveryTimes(history), network.getSent(), fingerprint());
+  }
+
+  /**
+   * Crashes or cuts off one or two servers, the leader more often than not, and undoes it before the next fault.
+   */
+  private void injectFault() {
+    List<Integer> victims = new ArrayList<>();
+    for (SimNode node : nodes.values()) {
+      if (node.isLeader() && random.nextInt(3) > 0) {
+        victims.add(node.getServerId());
+      }
+    }
+    while (victims.isEmpty() || victims.size() < 2 && random.nextBoolean()) {
+      int serverId = ServerConfig.ALL_SERVER_IDs[random.nextInt(ServerConfig.ALL_SERVER_IDs.length)];
+      if (!victims.contains(serverId)) {
+        victims.add(serverId);
+      }
+    }
+    boolean crash = mix.hasCrashes() && (!mix.hasPartitions() || random.nextBoolean());
+    faultMillis.add(scheduler.now());
+    if (crash) {
+      for (int serverId : victims) {
+        nodes.get(serverId).crash();
+      }
+    } else {
+      network.partition(victims.stream().mapToInt(Integer::intValue).toArray());
+    }
+    scheduler.schedule(1000 + random.nextInt((int) FAULT_INTERVAL_MILLIS - 1500), () -> {
+      if (crash) {
+        for (int serverId : victims) {
+          nodes.get(serverId).restart();
+        }
+      } else {
+        network.heal();
+      }
+    });
+  }
+
+  private String check(List<Operation> history) {
+    if (scheduler.getFailure() != null) {
+      return "a server threw " + scheduler.getFailure();
+    }
+    Map<Long, Command> chosen = new TreeMap<>();
+    for (SimNode node : nodes.values()) {
+      for (Map.Entry<Long, Command> decided : node.getDecided().entrySet()) {
+        Command other = chosen.putIfAbsent(decided.getKey(), decided.getValue());
+        if (other != null && !same(other, decided.getValue())) {
+          return "slot " + decided.getKey() + " was decided as " + other + " and as " + decided.getValue() + " on server" + node.getServerId();
+        }
+      }
+    }
+    SimNode first = nodes.values().iterator().next();
+    for (SimNode node : nodes.values()) {
+      if (node.getAppliedIndex() != first.getAppliedIndex()) {
+        return "the servers did not converge: server" + first.getServerId() + " applied up to " + first.getAppliedIndex()
+            + ", server" + node.getServerId() + " up to " + node.getAppliedIndex();
+      }
+      for (int i = 0; i < KEYS; i++) {
+        String key = "key" + i;
+        if (!Objects.equals(node.getStore().get(key), first.getStore().get(key))) {
+          return "the servers did not converge on " + key;
+        }
+      }
+    }
+    boolean recovered = false;
+    for (Operation operation : history) {
+      recovered |= operation.isCompleted() && operation.getInvokedMillis() >= FAULTS_UNTIL_MILLIS;
+    }
+    if (!recovered) {
+      return "no operation succeeded after the faults stopped";
+    }
+    return LinearizabilityChecker.check(history);
+  }
+
+  private static boolean same(Command a, Command b) {
+    return Objects.equals(a.getRequestId(), b.getRequestId()) && Objects.equals(a.getOperation(), b.getOperation())
+        && Objects.equals(a.getKey(), b.getKey()) && Objects.equals(a.getValue(), b.getValue());
+  }
+
+  private List<Long> recoveryTimes(List<Operation> history) {
+    List<Long> recoveries = new ArrayList<>();
+    for (long at : faultMillis) {
+      long recovered = Long.MAX_VALUE;
+      for (Operation operation : history) {
+        if (operation.isCompleted() && operation.getInvokedMillis() >= at) {
+          recovered = Math.min(recovered, operation.getCompletedMillis() - at);
+        }
+      }
+      if (recovered != Long.MAX_VALUE) {
+        recoveries.add(recovered);
+      }
+    }
+    return recoveries;
+  }
+
+  private long fingerprint() {
+    long hash = network.getSent();
+    for (Command command : nodes.values().iterator().next().getDecided().values()) {
+      hash = hash * 31 + Objects.hashCode(command.getRequestId());
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,147 @@
+package sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import paxos.Command;
+
+/**
+ * A client of a simulated cluster, issuing one PUT or GET at a time until it is told to stop. It sends to the server
+ * it believes leads and follows the leader hint of a server that turns it down, like PaxosClient. A PUT carries the
+ * client's session and is sent again with the same seq after a server failed or took too long, so it is applied at
+ * most once; a GET is a no-op put through the log, and reads the store when its slot is applied, which makes it
+ * linearizable.
+ * An operation that did not succeed within OPERATION_TIMEOUT_MILLIS is given up with an unknown outcome.
+ */
+public class SimClient {
+  private static final long OPERATION_TIMEOUT_MILLIS = 2000;
+  // how long one attempt may take before the client tries another server
+  private static final long ATTEMPT_TIMEOUT_MILLIS = 500;
+  private static final long RETRY_MILLIS = 20;
+  private static final long MAX_THINK_MILLIS = 50;
+  private final int clientId;
+  private final SimScheduler scheduler;
+  private final Map<Integer, SimNode> nodes;
+  private final List<Integer> serverIds;
+  private final Random random;
+  private final int keys;
+  private final long stopMillis;
+  private final List<Operation> history = new ArrayList<>();
+  private int leaderHint;
+  private long seq;
+  private long reads;
+
+  /**
+   * The operation being run and the state of its attempts.
+   */
+  private static class Call {
+    private final Operation operation;
+    private final long seq;
+    private final long deadlineMillis;
+    private int attempt;
+    private boolean done;
+
+    private Call(Operation operation, long seq, long deadlineMillis) {
+      this.operation = operation;
+      this.seq = seq;
+      this.deadlineMillis = deadlineMillis;
+    }
+  }
+
+  public SimClient(int clientId, SimScheduler scheduler, Map<Integer, SimNode> nodes, Random random, int keys, long stopMillis) {
+    this.clientId = clientId;
+    this.scheduler = scheduler;
+    this.nodes = nodes;
+    this.serverIds = new ArrayList<>(nodes.keySet());
+    this.random = random;
+    this.keys = keys;
+    this.stopMillis = stopMillis;
+    this.leaderHint = serverIds.get(random.nextInt(serverIds.size()));
+  }
+
+  public List<Operation> getHistory() {
+    return history;
+  }
+
+  public void start() {
+    scheduler.schedule(random.nextInt((int) MAX_THINK_MILLIS + 1), this::next);
+  }
+
+  private void next() {
+    if (scheduler.now() >= stopMillis) {
+      return;
+    }
+    String key = "key" + random.nextInt(keys);
+    boolean write = random.nextBoolean();
+    long callSeq = write ? ++seq : ++reads;
+    Operation operation = new Operation(clientId, write, key, write ? "client" + clientId + "-" + callSeq : null, scheduler.now());
+    history.add(operation);
+    attempt(new Call(operation, callSeq, scheduler.now() + OPERATION_TIMEOUT_MILLIS));
+  }
+
+  private void attempt(Call call) {
+    if (call.done) {
+      return;
+    }
+    if (scheduler.now() >= call.deadlineMillis) {
+      finish(call);
+      return;
+    }
+    int attempt = ++call.attempt;
+    SimNode node = nodes.get(leaderHint);
+    CompletableFuture<Boolean> applied = null;
+    Operation operation = call.operation;
+    String requestId = "client" + clientId + (operation.isWrite() ? "-w" : "-r") + call.seq + "-" + attempt;
+    if (node.isUp()) {
+      applied = node.submit(operation.isWrite()
+          ? Command.session(requestId, "PUT", operation.getKey(), operation.getValue(), "client" + clientId, call.seq, scheduler.now())
+          : new Command(requestId, Command.NOOP, operation.getKey(), null));
+    }
+    if (applied == null) {
+      redirect(node);
+      scheduler.schedule(RETRY_MILLIS, () -> attempt(call));
+      return;
+    }
+    applied.thenAccept(success -> {
+      if (call.done) {
+        return;
+      }
+      if (success) {
+        // run as the Learner applies the command's slot, so a GET sees the store exactly as of its place in the log
+        operation.complete(scheduler.now(), node.getStore().get(operation.getKey()));
+        finish(call);
+      } else if (call.attempt == attempt) {
+        redirect(node);
+        scheduler.schedule(RETRY_MILLIS, () -> attempt(call));
+      }
+    });
+    scheduler.schedule(ATTEMPT_TIMEOUT_MILLIS, () -> {
+      if (!call.done && call.attempt == attempt) {
+        leaderHint = otherServer(node.getServerId());
+        attempt(call);
+      }
+    });
+  }
+
+  private void finish(Call call) {
+    call.done = true;
+    scheduler.schedule(random.nextInt((int) MAX_THINK_MILLIS + 1), this::next);
+  }
+
+  /**
+   * Picks the server to try next after the given one turned the client down: the leader it follows, if it knows one,
+   * another server otherwise.
+   */
+  private void redirect(SimNode node) {
+    int hint = node.isUp() ? node.getFollowedLeader() : -1;
+    leaderHint = hint != -1 && hint != node.getServerId() ? hint : otherServer(node.getServerId());
+  }
+
+  private int otherServer(int serverId) {
+    int other = serverIds.get(random.nextInt(serverIds.size() - 1));
+    return other == serverId ? serverIds.get(serverIds.size() - 1) : other;
+  }
+}
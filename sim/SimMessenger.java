@@ -0,0 +1,52 @@
+package sim;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import paxos.Messenger;
+import paxos.PaxosMessage;
+
+/**
+ * The Messenger of a simulated server: it hands every message to the SimNetwork instead of a transport. Sending
+ * always reports success, as queuing a message on a real connection does; whether it arrives is up to the network.
+ */
+public class SimMessenger extends Messenger {
+  private static final CompletableFuture<Boolean> QUEUED = CompletableFuture.completedFuture(true);
+  private final int serverId;
+  private final SimNetwork network;
+
+  public SimMessenger(int serverId, SimNetwork network) {
+    // never contacted, no message leaves the simulation
+    super("localhost", 0);
+    this.serverId = serverId;
+    this.network = network;
+  }
+
+  @Override
+  public CompletableFuture<Boolean> broadcastMessage(PaxosMessage message) {
+    for (int peerId : getPeers()) {
+      network.send(serverId, peerId, message);
+    }
+    return QUEUED;
+  }
+
+  @Override
+  public CompletableFuture<Boolean> sendAsync(int peerId, PaxosMessage message) {
+    network.send(serverId, peerId, message);
+    return QUEUED;
+  }
+
+  @Override
+  public boolean sendPaxosMessage(int peerId, PaxosMessage message) {
+    network.send(serverId, peerId, message);
+    return true;
+  }
+
+  @Override
+  public boolean sendPaxosMessages(int peerId, List<PaxosMessage> messages) {
+    for (PaxosMessage message : messages) {
+      network.send(serverId, peerId, message);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,112 @@
+package sim;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Random;
+
+import paxos.PaxosMessage;
+import transport.MessageCodec;
+
+/**
+ * The network between simulated servers. A message is encoded and decoded with MessageCodec on the way, so no two
+ * servers share an object, and delivered after a delay drawn between the configured bounds, which also reorders
+ * messages sent close together. It is lost with the configured probability, or when its sender and receiver are
+ * on different sides of a partition or either is down, at the time it is sent or at the time it would arrive.
+ */
+public class SimNetwork {
+  private final SimScheduler scheduler;
+  private final Random random;
+  // by server id, so the servers are always visited in the same order
+  private final Map<Integer, SimNode> nodes = new TreeMap<>();
+  private double dropRate;
+  private long minDelayMillis = 1;
+  private long maxDelayMillis = 1;
+  // the side of the partition every server is on; all on side 0 while the network is whole
+  private final Map<Integer, Integer> sides = new HashMap<>();
+  private long sent;
+  private long dropped;
+
+  public SimNetwork(SimScheduler scheduler, Random random) {
+    this.scheduler = scheduler;
+    this.random = random;
+  }
+
+  public void register(SimNode node) {
+    nodes.put(node.getServerId(), node);
+    sides.put(node.getServerId(), 0);
+  }
+
+  public Collection<SimNode> getNodes() {
+    return nodes.values();
+  }
+
+  public void setDropRate(double dropRate) {
+    this.dropRate = dropRate;
+  }
+
+  public void setDelay(long minDelayMillis, long maxDelayMillis) {
+    this.minDelayMillis = minDelayMillis;
+    this.maxDelayMillis = Math.max(minDelayMillis, maxDelayMillis);
+  }
+
+  /**
+   * Cuts the given servers off from all others; they still reach each other.
+   */
+  public void partition(int... isolated) {
+    for (int serverId : isolated) {
+      sides.put(serverId, 1);
+    }
+  }
+
+  public void heal() {
+    sides.replaceAll((serverId, side) -> 0);
+  }
+
+  public boolean isPartitioned() {
+    return sides.containsValue(1);
+  }
+
+  /**
+   * @return whether a message from one server would reach the other right now, leaving random loss aside
+   */
+  public boolean canReach(int fromId, int toId) {
+    SimNode from = nodes.get(fromId);
+    SimNode to = nodes.get(toId);
+    return from != null && to != null && from.isUp() && to.isUp() && sides.get(fromId).equals(sides.get(toId));
+  }
+
+  public void send(int fromId, int toId, PaxosMessage message) {
+    sent++;
+    if (!canReach(fromId, toId) || fromId != toId && random.nextDouble() < dropRate) {
+      dropped++;
+      return;
+    }
+    PaxosMessage copy = copy(message);
+    long delay = fromId == toId ? 0 : minDelayMillis + (long) (random.nextDouble() * (maxDelayMillis - minDelayMillis + 1));
+    scheduler.schedule(delay, () -> {
+      if (canReach(fromId, toId)) {
+        nodes.get(toId).deliver(copy);
+      } else {
+        dropped++;
+      }
+    });
+  }
+
+  public long getSent() {
+    return sent;
+  }
+
+  public long getDropped() {
+    return dropped;
+  }
+
+  private static PaxosMessage copy(PaxosMessage message) {
+    ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.size(message));
+    MessageCodec.encode(message, buffer);
+    buffer.flip();
+    return MessageCodec.decode(buffer);
+  }
+}
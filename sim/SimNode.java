@@ -0,0 +1,241 @@
+package sim;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import common.ServerConfig;
+import paxos.Acceptor;
+import paxos.Command;
+import paxos.Learner;
+import paxos.LogEntry;
+import paxos.Membership;
+import paxos.MessageAccepted;
+import paxos.MessageCommit;
+import paxos.MessageHeartbeat;
+import paxos.MessagePrepare;
+import paxos.MessagePromise;
+import paxos.MessagePropose;
+import paxos.PaxosMessage;
+import paxos.ProposalID;
+import paxos.Proposer;
+import paxos.SessionTable;
+import server.KeyValueStore;
+
+/**
+ * One simulated server: the real Proposer, Acceptor and Learner wired together as PaxosGroup does, with messages
+ * handled on the simulation's thread as they arrive. Leader election and catching up, which the server runs on
+ * wall-clock threads in LeaderElector and StateTransfer, are done here on the virtual clock with the same timeouts:
+ * a leader sends heartbeats, a server that hears none for its election timeout campaigns, acceptors do not promise a
+ * candidate while the leader they follow is alive, and a server behind the leader's commit index copies the
+ * missing entries from a server it can reach.
+ * A crashed server receives nothing and runs no timers. Its acceptor state and log stay in memory and stand in for
+ * the write-ahead log and the learned log it would recover from; the leadership and the requests in flight are lost.
+ * The acceptors never forget applied slots, which the short simulated runs can afford.
+ */
+public class SimNode {
+  // how often a server checks whether to campaign or catch up
+  private static final long TICK_MILLIS = 100;
+  private static final int CATCH_UP_BATCH = 64;
+  private final int serverId;
+  private final SimScheduler scheduler;
+  private final SimNetwork network;
+  private final KeyValueStore store = new KeyValueStore();
+  private final Learner learner;
+  private final Acceptor acceptor;
+  private final Proposer proposer;
+  // every slot decided here, for catching up other servers and checking that the servers agree
+  private final Map<Long, Command> decided = new TreeMap<>();
+  private final long electionTimeoutMillis;
+  private boolean up = true;
+  private ProposalID followedBallot;
+  private long lastHeardMillis;
+  private long commitIndex;
+  private long heartbeatRound;
+  private long nextHeartbeatMillis;
+
+  public SimNode(int serverId, SimScheduler scheduler, SimNetwork network, Random random) {
+    this.serverId = serverId;
+    this.scheduler = scheduler;
+    this.network = network;
+    SimMessenger messenger = new SimMessenger(serverId, network);
+    this.learner = new Learner(serverId, store, null, new Membership(ServerConfig.ALL_SERVER_IDs, ServerConfig.MEMBERSHIP_DELAY),
+        new SessionTable(store, ServerConfig.SESSION_TIMEOUT_MILLIS));
+    messenger.setMembership(learner.getMembership());
+    this.proposer = new Proposer(serverId, messenger, learner, scheduler, scheduler::now);
+    this.acceptor = new Acceptor(serverId, messenger, null);
+    // every message is processed at once on the simulation's thread, which keeps the run deterministic
+    acceptor.start(Runnable::run);
+    learner.setDecisionListener((slot, command) -> {
+      decided.put(slot, command);
+      proposer.onDecided(slot, command);
+    });
+    learner.setQuorumListener(proposer::onQuorum);
+    learner.setAppliedListener(proposer::onApplied);
+    acceptor.setCommitListener(learner::learn);
+    acceptor.setLeaseGuard(candidateId -> followedBallot != null && followedBallot.getServerId() != candidateId
+        && scheduler.now() - lastHeardMillis < ServerConfig.ELECTION_TIMEOUT_MILLIS);
+    // staggered like randomized election timeouts, so the servers rarely campaign at the same time
+    this.electionTimeoutMillis = ServerConfig.ELECTION_TIMEOUT_MILLIS + random.nextInt((int) ServerConfig.ELECTION_TIMEOUT_MILLIS);
+    network.register(this);
+    scheduler.scheduleAtFixedRate(this::tick, random.nextInt((int) TICK_MILLIS), TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  public int getServerId() {
+    return serverId;
+  }
+
+  public boolean isUp() {
+    return up;
+  }
+
+  public boolean isLeader() {
+    return up && proposer.isLeader();
+  }
+
+  /**
+   * @return the leader this server follows, -1 if none, as a hint where a client should go
+   */
+  public int getFollowedLeader() {
+    return followedBallot != null ? followedBallot.getServerId() : -1;
+  }
+
+  public long getAppliedIndex() {
+    return learner.getAppliedIndex();
+  }
+
+  public Map<Long, Command> getDecided() {
+    return decided;
+  }
+
+  public KeyValueStore getStore() {
+    return store;
+  }
+
+  public void crash() {
+    up = false;
+    proposer.resign();
+    followedBallot = null;
+  }
+
+  public void restart() {
+    up = true;
+    lastHeardMillis = scheduler.now();
+  }
+
+  /**
+   * Proposes a client's command if this server leads and has room in its window.
+   * @return a future completed once the command is applied here, or null if the client has to go elsewhere
+   */
+  public CompletableFuture<Boolean> submit(Command command) {
+    if (!isLeader()) {
+      return null;
+    }
+    // a full window would block the simulation's only thread
+    long behind = learner.getHighestDecidedSlot() - learner.getAppliedIndex();
+    if (proposer.getInFlightCount() + Math.max(0, behind) >= ServerConfig.PIPELINE_WINDOW - 1) {
+      return null;
+    }
+    CompletableFuture<Boolean> applied = new CompletableFuture<>();
+    learner.registerCompletionFuture(command.getRequestId(), applied);
+    if (!proposer.submit(command)) {
+      learner.unregisterCompletionFuture(command.getRequestId());
+      return null;
+    }
+    return applied;
+  }
+
+  public void deliver(PaxosMessage message) {
+    if (!up) {
+      return;
+    }
+    if (message instanceof MessagePrepare || message instanceof MessagePropose || message instanceof MessageCommit) {
+      acceptor.enqueueMessage(message);
+      if (!acceptor.isRunning()) {
+        throw new IllegalStateException("Acceptor" + serverId + " failed to process " + message.getClass().getSimpleName());
+      }
+    } else if (message instanceof MessagePromise) {
+      MessagePromise promise = (MessagePromise) message;
+      if (!promise.isLeaderPromise()) {
+        proposer.propose(promise);
+      } else if (proposer.handleLeaderPromise(promise)) {
+        follow(promise.getProposalID());
+        sendHeartbeats();
+      }
+    } else if (message instanceof MessageAccepted) {
+      learner.handleAccepted((MessageAccepted) message);
+    } else if (message instanceof MessageHeartbeat) {
+      handleHeartbeat((MessageHeartbeat) message);
+    }
+  }
+
+  private void handleHeartbeat(MessageHeartbeat heartbeat) {
+    ProposalID ballot = heartbeat.getProposalID();
+    ProposalID.witness(ballot);
+    if (followedBallot != null && ballot.compareTo(followedBallot) < 0) {
+      return;
+    }
+    follow(ballot);
+    commitIndex = Math.max(commitIndex, heartbeat.getCommitIndex());
+    learner.observeCommitIndex(heartbeat.getCommitIndex());
+    if (proposer.isLeader() && ballot.compareTo(proposer.getLeaderBallot()) > 0) {
+      proposer.stepDown(ballot);
+    }
+  }
+
+  private void follow(ProposalID ballot) {
+    followedBallot = ballot;
+    lastHeardMillis = scheduler.now();
+  }
+
+  private void tick() {
+    if (!up) {
+      return;
+    }
+    long now = scheduler.now();
+    if (proposer.isLeader()) {
+      lastHeardMillis = now;
+      if (now >= nextHeartbeatMillis) {
+        sendHeartbeats();
+      }
+    } else if (now - lastHeardMillis >= electionTimeoutMillis) {
+      lastHeardMillis = now;
+      proposer.campaign();
+    }
+    if (learner.getAppliedIndex() < Math.max(commitIndex, learner.getHighestDecidedSlot())) {
+      catchUp();
+    }
+  }
+
+  private void sendHeartbeats() {
+    nextHeartbeatMillis = scheduler.now() + ServerConfig.HEARTBEAT_INTERVAL_MILLIS;
+    MessageHeartbeat heartbeat = new MessageHeartbeat(proposer.getLeaderBallot(), ++heartbeatRound, learner.getAppliedIndex());
+    for (int peerId : ServerConfig.ALL_SERVER_IDs) {
+      if (peerId != serverId) {
+        network.send(serverId, peerId, heartbeat);
+      }
+    }
+  }
+
+  /**
+   * Copies the entries after the applied index from the first reachable server that decided them.
+   */
+  private void catchUp() {
+    for (SimNode peer : network.getNodes()) {
+      if (peer == this || !network.canReach(serverId, peer.serverId) || !network.canReach(peer.serverId, serverId)) {
+        continue;
+      }
+      long from = learner.getAppliedIndex() + 1;
+      if (!peer.decided.containsKey(from)) {
+        continue;
+      }
+      for (long slot = from; slot < from + CATCH_UP_BATCH && peer.decided.containsKey(slot); slot++) {
+        // the ballot is not used once a slot is decided
+        learner.learn(new LogEntry(slot, ProposalID.of(0, peer.serverId), peer.decided.get(slot)));
+      }
+      return;
+    }
+  }
+}
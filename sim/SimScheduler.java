@@ -0,0 +1,200 @@
+package sim;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The event loop of a simulation and its virtual clock. Every timer of the simulated servers and every message
+ * delivery is a task in one queue, run on the calling thread in the order of its due time and, for equal times, of
+ * scheduling, so a run depends on nothing but its seed. Time only moves when the next task is taken, so waiting a
+ * virtual second costs nothing. It serves as the ScheduledExecutorService of the real Proposers.
+ */
+public class SimScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+  private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+  private long nowMillis;
+  private long sequence;
+  private boolean shutdown;
+  // the first exception thrown by a task, which fails the scenario
+  private Throwable failure;
+
+  private class Task<V> implements ScheduledFuture<V> {
+    private long dueMillis;
+    private long order;
+    private final long periodMillis;
+    private final Callable<V> callable;
+    private boolean cancelled;
+    private boolean done;
+    private V result;
+
+    private Task(long dueMillis, long periodMillis, Callable<V> callable) {
+      this.dueMillis = dueMillis;
+      this.order = sequence++;
+      this.periodMillis = periodMillis;
+      this.callable = callable;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueMillis - nowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      Task<?> task = (Task<?>) other;
+      return dueMillis != task.dueMillis ? Long.compare(dueMillis, task.dueMillis) : Long.compare(order, task.order);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (done) {
+        return false;
+      }
+      cancelled = true;
+      done = true;
+      return queue.remove(this);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return done;
+    }
+
+    @Override
+    public V get() throws ExecutionException {
+      if (!done) {
+        // nothing else runs while the caller waits, so the task could never finish
+        throw new IllegalStateException("a simulated task can not be waited for");
+      }
+      return result;
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws ExecutionException {
+      return get();
+    }
+
+    private void run() throws Exception {
+      V value = callable.call();
+      if (periodMillis > 0 && !cancelled) {
+        dueMillis = nowMillis + periodMillis;
+        order = sequence++;
+        queue.add(this);
+        return;
+      }
+      result = value;
+      done = true;
+    }
+  }
+
+  public long now() {
+    return nowMillis;
+  }
+
+  /**
+   * Runs every task due up to the given virtual time, including tasks they schedule within it, and moves the clock
+   * there.
+   */
+  public void runUntil(long untilMillis) {
+    Task<?> task;
+    while (failure == null && (task = queue.peek()) != null && task.dueMillis <= untilMillis) {
+      queue.poll();
+      nowMillis = Math.max(nowMillis, task.dueMillis);
+      try {
+        task.run();
+      } catch (Throwable e) {
+        failure = e;
+      }
+    }
+    nowMillis = Math.max(nowMillis, untilMillis);
+  }
+
+  /**
+   * @return the first exception a simulated server threw, or null
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  public ScheduledFuture<?> schedule(long delayMillis, Runnable command) {
+    return schedule(command, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    return add(unit.toMillis(delay), 0, () -> {
+      command.run();
+      return null;
+    });
+  }
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+    return add(unit.toMillis(delay), 0, callable);
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+    return add(unit.toMillis(initialDelay), Math.max(1, unit.toMillis(period)), () -> {
+      command.run();
+      return null;
+    });
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+    return scheduleAtFixedRate(command, initialDelay, delay, unit);
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    schedule(command, 0, TimeUnit.MILLISECONDS);
+  }
+
+  private <V> Task<V> add(long delayMillis, long periodMillis, Callable<V> callable) {
+    Task<V> task = new Task<>(nowMillis + Math.max(0, delayMillis), periodMillis, callable);
+    if (!shutdown) {
+      queue.add(task);
+    }
+    return task;
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown = true;
+    queue.clear();
+    return Collections.emptyList();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) {
+    return shutdown;
+  }
+}
@@ -0,0 +1,95 @@
+package sim;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs randomized scenarios of a simulated cluster (see Scenario) for every fault mix, one seed after the other, and
+ * reports per mix how many failed, how many client operations succeeded or ended with an unknown outcome, and the
+ * percentiles of the recovery time: the virtual time from a crash or partition until a client operation invoked
+ * after it succeeded. Every failure is printed with its seed; running that seed alone replays it exactly and prints
+ * the history. The servers' log lines are formatted as usual but written nowhere.
+ * Usage: java sim.Simulator [scenarios=100] [mix=all mixes] [seed=1]
+ */
+public class Simulator {
+
+  public static void main(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (separator < 0) {
+        throw new IllegalArgumentException("expected name=value, got " + arg);
+      }
+      options.put(arg.substring(0, separator), arg.substring(separator + 1));
+    }
+    int scenarios = Integer.parseInt(options.getOrDefault("scenarios", "100"));
+    long firstSeed = Long.parseLong(options.getOrDefault("seed", "1"));
+    List<FaultMix> mixes = new ArrayList<>();
+    if (options.containsKey("mix")) {
+      mixes.add(FaultMix.valueOf(options.get("mix").toUpperCase()));
+    } else {
+      Collections.addAll(mixes, FaultMix.values());
+    }
+    PrintStream out = System.out;
+    PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    System.setOut(discard);
+    System.setErr(discard);
+    long started = System.nanoTime();
+    int total = 0;
+    int failed = 0;
+    for (FaultMix mix : mixes) {
+      int mixFailed = 0;
+      long operations = 0;
+      long succeeded = 0;
+      long unknown = 0;
+      long messages = 0;
+      List<Long> recoveries = new ArrayList<>();
+      for (long seed = firstSeed; seed < firstSeed + scenarios; seed++) {
+        Scenario.Result result = new Scenario(seed, mix).run();
+        for (Operation operation : result.getHistory()) {
+          operations++;
+          if (operation.isCompleted()) {
+            succeeded++;
+          } else if (operation.isWrite()) {
+            unknown++;
+          }
+        }
+        messages += result.getMessages();
+        recoveries.addAll(result.getRecoveryMillis());
+        if (result.getFailure() != null) {
+          mixFailed++;
+          out.println("failure " + result.getFailure());
+        }
+        if (scenarios == 1) {
+          for (Operation operation : result.getHistory()) {
+            out.println("operation " + operation);
+          }
+          out.printf("seed=%d mix=%s fingerprint=%x%n", seed, mix, result.getFingerprint());
+        }
+      }
+      Collections.sort(recoveries);
+      out.printf("mix=%s scenarios=%d failed=%d operations=%d succeeded=%d unknownWrites=%d messages/scenario=%d "
+          + "faults=%d recoveryMs(p50/p90/p99/max)=%d/%d/%d/%d%n", mix, scenarios, mixFailed, operations, succeeded, unknown,
+          messages / scenarios, recoveries.size(), percentile(recoveries, 50), percentile(recoveries, 90),
+          percentile(recoveries, 99), percentile(recoveries, 100));
+      total += scenarios;
+      failed += mixFailed;
+    }
+    double minutes = (System.nanoTime() - started) / 60e9;
+    out.printf("scenarios=%d failed=%d scenarios/min=%.0f%n", total, failed, total / minutes);
+    System.exit(failed == 0 ? 0 : 1);
+  }
+
+  private static long percentile(List<Long> sorted, double percentile) {
+    if (sorted.isEmpty()) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+  }
+}
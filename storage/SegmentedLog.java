@@ -0,0 +1,263 @@
+package storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import server.ServerLogger;
+
+/**
+ * A log of consecutive slots stored in fixed-size memory-mapped segment files. Every segment has a data file holding
+ * the entries, each framed as its length, a CRC32 and its bytes, and a mapped index file holding where each entry ends,
+ * so finding a slot takes one lookup. Entries are written straight into and read straight out of the mapped buffers,
+ * nothing is kept on the heap per entry, and segments that only hold slots before a snapshot are deleted as a whole.
+ */
+public class SegmentedLog implements Closeable {
+  private static final int HEADER_BYTES = 8;
+  private static final String DATA_SUFFIX = ".log";
+  private static final String INDEX_SUFFIX = ".idx";
+  private final Path dir;
+  private final int segmentBytes;
+  private final int indexEntries;
+  // by the first slot they hold
+  private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+  private volatile long nextSlot = 1;
+
+  private static class Segment {
+    private final long baseSlot;
+    private final Path dataFile;
+    private final Path indexFile;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;
+    private final int indexEntries;
+    // written after the entry itself, so a reader that sees the count sees the entry
+    private volatile int count;
+    private int position;
+
+    private Segment(Path dir, long baseSlot, int segmentBytes, int indexEntries) throws IOException {
+      this.baseSlot = baseSlot;
+      this.dataFile = dir.resolve(String.format("%020d", baseSlot) + DATA_SUFFIX);
+      this.indexFile = dir.resolve(String.format("%020d", baseSlot) + INDEX_SUFFIX);
+      this.indexEntries = indexEntries;
+      this.data = map(dataFile, Math.max(segmentBytes, Files.exists(dataFile) ? (int) Files.size(dataFile) : 0));
+      this.index = map(indexFile, indexEntries * Integer.BYTES);
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        // the mapping stays valid after the channel is closed
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    private int start(int entry) {
+      return entry == 0 ? 0 : index.getInt((entry - 1) * Integer.BYTES);
+    }
+
+    private int end(int entry) {
+      return index.getInt(entry * Integer.BYTES);
+    }
+
+    /**
+     * Counts the entries written before the segment was closed, dropping a torn entry at the end.
+     */
+    private void recover() {
+      int entries = 0;
+      while (entries < indexEntries && end(entries) > start(entries) && isIntact(entries)) {
+        entries++;
+      }
+      for (int entry = entries; entry < indexEntries && end(entry) != 0; entry++) {
+        index.putInt(entry * Integer.BYTES, 0);
+      }
+      count = entries;
+      position = start(entries);
+    }
+
+    private boolean isIntact(int entry) {
+      int start = start(entry);
+      int end = end(entry);
+      if (end > data.capacity() || end - start < HEADER_BYTES || data.getInt(start) != end - start - HEADER_BYTES) {
+        return false;
+      }
+      return data.getInt(start + Integer.BYTES) == checksum(payload(entry));
+    }
+
+    private ByteBuffer payload(int entry) {
+      ByteBuffer view = data.duplicate();
+      view.limit(end(entry)).position(start(entry) + HEADER_BYTES);
+      return view.slice();
+    }
+
+    private void delete() throws IOException {
+      Files.deleteIfExists(dataFile);
+      Files.deleteIfExists(indexFile);
+    }
+  }
+
+  /**
+   * Opens the log in a directory, creating it if needed.
+   * @param dir the directory of the segment files
+   * @param segmentBytes the size of a segment's data file
+   * @throws IOException if the segments can not be opened
+   */
+  public SegmentedLog(Path dir, int segmentBytes) throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    // an entry takes at least its header and a few bytes of payload
+    this.indexEntries = Math.max(1, segmentBytes / (2 * HEADER_BYTES));
+    Files.createDirectories(dir);
+    List<Long> baseSlots = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + DATA_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        baseSlots.add(Long.parseLong(name.substring(0, name.length() - DATA_SUFFIX.length())));
+      }
+    }
+    baseSlots.sort(null);
+    for (long baseSlot : baseSlots) {
+      Segment segment = new Segment(dir, baseSlot, segmentBytes, indexEntries);
+      segment.recover();
+      segments.put(baseSlot, segment);
+      nextSlot = baseSlot + segment.count;
+    }
+  }
+
+  /**
+   * Appends the entry for the next slot, letting the writer encode it directly into the mapped segment.
+   * @param slot the slot, which must follow the last slot of the log unless the log is empty
+   * @param size the number of bytes the writer puts
+   * @param writer encodes the entry into the buffer it is given
+   * @throws IOException if a new segment can not be created
+   */
+  public synchronized void append(long slot, int size, Consumer<ByteBuffer> writer) throws IOException {
+    Map.Entry<Long, Segment> last = segments.lastEntry();
+    if (last != null && slot != nextSlot) {
+      throw new IllegalStateException("Slot " + slot + " does not follow the last slot " + (nextSlot - 1) + " of the log");
+    }
+    if (size + HEADER_BYTES > segmentBytes) {
+      throw new IllegalArgumentException("An entry of " + size + " bytes does not fit into a segment of " + segmentBytes + " bytes");
+    }
+    Segment segment = last != null ? last.getValue() : null;
+    if (segment == null || segment.count == indexEntries || segment.position + HEADER_BYTES + size > segment.data.capacity()) {
+      if (segment != null) {
+        segment.data.force();
+        segment.index.force();
+      }
+      segment = new Segment(dir, slot, segmentBytes, indexEntries);
+      segments.put(slot, segment);
+    }
+    int start = segment.position;
+    ByteBuffer payload = segment.data.duplicate();
+    payload.limit(start + HEADER_BYTES + size).position(start + HEADER_BYTES);
+    payload = payload.slice();
+    writer.accept(payload);
+    if (payload.position() != size) {
+      throw new IllegalStateException("The writer put " + payload.position() + " bytes instead of " + size);
+    }
+    payload.flip();
+    segment.data.putInt(start, size);
+    segment.data.putInt(start + Integer.BYTES, checksum(payload));
+    segment.position = start + HEADER_BYTES + size;
+    segment.index.putInt(segment.count * Integer.BYTES, segment.position);
+    segment.count++;
+    nextSlot = slot + 1;
+  }
+
+  /**
+   * @return a read-only view of the entry of a slot inside its mapped segment, or null if the log does not hold the slot
+   */
+  public ByteBuffer read(long slot) {
+    Map.Entry<Long, Segment> floor = segments.floorEntry(slot);
+    if (floor == null) {
+      return null;
+    }
+    Segment segment = floor.getValue();
+    long entry = slot - segment.baseSlot;
+    if (entry >= segment.count) {
+      return null;
+    }
+    return segment.payload((int) entry).asReadOnlyBuffer();
+  }
+
+  /**
+   * Deletes the segments that only hold slots before the given one, e.g. after a snapshot covering them was taken.
+   * @param slot the first slot that must be kept
+   */
+  public synchronized void truncateBefore(long slot) throws IOException {
+    Map.Entry<Long, Segment> first;
+    while ((first = segments.firstEntry()) != null) {
+      Map.Entry<Long, Segment> second = segments.higherEntry(first.getKey());
+      if (second == null || second.getKey() > slot) {
+        break;
+      }
+      segments.remove(first.getKey());
+      first.getValue().delete();
+      ServerLogger.log("Log segment starting at slot " + first.getKey() + " deleted, the log now starts at slot " + second.getKey());
+    }
+  }
+
+  /**
+   * Drops every entry and continues the log at a later slot, e.g. after installing a snapshot from another server.
+   * @param slot the next slot to append
+   */
+  public synchronized void reset(long slot) throws IOException {
+    for (Segment segment : segments.values()) {
+      segment.delete();
+    }
+    segments.clear();
+    nextSlot = slot;
+  }
+
+  /**
+   * @return the first slot the log holds, or the next slot to append if it is empty
+   */
+  public long getFirstSlot() {
+    Map.Entry<Long, Segment> first = segments.firstEntry();
+    return first != null ? first.getKey() : nextSlot;
+  }
+
+  /**
+   * @return the last slot appended, one less than the first slot if the log is empty
+   */
+  public long getLastSlot() {
+    return nextSlot - 1;
+  }
+
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Writes the mapped pages of the active segment to disk.
+   */
+  public synchronized void sync() {
+    Map.Entry<Long, Segment> last = segments.lastEntry();
+    if (last != null) {
+      last.getValue().data.force();
+      last.getValue().index.force();
+    }
+  }
+
+  @Override
+  public void close() {
+    sync();
+  }
+
+  private static int checksum(ByteBuffer payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload.duplicate());
+    return (int) crc.getValue();
+  }
+}
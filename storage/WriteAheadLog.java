@@ -0,0 +1,384 @@
+package storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import server.ServerLogger;
+
+/**
+ * An append-only log file of serialized records with group commit. Appends are queued and a single flusher thread
+ * writes everything queued so far and makes it durable with one FileChannel.force, so concurrent appends share an fsync.
+ * Every record is framed as its length, a CRC32 of its bytes and the bytes; a torn record at the end of the file
+ * (a crash in the middle of a write) is cut off when the log is opened again, and a write that failed is cut off
+ * before anything else is written after it. The log can be rewritten with just the records still needed, which
+ * replaces the file atomically.
+ */
+public class WriteAheadLog implements Closeable {
+  private static final int HEADER_BYTES = 8;
+  // upper bound for the records written with one fsync, so a burst does not build one huge buffer
+  private static final int MAX_GROUP_SIZE = 1024;
+  // queued by close() to wake up the flusher
+  private static final PendingRecord CLOSE = new PendingRecord(new byte[0], false);
+  private final Path file;
+  // replaced by a rewrite, under the lock of this log so a replay never reads from a closed channel
+  private volatile FileChannel channel;
+  private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+  private final Thread flusher;
+  private volatile boolean running = true;
+  // the end of the durable part of the file
+  private volatile long durableSize;
+  private final AtomicLong fsyncs = new AtomicLong();
+  private final AtomicLong records = new AtomicLong();
+  private final AtomicLong rewrites = new AtomicLong();
+  // set when the file could not be brought back to its durable part, after which nothing is written any more
+  private volatile IOException failure;
+
+  private static class PendingRecord {
+    private final byte[] frame;
+    // the frame holds every record of a rewrite, which replaces the file
+    private final boolean rewrite;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private PendingRecord(byte[] frame, boolean rewrite) {
+      this.frame = frame;
+      this.rewrite = rewrite;
+    }
+  }
+
+  /**
+   * Opens the log, creating the file and its directories if needed.
+   * @param file the log file
+   * @throws IOException if the file can not be opened
+   */
+  public WriteAheadLog(Path file) throws IOException {
+    this.file = file;
+    if (file.getParent() != null) {
+      Files.createDirectories(file.getParent());
+    }
+    Files.deleteIfExists(rewriteFile());
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long validSize = scan(null);
+    if (validSize < channel.size()) {
+      ServerLogger.warn("Write-ahead log " + file + " has a torn record at " + validSize + ", truncating " + (channel.size() - validSize) + " bytes");
+      channel.truncate(validSize);
+      channel.force(true);
+    }
+    channel.position(validSize);
+    this.durableSize = validSize;
+    this.flusher = new Thread(this::flushLoop, "wal-flusher");
+    this.flusher.setDaemon(true);
+    this.flusher.start();
+  }
+
+  /**
+   * Queues a record for the next group commit.
+   * @param record the record to append
+   * @return a future completed once the record is durable, or completed exceptionally if it could not be written
+   */
+  public CompletableFuture<Void> append(Serializable record) {
+    PendingRecord pending;
+    try {
+      pending = new PendingRecord(encode(record), false);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    return enqueue(pending);
+  }
+
+  /**
+   * Queues a rewrite of the log: once every record appended before is written, the file is replaced by one holding
+   * just these records, and records appended after go to the new file.
+   * @param records the records to keep, in the order they are replayed
+   * @return a future completed once the new file replaced the old one, or completed exceptionally if the old one is
+   *     still in use
+   */
+  public CompletableFuture<Void> rewrite(List<? extends Serializable> records) {
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    try {
+      for (Serializable record : records) {
+        frames.write(encode(record));
+      }
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    return enqueue(new PendingRecord(frames.toByteArray(), true));
+  }
+
+  private CompletableFuture<Void> enqueue(PendingRecord pending) {
+    if (!running) {
+      pending.future.completeExceptionally(new IOException("Write-ahead log " + file + " is closed"));
+      return pending.future;
+    }
+    IOException failed = failure;
+    if (failed != null) {
+      pending.future.completeExceptionally(failed);
+      return pending.future;
+    }
+    queue.offer(pending);
+    return pending.future;
+  }
+
+  /**
+   * Reads every durable record from the start of the log, in the order they were appended.
+   * @param consumer receives the records
+   * @throws IOException if the file can not be read
+   */
+  public synchronized void replay(Consumer<Object> consumer) throws IOException {
+    scan(consumer);
+  }
+
+  private void flushLoop() {
+    List<PendingRecord> group = new ArrayList<>();
+    while (running || !queue.isEmpty()) {
+      try {
+        group.add(queue.take());
+        queue.drainTo(group, MAX_GROUP_SIZE - 1);
+        group.remove(CLOSE);
+        // the records before a rewrite go to the old file, the ones after it to the new one
+        int start = 0;
+        for (int i = 0; i < group.size(); i++) {
+          if (group.get(i).rewrite) {
+            write(group.subList(start, i));
+            replaceFile(group.get(i));
+            start = i + 1;
+          }
+        }
+        write(group.subList(start, group.size()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } finally {
+        group.clear();
+      }
+    }
+  }
+
+  /**
+   * Writes records with one fsync. If that fails, the file is cut back to its durable part, so a torn frame never
+   * ends up in front of records written later, which a replay would then not read.
+   */
+  private void write(List<PendingRecord> group) {
+    if (group.isEmpty()) {
+      return;
+    }
+    IOException failed = failure;
+    if (failed != null) {
+      fail(group, failed);
+      return;
+    }
+    int size = 0;
+    for (PendingRecord pending : group) {
+      size += pending.frame.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    for (PendingRecord pending : group) {
+      buffer.put(pending.frame);
+    }
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      ServerLogger.error("Write-ahead log " + file + " failed to write " + group.size() + " records: " + e.getMessage());
+      fail(group, e);
+      try {
+        channel.truncate(durableSize);
+        channel.position(durableSize);
+        channel.force(true);
+      } catch (IOException truncateFailure) {
+        stop("could not cut off the failed write at " + durableSize, truncateFailure);
+      }
+      return;
+    }
+    fsyncs.incrementAndGet();
+    records.addAndGet(group.size());
+    durableSize += size;
+    for (PendingRecord pending : group) {
+      pending.future.complete(null);
+    }
+  }
+
+  /**
+   * Writes the records of a rewrite to a new file and moves it over the log. Until the move, a failure leaves the log
+   * as it was; after it, the log can not go on safely and stops.
+   */
+  private void replaceFile(PendingRecord pending) {
+    IOException failed = failure;
+    if (failed != null) {
+      pending.future.completeExceptionally(failed);
+      return;
+    }
+    Path rewritten = rewriteFile();
+    try (FileChannel out = FileChannel.open(rewritten, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.wrap(pending.frame);
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      out.force(true);
+    } catch (IOException e) {
+      ServerLogger.error("Write-ahead log " + file + " could not be rewritten, keeping it: " + e.getMessage());
+      pending.future.completeExceptionally(e);
+      return;
+    }
+    try {
+      synchronized (this) {
+        Files.move(rewritten, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileChannel previous = channel;
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        durableSize = channel.size();
+        previous.close();
+      }
+      // the move has to be durable before records are appended to the new file
+      if (file.getParent() != null) {
+        try (FileChannel dir = FileChannel.open(file.getParent(), StandardOpenOption.READ)) {
+          dir.force(true);
+        }
+      }
+    } catch (IOException e) {
+      stop("could not switch to its rewritten file", e);
+      pending.future.completeExceptionally(e);
+      return;
+    }
+    rewrites.incrementAndGet();
+    pending.future.complete(null);
+  }
+
+  private Path rewriteFile() {
+    return file.resolveSibling(file.getFileName() + ".rewrite");
+  }
+
+  /**
+   * Fails every later append, since the file may hold garbage in front of them.
+   */
+  private void stop(String reason, IOException e) {
+    failure = new IOException("Write-ahead log " + file + " " + reason, e);
+    ServerLogger.error(failure.getMessage() + ", failing every further record: " + e.getMessage());
+    List<PendingRecord> queued = new ArrayList<>();
+    queue.drainTo(queued);
+    queued.remove(CLOSE);
+    fail(queued, failure);
+  }
+
+  private static void fail(List<PendingRecord> group, IOException e) {
+    for (PendingRecord pending : group) {
+      pending.future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Walks the records from the start of the file up to the durable size, or the whole file while opening.
+   * @return the end of the last intact record
+   */
+  private long scan(Consumer<Object> consumer) throws IOException {
+    long end = consumer == null ? channel.size() : durableSize;
+    long position = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    while (position + HEADER_BYTES <= end) {
+      header.clear();
+      readFully(header, position);
+      header.flip();
+      int length = header.getInt();
+      int checksum = header.getInt();
+      if (length < 0 || position + HEADER_BYTES + length > end) {
+        break;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      readFully(payload, position + HEADER_BYTES);
+      CRC32 crc = new CRC32();
+      crc.update(payload.array());
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      if (consumer != null) {
+        consumer.accept(decode(payload.array()));
+      }
+      position += HEADER_BYTES + length;
+    }
+    return position;
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of write-ahead log " + file);
+      }
+    }
+  }
+
+  private static byte[] encode(Serializable record) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(new byte[HEADER_BYTES]);
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(record);
+    }
+    byte[] frame = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(frame, HEADER_BYTES, frame.length - HEADER_BYTES);
+    ByteBuffer.wrap(frame).putInt(frame.length - HEADER_BYTES).putInt((int) crc.getValue());
+    return frame;
+  }
+
+  private static Object decode(byte[] payload) throws IOException {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+      return in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unknown record type in write-ahead log", e);
+    }
+  }
+
+  public long getFsyncCount() {
+    return fsyncs.get();
+  }
+
+  public long getRecordCount() {
+    return records.get();
+  }
+
+  public long getRewriteCount() {
+    return rewrites.get();
+  }
+
+  public String getStats() {
+    long syncs = fsyncs.get();
+    return "wal records=" + records.get() + ", fsyncs=" + syncs
+        + (syncs > 0 ? String.format(", records/fsync=%.2f", (double) records.get() / syncs) : "")
+        + ", rewrites=" + rewrites.get();
+  }
+
+  /**
+   * Writes out everything queued and closes the file.
+   */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    queue.offer(CLOSE);
+    try {
+      flusher.join(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+  }
+}
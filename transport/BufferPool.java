@@ -0,0 +1,73 @@
+package transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles direct buffers for outgoing frames, so sending a message neither allocates a buffer nor copies the frame
+ * from the heap into a direct buffer inside the socket write. Buffers come in a few fixed sizes and a request gets the
+ * smallest that fits; a request larger than all of them gets a heap buffer that is not pooled. Every size keeps at
+ * most a fixed number of released buffers, the rest are left to the garbage collector.
+ */
+public class BufferPool {
+  private final int[] sizes;
+  private final List<ArrayBlockingQueue<ByteBuffer>> free;
+  private final AtomicLong allocated = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+  private final AtomicLong oversized = new AtomicLong();
+
+  /**
+   * @param maxPooled how many released buffers each size keeps
+   * @param sizes the buffer sizes in ascending order
+   */
+  public BufferPool(int maxPooled, int... sizes) {
+    this.sizes = sizes.clone();
+    this.free = new ArrayList<>(sizes.length);
+    for (int i = 0; i < sizes.length; i++) {
+      free.add(new ArrayBlockingQueue<>(maxPooled));
+    }
+  }
+
+  /**
+   * @return a cleared buffer with its limit set to the requested number of bytes
+   */
+  public ByteBuffer acquire(int bytes) {
+    for (int i = 0; i < sizes.length; i++) {
+      if (bytes <= sizes[i]) {
+        ByteBuffer buffer = free.get(i).poll();
+        if (buffer != null) {
+          reused.incrementAndGet();
+        } else {
+          allocated.incrementAndGet();
+          buffer = ByteBuffer.allocateDirect(sizes[i]);
+        }
+        buffer.clear().limit(bytes);
+        return buffer;
+      }
+    }
+    oversized.incrementAndGet();
+    return ByteBuffer.allocate(bytes);
+  }
+
+  /**
+   * Hands a buffer back once nothing reads or writes it any more.
+   */
+  public void release(ByteBuffer buffer) {
+    if (!buffer.isDirect()) {
+      return;
+    }
+    for (int i = 0; i < sizes.length; i++) {
+      if (buffer.capacity() == sizes[i]) {
+        free.get(i).offer(buffer);
+        return;
+      }
+    }
+  }
+
+  public String getStats() {
+    return "buffers allocated=" + allocated + ", reused=" + reused + ", oversized=" + oversized;
+  }
+}
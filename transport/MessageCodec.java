@@ -0,0 +1,437 @@
+package transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import paxos.Command;
+import paxos.GroupMessage;
+import paxos.LogEntry;
+import paxos.LogEntryCodec;
+import paxos.MessageAccepted;
+import paxos.MessageCommit;
+import paxos.MessageHeartbeat;
+import paxos.MessageHeartbeatAck;
+import paxos.MessagePrepare;
+import paxos.MessagePromise;
+import paxos.MessagePropose;
+import paxos.PaxosMessage;
+import paxos.ProposalID;
+
+/**
+ * The binary encoding of the Paxos messages sent by the NIO transport: a type byte followed by the fields of the
+ * message. Server ids, slots, ballots and counts are unsigned varints (7 bits per byte, low bits first), an operation
+ * is its opcode byte, and strings are the varint of their UTF-8 length plus one (0 for null) followed by the bytes.
+ * Encoding writes characters straight into the buffer, so it allocates nothing. Several messages for the same peer
+ * travel as one batch: the batch type byte, the varint count and the messages. A message of a Paxos group other than
+ * group 0 is the group type byte and the varint group id in front of the message.
+ */
+public class MessageCodec {
+  private static final byte PREPARE = 1;
+  private static final byte PROMISE = 2;
+  private static final byte PROPOSE = 3;
+  private static final byte ACCEPTED = 4;
+  private static final byte HEARTBEAT = 5;
+  private static final byte HEARTBEAT_ACK = 6;
+  private static final byte BATCH = 7;
+  private static final byte COMMIT = 8;
+  private static final byte GROUP = 9;
+
+  private MessageCodec() {
+  }
+
+  /**
+   * @return the number of bytes encode writes for the messages, a single message is not wrapped into a batch
+   */
+  public static int size(List<PaxosMessage> messages) {
+    if (messages.size() == 1) {
+      return size(messages.get(0));
+    }
+    int size = 1 + varintSize(messages.size());
+    for (int i = 0; i < messages.size(); i++) {
+      size += size(messages.get(i));
+    }
+    return size;
+  }
+
+  public static void encode(List<PaxosMessage> messages, ByteBuffer buffer) {
+    if (messages.size() == 1) {
+      encode(messages.get(0), buffer);
+      return;
+    }
+    buffer.put(BATCH);
+    putVarint(messages.size(), buffer);
+    for (int i = 0; i < messages.size(); i++) {
+      encode(messages.get(i), buffer);
+    }
+  }
+
+  /**
+   * Reads a batch or a single message from the position of the buffer.
+   */
+  public static List<PaxosMessage> decodeAll(ByteBuffer buffer) {
+    if (buffer.get(buffer.position()) != BATCH) {
+      return Collections.singletonList(decode(buffer));
+    }
+    buffer.get();
+    int count = (int) getVarint(buffer);
+    List<PaxosMessage> messages = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      messages.add(decode(buffer));
+    }
+    return messages;
+  }
+
+  /**
+   * @return the number of bytes encode writes for the message
+   */
+  public static int size(PaxosMessage message) {
+    if (message instanceof MessagePrepare) {
+      return 1 + size(message.getProposalID()) + varintSize(message.getSlot()) + 1;
+    } else if (message instanceof MessagePromise) {
+      MessagePromise promise = (MessagePromise) message;
+      List<LogEntry> entries = promise.getAcceptedEntries();
+      int size = 1 + varintSize(promise.getServerId()) + size(promise.getProposalID()) + varintSize(promise.getSlot()) + 1
+          + varintSize(entries.size());
+      for (LogEntry entry : entries) {
+        size += varintSize(entry.getSlot()) + size(entry.getBallot()) + size(entry.getCommand());
+      }
+      return size;
+    } else if (message instanceof MessagePropose) {
+      MessagePropose propose = (MessagePropose) message;
+      return 1 + size(propose.getProposalID()) + varintSize(propose.getSlot()) + size(propose.getCommand())
+          + size(propose.getCommittedSlots());
+    } else if (message instanceof MessageAccepted) {
+      return 1 + varintSize(message.getServerId()) + size(message.getProposalID()) + varintSize(message.getSlot())
+          + size(((MessageAccepted) message).getCommand());
+    } else if (message instanceof MessageHeartbeat) {
+      MessageHeartbeat heartbeat = (MessageHeartbeat) message;
+      return 1 + size(heartbeat.getProposalID()) + varintSize(heartbeat.getRound()) + varintSize(heartbeat.getCommitIndex());
+    } else if (message instanceof MessageHeartbeatAck) {
+      MessageHeartbeatAck ack = (MessageHeartbeatAck) message;
+      return 1 + varintSize(ack.getServerId()) + size(ack.getProposalID()) + varintSize(ack.getRound())
+          + varintSize(ack.getAppliedIndex());
+    } else if (message instanceof MessageCommit) {
+      return 1 + size(message.getProposalID()) + size(((MessageCommit) message).getSlots());
+    } else if (message instanceof GroupMessage) {
+      GroupMessage group = (GroupMessage) message;
+      return 1 + varintSize(group.getGroupId()) + size(group.getMessage());
+    }
+    throw new IllegalArgumentException("Unknown message type " + message.getClass().getName());
+  }
+
+  /**
+   * Writes the message at the position of the buffer, which must have size(message) bytes remaining.
+   */
+  public static void encode(PaxosMessage message, ByteBuffer buffer) {
+    if (message instanceof MessagePrepare) {
+      MessagePrepare prepare = (MessagePrepare) message;
+      buffer.put(PREPARE);
+      putBallot(prepare.getProposalID(), buffer);
+      putVarint(prepare.getSlot(), buffer);
+      buffer.put((byte) (prepare.isLeaderPrepare() ? 1 : 0));
+    } else if (message instanceof MessagePromise) {
+      MessagePromise promise = (MessagePromise) message;
+      List<LogEntry> entries = promise.getAcceptedEntries();
+      buffer.put(PROMISE);
+      putVarint(promise.getServerId(), buffer);
+      putBallot(promise.getProposalID(), buffer);
+      putVarint(promise.getSlot(), buffer);
+      buffer.put((byte) (promise.isLeaderPromise() ? 1 : 0));
+      putVarint(entries.size(), buffer);
+      for (int i = 0; i < entries.size(); i++) {
+        LogEntry entry = entries.get(i);
+        putVarint(entry.getSlot(), buffer);
+        putBallot(entry.getBallot(), buffer);
+        putCommand(entry.getCommand(), buffer);
+      }
+    } else if (message instanceof MessagePropose) {
+      MessagePropose propose = (MessagePropose) message;
+      buffer.put(PROPOSE);
+      putBallot(propose.getProposalID(), buffer);
+      putVarint(propose.getSlot(), buffer);
+      putCommand(propose.getCommand(), buffer);
+      putSlots(propose.getCommittedSlots(), buffer);
+    } else if (message instanceof MessageAccepted) {
+      MessageAccepted accepted = (MessageAccepted) message;
+      buffer.put(ACCEPTED);
+      putVarint(accepted.getServerId(), buffer);
+      putBallot(accepted.getProposalID(), buffer);
+      putVarint(accepted.getSlot(), buffer);
+      putCommand(accepted.getCommand(), buffer);
+    } else if (message instanceof MessageHeartbeat) {
+      MessageHeartbeat heartbeat = (MessageHeartbeat) message;
+      buffer.put(HEARTBEAT);
+      putBallot(heartbeat.getProposalID(), buffer);
+      putVarint(heartbeat.getRound(), buffer);
+      putVarint(heartbeat.getCommitIndex(), buffer);
+    } else if (message instanceof MessageHeartbeatAck) {
+      MessageHeartbeatAck ack = (MessageHeartbeatAck) message;
+      buffer.put(HEARTBEAT_ACK);
+      putVarint(ack.getServerId(), buffer);
+      putBallot(ack.getProposalID(), buffer);
+      putVarint(ack.getRound(), buffer);
+      putVarint(ack.getAppliedIndex(), buffer);
+    } else if (message instanceof MessageCommit) {
+      buffer.put(COMMIT);
+      putBallot(message.getProposalID(), buffer);
+      putSlots(((MessageCommit) message).getSlots(), buffer);
+    } else if (message instanceof GroupMessage) {
+      GroupMessage group = (GroupMessage) message;
+      buffer.put(GROUP);
+      putVarint(group.getGroupId(), buffer);
+      encode(group.getMessage(), buffer);
+    } else {
+      throw new IllegalArgumentException("Unknown message type " + message.getClass().getName());
+    }
+  }
+
+  /**
+   * Reads one message from the position of the buffer.
+   */
+  public static PaxosMessage decode(ByteBuffer buffer) {
+    byte type = buffer.get();
+    switch (type) {
+      case PREPARE: {
+        ProposalID ballot = getBallot(buffer);
+        long slot = getVarint(buffer);
+        return buffer.get() != 0 ? MessagePrepare.forLeadership(ballot, slot) : new MessagePrepare(ballot, slot);
+      }
+      case PROMISE: {
+        int serverId = (int) getVarint(buffer);
+        ProposalID ballot = getBallot(buffer);
+        long slot = getVarint(buffer);
+        boolean leadership = buffer.get() != 0;
+        int count = (int) getVarint(buffer);
+        List<LogEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          long entrySlot = getVarint(buffer);
+          ProposalID entryBallot = getBallot(buffer);
+          entries.add(new LogEntry(entrySlot, entryBallot, getCommand(buffer)));
+        }
+        return new MessagePromise(serverId, ballot, slot, leadership, entries);
+      }
+      case PROPOSE: {
+        ProposalID ballot = getBallot(buffer);
+        long slot = getVarint(buffer);
+        Command command = getCommand(buffer);
+        return new MessagePropose(ballot, slot, command, getSlots(buffer));
+      }
+      case ACCEPTED: {
+        int serverId = (int) getVarint(buffer);
+        ProposalID ballot = getBallot(buffer);
+        long slot = getVarint(buffer);
+        return new MessageAccepted(serverId, ballot, slot, getCommand(buffer));
+      }
+      case HEARTBEAT: {
+        ProposalID ballot = getBallot(buffer);
+        long round = getVarint(buffer);
+        return new MessageHeartbeat(ballot, round, getVarint(buffer));
+      }
+      case HEARTBEAT_ACK: {
+        int serverId = (int) getVarint(buffer);
+        ProposalID ballot = getBallot(buffer);
+        long round = getVarint(buffer);
+        return new MessageHeartbeatAck(serverId, ballot, round, getVarint(buffer));
+      }
+      case COMMIT: {
+        ProposalID ballot = getBallot(buffer);
+        return new MessageCommit(ballot, getSlots(buffer));
+      }
+      case GROUP: {
+        int groupId = (int) getVarint(buffer);
+        return new GroupMessage(groupId, decode(buffer));
+      }
+      default:
+        throw new IllegalArgumentException("Unknown message type " + type);
+    }
+  }
+
+  private static int size(ProposalID ballot) {
+    return varintSize(ballot.getNumber()) + varintSize(ballot.getServerId());
+  }
+
+  private static void putBallot(ProposalID ballot, ByteBuffer buffer) {
+    putVarint(ballot.getNumber(), buffer);
+    putVarint(ballot.getServerId(), buffer);
+  }
+
+  private static ProposalID getBallot(ByteBuffer buffer) {
+    long number = getVarint(buffer);
+    return ProposalID.of(number, (int) getVarint(buffer));
+  }
+
+  /**
+   * Ascending slots are written as their count and the differences to the previous slot, which are mostly 1.
+   */
+  private static int size(long[] slots) {
+    int size = varintSize(slots.length);
+    long previous = 0;
+    for (long slot : slots) {
+      size += varintSize(slot - previous);
+      previous = slot;
+    }
+    return size;
+  }
+
+  private static void putSlots(long[] slots, ByteBuffer buffer) {
+    putVarint(slots.length, buffer);
+    long previous = 0;
+    for (long slot : slots) {
+      putVarint(slot - previous, buffer);
+      previous = slot;
+    }
+  }
+
+  private static long[] getSlots(ByteBuffer buffer) {
+    long[] slots = new long[(int) getVarint(buffer)];
+    long previous = 0;
+    for (int i = 0; i < slots.length; i++) {
+      previous += getVarint(buffer);
+      slots[i] = previous;
+    }
+    return slots;
+  }
+
+  private static int size(Command command) {
+    int size = 1 + size(command.getRequestId()) + size(command.getKey()) + size(command.getValue());
+    if (command.getClientId() != null) {
+      size += size(command.getClientId()) + varintSize(command.getSeq()) + varintSize(command.getTimestamp());
+    }
+    if (command.isBatch()) {
+      List<Command> commands = command.getCommands();
+      size += varintSize(commands.size());
+      for (int i = 0; i < commands.size(); i++) {
+        size += size(commands.get(i));
+      }
+    }
+    return size;
+  }
+
+  private static void putCommand(Command command, ByteBuffer buffer) {
+    boolean session = command.getClientId() != null;
+    byte opcode = LogEntryCodec.opcode(command.getOperation());
+    buffer.put(session ? (byte) (opcode | LogEntryCodec.SESSION) : opcode);
+    putString(command.getRequestId(), buffer);
+    putString(command.getKey(), buffer);
+    putString(command.getValue(), buffer);
+    if (session) {
+      putString(command.getClientId(), buffer);
+      putVarint(command.getSeq(), buffer);
+      putVarint(command.getTimestamp(), buffer);
+    }
+    if (command.isBatch()) {
+      List<Command> commands = command.getCommands();
+      putVarint(commands.size(), buffer);
+      for (int i = 0; i < commands.size(); i++) {
+        putCommand(commands.get(i), buffer);
+      }
+    }
+  }
+
+  private static Command getCommand(ByteBuffer buffer) {
+    byte opcode = buffer.get();
+    String operation = LogEntryCodec.operation((byte) (opcode & ~LogEntryCodec.SESSION));
+    String requestId = getString(buffer);
+    String key = getString(buffer);
+    String value = getString(buffer);
+    if ((opcode & LogEntryCodec.SESSION) != 0) {
+      return Command.session(requestId, operation, key, value, getString(buffer), getVarint(buffer), getVarint(buffer));
+    }
+    if (Command.BATCH.equals(operation)) {
+      int count = (int) getVarint(buffer);
+      List<Command> commands = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        commands.add(getCommand(buffer));
+      }
+      return Command.batch(requestId, commands);
+    }
+    return new Command(requestId, operation, key, value);
+  }
+
+  private static int size(String value) {
+    if (value == null) {
+      return 1;
+    }
+    int length = LogEntryCodec.utf8Length(value);
+    return varintSize(length + 1) + length;
+  }
+
+  /**
+   * Writes the UTF-8 encoding exactly as String.getBytes would, an unpaired surrogate as '?'.
+   */
+  private static void putString(String value, ByteBuffer buffer) {
+    if (value == null) {
+      buffer.put((byte) 0);
+      return;
+    }
+    putVarint(LogEntryCodec.utf8Length(value) + 1, buffer);
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        buffer.put((byte) c);
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xC0 | c >> 6));
+        buffer.put((byte) (0x80 | c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer.put((byte) (0xF0 | codePoint >> 18));
+        buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+        buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+        buffer.put((byte) (0x80 | codePoint & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        buffer.put((byte) '?');
+      } else {
+        buffer.put((byte) (0xE0 | c >> 12));
+        buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+        buffer.put((byte) (0x80 | c & 0x3F));
+      }
+    }
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    int length = (int) getVarint(buffer) - 1;
+    if (length < 0) {
+      return null;
+    }
+    if (buffer.hasArray()) {
+      String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+      return value;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int varintSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static void putVarint(long value, ByteBuffer buffer) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) (value & 0x7F | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  private static long getVarint(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; shift < Long.SIZE; shift += 7) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+}
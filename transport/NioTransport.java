@@ -0,0 +1,389 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import paxos.PaxosMessage;
+import server.ServerLogger;
+
+/**
+ * Sends Paxos messages over persistent TCP connections, one outgoing connection per peer, as frames of a length
+ * followed by the MessageCodec encoding of one message or of a batch. Sending encodes the frame and, unless another
+ * thread is writing to that peer, writes it to the socket right away; one selector thread connects, writes what a
+ * full socket did not take once it drains and reads the frames of incoming connections, and one dispatch thread hands
+ * the received messages to the handler in the order they arrived.
+ * A message to a peer that is not connected is not queued: the send reports false, a connection is set up in the
+ * background, and the caller may use another transport meanwhile. Frames still queued when a connection breaks are
+ * lost, like messages to a crashed peer.
+ */
+public class NioTransport implements Transport {
+  private static final int MAX_FRAME_BYTES = 64 << 20;
+  // frames queued for one peer beyond this many bytes are refused until the socket catches up
+  private static final int MAX_PENDING_BYTES = 64 << 20;
+  private static final int READ_BUFFER_BYTES = 64 << 10;
+  private static final long RECONNECT_DELAY_MILLIS = 500;
+  // frames of up to 512 bytes (heartbeats, acks, single commands), 4 KB and 32 KB (batches)
+  private static final BufferPool framePool = new BufferPool(1024, 512, 4 << 10, 32 << 10);
+  private final int serverId;
+  private final String peerHost;
+  private final int basePort;
+  private final Consumer<List<PaxosMessage>> handler;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  private final Thread ioThread;
+  private final ExecutorService dispatcher;
+  private final ConcurrentHashMap<Integer, Peer> peers = new ConcurrentHashMap<>();
+  // work for the selector thread queued by senders
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private volatile boolean running = true;
+  private final AtomicLong framesSent = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong framesReceived = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicLong refused = new AtomicLong();
+
+  /**
+   * Listens on basePort + serverId and starts the selector thread.
+   * @param serverId the id of this server
+   * @param peerHost the host every peer listens on
+   * @param basePort the port of server 0; server i listens on basePort + i
+   * @param handler receives the messages of every incoming frame, on the dispatch thread
+   * @throws IOException if the port can not be bound
+   */
+  public NioTransport(int serverId, String peerHost, int basePort, Consumer<List<PaxosMessage>> handler) throws IOException {
+    this.serverId = serverId;
+    this.peerHost = peerHost;
+    this.basePort = basePort;
+    this.handler = handler;
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    serverChannel.bind(new InetSocketAddress(basePort + serverId));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    this.dispatcher = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "nio-dispatch-" + serverId);
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.ioThread = new Thread(this::run, "nio-transport-" + serverId);
+    ioThread.setDaemon(true);
+    ioThread.start();
+  }
+
+  @Override
+  public boolean send(int peerId, PaxosMessage message) {
+    return sendAll(peerId, Collections.singletonList(message));
+  }
+
+  @Override
+  public boolean sendAll(int peerId, List<PaxosMessage> messages) {
+    if (peerId == serverId) {
+      dispatch(messages);
+      return true;
+    }
+    return peers.computeIfAbsent(peerId, Peer::new).offer(messages);
+  }
+
+  @Override
+  public String getStats() {
+    return "nio frames sent=" + framesSent + " (" + bytesSent + " bytes), received=" + framesReceived + " (" + bytesReceived
+        + " bytes), refused=" + refused + ", " + framePool.getStats();
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    selector.wakeup();
+    try {
+      ioThread.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    dispatcher.shutdown();
+  }
+
+  private void dispatch(List<PaxosMessage> messages) {
+    dispatcher.execute(() -> {
+      try {
+        handler.accept(messages);
+      } catch (RuntimeException e) {
+        ServerLogger.error("Server" + serverId + " failed to handle a message: " + e.getMessage());
+      }
+    });
+  }
+
+  private void submit(Runnable task) {
+    tasks.offer(task);
+    selector.wakeup();
+  }
+
+  private void run() {
+    try {
+      while (running) {
+        selector.select();
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          handle(key);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      ServerLogger.error("Server" + serverId + " NIO transport stopped: " + e.getMessage());
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        closeQuietly(key);
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        // shutting down anyway
+      }
+    }
+  }
+
+  private void handle(SelectionKey key) {
+    Object attachment = key.attachment();
+    try {
+      if (!key.isValid()) {
+        return;
+      }
+      if (key.isAcceptable()) {
+        SocketChannel channel = serverChannel.accept();
+        if (channel != null) {
+          channel.configureBlocking(false);
+          channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          channel.register(selector, SelectionKey.OP_READ, new Inbound());
+        }
+        return;
+      }
+      if (attachment instanceof Peer) {
+        Peer peer = (Peer) attachment;
+        if (key.isConnectable()) {
+          peer.finishConnect(key);
+        }
+        if (key.isValid() && key.isWritable()) {
+          peer.write(key);
+        }
+      } else if (attachment instanceof Inbound && key.isReadable()) {
+        ((Inbound) attachment).read(key);
+      }
+    } catch (IOException | RuntimeException e) {
+      closeQuietly(key);
+      if (attachment instanceof Peer) {
+        ((Peer) attachment).fail(e);
+      }
+    }
+  }
+
+  private static void closeQuietly(SelectionKey key) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      // the connection is dropped either way
+    }
+  }
+
+  /**
+   * The outgoing connection to one peer and the frames queued for it.
+   */
+  private class Peer {
+    private final int peerId;
+    private final ConcurrentLinkedQueue<ByteBuffer> frames = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    // held by the one thread writing to the socket, a sender or the selector thread
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final AtomicBoolean connecting = new AtomicBoolean();
+    private volatile boolean connected;
+    private volatile long failedAtMillis;
+    private volatile SelectionKey key;
+
+    private Peer(int peerId) {
+      this.peerId = peerId;
+    }
+
+    private boolean offer(List<PaxosMessage> messages) {
+      if (!connected) {
+        connect();
+        return false;
+      }
+      if (pendingBytes.get() > MAX_PENDING_BYTES) {
+        refused.incrementAndGet();
+        return false;
+      }
+      int size = MessageCodec.size(messages);
+      ByteBuffer frame = framePool.acquire(Integer.BYTES + size);
+      frame.putInt(size);
+      MessageCodec.encode(messages, frame);
+      frame.flip();
+      pendingBytes.addAndGet(frame.remaining());
+      frames.offer(frame);
+      if (writing.compareAndSet(false, true)) {
+        try {
+          if (!flush()) {
+            // the socket is full, the selector thread carries on once it drains
+            submit(this::enableWrite);
+          }
+        } catch (IOException e) {
+          SelectionKey failedKey = key;
+          submit(() -> {
+            closeQuietly(failedKey);
+            // unless the selector thread noticed first and a new connection replaced the broken one
+            if (key == failedKey) {
+              fail(e);
+            }
+          });
+        }
+      }
+      return true;
+    }
+
+    private void connect() {
+      if (System.currentTimeMillis() - failedAtMillis < RECONNECT_DELAY_MILLIS || !connecting.compareAndSet(false, true)) {
+        return;
+      }
+      submit(() -> {
+        try {
+          SocketChannel channel = SocketChannel.open();
+          channel.configureBlocking(false);
+          channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+          if (channel.connect(new InetSocketAddress(peerHost, basePort + peerId))) {
+            finishConnect(key);
+          }
+        } catch (IOException e) {
+          if (key != null) {
+            closeQuietly(key);
+          }
+          fail(e);
+        }
+      });
+    }
+
+    private void finishConnect(SelectionKey key) throws IOException {
+      if (!((SocketChannel) key.channel()).finishConnect()) {
+        return;
+      }
+      key.interestOps(frames.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+      connected = true;
+      connecting.set(false);
+      ServerLogger.log("Server" + serverId + " connected to server" + peerId + " over NIO");
+    }
+
+    private void enableWrite() {
+      if (key != null && key.isValid() && connected) {
+        key.interestOps(SelectionKey.OP_WRITE);
+      } else {
+        writing.set(false);
+      }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+      key.interestOps(flush() ? 0 : SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Writes the queued frames while holding the writing flag.
+     * @return true if all of them were written and the flag was released, false if the socket is full and the flag is
+     * still held
+     */
+    private boolean flush() throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      do {
+        ByteBuffer frame;
+        while ((frame = frames.peek()) != null) {
+          int written = channel.write(frame);
+          bytesSent.addAndGet(written);
+          pendingBytes.addAndGet(-written);
+          if (frame.hasRemaining()) {
+            return false;
+          }
+          // a failed connection may have dropped the frame meanwhile, which then may be in use again
+          if (frames.poll() == frame) {
+            framePool.release(frame);
+          }
+          framesSent.incrementAndGet();
+        }
+        writing.set(false);
+        // a frame may have been queued after the last peek but before the flag was released
+      } while (!frames.isEmpty() && writing.compareAndSet(false, true));
+      return true;
+    }
+
+    private void fail(Exception e) {
+      if (connected) {
+        ServerLogger.warn("Server" + serverId + " lost its NIO connection to server" + peerId + ": " + e.getMessage());
+      }
+      connected = false;
+      connecting.set(false);
+      failedAtMillis = System.currentTimeMillis();
+      // the dropped frames are not pooled again, a sender may still be writing one of them
+      frames.clear();
+      pendingBytes.set(0);
+      writing.set(false);
+    }
+  }
+
+  /**
+   * An incoming connection, collecting bytes until a whole frame arrived.
+   */
+  private class Inbound {
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+
+    private void read(SelectionKey key) throws IOException {
+      int read = ((SocketChannel) key.channel()).read(buffer);
+      if (read < 0) {
+        closeQuietly(key);
+        return;
+      }
+      bytesReceived.addAndGet(read);
+      buffer.flip();
+      while (buffer.remaining() >= Integer.BYTES) {
+        int size = buffer.getInt(buffer.position());
+        if (size < 0 || size > MAX_FRAME_BYTES) {
+          throw new IOException("Invalid frame of " + size + " bytes");
+        }
+        if (buffer.remaining() < Integer.BYTES + size) {
+          break;
+        }
+        ByteBuffer frame = buffer.slice(buffer.position() + Integer.BYTES, size);
+        buffer.position(buffer.position() + Integer.BYTES + size);
+        framesReceived.incrementAndGet();
+        dispatch(MessageCodec.decodeAll(frame));
+      }
+      buffer.compact();
+      // make room for a frame larger than the buffer
+      if (buffer.position() >= Integer.BYTES) {
+        int needed = Integer.BYTES + buffer.getInt(0);
+        if (needed > buffer.capacity() && needed <= Integer.BYTES + MAX_FRAME_BYTES) {
+          ByteBuffer larger = ByteBuffer.allocate(needed);
+          buffer.flip();
+          larger.put(buffer);
+          buffer = larger;
+        }
+      }
+    }
+  }
+}
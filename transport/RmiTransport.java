@@ -0,0 +1,54 @@
+package transport;
+
+import java.rmi.RemoteException;
+import java.util.List;
+
+import paxos.Messenger;
+import paxos.PaxosMessage;
+
+/**
+ * Sends every message, or every batch of messages, as a synchronous RMI call of IPaxosNode.handlePaxosMessage(s) with
+ * Java serialization, using the remote stubs the Messenger caches.
+ */
+public class RmiTransport implements Transport {
+  private final Messenger messenger;
+
+  public RmiTransport(Messenger messenger) {
+    this.messenger = messenger;
+  }
+
+  @Override
+  public boolean send(int serverId, PaxosMessage message) throws Exception {
+    try {
+      messenger.getPeer(serverId).handlePaxosMessage(message);
+    } catch (RemoteException e) {
+      // the cached stub may belong to a restarted peer, look it up again and retry once
+      messenger.reResolvePeer(serverId);
+      messenger.getPeer(serverId).handlePaxosMessage(message);
+    }
+    return true;
+  }
+
+  @Override
+  public boolean sendAll(int serverId, List<PaxosMessage> messages) throws Exception {
+    if (messages.size() == 1) {
+      return send(serverId, messages.get(0));
+    }
+    try {
+      messenger.getPeer(serverId).handlePaxosMessages(messages);
+    } catch (RemoteException e) {
+      messenger.reResolvePeer(serverId);
+      messenger.getPeer(serverId).handlePaxosMessages(messages);
+    }
+    return true;
+  }
+
+  @Override
+  public String getStats() {
+    return "rmi " + messenger.getStubCacheStats();
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,36 @@
+package transport;
+
+import java.util.List;
+
+import paxos.PaxosMessage;
+
+/**
+ * Carries Paxos messages from this server to its peers. Incoming messages are handed to the handler the transport
+ * was created with, or arrive through IPaxosNode.handlePaxosMessage(s) for RMI.
+ */
+public interface Transport {
+  /**
+   * Sends one message to a peer.
+   * @param serverId the id of the receiving server
+   * @param message the message to send
+   * @return true once the message was handed over, false if the peer can not be reached over this transport right now
+   * @throws Exception if sending failed
+   */
+  boolean send(int serverId, PaxosMessage message) throws Exception;
+
+  /**
+   * Sends several messages to a peer in one call or frame, to be handled in their order.
+   * @param serverId the id of the receiving server
+   * @param messages the messages to send
+   * @return true once all messages were handed over, false if the peer can not be reached over this transport right now
+   * @throws Exception if sending failed
+   */
+  boolean sendAll(int serverId, List<PaxosMessage> messages) throws Exception;
+
+  /**
+   * @return counters of the traffic so far, for the logs
+   */
+  String getStats();
+
+  void close();
+}